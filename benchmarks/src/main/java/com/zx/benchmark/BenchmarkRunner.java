@@ -0,0 +1,48 @@
+package com.zx.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 基准测试入口：按线程数依次运行JMH基准测试。
+ * <p>
+ * JMH only accepts a single thread count per run, so this runner repeats the
+ * selected benchmarks once per thread count. The thread counts are taken from
+ * the <code>threads</code> system property (default
+ * <code>1,2,4,8,16,32,64</code>); every other argument is passed through to
+ * JMH unchanged, e.g.
+ * <pre>
+ * java -Dthreads=1,16,64 -jar target/benchmarks.jar borrowReturn -p numKeys=1,10000
+ * </pre>
+ * The results of each thread count are written as JSON to
+ * <code>jmh-result-t&lt;threads&gt;.json</code> in the working directory so
+ * that runs before and after a change can be compared.
+ */
+public class BenchmarkRunner {
+
+    private static final String DEFAULT_THREADS = "1,2,4,8,16,32,64";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        boolean selected = !cmdOptions.getIncludes().isEmpty();
+
+        String[] threadCounts = System.getProperty("threads", DEFAULT_THREADS).split(",");
+        for (String threadCount : threadCounts) {
+            int threads = Integer.parseInt(threadCount.trim());
+            OptionsBuilder builder = new OptionsBuilder();
+            builder.parent(cmdOptions);
+            if (!selected) {
+                builder.include(GenericKeyedObjectPoolBenchmark.class.getSimpleName());
+            }
+            Options options = builder
+                    .threads(threads)
+                    .result("jmh-result-t" + threads + ".json")
+                    .resultFormat(ResultFormatType.JSON)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
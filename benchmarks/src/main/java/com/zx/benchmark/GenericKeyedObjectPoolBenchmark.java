@@ -0,0 +1,155 @@
+package com.zx.benchmark;
+
+import com.zx.impl.DefaultPooledObject;
+import com.zx.impl.GenericKeyedObjectPool;
+import com.zx.impl.GenericKeyedObjectPoolConfig;
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GenericKeyedObjectPool借用/归还热路径的JMH基准测试。
+ * <p>
+ * Every invocation borrows an object with
+ * {@link GenericKeyedObjectPool#borrowObject(Object, long)} and immediately
+ * returns it with {@link GenericKeyedObjectPool#returnObject(Object, Object)},
+ * so the score is dominated by the pool's own bookkeeping (key registration,
+ * the idle deque, object state transitions and statistics) rather than by the
+ * factory.
+ * <p>
+ * The thread count is not a {@link Param}; use {@link BenchmarkRunner} (or the
+ * JMH <code>-t</code> option) to sweep it.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenericKeyedObjectPoolBenchmark {
+
+    /**
+     * The pool under test, shared by all benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class PoolState {
+
+        /** Number of distinct keys the threads spread their borrows over. */
+        @Param({"1", "100", "10000", "100000"})
+        int numKeys;
+
+        /** Fair or unfair LinkedBlockingDeque for the per key idle objects. */
+        @Param({"false", "true"})
+        boolean fairness;
+
+        @Param({"true", "false"})
+        boolean lifo;
+
+        /** The IdleObjectStore implementation holding each key's idle objects. */
+        @Param({"com.zx.impl.LinkedBlockingIdleObjectStore",
+                "com.zx.impl.ConcurrentIdleObjectStore"})
+        String idleObjectStore;
+
+        @Param({"false", "true"})
+        boolean testOnBorrow;
+
+        /** Per thread cache of the last returned object for each key. */
+        @Param({"false", "true"})
+        boolean threadAffinity;
+
+        @Param({"8"})
+        int maxTotalPerKey;
+
+        @Param({"-1"})
+        int maxTotal;
+
+        /** Passed to borrowObject(K, long) when a key is exhausted. */
+        @Param({"1000"})
+        long maxWaitMillis;
+
+        GenericKeyedObjectPool<Integer, Object> pool;
+
+        Integer[] keys;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+            config.setJmxEnabled(false);
+            config.setFairness(fairness);
+            config.setLifo(lifo);
+            config.setIdleObjectStoreClassName(idleObjectStore);
+            config.setTestOnBorrow(testOnBorrow);
+            config.setThreadAffinity(threadAffinity);
+            config.setMaxTotalPerKey(maxTotalPerKey);
+            config.setMaxIdlePerKey(maxTotalPerKey);
+            config.setMaxTotal(maxTotal);
+            config.setBlockWhenExhausted(true);
+            pool = new GenericKeyedObjectPool<Integer, Object>(new ObjectFactory(), config);
+
+            // Pre-box the keys so the benchmark doesn't measure Integer.valueOf
+            keys = new Integer[numKeys];
+            for (int i = 0; i < numKeys; i++) {
+                keys[i] = Integer.valueOf(i);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.close();
+        }
+    }
+
+    /**
+     * Each thread borrows and returns objects under randomly chosen keys.
+     */
+    @Benchmark
+    public Object borrowReturn(PoolState state, KeyState keyState) throws Exception {
+        Integer key = keyState.nextKey(state.keys);
+        Object obj = state.pool.borrowObject(key, state.maxWaitMillis);
+        state.pool.returnObject(key, obj);
+        return obj;
+    }
+
+    /**
+     * All threads borrow and return objects under the same key. With more
+     * threads than <code>maxTotalPerKey</code> this exercises the blocking
+     * path and the waiter hand-off on return.
+     */
+    @Benchmark
+    public Object borrowReturnHotKey(PoolState state) throws Exception {
+        Integer key = state.keys[0];
+        Object obj = state.pool.borrowObject(key, state.maxWaitMillis);
+        state.pool.returnObject(key, obj);
+        return obj;
+    }
+
+    /**
+     * Trivial factory so that the benchmark measures the pool, not the
+     * pooled objects.
+     */
+    static class ObjectFactory extends BaseKeyedPooledObjectFactory<Integer, Object> {
+
+        @Override
+        public Object create(Integer key) {
+            return new Object();
+        }
+
+        @Override
+        public PooledObject<Object> wrap(Object value) {
+            return new DefaultPooledObject<Object>(value);
+        }
+    }
+}
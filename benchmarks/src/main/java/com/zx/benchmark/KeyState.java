@@ -0,0 +1,39 @@
+package com.zx.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 每个线程的key选择，所有基准测试共用。
+ * <p>
+ * A xorshift generator is used instead of {@link java.util.Random} so that
+ * key selection stays out of the profile.
+ */
+@State(Scope.Thread)
+public class KeyState {
+
+    private int seed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        seed = System.identityHashCode(this) | 1;
+    }
+
+    /**
+     * Picks one of the given keys at random.
+     *
+     * @param keys The pre-boxed keys of the pool under test
+     *
+     * @return one of the keys
+     */
+    Integer nextKey(Integer[] keys) {
+        int x = seed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        seed = x;
+        return keys[(x & Integer.MAX_VALUE) % keys.length];
+    }
+}
@@ -0,0 +1,194 @@
+package com.zx.benchmark;
+
+import com.zx.impl.GenericKeyedObjectPool;
+import com.zx.impl.GenericKeyedObjectPoolConfig;
+import com.zx.impl.KeyStats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个key的统计数据的JMH基准测试。
+ * <p>
+ * Measures what reading the statistics of
+ * {@link GenericKeyedObjectPool#getKeyStats(Object)} and
+ * {@link GenericKeyedObjectPool#getAllKeyStats()} costs, how much a thread
+ * polling the statistics of a key slows down the threads borrowing from it,
+ * and what recording them costs the borrow and return path:
+ * <code>borrowReturn</code> runs with
+ * {@link GenericKeyedObjectPool#setKeyStatsEnabled(boolean) keyStatsEnabled}
+ * on and off. Compare <code>borrowWhileReading</code> with the
+ * <code>borrowReturnHotKey</code> of {@link GenericKeyedObjectPoolBenchmark}.
+ * <p>
+ * {@link BenchmarkRunner} only runs these when selected, e.g.
+ * <pre>
+ * java -Dthreads=4 -jar target/benchmarks.jar KeyStatsBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyStatsBenchmark {
+
+    /**
+     * A pool whose keys have all been borrowed from and returned to, so that
+     * every key has statistics to read.
+     */
+    @State(Scope.Benchmark)
+    public static class PoolState {
+
+        /** Number of keys with statistics. */
+        @Param({"1", "100", "10000"})
+        int numKeys;
+
+        /** Borrows per key before the measurement, filling the histograms. */
+        @Param({"100"})
+        int borrowsPerKey;
+
+        GenericKeyedObjectPool<Integer, Object> pool;
+
+        Integer[] keys;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+            config.setJmxEnabled(false);
+            config.setMaxTotalPerKey(8);
+            config.setMaxIdlePerKey(8);
+            config.setMaxTotal(-1);
+            config.setBlockWhenExhausted(true);
+            pool = new GenericKeyedObjectPool<Integer, Object>(
+                    new GenericKeyedObjectPoolBenchmark.ObjectFactory(), config);
+
+            // Pre-box the keys so the benchmark doesn't measure Integer.valueOf
+            keys = new Integer[numKeys];
+            for (int i = 0; i < numKeys; i++) {
+                keys[i] = Integer.valueOf(i);
+                for (int j = 0; j < borrowsPerKey; j++) {
+                    pool.returnObject(keys[i], pool.borrowObject(keys[i]));
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.close();
+        }
+    }
+
+    /**
+     * A pool that records the statistics of each key or not, to measure
+     * what recording them costs the borrow and return path.
+     */
+    @State(Scope.Benchmark)
+    public static class RecordingState {
+
+        /** Number of distinct keys the threads spread their borrows over. */
+        @Param({"1", "100", "10000"})
+        int numKeys;
+
+        /** See {@link GenericKeyedObjectPool#setKeyStatsEnabled(boolean)}. */
+        @Param({"true", "false"})
+        boolean keyStatsEnabled;
+
+        GenericKeyedObjectPool<Integer, Object> pool;
+
+        Integer[] keys;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+            config.setJmxEnabled(false);
+            config.setMaxTotalPerKey(8);
+            config.setMaxIdlePerKey(8);
+            config.setMaxTotal(-1);
+            config.setBlockWhenExhausted(true);
+            config.setKeyStatsEnabled(keyStatsEnabled);
+            pool = new GenericKeyedObjectPool<Integer, Object>(
+                    new GenericKeyedObjectPoolBenchmark.ObjectFactory(), config);
+
+            // Pre-box the keys so the benchmark doesn't measure Integer.valueOf
+            keys = new Integer[numKeys];
+            for (int i = 0; i < numKeys; i++) {
+                keys[i] = Integer.valueOf(i);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.close();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the statistics of a randomly chosen key: six sums
+     * and the percentiles of three histograms.
+     */
+    @Benchmark
+    public KeyStats getKeyStats(PoolState state, KeyState keyState) {
+        return state.pool.getKeyStats(keyState.nextKey(state.keys));
+    }
+
+    /**
+     * Takes a snapshot of the statistics of every key, as a JMX client
+     * reading the KeyStats attribute does.
+     */
+    @Benchmark
+    public Map<String, KeyStats> getAllKeyStats(PoolState state) {
+        return state.pool.getAllKeyStats();
+    }
+
+    /**
+     * Each thread borrows and returns objects under randomly chosen keys,
+     * with the per key statistics recorded or not: the difference between
+     * the two scores is what recording them costs.
+     */
+    @Benchmark
+    public Object borrowReturn(RecordingState state, KeyState keyState)
+            throws Exception {
+        Integer key = keyState.nextKey(state.keys);
+        Object obj = state.pool.borrowObject(key);
+        state.pool.returnObject(key, obj);
+        return obj;
+    }
+
+    /**
+     * Three threads borrow and return objects under the first key...
+     */
+    @Benchmark
+    @Group("borrowWhileReading")
+    @GroupThreads(3)
+    public Object borrowReturnHotKey(PoolState state) throws Exception {
+        Integer key = state.keys[0];
+        Object obj = state.pool.borrowObject(key);
+        state.pool.returnObject(key, obj);
+        return obj;
+    }
+
+    /**
+     * ...while a fourth one keeps reading the statistics of that key.
+     */
+    @Benchmark
+    @Group("borrowWhileReading")
+    @GroupThreads(1)
+    public KeyStats readStats(PoolState state) {
+        return state.pool.getKeyStats(state.keys[0]);
+    }
+}
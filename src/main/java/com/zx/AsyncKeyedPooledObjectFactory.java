@@ -0,0 +1,99 @@
+package com.zx;
+
+import org.apache.commons.pool2.PooledObject;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * {@link KeyedPooledObjectFactory}的异步版本：创建、激活和校验对象的方法返回{@link CompletionStage}
+ * <p>
+ * The life cycle is the same as for a {@link KeyedPooledObjectFactory}, but
+ * {@link #makeObject}, {@link #activateObject} and {@link #validateObject}
+ * start the work and return at once, so that a slow operation (for example
+ * connecting and a TLS handshake) does not hold the thread that needs the
+ * object. A pool may call these methods on a thread of its own executor and
+ * run the remaining work on whichever thread completes the stage.
+ * <p>
+ * {@link #destroyObject} and {@link #passivateObject} stay synchronous: they
+ * are called when an object leaves the hands of a borrower and nobody waits
+ * for their result.
+ * <p>
+ * A failure is reported by completing the stage exceptionally; an exception
+ * thrown directly by one of the asynchronous methods is treated the same way.
+ * <p>
+ * {@link AsyncKeyedPooledObjectFactory} must be thread-safe. As for
+ * {@link KeyedPooledObjectFactory} the same instance of an object will not
+ * be passed to more than one method at a time, and the next method is only
+ * called once the stage returned by the previous one has completed.
+ *
+ * @see KeyedPooledObjectFactory
+ * @see com.zx.impl.GenericKeyedObjectPool#GenericKeyedObjectPool(AsyncKeyedPooledObjectFactory, com.zx.impl.GenericKeyedObjectPoolConfig, java.util.concurrent.Executor)
+ *
+ * @param <K> The type of keys managed by this factory.
+ * @param <V> Type of element managed by this factory.
+ */
+public interface AsyncKeyedPooledObjectFactory<K,V> {
+    /**
+     * Start creating an instance that can be served by the pool and
+     * wrapped in a {@link PooledObject} to be managed by the pool.
+     *
+     * @param key the key used when constructing the object
+     *
+     * @return a stage completed with a {@code PooledObject} wrapping an
+     * instance that can be served by the pool, or exceptionally with the
+     * problem creating it, which will be propagated to the code requesting an
+     * object.
+     */
+    CompletionStage<PooledObject<V>> makeObject(K key);
+
+    /**
+     * Destroy an instance no longer needed by the pool.
+     *
+     * @param key the key used when selecting the instance
+     * @param p a {@code PooledObject} wrapping the instance to be destroyed
+     *
+     * @throws Exception should be avoided as it may be swallowed by
+     *    the pool implementation.
+     *
+     * @see KeyedPooledObjectFactory#destroyObject
+     */
+    void destroyObject(K key, PooledObject<V> p) throws Exception;
+
+    /**
+     * Start ensuring that the instance is safe to be returned by the pool.
+     *
+     * @param key the key used when selecting the object
+     * @param p a {@code PooledObject} wrapping the instance to be validated
+     *
+     * @return a stage completed with <code>false</code> if <code>obj</code>
+     *         is not valid and should be dropped from the pool,
+     *         <code>true</code> otherwise.
+     */
+    CompletionStage<Boolean> validateObject(K key, PooledObject<V> p);
+
+    /**
+     * Start reinitializing an instance to be returned by the pool.
+     *
+     * @param key the key used when selecting the object
+     * @param p a {@code PooledObject} wrapping the instance to be activated
+     *
+     * @return a stage completed when the instance has been activated, or
+     *    exceptionally if there is a problem activating <code>obj</code>.
+     *
+     * @see #destroyObject
+     */
+    CompletionStage<Void> activateObject(K key, PooledObject<V> p);
+
+    /**
+     * Uninitialize an instance to be returned to the idle object pool.
+     *
+     * @param key the key used when selecting the object
+     * @param p a {@code PooledObject} wrapping the instance to be passivated
+     *
+     * @throws Exception if there is a problem passivating <code>obj</code>,
+     *    this exception may be swallowed by the pool.
+     *
+     * @see #destroyObject
+     */
+    void passivateObject(K key, PooledObject<V> p) throws Exception;
+}
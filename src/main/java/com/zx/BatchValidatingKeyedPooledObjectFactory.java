@@ -0,0 +1,45 @@
+package com.zx;
+
+import org.apache.commons.pool2.PooledObject;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 可以一次校验多个对象的{@link org.apache.commons.pool2.KeyedPooledObjectFactory}
+ * <p>
+ * When the factory of a {@link com.zx.impl.GenericKeyedObjectPool} implements
+ * this interface and {@code testWhileIdle} is set, the evictor does not
+ * validate the idle objects it examines one at a time. It activates each of
+ * them, gathers those of the same key, and passes them to
+ * {@link #validateObjects} once per key and run. The factory can then check
+ * them all in one round trip to the backend, or check them concurrently. The
+ * objects it reports as invalid are destroyed, and the others passivated and
+ * made idle again. Validation on borrow and on return still uses
+ * {@link #validateObject}.
+ * <p>
+ * While the objects are being validated they are under eviction test, so
+ * they can not be borrowed, and the pool does not pass any of them to another
+ * method of the factory.
+ *
+ * @see com.zx.impl.GenericKeyedObjectPool#setTestWhileIdle(boolean)
+ *
+ * @param <K> The type of keys managed by this factory.
+ * @param <V> Type of element managed by this factory.
+ */
+public interface BatchValidatingKeyedPooledObjectFactory<K,V>
+        extends org.apache.commons.pool2.KeyedPooledObjectFactory<K,V> {
+
+    /**
+     * Ensures that the instances are safe to be returned by the pool.
+     *
+     * @param key the key of all the objects
+     * @param objects the activated objects to be validated, not empty
+     *
+     * @return the objects of the list that are not valid and should be
+     *         dropped from the pool, empty if all are valid. If this method
+     *         throws, all the objects are treated as not valid.
+     */
+    Collection<PooledObject<V>> validateObjects(K key,
+            List<PooledObject<V>> objects);
+}
@@ -0,0 +1,122 @@
+package com.zx;
+
+import java.util.NoSuchElementException;
+
+/**
+ * 一个键池中某个key的句柄：通过句柄借用和归还对象时不再查找这个key
+ * <p>
+ * A handle is obtained from
+ * {@link com.zx.impl.GenericKeyedObjectPool#handle(Object)} for a key that is
+ * known in advance, for example one per backend shard, and can be shared by
+ * all threads using that key. Borrowing and returning through the handle
+ * behaves as {@link KeyedObjectPool#borrowObject} and
+ * {@link KeyedObjectPool#returnObject} with the handle's key, but the key is
+ * not hashed, looked up or registered on every call.
+ * <p>
+ * While a handle is open the pool keeps the sub-pool of its key, even when
+ * the sub-pool is empty. {@link #close()} releases it; borrowing through a
+ * closed handle throws an {@link IllegalStateException}, while objects
+ * borrowed before may still be returned or invalidated through it. A handle
+ * must not be closed while other threads are still borrowing through it.
+ * <p>
+ * Implementations are thread-safe.
+ *
+ * @param <K> 键的类型
+ * @param <V> value的类型
+ *
+ * @see com.zx.impl.GenericKeyedObjectPool#handle(Object)
+ */
+public interface KeyHandle<K,V> extends AutoCloseable {
+
+    /**
+     * 获取这个句柄的key
+     *
+     * @return the key
+     */
+    K getKey();
+
+    /**
+     * 从这个key的池中借用一个实例，使用池的默认等待时间
+     *
+     * @return an instance from this key's pool
+     *
+     * @throws IllegalStateException if the handle or the pool has been closed
+     * @throws NoSuchElementException if an instance cannot be returned
+     *         because the pool is exhausted
+     * @throws Exception if an instance cannot be returned due to an error
+     *
+     * @see KeyedObjectPool#borrowObject
+     */
+    V borrowObject() throws Exception;
+
+    /**
+     * 从这个key的池中借用一个实例，使用指定的等待时间
+     *
+     * @param borrowMaxWaitMillis The time to wait in milliseconds for an
+     *                            object to become available
+     *
+     * @return an instance from this key's pool
+     *
+     * @throws IllegalStateException if the handle or the pool has been closed
+     * @throws NoSuchElementException if an instance cannot be returned
+     *         because the pool is exhausted
+     * @throws Exception if an instance cannot be returned due to an error
+     */
+    V borrowObject(long borrowMaxWaitMillis) throws Exception;
+
+    /**
+     * 借用一个实例，并返回它的{@link Lease}
+     *
+     * @return a lease for an instance from this key's pool
+     *
+     * @throws IllegalStateException if the handle or the pool has been closed
+     * @throws NoSuchElementException if an instance cannot be returned
+     *         because the pool is exhausted
+     * @throws Exception if an instance cannot be returned due to an error
+     */
+    Lease<V> lease() throws Exception;
+
+    /**
+     * 借用一个实例，使用指定的等待时间，并返回它的{@link Lease}
+     *
+     * @param borrowMaxWaitMillis The time to wait in milliseconds for an
+     *                            object to become available
+     *
+     * @return a lease for an instance from this key's pool
+     *
+     * @throws IllegalStateException if the handle or the pool has been closed
+     * @throws NoSuchElementException if an instance cannot be returned
+     *         because the pool is exhausted
+     * @throws Exception if an instance cannot be returned due to an error
+     */
+    Lease<V> lease(long borrowMaxWaitMillis) throws Exception;
+
+    /**
+     * 将一个实例归还给这个key的池
+     *
+     * @param obj an instance borrowed under this handle's key
+     *
+     * @throws IllegalStateException if the object was not borrowed under
+     *         this key or has already been returned
+     *
+     * @see KeyedObjectPool#returnObject
+     */
+    void returnObject(V obj);
+
+    /**
+     * 使这个key的池中一个借出的实例失效
+     *
+     * @param obj an instance borrowed under this handle's key
+     *
+     * @throws Exception if an exception occurs destroying the object
+     *
+     * @see KeyedObjectPool#invalidateObject
+     */
+    void invalidateObject(V obj) throws Exception;
+
+    /**
+     * 关闭句柄，不再固定这个key的池；重复调用没有效果
+     */
+    @Override
+    void close();
+}
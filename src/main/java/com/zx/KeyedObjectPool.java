@@ -3,7 +3,9 @@ package com.zx;
 import org.apache.commons.pool2.KeyedPooledObjectFactory;
 import org.apache.commons.pool2.ObjectPool;
 
+import java.time.Duration;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 一个 ‘有键的’池接口
@@ -72,6 +74,33 @@ public interface KeyedObjectPool<K,V> {
      */
     V borrowObject(K key) throws Exception, NoSuchElementException, IllegalStateException;
 
+    /**
+     * 异步地从池中根据指定key获取一个实例
+     * <p>
+     * The returned future is completed with the borrowed instance, or
+     * exceptionally with the exception {@link #borrowObject} would have
+     * thrown. An instance obtained this way must be returned or invalidated
+     * exactly like one obtained from {@link #borrowObject}.
+     * <p>
+     * 该默认实现只是在调用线程中调用{@link #borrowObject}，所以可能会阻塞，并且忽略<code>timeout</code>；
+     * implementations that can wait for an instance without blocking the
+     * calling thread should override it.
+     *
+     * @param key 用于获取对象的键
+     * @param timeout 等待实例可用的最长时间，<code>null</code>或负数表示无限等待
+     *
+     * @return a future completed with an instance from this pool
+     */
+    default CompletableFuture<V> borrowObjectAsync(K key, Duration timeout) {
+        CompletableFuture<V> future = new CompletableFuture<V>();
+        try {
+            future.complete(borrowObject(key));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
     /**
      * 返回一个实例到池中。
      * 对象必须使用了{@link #borrowObject }方法，或使用在实现或子接口中定义的相关方法，这相当于第一个地方借用实例的值
@@ -0,0 +1,59 @@
+package com.zx;
+
+/**
+ * 一个借出的池对象：关闭时将对象归还给借出它的池
+ * <p>
+ * A lease is obtained from
+ * {@link com.zx.impl.GenericKeyedObjectPool#lease(Object)} and keeps direct
+ * references to the pool's bookkeeping for the object, so returning or
+ * invalidating the object through the lease does not have to look it up
+ * again. Being {@link AutoCloseable}, it can be used with try-with-resources:
+ * <pre style="border:solid thin; padding: 1ex;"
+ * > <code style="color:#00C">try</code> (Lease&lt;Connection&gt; lease = pool.lease(key)) {
+ *     Connection conn = lease.get();
+ *     <code style="color:#0C0">//...use the object...</code>
+ * }</pre>
+ * <p>
+ * Once a lease has been closed or invalidated, further calls to
+ * {@link #close()} and {@link #invalidate()} have no effect and
+ * {@link #get()} throws an {@link IllegalStateException}. A pool may hand out
+ * the same lease each time it lends the same object, so a closed lease must
+ * not be kept: once its object has been leased again, it stands for the new
+ * borrow. It never acts on the object after it has been borrowed again in any
+ * other way.
+ * <p>
+ * A lease is meant to be used by one thread at a time and is not thread-safe.
+ *
+ * @param <T> 池对象的类型
+ *
+ * @see com.zx.impl.GenericKeyedObjectPool#lease(Object)
+ */
+public interface Lease<T> extends AutoCloseable {
+
+    /**
+     * 获取借出的对象
+     *
+     * @return the leased object
+     *
+     * @throws IllegalStateException if the lease has been closed or
+     *                               invalidated
+     */
+    T get();
+
+    /**
+     * 使借出的对象失效，并从池中销毁它，之后{@link #close()}不再有效果
+     *
+     * @throws Exception if an exception occurs destroying the object
+     *
+     * @see KeyedObjectPool#invalidateObject
+     */
+    void invalidate() throws Exception;
+
+    /**
+     * 将借出的对象归还给池，如果已经归还或失效则什么都不做
+     *
+     * @see KeyedObjectPool#returnObject
+     */
+    @Override
+    void close();
+}
@@ -27,9 +27,10 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.management.ManagementFactory;
 import java.lang.ref.WeakReference;
+import java.util.Collection;
 import java.util.Deque;
 import java.util.Iterator;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -41,7 +42,11 @@ public abstract class BaseGenericObjectPool<T> {
     /**
      * 用于存储某些属性的历史数据的缓存的大小
      * so that rolling means may be calculated.所以滚动的意思可计算的
+     *
+     * @deprecated The timing statistics are now kept in histograms covering
+     *             the lifetime of the pool and no longer use this value
      */
+    @Deprecated
     public static final int MEAN_TIMING_STATS_CACHE_SIZE = 100;
 
     // 配置属性-大部分属性都引用自BaseObjectPoolConfig类
@@ -125,13 +130,19 @@ public abstract class BaseGenericObjectPool<T> {
     //由于失败被销毁的对象总数
     final AtomicLong destroyedByBorrowValidationCount = new AtomicLong(0);
     //活动时间
-    private final StatsStore activeTimes = new StatsStore(MEAN_TIMING_STATS_CACHE_SIZE);
+    private final LatencyHistogram activeTimes = new LatencyHistogram();
     //空闲时间
-    private final StatsStore idleTimes = new StatsStore(MEAN_TIMING_STATS_CACHE_SIZE);
+    private final LatencyHistogram idleTimes = new LatencyHistogram();
     //等待时间
-    private final StatsStore waitTimes = new StatsStore(MEAN_TIMING_STATS_CACHE_SIZE);
-    //最大借用等待时间
-    private final AtomicLong maxBorrowWaitTimeMillis = new AtomicLong(0L);
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    //驱逐器执行次数
+    private final AtomicLong evictionRunCount = new AtomicLong(0);
+    //驱逐器因为上一次执行超时而跳过的执行次数
+    private final AtomicLong evictionSkippedCount = new AtomicLong(0);
+    //驱逐器每次执行的时间，同一时间只有一个驱逐器线程记录，所以只用一个分段
+    private final LatencyHistogram evictionRunTimes = new LatencyHistogram(1);
+    //驱逐器每次执行比计划晚开始的时间
+    private final LatencyHistogram evictionLagTimes = new LatencyHistogram(1);
     //忍耐异常监听器
     private volatile SwallowedExceptionListener swallowedExceptionListener = null;
 
@@ -812,41 +823,248 @@ public abstract class BaseGenericObjectPool<T> {
     }
 
     /**
-     * The mean time objects are active for based on the last {@link
-     * #MEAN_TIMING_STATS_CACHE_SIZE} objects returned to the pool.
+     * The mean time objects are active for, over all objects returned to the
+     * pool during its lifetime.
      * @return mean time an object has been checked out from the pool among
-     * recently returned objects
+     * returned objects
      */
     public final long getMeanActiveTimeMillis() {
         return activeTimes.getMean();
     }
 
     /**
-     * The mean time objects are idle for based on the last {@link
-     * #MEAN_TIMING_STATS_CACHE_SIZE} objects borrowed from the pool.
-     * @return mean time an object has been idle in the pool among recently
-     * borrowed objects
+     * The 50th percentile of the time objects returned to the pool have been checked out, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 50th percentile in milliseconds
+     */
+    public final long getActiveTimeMillisP50() {
+        return activeTimes.getValueAtQuantile(0.5);
+    }
+
+    /**
+     * The 90th percentile of the time objects returned to the pool have been checked out, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 90th percentile in milliseconds
+     */
+    public final long getActiveTimeMillisP90() {
+        return activeTimes.getValueAtQuantile(0.9);
+    }
+
+    /**
+     * The 99th percentile of the time objects returned to the pool have been checked out, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 99th percentile in milliseconds
+     */
+    public final long getActiveTimeMillisP99() {
+        return activeTimes.getValueAtQuantile(0.99);
+    }
+
+    /**
+     * The 99.9th percentile of the time objects returned to the pool have been checked out, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 99.9th percentile in milliseconds
+     */
+    public final long getActiveTimeMillisP999() {
+        return activeTimes.getValueAtQuantile(0.999);
+    }
+
+    /**
+     * The maximum time an object returned to the pool has been checked out.
+     * @return maximum active time in milliseconds since the pool was created
+     */
+    public final long getMaxActiveTimeMillis() {
+        return activeTimes.getMax();
+    }
+
+    /**
+     * The mean time objects are idle for, over all objects borrowed from the
+     * pool during its lifetime.
+     * @return mean time an object has been idle in the pool among borrowed
+     * objects
      */
     public final long getMeanIdleTimeMillis() {
         return idleTimes.getMean();
     }
 
     /**
-     * The mean time threads wait to borrow an object based on the last {@link
-     * #MEAN_TIMING_STATS_CACHE_SIZE} objects borrowed from the pool.
-     * @return mean time in milliseconds that a recently served thread has had
-     * to wait to borrow an object from the pool
+     * The 50th percentile of the time objects borrowed from the pool had been idle, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 50th percentile in milliseconds
+     */
+    public final long getIdleTimeMillisP50() {
+        return idleTimes.getValueAtQuantile(0.5);
+    }
+
+    /**
+     * The 90th percentile of the time objects borrowed from the pool had been idle, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 90th percentile in milliseconds
+     */
+    public final long getIdleTimeMillisP90() {
+        return idleTimes.getValueAtQuantile(0.9);
+    }
+
+    /**
+     * The 99th percentile of the time objects borrowed from the pool had been idle, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 99th percentile in milliseconds
+     */
+    public final long getIdleTimeMillisP99() {
+        return idleTimes.getValueAtQuantile(0.99);
+    }
+
+    /**
+     * The 99.9th percentile of the time objects borrowed from the pool had been idle, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 99.9th percentile in milliseconds
+     */
+    public final long getIdleTimeMillisP999() {
+        return idleTimes.getValueAtQuantile(0.999);
+    }
+
+    /**
+     * The maximum time an object borrowed from the pool had been idle.
+     * @return maximum idle time in milliseconds since the pool was created
+     */
+    public final long getMaxIdleTimeMillis() {
+        return idleTimes.getMax();
+    }
+
+    /**
+     * The mean time threads wait to borrow an object, over all objects
+     * borrowed from the pool during its lifetime.
+     * @return mean time in milliseconds that a thread has had to wait to
+     * borrow an object from the pool
      */
     public final long getMeanBorrowWaitTimeMillis() {
         return waitTimes.getMean();
     }
 
+    /**
+     * The 50th percentile of the time threads have waited to borrow an object, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 50th percentile in milliseconds
+     */
+    public final long getBorrowWaitTimeMillisP50() {
+        return waitTimes.getValueAtQuantile(0.5);
+    }
+
+    /**
+     * The 90th percentile of the time threads have waited to borrow an object, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 90th percentile in milliseconds
+     */
+    public final long getBorrowWaitTimeMillisP90() {
+        return waitTimes.getValueAtQuantile(0.9);
+    }
+
+    /**
+     * The 99th percentile of the time threads have waited to borrow an object, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 99th percentile in milliseconds
+     */
+    public final long getBorrowWaitTimeMillisP99() {
+        return waitTimes.getValueAtQuantile(0.99);
+    }
+
+    /**
+     * The 99.9th percentile of the time threads have waited to borrow an object, over the lifetime of the
+     * pool. The value is accurate to within about 6%.
+     * @return 99.9th percentile in milliseconds
+     */
+    public final long getBorrowWaitTimeMillisP999() {
+        return waitTimes.getValueAtQuantile(0.999);
+    }
+
     /**
      * The maximum time a thread has waited to borrow objects from the pool.
      * @return maximum wait time in milliseconds since the pool was created
      */
     public final long getMaxBorrowWaitTimeMillis() {
-        return maxBorrowWaitTimeMillis.get();
+        return waitTimes.getMax();
+    }
+
+    /**
+     * The number of times the evictor of this pool has run.
+     * @return the evictor run count
+     */
+    public final long getEvictionRunCount() {
+        return evictionRunCount.get();
+    }
+
+    /**
+     * The number of evictor runs of this pool that were skipped because the
+     * previous run was still going when they were due.
+     * @return the skipped evictor run count
+     */
+    public final long getEvictionSkippedCount() {
+        return evictionSkippedCount.get();
+    }
+
+    /**
+     * The mean time an evictor run of this pool has taken, including
+     * {@link #ensureMinIdle()}.
+     * @return mean run time in milliseconds
+     */
+    public final long getMeanEvictionRunTimeMillis() {
+        return evictionRunTimes.getMean();
+    }
+
+    /**
+     * The 99th percentile of the time an evictor run of this pool has taken.
+     * The value is accurate to within about 6%.
+     * @return 99th percentile in milliseconds
+     */
+    public final long getEvictionRunTimeMillisP99() {
+        return evictionRunTimes.getValueAtQuantile(0.99);
+    }
+
+    /**
+     * The maximum time an evictor run of this pool has taken.
+     * @return maximum run time in milliseconds
+     */
+    public final long getMaxEvictionRunTimeMillis() {
+        return evictionRunTimes.getMax();
+    }
+
+    /**
+     * The mean time evictor runs of this pool started late, because all
+     * eviction threads were busy with other pools.
+     * @return mean lag in milliseconds
+     */
+    public final long getMeanEvictionLagMillis() {
+        return evictionLagTimes.getMean();
+    }
+
+    /**
+     * The maximum time an evictor run of this pool started late.
+     * @return maximum lag in milliseconds
+     */
+    public final long getMaxEvictionLagMillis() {
+        return evictionLagTimes.getMax();
+    }
+
+    /**
+     * Returns the number of threads shared by all pools to run their
+     * evictors.
+     * @return the number of eviction threads
+     * @see #setEvictorThreadCount(int)
+     */
+    public static int getEvictorThreadCount() {
+        return EvictionTimer.getThreadCount();
+    }
+
+    /**
+     * Sets the number of threads shared by all pools to run their evictors,
+     * by default 2. An evictor run
+     * that takes long, for example because of slow validation, occupies one
+     * of these threads, and the runs of other pools that fall due meanwhile
+     * share the remaining ones. The change applies immediately.
+     * @param threadCount the number of eviction threads
+     * @throws IllegalArgumentException if threadCount is less than 1
+     */
+    public static void setEvictorThreadCount(int threadCount) {
+        EvictionTimer.setThreadCount(threadCount);
     }
 
     /**
@@ -910,22 +1128,24 @@ public abstract class BaseGenericObjectPool<T> {
     final void updateStatsBorrow(PooledObject<T> p, long waitTime) {
         //借用总数增加
         borrowedCount.incrementAndGet();
-        //空闲时间累加，该对象的空闲时间
+        //记录该对象的空闲时间
         idleTimes.add(p.getIdleTimeMillis());
-        //等待时间累加，借用该对象等待的时间
+        //记录借用该对象等待的时间，直方图同时无锁地维护最大等待时间
         waitTimes.add(waitTime);
+    }
 
-        // 无锁 乐观锁 最大等待时间
-        long currentMax;
-        do {
-            //获取最大借用等待时间
-            currentMax = maxBorrowWaitTimeMillis.get();
-            if (currentMax >= waitTime) {
-                //如果等待时间小于最大借用等待时间，跳出循环
-                break;
-            }
-            //如果该时间大于最大借用等待时间才会执行这句话，将这个最大时间CAS为本次的等待时间，如果成功了，退出循环
-        } while (!maxBorrowWaitTimeMillis.compareAndSet(currentMax, waitTime));
+    /**
+     * 在一次借用多个对象之后更新统计数据
+     * @param objects 从池中借用的对象
+     * @param waitTime 时间(以毫秒为单位)，借用线程等待所有对象的时间
+     */
+    final void updateStatsBorrow(Collection<? extends PooledObject<T>> objects,
+            long waitTime) {
+        borrowedCount.addAndGet(objects.size());
+        for (PooledObject<T> p : objects) {
+            idleTimes.add(p.getIdleTimeMillis());
+        }
+        waitTimes.add(waitTime, objects.size());
     }
 
     /**
@@ -935,10 +1155,22 @@ public abstract class BaseGenericObjectPool<T> {
     final void updateStatsReturn(long activeTime) {
         //返回次数+1
         returnedCount.incrementAndGet();
-        //活动时间累加
+        //记录活动时间
         activeTimes.add(activeTime);
     }
 
+    /**
+     * 在一次返回多个对象之后更新统计数据
+     * @param activeTimes 每个返回对象被检出的时间(以毫秒计)
+     * @param count 返回对象的数量，activeTimes中前count个有效
+     */
+    final void updateStatsReturn(long[] activeTimes, int count) {
+        returnedCount.addAndGet(count);
+        for (int i = 0; i < count; i++) {
+            this.activeTimes.add(activeTimes[i]);
+        }
+    }
+
     /**
      * 注销这池的MBean。
      */
@@ -1045,24 +1277,29 @@ public abstract class BaseGenericObjectPool<T> {
 
     /**
      * 空闲对象驱逐器,
-     * 继承自TimeTask,可定时一次性，或多次执行的线程
+     * 由{@link EvictionTimer}周期执行的任务，执行时记录执行时间和延迟
      *
      * @see GenericKeyedObjectPool#setTimeBetweenEvictionRunsMillis
      */
-    class Evictor extends TimerTask {
+    class Evictor extends EvictionTimer.Task {
         /**
          * Run pool maintenance.  Evict objects qualifying for eviction and then
          * ensure that the minimum number of idle instances are available.
-         * Since the Timer that invokes Evictors is shared for all Pools but
+         * Since the threads that invoke Evictors are shared for all Pools but
          * pools may exist in different class loaders, the Evictor ensures that
          * any actions taken are under the class loader of the factory
          * associated with the pool.
          * 池维护运行。驱逐被驱逐的对象，然后 *确保空闲实例的最小数目是可用的。
-         * 自调用调用者的计时器被共享给所有的池，但是 *池可能存在于不同的类装入器中，
+         * 自调用调用者的线程被共享给所有的池，但是 *池可能存在于不同的类装入器中，
          * 被逐出者确保 采取的任何行动都在工厂的类装载机下 与游泳池有关
+         *
+         * @param lagMillis 这次执行比计划开始晚的毫秒数
          */
         @Override
-        public void run() {
+        void execute(long lagMillis) {
+            long start = System.nanoTime();
+            evictionRunCount.incrementAndGet();
+            evictionLagTimes.add(lagMillis);
             //获取线程上下文类加载器,只是保存用，在下面的finally中恢复
             ClassLoader savedClassLoader =
                     Thread.currentThread().getContextClassLoader();
@@ -1072,8 +1309,8 @@ public abstract class BaseGenericObjectPool<T> {
                     // 获取该类加载器，因为本身被包含在弱引用中，所以通过get方法取出
                     ClassLoader cl = factoryClassLoader.get();
                     if (cl == null) {
-                        //池已被取消引用，类加载器GC将被取消。取消这个计时器，这样池也可以是GC。
-                        cancel();
+                        //池已被取消引用，类加载器GC将被取消。取消这个任务，这样池也可以是GC。
+                        EvictionTimer.cancel(this);
                         return;
                     }
                     //不为空，将该类加载器设置为到线程上下文类加载器
@@ -1102,74 +1339,26 @@ public abstract class BaseGenericObjectPool<T> {
             } finally {
                 //恢复之前的类加载器 CCL
                 Thread.currentThread().setContextClassLoader(savedClassLoader);
-            }
-        }
-    }
-
-    /**
-     * 维护一个关于唯一指标的缓存，并报告缓存值的统计信息
-     */
-    private class StatsStore {
-        //原子值数组
-        private final AtomicLong values[];
-        //大小
-        private final int size;
-        //索引
-        private int index;
-
-        /**
-         * 使用给定的缓存大小创建该类
-         *
-         * @param size number of values to maintain in the cache.
-         */
-        public StatsStore(int size) {
-            this.size = size;
-            values = new AtomicLong[size];
-            for (int i = 0; i < size; i++) {
-                //初始值都为-1
-                values[i] = new AtomicLong(-1);
+                evictionRunTimes.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
             }
         }
 
         /**
-         * 增加一个值到这个缓存.如果这个缓存满了，现有的一个值将被新值替换,
-         *
-         * 每次设置值时累加索引，如果索引等于缓存大小后，置为0
-         * @param value new value to add to the cache.
+         * 记录跳过的执行
+         * @param runs 跳过的执行次数
          */
-        public synchronized void add(long value) {
-            values[index].set(value);
-            index++;
-            if (index == size) {
-                index = 0;
-            }
+        @Override
+        void skipped(long runs) {
+            evictionSkippedCount.addAndGet(runs);
         }
 
         /**
-         * 返回缓存的平均值
-         *
-         * @return the mean of the cache, truncated to long
+         * 把异常交给池的异常监听器
+         * @param e 执行抛出的异常
          */
-        public long getMean() {
-            //返回的平均值
-            double result = 0;
-            //计数器
-            int counter = 0;
-            //遍历
-            for (int i = 0; i < size; i++) {
-                //获取缓存值
-                long value = values[i].get();
-                //如果不为-1，也就是非默认值
-                if (value != -1) {
-                    //计数器累加
-                    counter++;
-                    //这个计算公式值得记一下，可以依次计算平均值，而不是一直累加后/数量
-                    //不过不清楚这种计算方式和普通方式的异同
-                    result = result * ((counter - 1) / (double) counter) +
-                            value/(double) counter;
-                }
-            }
-            return (long) result;
+        @Override
+        void failed(Exception e) {
+            swallowException(e);
         }
     }
 
@@ -0,0 +1,71 @@
+package com.zx.impl;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 为所有池提供一个共享的异步借用超时调度器。
+ * <p>
+ * {@link GenericKeyedObjectPool#borrowObjectAsync} does not park a thread per
+ * waiting borrower; instead the timeout of every waiting borrower is a task
+ * of this scheduler. A single daemon thread runs the tasks. It is started on
+ * first use and stops again after it has been idle for a minute, so the
+ * scheduler does not keep a thread alive (and with it the class loader) in an
+ * application server environment once no borrower is waiting. Cancelled
+ * tasks are removed from the work queue immediately.
+ * <p>
+ * 这个类有一个包范围，可以防止它包含在池公共API中。
+ * 下面的类声明应该不会被更改为public。
+ * <p>
+ * 这个类是线程安全的。
+ */
+class BorrowTimeoutScheduler {
+
+    /** 线程空闲多久后结束，单位秒 */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /** 调度器实例 */
+    private static final ScheduledThreadPoolExecutor executor;
+
+    static {
+        executor = new ScheduledThreadPoolExecutor(1, new TimeoutThreadFactory());
+        executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /** 防止实例化-私有化构造方法 */
+    private BorrowTimeoutScheduler() {
+        // Hide the default constructor
+    }
+
+    /**
+     * 在指定的延迟后执行给定的任务
+     *
+     * @param task  超时时要执行的任务
+     * @param delay 延迟时间
+     * @param unit  延迟时间的单位
+     *
+     * @return 可以用来取消任务的future
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return executor.schedule(task, delay, unit);
+    }
+
+    /**
+     * 创建调度线程：守护线程，并且使用加载这个类的类加载器作为上下文类加载器，
+     * 防止引用调用线程的上下文类加载器导致内存泄漏。
+     */
+    private static class TimeoutThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "commons-pool-borrow-timeout");
+            t.setDaemon(true);
+            t.setContextClassLoader(BorrowTimeoutScheduler.class.getClassLoader());
+            return t;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.zx.impl;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存时钟：返回一个由后台线程按固定间隔更新的时间
+ * <p>
+ * Reading the time is a single volatile read, so borrowing and returning
+ * objects need no time system calls. The value lags behind the source clock
+ * by at most about one tick, which is fine for idle times, eviction and wait
+ * time statistics but not for measuring short intervals.
+ * <p>
+ * All cached clocks share one daemon thread, which is started on first use
+ * and stops again after it has been idle for a minute, so no thread is left
+ * behind (and with it the class loader) once every clock has been
+ * {@link #close() closed}. A closed clock keeps returning the last value it
+ * read.
+ * <p>
+ * 这个类是线程安全的。
+ */
+public class CachedPoolClock extends PoolClock implements AutoCloseable {
+
+    /** 默认的更新间隔，单位毫秒 */
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    /** 线程空闲多久后结束，单位秒 */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /** 所有缓存时钟共享的更新线程 */
+    private static final ScheduledThreadPoolExecutor executor;
+
+    static {
+        executor = new ScheduledThreadPoolExecutor(1, new TickThreadFactory());
+        executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /** 时间来源 */
+    private final PoolClock source;
+
+    /** 更新间隔，单位毫秒 */
+    private final long tickMillis;
+
+    /** 缓存的时间 */
+    private volatile long now;
+
+    /** 更新任务 */
+    private final ScheduledFuture<?> ticker;
+
+    /**
+     * Create a clock that caches a {@link MonotonicPoolClock} every
+     * {@link #DEFAULT_TICK_MILLIS} milliseconds.
+     */
+    public CachedPoolClock() {
+        this(DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * Create a clock that caches a {@link MonotonicPoolClock} at the given
+     * interval.
+     *
+     * @param tickMillis the interval between updates in milliseconds
+     */
+    public CachedPoolClock(long tickMillis) {
+        this(new MonotonicPoolClock(), tickMillis);
+    }
+
+    /**
+     * Create a clock that caches the given clock at the given interval.
+     *
+     * @param source     the clock to read
+     * @param tickMillis the interval between updates in milliseconds
+     *
+     * @throws IllegalArgumentException if <code>tickMillis</code> is not
+     *                                  positive
+     */
+    public CachedPoolClock(PoolClock source, long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        this.source = source;
+        this.tickMillis = tickMillis;
+        this.now = source.currentTimeMillis();
+        this.ticker = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                now = CachedPoolClock.this.source.currentTimeMillis();
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    /**
+     * Stop updating the clock.
+     */
+    @Override
+    public void close() {
+        ticker.cancel(false);
+    }
+
+    @Override
+    public String toString() {
+        return "CachedPoolClock [source=" + source + ", tickMillis=" + tickMillis + "]";
+    }
+
+    /**
+     * 创建更新线程：守护线程，并且使用加载这个类的类加载器作为上下文类加载器，
+     * 防止引用调用线程的上下文类加载器导致内存泄漏。
+     */
+    private static class TickThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "commons-pool-clock");
+            t.setDaemon(true);
+            t.setContextClassLoader(CachedPoolClock.class.getClassLoader());
+            return t;
+        }
+    }
+}
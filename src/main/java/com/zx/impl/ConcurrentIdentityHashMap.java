@@ -0,0 +1,314 @@
+package com.zx.impl;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 并发的标识哈希表：使用引用相等(==)和{@link System#identityHashCode}比较键，查找、插入和删除都不需要包装对象
+ * <p>
+ * {@link GenericKeyedObjectPool} keeps the pooled object of every instance of
+ * a key in one of these. A {@link java.util.concurrent.ConcurrentHashMap}
+ * would need every instance wrapped in a
+ * {@code BaseGenericObjectPool.IdentityWrapper} to get identity semantics,
+ * and so one allocation per return, invalidation and destruction just to
+ * probe it.
+ * <p>
+ * Keys and values are stored next to each other in a single array and
+ * collisions are resolved by linear probing, as in
+ * {@link java.util.IdentityHashMap}. Lookups do not lock: they read the
+ * current array and probe until they find the key or an empty slot. Inserts
+ * and removals are serialised by a lock, which is fine because they only
+ * happen when an object is created or destroyed.
+ * <p>
+ * Within one array a slot only ever goes from empty to a key and from a key
+ * to a removed marker; removed slots are not reused until the entries are
+ * copied to a new array. The value of an entry is written before its key and
+ * cleared before its key is removed, so a lookup that finds the key reads
+ * either its value or <code>null</code> if the entry is being removed. The
+ * new array is published only once it is complete.
+ * <p>
+ * Neither keys nor values may be <code>null</code>.
+ * <p>
+ * 这个类有一个包范围，可以防止它包含在池公共API中。
+ * <p>
+ * 这个类是线程安全的。
+ *
+ * @param <K> 键的类型
+ * @param <V> 值的类型
+ */
+class ConcurrentIdentityHashMap<K,V> {
+
+    /** 最小容量(键值对的数量)，必须是2的幂 */
+    private static final int MINIMUM_CAPACITY = 16;
+
+    /** 已删除的键的标记 */
+    private static final Object REMOVED = new Object();
+
+    /** 交替保存键和值，长度为容量的两倍 */
+    private volatile AtomicReferenceArray<Object> table;
+
+    /** 键值对的数量 */
+    private volatile int size = 0;
+
+    /** 已使用的键槽数量，包括已删除的 */
+    private int used = 0; // @GuardedBy("lock")
+
+    /** 插入和删除使用的锁 */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Create an empty map.
+     */
+    ConcurrentIdentityHashMap() {
+        table = new AtomicReferenceArray<Object>(2 * MINIMUM_CAPACITY);
+    }
+
+    /**
+     * Returns the value to which the given key is mapped.
+     *
+     * @param key The key, compared by reference
+     *
+     * @return The value or <code>null</code> if there is no mapping for the
+     *         key
+     */
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        AtomicReferenceArray<Object> tab = table;
+        int len = tab.length();
+        int i = indexFor(key, len);
+        for (;;) {
+            Object k = tab.get(i);
+            if (k == key) {
+                return (V) tab.get(i + 1);
+            }
+            if (k == null) {
+                return null;
+            }
+            i = nextKeyIndex(i, len);
+        }
+    }
+
+    /**
+     * Associates the given value with the given key.
+     *
+     * @param key   The key, compared by reference
+     * @param value The value
+     *
+     * @return The previous value for the key or <code>null</code> if there
+     *         was none
+     */
+    @SuppressWarnings("unchecked")
+    V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            AtomicReferenceArray<Object> tab = table;
+            int len = tab.length();
+            int i = indexFor(key, len);
+            Object k;
+            while ((k = tab.get(i)) != null) {
+                if (k == key) {
+                    V old = (V) tab.get(i + 1);
+                    tab.set(i + 1, value);
+                    return old;
+                }
+                i = nextKeyIndex(i, len);
+            }
+
+            // Keep at least a third of the slots empty so that probes stay
+            // short and every probe finds an empty slot
+            if ((used + 1) * 3 > len) {
+                tab = rehash();
+                len = tab.length();
+                i = indexFor(key, len);
+                while (tab.get(i) != null) {
+                    i = nextKeyIndex(i, len);
+                }
+            }
+            tab.set(i + 1, value);
+            tab.set(i, key);
+            used++;
+            size++;
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the mapping for the given key.
+     *
+     * @param key The key, compared by reference
+     *
+     * @return The removed value or <code>null</code> if there was no mapping
+     *         for the key
+     */
+    @SuppressWarnings("unchecked")
+    V remove(Object key) {
+        lock.lock();
+        try {
+            AtomicReferenceArray<Object> tab = table;
+            int len = tab.length();
+            int i = indexFor(key, len);
+            Object k;
+            while ((k = tab.get(i)) != null) {
+                if (k == key) {
+                    V old = (V) tab.get(i + 1);
+                    tab.set(i + 1, null);
+                    tab.set(i, REMOVED);
+                    size--;
+                    return old;
+                }
+                i = nextKeyIndex(i, len);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of mappings.
+     *
+     * @return The number of mappings
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns a view of the values. The iterator is weakly consistent: it
+     * never throws {@link java.util.ConcurrentModificationException} and
+     * returns the values of the array current when it was created, which
+     * may or may not reflect later changes. It does not support removal.
+     *
+     * @return The values
+     */
+    Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator(table);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Copy the entries to a new array that is at most a third full with the
+     * entries and one more, dropping the removed slots, and publish it.
+     *
+     * @return The new array
+     */
+    private AtomicReferenceArray<Object> rehash() {
+        AtomicReferenceArray<Object> oldTab = table;
+        int oldLen = oldTab.length();
+        int capacity = MINIMUM_CAPACITY;
+        while ((size + 1) * 3 > capacity) {
+            capacity <<= 1;
+        }
+        int len = 2 * capacity;
+        AtomicReferenceArray<Object> tab = new AtomicReferenceArray<Object>(len);
+        for (int j = 0; j < oldLen; j += 2) {
+            Object k = oldTab.get(j);
+            if (k != null && k != REMOVED) {
+                int i = indexFor(k, len);
+                while (tab.get(i) != null) {
+                    i = nextKeyIndex(i, len);
+                }
+                tab.lazySet(i + 1, oldTab.get(j + 1));
+                tab.lazySet(i, k);
+            }
+        }
+        used = size;
+        table = tab;
+        return tab;
+    }
+
+    /**
+     * Returns the index of the key slot for the given key, as
+     * {@link java.util.IdentityHashMap} does.
+     *
+     * @param key The key
+     * @param len The length of the array
+     *
+     * @return An even index into the array
+     */
+    private static int indexFor(Object key, int len) {
+        int h = System.identityHashCode(key);
+        // Multiply by -127, and left-shift to use least bit as part of hash
+        return ((h << 1) - (h << 8)) & (len - 1);
+    }
+
+    /**
+     * Returns the index of the key slot following the given one.
+     *
+     * @param i   The index of a key slot
+     * @param len The length of the array
+     *
+     * @return The index of the next key slot
+     */
+    private static int nextKeyIndex(int i, int len) {
+        return (i + 2 < len ? i + 2 : 0);
+    }
+
+    /**
+     * Iterator over the values of one array.
+     */
+    private class ValueIterator implements Iterator<V> {
+
+        private final AtomicReferenceArray<Object> tab;
+
+        private int index = 0;
+
+        private V next;
+
+        ValueIterator(AtomicReferenceArray<Object> tab) {
+            this.tab = tab;
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            int len = tab.length();
+            while (next == null && index < len) {
+                Object k = tab.get(index);
+                if (k != null && k != REMOVED) {
+                    next = (V) tab.get(index + 1);
+                }
+                index += 2;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public V next() {
+            V v = next;
+            if (v == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return v;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.zx.impl;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * 无锁的空闲对象存储
+ * <p>
+ * Idle objects are held in a {@link ConcurrentLinkedDeque}, so
+ * <code>addFirst</code> / <code>addLast</code> / <code>pollFirst</code> are
+ * CAS based and threads borrowing or returning objects under the same key do
+ * not queue on a common lock. LIFO and FIFO behave exactly as with
+ * {@link LinkedBlockingIdleObjectStore}.
+ * <p>
+ * The lock is only used on the slow path: a thread that finds the store empty
+ * in {@link #takeFirst()} or {@link #pollFirst(long, TimeUnit)} registers
+ * itself as a waiter and parks on a condition, and a thread adding an object
+ * only takes the lock to signal when there are registered waiters. Fairness
+ * therefore only orders the waiting threads among themselves; a thread
+ * arriving while an object is available takes it without waiting.
+ * <p>
+ * {@link #size()} is maintained in a counter and is O(1), iteration is weakly
+ * consistent.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @param <E> 空闲对象的类型
+ */
+public class ConcurrentIdleObjectStore<E> extends AbstractCollection<E>
+        implements IdleObjectStore<E> {
+
+    /** 空闲对象 */
+    private final ConcurrentLinkedDeque<E> items = new ConcurrentLinkedDeque<E>();
+
+    /*
+     * Number of items. Incremented before an item is linked and decremented
+     * after it has been unlinked so it never goes negative.
+     */
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /*
+     * Number of threads parked (or about to park) on notEmpty. Only modified
+     * while holding lock, read without it by threads adding items.
+     */
+    private final AtomicInteger waiters = new AtomicInteger(0);
+
+    /** Lock used only by waiting threads and by threads signalling them */
+    private final InterruptibleReentrantLock lock;
+
+    /** Condition for waiting takes */
+    private final Condition notEmpty;
+
+    /**
+     * Creates a store with the given (fixed) fairness policy.
+     *
+     * @param fairness true means threads waiting to take instances will be
+     *                 served as if waiting in a FIFO queue
+     */
+    public ConcurrentIdleObjectStore(boolean fairness) {
+        lock = new InterruptibleReentrantLock(fairness);
+        notEmpty = lock.newCondition();
+    }
+
+    // Fast path
+
+    @Override
+    public void addFirst(E e) {
+        checkNotNull(e);
+        count.incrementAndGet();
+        items.addFirst(e);
+        signalWaiter();
+    }
+
+    @Override
+    public void addLast(E e) {
+        checkNotNull(e);
+        count.incrementAndGet();
+        items.addLast(e);
+        signalWaiter();
+    }
+
+    @Override
+    public boolean offerFirst(E e) {
+        addFirst(e);
+        return true;
+    }
+
+    @Override
+    public boolean offerLast(E e) {
+        addLast(e);
+        return true;
+    }
+
+    @Override
+    public E pollFirst() {
+        E e = items.pollFirst();
+        if (e != null) {
+            count.decrementAndGet();
+        }
+        return e;
+    }
+
+    @Override
+    public E pollLast() {
+        E e = items.pollLast();
+        if (e != null) {
+            count.decrementAndGet();
+        }
+        return e;
+    }
+
+    @Override
+    public boolean removeFirstOccurrence(Object o) {
+        if (items.removeFirstOccurrence(o)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean removeLastOccurrence(Object o) {
+        if (items.removeLastOccurrence(o)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Rejects a null element before the count is incremented, so that the
+     * count does not include an element that is never linked.
+     *
+     * @param e The element to add
+     *
+     * @throws NullPointerException if e is null
+     */
+    private static void checkNotNull(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    /**
+     * Wakes up one waiting thread, if there are any. The waiters count is
+     * incremented under the lock before a waiter re-checks the deque, so
+     * either the waiter sees the item just linked or this method sees the
+     * waiter.
+     */
+    private void signalWaiter() {
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Slow path
+
+    @Override
+    public E takeFirst() throws InterruptedException {
+        E e = pollFirst();
+        if (e != null) {
+            return e;
+        }
+        lock.lockInterruptibly();
+        waiters.incrementAndGet();
+        try {
+            while ((e = pollFirst()) == null) {
+                notEmpty.await();
+            }
+            return e;
+        } finally {
+            leave();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E pollFirst(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        E e = pollFirst();
+        if (e != null) {
+            return e;
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        waiters.incrementAndGet();
+        try {
+            while ((e = pollFirst()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return e;
+        } finally {
+            leave();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deregisters a waiter. A signal may have been consumed by a waiter that
+     * then timed out or was interrupted, so pass it on if items remain.
+     * Must be called while holding the lock.
+     */
+    private void leave() {
+        if (waiters.decrementAndGet() > 0 && !items.isEmpty()) {
+            notEmpty.signal();
+        }
+    }
+
+    @Override
+    public boolean hasTakeWaiters() {
+        return waiters.get() > 0;
+    }
+
+    @Override
+    public int getTakeQueueLength() {
+        return waiters.get();
+    }
+
+    @Override
+    public void interuptTakeWaiters() {
+        lock.lock();
+        try {
+            lock.interruptWaiters(notEmpty);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deque methods expressed in terms of the above
+
+    @Override
+    public E removeFirst() {
+        E e = pollFirst();
+        if (e == null) {
+            throw new NoSuchElementException();
+        }
+        return e;
+    }
+
+    @Override
+    public E removeLast() {
+        E e = pollLast();
+        if (e == null) {
+            throw new NoSuchElementException();
+        }
+        return e;
+    }
+
+    @Override
+    public E getFirst() {
+        return items.getFirst();
+    }
+
+    @Override
+    public E getLast() {
+        return items.getLast();
+    }
+
+    @Override
+    public E peekFirst() {
+        return items.peekFirst();
+    }
+
+    @Override
+    public E peekLast() {
+        return items.peekLast();
+    }
+
+    @Override
+    public boolean add(E e) {
+        addLast(e);
+        return true;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return offerLast(e);
+    }
+
+    @Override
+    public E remove() {
+        return removeFirst();
+    }
+
+    @Override
+    public E poll() {
+        return pollFirst();
+    }
+
+    @Override
+    public E element() {
+        return getFirst();
+    }
+
+    @Override
+    public E peek() {
+        return peekFirst();
+    }
+
+    @Override
+    public void push(E e) {
+        addFirst(e);
+    }
+
+    @Override
+    public E pop() {
+        return removeFirst();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return removeFirstOccurrence(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return items.contains(o);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Itr(items.iterator());
+    }
+
+    @Override
+    public Iterator<E> descendingIterator() {
+        return new Itr(items.descendingIterator());
+    }
+
+    /**
+     * Weakly consistent iterator that keeps {@link #count} in step on
+     * removal. The element is removed by value rather than through the
+     * underlying iterator so that an element concurrently taken by another
+     * thread is not counted twice.
+     */
+    private class Itr implements Iterator<E> {
+
+        private final Iterator<E> it;
+
+        private E lastRet;
+
+        Itr(Iterator<E> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public E next() {
+            lastRet = it.next();
+            return lastRet;
+        }
+
+        @Override
+        public void remove() {
+            E e = lastRet;
+            if (e == null) {
+                throw new IllegalStateException();
+            }
+            lastRet = null;
+            removeFirstOccurrence(e);
+        }
+    }
+}
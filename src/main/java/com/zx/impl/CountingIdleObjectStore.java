@@ -0,0 +1,566 @@
+package com.zx.impl;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 计数的空闲对象存储：包装另一个{@link IdleObjectStore}，并把其中元素数量的变化累加到一个共享的计数器上
+ * <p>
+ * {@link GenericKeyedObjectPool} wraps the store of every key in one of these
+ * so that the total number of idle objects across all keys is available in
+ * O(1) rather than by summing the size of every store. Every element added to
+ * or removed from the store, whether by the pool, by
+ * {@link org.apache.commons.pool2.PooledObject#endEvictionTest(java.util.Deque)}
+ * or through an iterator, goes through this class.
+ * <p>
+ * The counter is incremented before an element is linked and decremented
+ * after it has been unlinked, so while adds are in flight the counter may be
+ * slightly higher than the real number of idle objects but it never goes
+ * negative.
+ * <p>
+ * An optional listener is run after every element that has been added, so
+ * that the pool can wake borrowers that do not wait on the store itself.
+ * <p>
+ * An element may also be allocated in place, see
+ * {@link #allocatedInPlace()}: it stays linked but is no longer counted, and
+ * the removal methods skip its link when they come across it. The elements
+ * are told through optional {@link Links} when they are linked and unlinked,
+ * and tell in turn whether an unlinked element was allocated in place. While
+ * such an element is being made idle again, {@link #size()} and the counter
+ * may briefly be one lower than the number of idle elements.
+ * <p>
+ * This class is thread-safe if the wrapped store is.
+ *
+ * @param <E> 空闲对象的类型
+ */
+class CountingIdleObjectStore<E> extends AbstractCollection<E>
+        implements IdleObjectStore<E> {
+
+    /** 被包装的存储 */
+    private final IdleObjectStore<E> store;
+
+    /** 所有key共享的空闲对象计数器 */
+    private final LongAdder counter;
+
+    /** 添加元素后执行的监听器，可能为null */
+    private final Runnable addListener;
+
+    /** 元素链接和解除链接时通知的对象，可能为null */
+    private final Links<? super E> links;
+
+    /** 原地分配后仍然链接在存储中的元素数量 */
+    private final LongAdder inPlaceCount = new LongAdder();
+
+    /**
+     * Create a counting view of the given store.
+     *
+     * @param store   The store to wrap, must be empty
+     * @param counter The counter to add the size changes of the store to
+     */
+    CountingIdleObjectStore(IdleObjectStore<E> store, LongAdder counter) {
+        this(store, counter, null);
+    }
+
+    /**
+     * Create a counting view of the given store that runs a listener after
+     * every element added.
+     *
+     * @param store       The store to wrap, must be empty
+     * @param counter     The counter to add the size changes of the store to
+     * @param addListener Run after an element has been added, may be
+     *                    <code>null</code>
+     */
+    CountingIdleObjectStore(IdleObjectStore<E> store, LongAdder counter,
+            Runnable addListener) {
+        this(store, counter, addListener, null);
+    }
+
+    /**
+     * Create a counting view of the given store that runs a listener after
+     * every element added and skips the links of elements allocated in place.
+     *
+     * @param store       The store to wrap, must be empty
+     * @param counter     The counter to add the size changes of the store to
+     * @param addListener Run after an element has been added, may be
+     *                    <code>null</code>
+     * @param links       Told when an element is linked and unlinked, may be
+     *                    <code>null</code>
+     */
+    CountingIdleObjectStore(IdleObjectStore<E> store, LongAdder counter,
+            Runnable addListener, Links<? super E> links) {
+        this.store = store;
+        this.counter = counter;
+        this.addListener = addListener;
+        this.links = links;
+    }
+
+    // Allocation in place
+
+    /**
+     * Account for an element that has been allocated without unlinking it.
+     * Its link is skipped, and no longer counted, until
+     * {@link #deallocatedInPlace()} is called for it.
+     */
+    void allocatedInPlace() {
+        inPlaceCount.increment();
+        counter.decrement();
+    }
+
+    /**
+     * Account for an element allocated in place that has become idle again
+     * while still linked, and run the listener as for an added element.
+     */
+    void deallocatedInPlace() {
+        inPlaceCount.decrement();
+        counter.increment();
+        added();
+    }
+
+    // Insertion
+
+    @Override
+    public void addFirst(E e) {
+        linking(e);
+        try {
+            store.addFirst(e);
+        } catch (RuntimeException ex) {
+            notAdded(e);
+            throw ex;
+        }
+        added();
+    }
+
+    @Override
+    public void addLast(E e) {
+        linking(e);
+        try {
+            store.addLast(e);
+        } catch (RuntimeException ex) {
+            notAdded(e);
+            throw ex;
+        }
+        added();
+    }
+
+    @Override
+    public boolean offerFirst(E e) {
+        linking(e);
+        boolean added = false;
+        try {
+            added = store.offerFirst(e);
+        } finally {
+            if (!added) {
+                notAdded(e);
+            }
+        }
+        if (added) {
+            added();
+        }
+        return added;
+    }
+
+    @Override
+    public boolean offerLast(E e) {
+        linking(e);
+        boolean added = false;
+        try {
+            added = store.offerLast(e);
+        } finally {
+            if (!added) {
+                notAdded(e);
+            }
+        }
+        if (added) {
+            added();
+        }
+        return added;
+    }
+
+    /**
+     * Count an element that is about to be linked.
+     *
+     * @param e The element
+     */
+    private void linking(E e) {
+        if (links != null) {
+            links.linking(e);
+        }
+        counter.increment();
+    }
+
+    /**
+     * Account for an element that could not be linked after all, as if it
+     * had been unlinked again.
+     *
+     * @param e The element
+     */
+    private void notAdded(E e) {
+        if (!skipped(e)) {
+            counter.decrement();
+        }
+    }
+
+    /**
+     * Run the listener, if any, for an element that has been added.
+     */
+    private void added() {
+        if (addListener != null) {
+            addListener.run();
+        }
+    }
+
+    // Removal
+
+    @Override
+    public E pollFirst() {
+        for (;;) {
+            E e = store.pollFirst();
+            if (!skipped(e)) {
+                return removed(e);
+            }
+        }
+    }
+
+    @Override
+    public E pollLast() {
+        for (;;) {
+            E e = store.pollLast();
+            if (!skipped(e)) {
+                return removed(e);
+            }
+        }
+    }
+
+    @Override
+    public E takeFirst() throws InterruptedException {
+        for (;;) {
+            E e = store.takeFirst();
+            if (!skipped(e)) {
+                return removed(e);
+            }
+        }
+    }
+
+    @Override
+    public E pollFirst(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        for (;;) {
+            E e = store.pollFirst(nanos, TimeUnit.NANOSECONDS);
+            if (!skipped(e)) {
+                return removed(e);
+            }
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
+    @Override
+    public int drainFirst(Collection<? super E> c, int maxElements) {
+        if (links == null) {
+            int n = store.drainFirst(c, maxElements);
+            counter.add(-n);
+            return n;
+        }
+        int n = 0;
+        List<E> drained = new ArrayList<E>();
+        while (n < maxElements) {
+            drained.clear();
+            int wanted = maxElements - n;
+            if (store.drainFirst(drained, wanted) == 0) {
+                break;
+            }
+            for (E e : drained) {
+                if (!skipped(e)) {
+                    c.add(removed(e));
+                    n++;
+                }
+            }
+            if (drained.size() < wanted) {
+                break;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Unlinks the first occurrence of the given element. The link of an
+     * element allocated in place is unlinked too, but is not an idle element,
+     * so <code>false</code> is returned for it.
+     */
+    @Override
+    public boolean removeFirstOccurrence(Object o) {
+        return store.removeFirstOccurrence(o) && removedOccurrence(o);
+    }
+
+    /**
+     * Unlinks the last occurrence of the given element, see
+     * {@link #removeFirstOccurrence(Object)}.
+     */
+    @Override
+    public boolean removeLastOccurrence(Object o) {
+        return store.removeLastOccurrence(o) && removedOccurrence(o);
+    }
+
+    /**
+     * Account for an element that has been unlinked by value.
+     *
+     * @param o The unlinked element
+     *
+     * @return <code>true</code> if it was an idle element rather than the
+     *         link of an element allocated in place
+     */
+    @SuppressWarnings("unchecked") // Only an element can have been unlinked
+    private boolean removedOccurrence(Object o) {
+        if (skipped((E) o)) {
+            return false;
+        }
+        counter.decrement();
+        return true;
+    }
+
+    /**
+     * Tell the links about an element that may have been unlinked from the
+     * store, and check whether it is the link of an element allocated in
+     * place, which is not counted and must not be handed out.
+     *
+     * @param e The element returned by the store, may be <code>null</code>
+     *
+     * @return <code>true</code> if the element is to be skipped
+     */
+    private boolean skipped(E e) {
+        if (e != null && links != null && links.unlinked(e)) {
+            inPlaceCount.decrement();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Account for an element that may have been unlinked from the store.
+     *
+     * @param e The element returned by the store, may be <code>null</code>
+     *
+     * @return <code>e</code>
+     */
+    private E removed(E e) {
+        if (e != null) {
+            counter.decrement();
+        }
+        return e;
+    }
+
+    // Waiters, not counted
+
+    @Override
+    public boolean hasTakeWaiters() {
+        return store.hasTakeWaiters();
+    }
+
+    @Override
+    public int getTakeQueueLength() {
+        return store.getTakeQueueLength();
+    }
+
+    @Override
+    public void interuptTakeWaiters() {
+        store.interuptTakeWaiters();
+    }
+
+    // Deque methods expressed in terms of the above
+
+    @Override
+    public E removeFirst() {
+        E e = pollFirst();
+        if (e == null) {
+            throw new NoSuchElementException();
+        }
+        return e;
+    }
+
+    @Override
+    public E removeLast() {
+        E e = pollLast();
+        if (e == null) {
+            throw new NoSuchElementException();
+        }
+        return e;
+    }
+
+    @Override
+    public E getFirst() {
+        return store.getFirst();
+    }
+
+    @Override
+    public E getLast() {
+        return store.getLast();
+    }
+
+    @Override
+    public E peekFirst() {
+        return store.peekFirst();
+    }
+
+    @Override
+    public E peekLast() {
+        return store.peekLast();
+    }
+
+    @Override
+    public boolean add(E e) {
+        addLast(e);
+        return true;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return offerLast(e);
+    }
+
+    @Override
+    public E remove() {
+        return removeFirst();
+    }
+
+    @Override
+    public E poll() {
+        return pollFirst();
+    }
+
+    @Override
+    public E element() {
+        return getFirst();
+    }
+
+    @Override
+    public E peek() {
+        return peekFirst();
+    }
+
+    @Override
+    public void push(E e) {
+        addFirst(e);
+    }
+
+    @Override
+    public E pop() {
+        return removeFirst();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return removeFirstOccurrence(o);
+    }
+
+    @Override
+    public void clear() {
+        while (pollFirst() != null) {
+            // Unlink one by one so that every element is counted
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return store.contains(o);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return store.isEmpty();
+    }
+
+    /**
+     * Returns the number of idle elements: the links of elements allocated in
+     * place are not included.
+     */
+    @Override
+    public int size() {
+        return (int) Math.max(0, store.size() - inPlaceCount.sum());
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Itr(store.iterator());
+    }
+
+    @Override
+    public Iterator<E> descendingIterator() {
+        return new Itr(store.descendingIterator());
+    }
+
+    @Override
+    public String toString() {
+        return store.toString();
+    }
+
+    /**
+     * Iterator over the wrapped store. The element is removed by value rather
+     * than through the underlying iterator so that the counter is only
+     * decremented if this thread actually unlinked it.
+     */
+    private class Itr implements Iterator<E> {
+
+        private final Iterator<E> it;
+
+        private E lastRet;
+
+        Itr(Iterator<E> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public E next() {
+            lastRet = it.next();
+            return lastRet;
+        }
+
+        @Override
+        public void remove() {
+            E e = lastRet;
+            if (e == null) {
+                throw new IllegalStateException();
+            }
+            lastRet = null;
+            removeFirstOccurrence(e);
+        }
+    }
+
+    /**
+     * Keeps track of whether an element is linked in the store, so that it
+     * can be allocated in place only while it is, see
+     * {@link CountingIdleObjectStore#allocatedInPlace()}.
+     *
+     * @param <E> 空闲对象的类型
+     */
+    interface Links<E> {
+
+        /**
+         * Called before an element is linked.
+         *
+         * @param e The element
+         */
+        void linking(E e);
+
+        /**
+         * Called after an element has been unlinked, or could not be linked.
+         *
+         * @param e The element
+         *
+         * @return <code>true</code> if the element had been allocated in
+         *         place, so that the link was not an idle element
+         */
+        boolean unlinked(E e);
+    }
+}
@@ -1,5 +1,6 @@
 package com.zx.impl;
 
+import com.zx.Lease;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.PooledObjectState;
 import org.apache.commons.pool2.TrackedUse;
@@ -8,10 +9,19 @@ import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * 这个包装器用于跟踪额外的信息，比如状态，用于汇集对象。
  * <p>
+ * 状态和借用次数一起保存在一个long字段中，每个状态转换都是一次CAS操作，
+ * 不使用对象监视器，所以借用和归还不会加锁，也不会固定(pin)虚拟线程。
+ * 每个转换的前后状态与同步实现完全相同。
+ * <p>
+ * 同一个字段中还有两个标记：对象是否链接在空闲对象中，以及是否原地分配。
+ * 线程亲和缓存借出对象时不把它从空闲对象中移除，空闲对象中留下的链接由原地分配的标记记录，
+ * 见{@link #allocateInPlace()}。
+ * <p>
  * 该类是线程安全的
  *
  * @param <T> 池对象的类型
@@ -22,34 +32,71 @@ import java.util.Deque;
  */
 public class DefaultPooledObject<T> implements PooledObject<T> {
 
+    /** 状态的位数，低位保存状态的序号，接着是链接和原地分配的标记，高位保存借用次数 */
+    private static final int STATE_BITS = 4;
+    private static final long STATE_MASK = (1L << STATE_BITS) - 1;
+    private static final long LINKED = 1L << STATE_BITS;
+    private static final long IN_PLACE = 1L << (STATE_BITS + 1);
+    private static final int COUNT_SHIFT = STATE_BITS + 2;
+    private static final PooledObjectState[] STATES = PooledObjectState.values();
+
+    /** {@link #getLastValidatedTime()}的值，表示还没有校验过 */
+    static final long NOT_VALIDATED = Long.MIN_VALUE;
+
+    /** 状态字段的CAS更新器 */
+    @SuppressWarnings("unchecked") // A class literal is always of the raw type
+    private static final AtomicLongFieldUpdater<DefaultPooledObject<?>> STATE_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(
+                    (Class<DefaultPooledObject<?>>) (Class<?>) DefaultPooledObject.class,
+                    "stateAndCount");
+
     //原始对象
     private final T object;
-    //对象状态
-    private PooledObjectState state = PooledObjectState.IDLE; // @GuardedBy("this") to ensure transitions are valid
+    //对象状态、标记和借用总次数：(borrowedCount << COUNT_SHIFT) | inPlace | linked | state.ordinal()，只通过CAS修改
+    private volatile long stateAndCount = PooledObjectState.IDLE.ordinal();
+    //读取时间的时钟
+    private final PoolClock clock;
     //创建时间
-    private final long createTime = System.currentTimeMillis();
+    private final long createTime;
     //最后借用时间
-    private volatile long lastBorrowTime = createTime;
+    private volatile long lastBorrowTime;
     //最后使用时间
-    private volatile long lastUseTime = createTime;
+    private volatile long lastUseTime;
     //最后返回时间
-    private volatile long lastReturnTime = createTime;
+    private volatile long lastReturnTime;
     //记录被遗弃的
     private volatile boolean logAbandoned = false;
     //借用的异常
     private volatile Exception borrowedBy = null;
     //使用的异常
     private volatile Exception usedBy = null;
-    //借用总次数
-    private volatile long borrowedCount = 0;
+    //池为这个对象发放的租约，每次租借都复用它
+    private volatile Lease<T> lease;
+    //最后一次校验成功的时间，只在池开启了validationCacheMillis时记录
+    private volatile long lastValidatedTime = NOT_VALIDATED;
 
     /**
-     * 构造函数
+     * 构造函数，使用{@link PoolClock#getDefault() 默认时钟}
      *
      * @param object The object to wrap
      */
     public DefaultPooledObject(T object) {
+        this(object, PoolClock.getDefault());
+    }
+
+    /**
+     * 构造函数，使用给定的时钟读取所有时间
+     *
+     * @param object The object to wrap
+     * @param clock  The clock to read the time from
+     */
+    public DefaultPooledObject(T object, PoolClock clock) {
         this.object = object;
+        this.clock = clock;
+        this.createTime = clock.currentTimeMillis();
+        this.lastBorrowTime = createTime;
+        this.lastUseTime = createTime;
+        this.lastReturnTime = createTime;
     }
 
     @Override
@@ -75,7 +122,7 @@ public class DefaultPooledObject<T> implements PooledObject<T> {
             return rTime - bTime;
         } else {
             //否则，取当前时间 - 借用时间，也就是实时的活动时间
-            return System.currentTimeMillis() - bTime;
+            return clock.currentTimeMillis() - bTime;
         }
     }
 
@@ -83,7 +130,7 @@ public class DefaultPooledObject<T> implements PooledObject<T> {
     @Override
     public long getIdleTimeMillis() {
         //当前时间 - 最后借用时间 = 空闲时间
-        final long elapsed = System.currentTimeMillis() - lastReturnTime;
+        final long elapsed = clock.currentTimeMillis() - lastReturnTime;
      // 结果可能是负数，如果
      // - 另一个线程在计算窗口中更新lastReturnTime
      // - System.currenttimemillis()不是单调的(例如系统时间被设置回来)
@@ -106,7 +153,7 @@ public class DefaultPooledObject<T> implements PooledObject<T> {
      * @since 2.1
      */
     public long getBorrowedCount() {
-        return borrowedCount;
+        return stateAndCount >>> COUNT_SHIFT;
     }
 
     /**
@@ -147,44 +194,44 @@ public class DefaultPooledObject<T> implements PooledObject<T> {
         result.append("Object: ");
         result.append(object.toString());
         result.append(", State: ");
-        synchronized (this) {
-            result.append(state.toString());
-        }
+        result.append(getState().toString());
         return result.toString();
         // TODO add other attributes
     }
 
     //开始驱逐校验
     @Override
-    public synchronized boolean startEvictionTest() {
+    public boolean startEvictionTest() {
         //如果状态为空闲，将状态改为驱逐校验中
-        if (state == PooledObjectState.IDLE) {
-            state = PooledObjectState.EVICTION;
-            return true;
-        }
-
-        return false;
+        return compareAndSetState(PooledObjectState.IDLE, PooledObjectState.EVICTION);
     }
 
     //结束驱逐校验
     @Override
-    public synchronized boolean endEvictionTest(
+    public boolean endEvictionTest(
             Deque<PooledObject<T>> idleQueue) {
-        //如果状态为驱逐校验，状态改为空闲中
-        if (state == PooledObjectState.EVICTION) {
-            state = PooledObjectState.IDLE;
-            return true;
-        } else if (state == PooledObjectState.EVICTION_RETURN_TO_HEAD) {
-            //如果状态是驱逐校验中（不在队列中，正在测试这个对象）
-            //就将这个对象状态改为空闲，结束校验
-            state = PooledObjectState.IDLE;
-            //将这个对象放回队列，应该不会失败
-            if (!idleQueue.offerFirst(this)) {
-                // TODO - 不应该发生
+        for (;;) {
+            long current = stateAndCount;
+            PooledObjectState state = stateOf(current);
+            //如果状态为驱逐校验，状态改为空闲中
+            if (state == PooledObjectState.EVICTION) {
+                if (casState(current, PooledObjectState.IDLE)) {
+                    return true;
+                }
+            } else if (state == PooledObjectState.EVICTION_RETURN_TO_HEAD) {
+                //如果状态是驱逐校验中（不在队列中，正在测试这个对象）
+                //就将这个对象状态改为空闲，结束校验
+                if (casState(current, PooledObjectState.IDLE)) {
+                    //将这个对象放回队列，应该不会失败
+                    if (!idleQueue.offerFirst(this)) {
+                        // TODO - 不应该发生
+                    }
+                    return false;
+                }
+            } else {
+                return false;
             }
         }
-
-        return false;
     }
 
     /**
@@ -193,31 +240,31 @@ public class DefaultPooledObject<T> implements PooledObject<T> {
      * @return {@code true} 如果原始状态是 {@link PooledObjectState#IDLE IDLE}
      */
     @Override
-    public synchronized boolean allocate() {
-        //如果状态是空闲
-        if (state == PooledObjectState.IDLE) {
-            //状态改为被分配的（使用中）
-            state = PooledObjectState.ALLOCATED;
-            //最后借用时间为当前时间
-            lastBorrowTime = System.currentTimeMillis();
-            //最后使用时间等于 最后借用时间
-            lastUseTime = lastBorrowTime;
-            //借用次数累加
-            borrowedCount++;
-            if (logAbandoned) {
-                //创建异常类，是这个类中的静态内部类
-                borrowedBy = new AbandonedObjectCreatedException();
+    public boolean allocate() {
+        for (;;) {
+            long current = stateAndCount;
+            PooledObjectState state = stateOf(current);
+            //如果状态是空闲
+            if (state == PooledObjectState.IDLE) {
+                //状态改为被分配的（使用中），借用次数累加
+                if (STATE_UPDATER.compareAndSet(this, current,
+                        current + (1L << COUNT_SHIFT) - state.ordinal() +
+                        PooledObjectState.ALLOCATED.ordinal())) {
+                    allocated();
+                    return true;
+                }
+            } else if (state == PooledObjectState.EVICTION) {
+                //如果状态是驱逐，修改为驱逐测试中
+                // TODO 无论如何都要分配并忽略驱逐测试
+                if (casState(current, PooledObjectState.EVICTION_RETURN_TO_HEAD)) {
+                    return false;
+                }
+            } else {
+                // TODO if validating and testOnBorrow == true then pre-allocate for
+                //如果是校验中，并且testOnBorrow == true ，那么预分配以提高性能
+                return false;
             }
-            return true;
-        } else if (state == PooledObjectState.EVICTION) {
-            //如果状态是驱逐，修改为驱逐测试中
-            // TODO 无论如何都要分配并忽略驱逐测试
-            state = PooledObjectState.EVICTION_RETURN_TO_HEAD;
-            return false;
         }
-        // TODO if validating and testOnBorrow == true then pre-allocate for
-        //如果是校验中，并且testOnBorrow == true ，那么预分配以提高性能
-        return false;
     }
 
     /**
@@ -227,35 +274,137 @@ public class DefaultPooledObject<T> implements PooledObject<T> {
      * @return {@code true}如果状态是 {@link PooledObjectState#ALLOCATED ALLOCATED}
      */
     @Override
-    public synchronized boolean deallocate() {
-        //如果状态是分配的，或者是 返回到池中
-        if (state == PooledObjectState.ALLOCATED ||
-                state == PooledObjectState.RETURNING) {
+    public boolean deallocate() {
+        for (;;) {
+            long current = stateAndCount;
+            PooledObjectState state = stateOf(current);
+            //如果状态是分配的，或者是 返回到池中
+            if (state != PooledObjectState.ALLOCATED &&
+                    state != PooledObjectState.RETURNING) {
+                return false;
+            }
             //修改为空闲状态
-            state = PooledObjectState.IDLE;
-            //修改最后返回时间
-            lastReturnTime = System.currentTimeMillis();
-            //修改借用异常
-            borrowedBy = null;
-            return true;
+            if (casState(current, PooledObjectState.IDLE)) {
+                deallocated();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 原地分配对象：对象仍然链接在空闲对象中，由原地分配的标记记录这个链接。
+     * 之后从空闲对象中取出这个链接的线程在{@link #unlinked()}中得知要跳过它，
+     * 或者归还对象的线程调用{@link #deallocateInPlace()}，使链接重新成为空闲对象。
+     *
+     * @return {@code true} 如果原始状态是 {@link PooledObjectState#IDLE IDLE}，
+     *         对象链接在空闲对象中，并且没有其他线程从空闲对象中取出它
+     */
+    boolean allocateInPlace() {
+        for (;;) {
+            long current = stateAndCount;
+            if (stateOf(current) != PooledObjectState.IDLE ||
+                    (current & (LINKED | IN_PLACE)) != LINKED) {
+                return false;
+            }
+            if (STATE_UPDATER.compareAndSet(this, current,
+                    current + (1L << COUNT_SHIFT) + IN_PLACE -
+                    PooledObjectState.IDLE.ordinal() +
+                    PooledObjectState.ALLOCATED.ordinal())) {
+                allocated();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 解除原地分配的对象：如果对象是{@link PooledObjectState#RETURNING RETURNING}
+     * 并且它在空闲对象中的链接还在，把状态改为{@link PooledObjectState#IDLE IDLE}
+     * 并清除标记。这时对象已经是空闲对象，不能再添加到空闲对象中。
+     *
+     * @return {@code true} 如果状态被修改；{@code false} 时对象不再有原地分配的链接，
+     *         应该像其他对象一样{@link #deallocate() 解除分配}
+     */
+    boolean deallocateInPlace() {
+        for (;;) {
+            long current = stateAndCount;
+            if ((current & IN_PLACE) == 0 ||
+                    stateOf(current) != PooledObjectState.RETURNING) {
+                return false;
+            }
+            if (STATE_UPDATER.compareAndSet(this, current,
+                    current - IN_PLACE - PooledObjectState.RETURNING.ordinal() +
+                    PooledObjectState.IDLE.ordinal())) {
+                deallocated();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 设置链接的标记，在对象添加到空闲对象之前调用
+     */
+    void linking() {
+        for (;;) {
+            long current = stateAndCount;
+            if (STATE_UPDATER.compareAndSet(this, current, current | LINKED)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 清除链接和原地分配的标记，在对象从空闲对象中取出之后调用。
+     * 之后对象不能再{@link #allocateInPlace() 原地分配}，直到它再次链接。
+     *
+     * @return {@code true} 如果对象是原地分配的，这时取出的链接不是空闲对象
+     */
+    boolean unlinked() {
+        for (;;) {
+            long current = stateAndCount;
+            if (STATE_UPDATER.compareAndSet(this, current,
+                    current & ~(LINKED | IN_PLACE))) {
+                return (current & IN_PLACE) != 0;
+            }
+        }
+    }
+
+    /**
+     * 记录借出，在状态改为{@link PooledObjectState#ALLOCATED ALLOCATED}之后调用
+     */
+    private void allocated() {
+        //最后借用时间为当前时间
+        lastBorrowTime = clock.currentTimeMillis();
+        //最后使用时间等于 最后借用时间
+        lastUseTime = lastBorrowTime;
+        if (logAbandoned) {
+            //创建异常类，是这个类中的静态内部类
+            borrowedBy = new AbandonedObjectCreatedException();
         }
+    }
 
-        return false;
+    /**
+     * 记录归还，在状态改为{@link PooledObjectState#IDLE IDLE}之后调用
+     */
+    private void deallocated() {
+        //修改最后返回时间
+        lastReturnTime = clock.currentTimeMillis();
+        //修改借用异常
+        borrowedBy = null;
     }
 
     /**
      * 设置状态为无效{@link PooledObjectState#INVALID INVALID}
      */
     @Override
-    public synchronized void invalidate() {
-        state = PooledObjectState.INVALID;
+    public void invalidate() {
+        setState(PooledObjectState.INVALID);
     }
 
     //使用
     @Override
     public void use() {
         //设置最后使用时间
-        lastUseTime = System.currentTimeMillis();
+        lastUseTime = clock.currentTimeMillis();
         //增加使用异常,使用该对象的最后一个代码是:
         usedBy = new Exception("The last code to use this object was:");
     }
@@ -284,24 +433,146 @@ public class DefaultPooledObject<T> implements PooledObject<T> {
      * @return state
      */
     @Override
-    public synchronized PooledObjectState getState() {
-        return state;
+    public PooledObjectState getState() {
+        return stateOf(stateAndCount);
     }
 
     /**
      * Marks the pooled object as abandoned.
      */
     @Override
-    public synchronized void markAbandoned() {
-        state = PooledObjectState.ABANDONED;
+    public void markAbandoned() {
+        setState(PooledObjectState.ABANDONED);
     }
 
     /**
      * Marks the object as returning to the pool.
      */
     @Override
-    public synchronized void markReturning() {
-        state = PooledObjectState.RETURNING;
+    public void markReturning() {
+        setState(PooledObjectState.RETURNING);
+    }
+
+    /**
+     * 如果当前状态是{@code expect}，原子地将状态改为{@code update}。
+     * 池用它代替在对象监视器中先检查再修改状态，例如只把
+     * {@link PooledObjectState#ALLOCATED ALLOCATED}的对象标记为
+     * {@link PooledObjectState#RETURNING RETURNING}。
+     *
+     * @param expect 期望的当前状态
+     * @param update 新状态
+     *
+     * @return {@code true} 如果状态被修改
+     */
+    public boolean compareAndSetState(PooledObjectState expect,
+            PooledObjectState update) {
+        for (;;) {
+            long current = stateAndCount;
+            if (stateOf(current) != expect) {
+                return false;
+            }
+            if (casState(current, update)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 如果当前状态是{@code expect}并且借用次数仍然是{@code borrowedCount}，
+     * 原子地将状态改为{@code update}。池用它确认一个租约仍然属于对象的当前借用。
+     *
+     * @param expect        期望的当前状态
+     * @param update        新状态
+     * @param borrowedCount 期望的借用次数
+     *
+     * @return {@code true} 如果状态被修改
+     */
+    boolean compareAndSetState(PooledObjectState expect,
+            PooledObjectState update, long borrowedCount) {
+        for (;;) {
+            long current = stateAndCount;
+            if (stateOf(current) != expect ||
+                    current >>> COUNT_SHIFT != borrowedCount) {
+                return false;
+            }
+            if (casState(current, update)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 获取最后一次校验成功的时间
+     *
+     * @return 时间，如果池没有记录过则为{@link #NOT_VALIDATED}
+     */
+    long getLastValidatedTime() {
+        return lastValidatedTime;
+    }
+
+    /**
+     * 记录最后一次校验成功的时间
+     *
+     * @param lastValidatedTime 时间
+     */
+    void setLastValidatedTime(long lastValidatedTime) {
+        this.lastValidatedTime = lastValidatedTime;
+    }
+
+    /**
+     * 获取池为这个对象发放的租约
+     *
+     * @return 租约，如果还没有租借过则为null
+     */
+    Lease<T> getLease() {
+        return lease;
+    }
+
+    /**
+     * 保存池为这个对象发放的租约，以便下次租借时复用
+     *
+     * @param lease 租约
+     */
+    void setLease(Lease<T> lease) {
+        this.lease = lease;
+    }
+
+    /**
+     * 无条件地修改状态，保留借用次数
+     *
+     * @param update 新状态
+     */
+    private void setState(PooledObjectState update) {
+        for (;;) {
+            long current = stateAndCount;
+            if (casState(current, update)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 如果状态字段仍然是{@code current}，将其中的状态改为{@code update}，保留借用次数
+     *
+     * @param current 读取到的状态字段
+     * @param update  新状态
+     *
+     * @return {@code true} 如果CAS成功
+     */
+    private boolean casState(long current, PooledObjectState update) {
+        return STATE_UPDATER.compareAndSet(this, current,
+                (current & ~STATE_MASK) | update.ordinal());
+    }
+
+    /**
+     * 从状态字段中取出状态
+     *
+     * @param stateAndCount 状态字段
+     *
+     * @return 状态
+     */
+    private static PooledObjectState stateOf(long stateAndCount) {
+        return STATES[(int) (stateAndCount & STATE_MASK)];
     }
 
     @Override
@@ -2,143 +2,283 @@ package com.zx.impl;
 
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * 为所有池提供一个共享的闲置对象清除计时器。 这个类包装了标准{@link Timer}，并记录了使用它的池的数量。
- * 如果没有池使用这个计时器, 它是取消的.这个可以防止线程被运行,在应用程序服务器环境，可能导致内存引导和/或防止应用程序关闭或重新加载。
+ * 为所有池提供一个共享的闲置对象驱逐调度器。 这个类包装了一个{@link ScheduledThreadPoolExecutor}，并记录了使用它的池的数量。
+ * 如果没有池使用这个调度器, 它是关闭的.这个可以防止线程被运行,在应用程序服务器环境，可能导致内存引导和/或防止应用程序关闭或重新加载。
+ * <p>
+ * The executor runs the evictors of all pools on
+ * {@link #getThreadCount() a configurable number} of daemon threads, so a
+ * slow {@link Task} of one pool only holds up one thread instead of every
+ * other pool's eviction. Each task schedules its next run itself when a run
+ * ends: runs are due at fixed intervals from the first one, and a run that
+ * overruns the following due times skips them rather than having them queue
+ * up and run back to back. The first run of a task is delayed by a random
+ * part of its period, so pools created together do not all evict at once.
+ * A task that throws does not affect the executor or the other tasks, and
+ * stays scheduled.
  * <p>
  * 这个类有一个包范围，可以防止它包含在池公共API中。
  * 下面的类声明应该不会被更改为public。
  * <p>
  * 这个类是线程安全的。
- * 该类组合了Timer.
  *
  */
 class EvictionTimer {
 
-    /** Timer 实例*/
-    private static Timer _timer; //@GuardedBy("EvictionTimer.class")
+    /** 默认的驱逐线程数量 */
+    static final int DEFAULT_THREAD_COUNT = 2;
+
+    /** 执行器实例*/
+    private static ScheduledThreadPoolExecutor _executor; //@GuardedBy("EvictionTimer.class")
 
     /** 静态使用计数跟踪器 ,使用统计 */
     private static int _usageCount; //@GuardedBy("EvictionTimer.class")
 
+    /** 驱逐线程数量 */
+    private static int _threadCount = DEFAULT_THREAD_COUNT; //@GuardedBy("EvictionTimer.class")
+
     /** 防止实例化-私有化构造方法 */
     private EvictionTimer() {
         // Hide the default constructor
     }
 
     /**
-     * 增加指定的驱逐任务到这个定时器。
-     * 在调用此方法时增加的任务 必须 回调 {@link #cancel(TimerTask)}来取消任务，防止应用服务器环境中的内存和/或线程泄漏。
-     * @param task      定时任务
-     * @param delay     在执行任务之前延迟几毫秒
+     * 增加指定的驱逐任务到这个调度器。
+     * 在调用此方法时增加的任务 必须 回调 {@link #cancel(Task)}来取消任务，防止应用服务器环境中的内存和/或线程泄漏。
+     * @param task      驱逐任务
+     * @param delay     在执行任务之前延迟几毫秒，首次执行会提前最多一半的时间
      * @param period    执行之间的毫秒数
      */
-    static synchronized void schedule(TimerTask task, long delay, long period) {
-        //如果定时器为空
-        if (null == _timer) {
-            // 强制使用上下文类创建新的计时器线程
-            // 设置加载这个lib的类加载器为加载器
-
-            /**
-             * AccessController.doPrivileged()方法：
-             * 一个调用者在调用doPrivileged方法时，可被标识为 "特权"。
-             * 在做访问控制决策时，如果checkPermission方法遇到一个通过doPrivileged调用而被表示为 "特权"的调用者，
-             * 并且没有上下文自变量，checkPermission方法则将终止检查。如果那个调用者的域具有特定的许可，
-             * 则不做进一步检查，checkPermission安静地返回，表示那个访问请求是被允许的；
-             * 如果那个域没有特定的许可，则象通常一样，一个异常被抛出。
-             */
-            //获取TCCL（线程上下文类加载器）
-            ClassLoader ccl = AccessController.doPrivileged(
-                    new PrivilegedGetTccl());
-            try {
-                AccessController.doPrivileged(new PrivilegedSetTccl(
-                        EvictionTimer.class.getClassLoader()));
-                _timer = AccessController.doPrivileged(new PrivilegedNewEvictionTimer());
-            } finally {
-                AccessController.doPrivileged(new PrivilegedSetTccl(ccl));
-            }
+    static synchronized void schedule(Task task, long delay, long period) {
+        //如果执行器为空
+        if (null == _executor) {
+            _executor = AccessController.doPrivileged(
+                    new PrivilegedNewEvictionExecutor(_threadCount));
         }
         //使用次数累加
         _usageCount++;
-        //开启定时器
-        _timer.schedule(task, delay, period);
+        // Spread the first runs of pools created together over half a period
+        long jitter = delay > 1 ? ThreadLocalRandom.current().nextLong(delay / 2) : 0;
+        //开启任务
+        task.start(_executor, TimeUnit.MILLISECONDS.toNanos(delay - jitter),
+                TimeUnit.MILLISECONDS.toNanos(period));
     }
 
     /**
-     * 从计时器中删除指定的驱逐任务。
-     * @param task      要调度的任务
+     * 从调度器中删除指定的驱逐任务。重复取消一个任务没有效果。
+     * @param task      要取消的任务
      */
-    static synchronized void cancel(TimerTask task) {
-        task.cancel();
+    static synchronized void cancel(Task task) {
+        if (!task.stop()) {
+            return;
+        }
         //使用数递减
         _usageCount--;
-        //如果使用数为0了，关闭定时器
+        //如果使用数为0了，关闭执行器
         if (_usageCount == 0) {
-            _timer.cancel();
-            _timer = null;
+            _executor.shutdown();
+            _executor = null;
+        }
+    }
+
+    /**
+     * 获取驱逐线程数量
+     * @return the number of threads that run evictors
+     */
+    static synchronized int getThreadCount() {
+        return _threadCount;
+    }
+
+    /**
+     * 设置驱逐线程数量，立即对正在使用的执行器生效
+     * @param threadCount the number of threads that run evictors
+     * @throws IllegalArgumentException if threadCount is less than 1
+     */
+    static synchronized void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                    "Eviction thread count must be at least 1");
+        }
+        _threadCount = threadCount;
+        if (_executor != null) {
+            _executor.setCorePoolSize(threadCount);
         }
     }
 
     /**
-     * 静态内部类
-     * {@link PrivilegedAction} 用于获取ContextClassLoader
+     * 一个由驱逐调度器周期执行的任务
+     * <p>
+     * Times are taken from {@link System#nanoTime()}, so they are not
+     * affected by changes to the system clock.
      */
-    private static class PrivilegedGetTccl implements PrivilegedAction<ClassLoader> {
+    abstract static class Task implements Runnable {
+
+        /** 执行器，任务没有调度时为null */
+        private ScheduledThreadPoolExecutor executor; //@GuardedBy("this")
+
+        /** 下一次执行的future */
+        private ScheduledFuture<?> future; //@GuardedBy("this")
+
+        /** 执行之间的纳秒数 */
+        private long period;
+
+        /** 下一次执行应该开始的时间(纳秒) */
+        private long nextRun;
 
         /**
-         * 获取当前线程上下文类加载器
-         * {@inheritDoc}
+         * 执行一次任务
+         * @param lagMillis 这次执行比计划开始晚的毫秒数
+         */
+        abstract void execute(long lagMillis);
+
+        /**
+         * 因为上一次执行超时而跳过了执行
+         * @param runs 跳过的执行次数
+         */
+        abstract void skipped(long runs);
+
+        /**
+         * 执行抛出了异常，{@link Error}不会传到这里，而是继续抛出
+         * @param e 抛出的异常
+         */
+        abstract void failed(Exception e);
+
+        /**
+         * Runs the task and schedules the next run, skipping the runs that
+         * are already due. The next run is scheduled even if this one throws,
+         * in case the problem is recoverable; an {@link Error} is thrown on
+         * after that.
          */
         @Override
-        public ClassLoader run() {
-            return Thread.currentThread().getContextClassLoader();
+        public final void run() {
+            long start = System.nanoTime();
+            try {
+                execute(TimeUnit.NANOSECONDS.toMillis(Math.max(0, start - nextRun)));
+            } catch (Exception e) {
+                failed(e);
+            } finally {
+                long now = System.nanoTime();
+                long next = nextRun + period;
+                if (now - next > 0) {
+                    long missed = (now - next) / period + 1;
+                    next += missed * period;
+                    skipped(missed);
+                }
+                nextRun = next;
+                scheduleNext(next - now);
+            }
+        }
+
+        /**
+         * 开始调度
+         * @param executor 执行器
+         * @param delay    第一次执行之前的纳秒数
+         * @param period   执行之间的纳秒数
+         */
+        private synchronized void start(ScheduledThreadPoolExecutor executor,
+                long delay, long period) {
+            this.executor = executor;
+            this.period = period;
+            this.nextRun = System.nanoTime() + delay;
+            future = executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * 调度下一次执行，除非任务已经取消
+         * @param delay 下一次执行之前的纳秒数
+         */
+        private synchronized void scheduleNext(long delay) {
+            if (executor == null) {
+                return;
+            }
+            try {
+                future = executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // The executor has been shut down, so the task is being cancelled
+            }
+        }
+
+        /**
+         * 停止调度，正在进行的执行会完成
+         * @return <code>true</code> if the task was scheduled
+         */
+        private synchronized boolean stop() {
+            if (executor == null) {
+                return false;
+            }
+            executor = null;
+            future.cancel(false);
+            future = null;
+            return true;
         }
     }
 
     /**
-     * 静态内部类
-     * {@link PrivilegedAction} 用于设置ContextClassLoader
+     * {@link PrivilegedAction}用于创建一个新的执行器. 使用特权操作创建执行器意味着关联的线程不继承当前的访问控制上下文。.
+     * 在容器环境中，继承当前访问控制上下文可能会导致对线程上下文类加载器的引用，这将是内存泄漏。
      */
-    private static class PrivilegedSetTccl implements PrivilegedAction<Void> {
+    private static class PrivilegedNewEvictionExecutor
+            implements PrivilegedAction<ScheduledThreadPoolExecutor> {
 
-        /** 类加载器 */
-        private final ClassLoader cl;
+        /** 线程数量 */
+        private final int threadCount;
 
         /**
-         * 创建新的该类，使用给定的类加载器
-         * @param cl ClassLoader to use
+         * 创建新的该类，使用给定的线程数量
+         * @param threadCount Number of threads of the executor
          */
-        PrivilegedSetTccl(ClassLoader cl) {
-            this.cl = cl;
+        PrivilegedNewEvictionExecutor(int threadCount) {
+            this.threadCount = threadCount;
         }
 
         /**
-         * 将当前线程上下文类加载器设置为给定的类加载器
+         * 创建一个执行器
          * {@inheritDoc}
          */
         @Override
-        public Void run() {
-            Thread.currentThread().setContextClassLoader(cl);
-            return null;
+        public ScheduledThreadPoolExecutor run() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                    threadCount, new EvictorThreadFactory());
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
         }
     }
 
     /**
-     * {@link PrivilegedAction}用于创建一个新的计时器. 使用特权操作创建计时器意味着关联的线程不继承当前的访问控制上下文。.
-     * 在容器环境中，继承当前访问控制上下文可能会导致对线程上下文类加载器的引用，这将是内存泄漏。
+     * 创建驱逐线程的工厂
+     * <p>
+     * Threads are created when tasks are submitted, on whatever thread
+     * submits them, so the factory neither lets them inherit the access
+     * control context of that thread nor its context class loader: either
+     * could keep a web application that happened to create a pool from being
+     * unloaded. Threads use the class loader of this library; the evictors
+     * set the class loader of their pool's factory while they run.
      */
-    private static class PrivilegedNewEvictionTimer implements PrivilegedAction<Timer> {
+    private static class EvictorThreadFactory implements ThreadFactory {
+
+        /** 线程编号 */
+        private final AtomicInteger threadNumber = new AtomicInteger(0);
 
-        /**
-         * 创建一个定时器
-         * {@inheritDoc}
-         */
         @Override
-        public Timer run() {
-            return new Timer("commons-pool-EvictionTimer", true);
+        public Thread newThread(final Runnable r) {
+            return AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+                @Override
+                public Thread run() {
+                    Thread t = new Thread(r, "commons-pool-evictor-" +
+                            threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setContextClassLoader(EvictionTimer.class.getClassLoader());
+                    return t;
+                }
+            });
         }
     }
 }
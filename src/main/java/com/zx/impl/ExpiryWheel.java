@@ -0,0 +1,318 @@
+package com.zx.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * 分层时间轮：按到期时间索引元素，每次只取出已经到期的元素
+ * <p>
+ * {@link GenericKeyedObjectPool} keeps one for the idle objects of a key when
+ * {@link GenericKeyedObjectPool#setIdleExpiryIndex(boolean) idleExpiryIndex}
+ * is set, so that the evictor visits the objects that have been idle long
+ * enough instead of sampling a fixed number of objects on every run.
+ * <p>
+ * Time is divided into ticks of a fixed length. There are {@value #LEVELS}
+ * levels of {@value #SLOTS} slots: a slot of the first level holds the
+ * elements due in one tick, a slot of the next level those due in
+ * {@value #SLOTS} ticks, and so on; elements further away than the last
+ * level wait in an overflow list. Each time the first level has gone round,
+ * the next slot of the level above is emptied into the levels below, as in
+ * the timer wheels of Varghese and Lauck. Scheduling, rescheduling and
+ * removing an element are therefore O(1), and expiring takes time in the
+ * number of ticks passed and elements due. When more than a full turn of
+ * the first level has passed since the last expiry, all elements are
+ * placed again instead, which takes time in the number of elements.
+ * <p>
+ * An element is never returned before its deadline, and at most one tick
+ * after it by the first expiry at or after that time. Elements are compared
+ * by identity and each element is in the wheel at most once.
+ * <p>
+ * 这个类有一个包范围，可以防止它包含在池公共API中。
+ * <p>
+ * 这个类是线程安全的。
+ *
+ * @param <E> 元素的类型
+ */
+class ExpiryWheel<E> {
+
+    /** 每一层的槽数的位数 */
+    private static final int SLOT_BITS = 6;
+
+    /** 每一层的槽数 */
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /** 层数 */
+    private static final int LEVELS = 4;
+
+    /** 超出最高层的元素所在的链表的位置，在所有槽之后 */
+    private static final int OVERFLOW = LEVELS * SLOTS;
+
+    /** 调度时已经过期的元素所在的链表的位置，在溢出链表之后 */
+    private static final int OVERDUE = OVERFLOW + 1;
+
+    /** 一个tick的毫秒数 */
+    private final long tickMillis;
+
+    /** 每个槽的链表头，最后两个是溢出链表和过期链表 */
+    private final List<Node<E>> heads;
+
+    /** 每个元素的节点 */
+    private final IdentityHashMap<E, Node<E>> nodes =
+            new IdentityHashMap<E, Node<E>>();
+
+    /** 下一个要过期的tick，之前的tick都已经过期 */
+    private long currentTick;
+
+    /**
+     * Create an empty wheel.
+     *
+     * @param tickMillis The length of a tick in milliseconds, at least 1
+     * @param now        The current time in milliseconds
+     */
+    ExpiryWheel(long tickMillis, long now) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.heads = new ArrayList<Node<E>>(
+                Collections.<Node<E>>nCopies(OVERDUE + 1, null));
+        this.currentTick = Math.floorDiv(now, this.tickMillis);
+    }
+
+    /**
+     * Schedule an element, or move it if it is already scheduled.
+     *
+     * @param element  The element
+     * @param deadline The time in milliseconds from which it is due
+     */
+    synchronized void schedule(E element, long deadline) {
+        Node<E> node = nodes.get(element);
+        if (node == null) {
+            node = new Node<E>(element);
+            nodes.put(element, node);
+        } else {
+            unlink(node);
+        }
+        // Round up so that the element is never due before its deadline
+        node.deadlineTick = -Math.floorDiv(-deadline, tickMillis);
+        place(node, null);
+    }
+
+    /**
+     * Remove an element.
+     *
+     * @param element The element
+     *
+     * @return <code>true</code> if the element was scheduled
+     */
+    synchronized boolean remove(E element) {
+        Node<E> node = nodes.remove(element);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    /**
+     * Returns the number of scheduled elements.
+     *
+     * @return The number of elements
+     */
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Remove and return the elements that are due.
+     *
+     * @param now The current time in milliseconds
+     *
+     * @return The elements whose deadline is at or before now, in no
+     *         particular order
+     */
+    synchronized List<E> expire(long now) {
+        List<E> due = new ArrayList<E>();
+        drain(OVERDUE, due);
+        long nowTick = Math.floorDiv(now, tickMillis);
+        if (nowTick < currentTick) {
+            return due;
+        }
+        if (nowTick - currentTick >= SLOTS) {
+            // Too far behind to step through the ticks, place everything
+            // again from the new current tick
+            currentTick = nowTick + 1;
+            List<Node<E>> all = new ArrayList<Node<E>>(nodes.values());
+            for (Node<E> node : all) {
+                unlink(node);
+                place(node, due);
+            }
+            return due;
+        }
+        while (currentTick <= nowTick) {
+            if ((currentTick & SLOT_MASK) == 0) {
+                cascade(due);
+            }
+            drain((int) (currentTick & SLOT_MASK), due);
+            currentTick++;
+        }
+        return due;
+    }
+
+    /**
+     * Remove all elements of a slot as due.
+     *
+     * @param bucket The slot
+     * @param due    Receives the elements
+     */
+    private void drain(int bucket, List<E> due) {
+        Node<E> node = detach(bucket);
+        while (node != null) {
+            Node<E> next = node.next;
+            node.next = null;
+            node.prev = null;
+            nodes.remove(node.element);
+            due.add(node.element);
+            node = next;
+        }
+    }
+
+    /**
+     * The first level has gone round: empty the current slots of the levels
+     * above that have gone round too, from the top down, into the levels
+     * below.
+     *
+     * @param due Receives the elements that turn out to be due
+     */
+    private void cascade(List<E> due) {
+        int top = 1;
+        while (top < LEVELS - 1 &&
+                (currentTick & ((1L << (SLOT_BITS * (top + 1))) - 1)) == 0) {
+            top++;
+        }
+        if (top == LEVELS - 1 &&
+                (currentTick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+            replace(OVERFLOW, due);
+        }
+        for (int level = top; level >= 1; level--) {
+            replace(level * SLOTS +
+                    (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK), due);
+        }
+    }
+
+    /**
+     * Place the elements of a slot again relative to the current tick.
+     *
+     * @param bucket The slot
+     * @param due    Receives the elements that turn out to be due
+     */
+    private void replace(int bucket, List<E> due) {
+        Node<E> node = detach(bucket);
+        while (node != null) {
+            Node<E> next = node.next;
+            node.next = null;
+            node.prev = null;
+            place(node, due);
+            node = next;
+        }
+    }
+
+    /**
+     * Put an unlinked node in the slot for its deadline.
+     *
+     * @param node The node
+     * @param due  Receives the element if it is already due, or
+     *             <code>null</code> to keep due elements for the next expiry
+     */
+    private void place(Node<E> node, List<E> due) {
+        if (node.deadlineTick < currentTick) {
+            // Its tick has already been expired
+            if (due != null) {
+                nodes.remove(node.element);
+                due.add(node.element);
+            } else {
+                link(node, OVERDUE);
+            }
+            return;
+        }
+        // The lowest level whose slot comes round again before the deadline:
+        // the deadline is in the same turn of the level above as the
+        // current tick, so its slot in this level is still ahead
+        int bucket = OVERFLOW;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            if (node.deadlineTick >>> shift == currentTick >>> shift) {
+                bucket = level * SLOTS +
+                        (int) ((node.deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                break;
+            }
+        }
+        link(node, bucket);
+    }
+
+    /**
+     * Take all nodes out of a slot.
+     *
+     * @param bucket The slot
+     *
+     * @return The first node of the slot, the others following through
+     *         {@link Node#next}
+     */
+    private Node<E> detach(int bucket) {
+        Node<E> head = heads.set(bucket, null);
+        for (Node<E> node = head; node != null; node = node.next) {
+            node.bucket = -1;
+        }
+        return head;
+    }
+
+    private void link(Node<E> node, int bucket) {
+        Node<E> head = heads.get(bucket);
+        node.next = head;
+        node.prev = null;
+        if (head != null) {
+            head.prev = node;
+        }
+        heads.set(bucket, node);
+        node.bucket = bucket;
+    }
+
+    private void unlink(Node<E> node) {
+        if (node.bucket < 0) {
+            return;
+        }
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            heads.set(node.bucket, node.next);
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.bucket = -1;
+    }
+
+    /**
+     * An element in the doubly linked list of its slot.
+     */
+    private static class Node<E> {
+
+        private final E element;
+
+        /** 到期的tick */
+        private long deadlineTick;
+
+        private Node<E> prev;
+        private Node<E> next;
+
+        /** 所在的槽，不在任何槽中时为-1 */
+        private int bucket = -1;
+
+        Node(E element) {
+            this.element = element;
+        }
+    }
+}
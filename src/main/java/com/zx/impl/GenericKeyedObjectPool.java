@@ -1,22 +1,44 @@
 package com.zx.impl;
 
+import com.zx.AsyncKeyedPooledObjectFactory;
+import com.zx.BatchValidatingKeyedPooledObjectFactory;
+import com.zx.KeyHandle;
+import com.zx.KeyedObjectPool;
+import com.zx.Lease;
 import org.apache.commons.pool2.*;
-import org.apache.commons.pool2.impl.BaseGenericObjectPool;
 import org.apache.commons.pool2.impl.DefaultPooledObjectInfo;
 import org.apache.commons.pool2.impl.EvictionConfig;
 import org.apache.commons.pool2.impl.EvictionPolicy;
 import org.apache.commons.pool2.impl.*;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolMXBean;
 
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.time.Duration;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * 一个可配置的KeyedObjectPool实现类。
@@ -63,6 +85,48 @@ public class GenericKeyedObjectPool<K,T> extends BaseGenericObjectPool<T>
      */
     public GenericKeyedObjectPool(KeyedPooledObjectFactory<K,T> factory,
                                   GenericKeyedObjectPoolConfig config) {
+        this(factory, null, null, config);
+    }
+
+    /**
+     * Create a new <code>GenericKeyedObjectPool</code> that creates, activates
+     * and validates objects asynchronously.
+     * <p>
+     * {@link #borrowObjectAsync(Object, Duration)} never calls the factory on
+     * the borrowing thread: when a queued borrower needs a new object, a call
+     * to {@link AsyncKeyedPooledObjectFactory#makeObject} is started on
+     * <code>createExecutor</code>, at most
+     * {@link #getMaxCreatingPerKey() maxCreatingPerKey} at a time per key, and
+     * each finished object is handed to the first borrower still queued for
+     * its key. Activation and validation of an object handed to a queued
+     * borrower are chained in the same way.
+     * <p>
+     * The synchronous methods of the pool ({@link #borrowObject(Object)},
+     * {@link #addObject(Object)}, testing by the evictor, ...) still wait for
+     * the factory to complete on the calling thread.
+     *
+     * @param factory the factory to be used to create entries
+     * @param config    The configuration to use for this pool instance. The
+     *                  configuration is used by value. Subsequent changes to
+     *                  the configuration object will not be reflected in the
+     *                  pool.
+     * @param createExecutor The executor to start object creation on,
+     *                  <code>null</code> to use
+     *                  {@link ForkJoinPool#commonPool()}
+     */
+    public GenericKeyedObjectPool(AsyncKeyedPooledObjectFactory<K,T> factory,
+                                  GenericKeyedObjectPoolConfig config,
+                                  Executor createExecutor) {
+        this(factory == null ? null : new AsyncFactoryAdapter<K,T>(factory),
+                factory,
+                createExecutor == null ? ForkJoinPool.commonPool() : createExecutor,
+                config);
+    }
+
+    private GenericKeyedObjectPool(KeyedPooledObjectFactory<K,T> factory,
+                                   AsyncKeyedPooledObjectFactory<K,T> asyncFactory,
+                                   Executor createExecutor,
+                                   GenericKeyedObjectPoolConfig config) {
 
         super(config, ONAME_BASE, config.getJmxNamePrefix());
 
@@ -71,6 +135,8 @@ public class GenericKeyedObjectPool<K,T> extends BaseGenericObjectPool<T>
             throw new IllegalArgumentException("factory may not be null");
         }
         this.factory = factory;
+        this.asyncFactory = asyncFactory;
+        this.createExecutor = createExecutor;
         this.fairness = config.getFairness();
 
         setConfig(config);
@@ -194,6 +260,580 @@ public class GenericKeyedObjectPool<K,T> extends BaseGenericObjectPool<T>
         }
     }
 
+    /**
+     * Returns the name of the {@link IdleObjectStore} implementation used to
+     * hold the idle objects of each keyed sub-pool.
+     *
+     * @return The fully qualified class name of the {@link IdleObjectStore}
+     *
+     * @see #setIdleObjectStoreClassName
+     */
+    @Override
+    public String getIdleObjectStoreClassName() {
+        return idleObjectStoreConstructor.getDeclaringClass().getName();
+    }
+
+    /**
+     * Sets the name of the {@link IdleObjectStore} implementation used to hold
+     * the idle objects of each keyed sub-pool. The class must have a public
+     * constructor taking the <code>boolean</code> fairness of the pool. The
+     * pool will attempt to load the class using the thread context class
+     * loader. If that fails, the pool will attempt to load the class using
+     * the class loader that loaded this class.
+     * <p>
+     * The store is created when a key is first used, so changing this setting
+     * only affects keyed sub-pools created afterwards.
+     *
+     * @param idleObjectStoreClassName  the fully qualified class name of the
+     *                                  new idle object store
+     *
+     * @see #getIdleObjectStoreClassName
+     * @see LinkedBlockingIdleObjectStore
+     * @see ConcurrentIdleObjectStore
+     */
+    public void setIdleObjectStoreClassName(String idleObjectStoreClassName) {
+        try {
+            Class<?> clazz;
+            try {
+                clazz = Class.forName(idleObjectStoreClassName, true,
+                        Thread.currentThread().getContextClassLoader());
+            } catch (ClassNotFoundException e) {
+                clazz = Class.forName(idleObjectStoreClassName);
+            }
+            if (!IdleObjectStore.class.isAssignableFrom(clazz)) {
+                throw new IllegalArgumentException("Class " +
+                        idleObjectStoreClassName + " does not implement " +
+                        IdleObjectStore.class.getName());
+            }
+            this.idleObjectStoreConstructor = clazz.getConstructor(boolean.class);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException(
+                    "Unable to create IdleObjectStore instance of type " +
+                    idleObjectStoreClassName, e);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(
+                    "Unable to create IdleObjectStore instance of type " +
+                    idleObjectStoreClassName, e);
+        }
+    }
+
+    /**
+     * Returns whether objects returned to the pool are remembered by the
+     * returning thread so that its next borrow under the same key can reuse
+     * them without registering interest in the key or polling the shared idle
+     * objects.
+     *
+     * @return <code>true</code> if the per thread affinity cache is enabled
+     *
+     * @see #setThreadAffinity
+     */
+    @Override
+    public boolean getThreadAffinity() {
+        return threadAffinity;
+    }
+
+    /**
+     * Sets whether objects returned to the pool are remembered by the
+     * returning thread so that its next borrow under the same key can reuse
+     * them. This suits applications where a thread repeatedly borrows and
+     * returns objects under the same keys.
+     * <p>
+     * A cached object remains one of the idle objects of its key, so it may be
+     * borrowed by any other thread, tested or evicted by the evictor, or
+     * destroyed by {@link #clear(Object)} and {@link #clearOldest()} as usual;
+     * the owning thread then simply borrows the normal way. Taking it back
+     * from the cache is a single CAS on its state: it is not looked up or
+     * unlinked from the idle objects. Each thread caches at most one object
+     * per key for a small, fixed number of keys, and only objects wrapped in
+     * this package's {@link DefaultPooledObject}.
+     *
+     * @param threadAffinity <code>true</code> to enable the per thread
+     *                       affinity cache
+     *
+     * @see #getThreadAffinity
+     */
+    public void setThreadAffinity(boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    /**
+     * Returns the fraction of the idle objects that {@link #clearOldest()}
+     * destroys, oldest first, when the pool needs to make room for a new
+     * object under a key that has reached {@link #getMaxTotal() maxTotal}.
+     *
+     * @return the fraction of idle objects cleared by {@link #clearOldest()}
+     *
+     * @see #setClearOldestRatio
+     */
+    @Override
+    public double getClearOldestRatio() {
+        return clearOldestRatio;
+    }
+
+    /**
+     * Sets the fraction of the idle objects that {@link #clearOldest()}
+     * destroys. At least one idle object is always destroyed so a value of
+     * <code>0</code> clears exactly one object and a value of <code>1</code>
+     * or more clears every idle object.
+     *
+     * @param clearOldestRatio the fraction of idle objects to clear
+     *
+     * @throws IllegalArgumentException if <code>clearOldestRatio</code> is
+     *         negative or NaN
+     *
+     * @see #getClearOldestRatio
+     */
+    public void setClearOldestRatio(double clearOldestRatio) {
+        if (!(clearOldestRatio >= 0)) {
+            throw new IllegalArgumentException(
+                    "clearOldestRatio may not be negative or NaN");
+        }
+        this.clearOldestRatio = clearOldestRatio;
+    }
+
+    /**
+     * Returns the limit on the number of objects that may be in the process
+     * of being created at the same time for a key. A negative value indicates
+     * no limit other than {@link #getMaxTotalPerKey()}.
+     *
+     * @return the limit on the number of objects created at the same time
+     *         per key
+     *
+     * @see #setMaxCreatingPerKey
+     */
+    @Override
+    public int getMaxCreatingPerKey() {
+        return maxCreatingPerKey;
+    }
+
+    /**
+     * Sets the limit on the number of objects that may be in the process of
+     * being created at the same time for a key, so that a cold start or a
+     * {@link #clear()} does not send every borrower to the factory at once.
+     * <p>
+     * While the limit is reached a borrower that finds no idle object waits
+     * (if {@link #getBlockWhenExhausted()} is <code>true</code>) until either
+     * an object is returned or one of the creations in progress completes,
+     * whichever comes first, and then tries again. Queued asynchronous
+     * borrowers (see
+     * {@link #GenericKeyedObjectPool(AsyncKeyedPooledObjectFactory, GenericKeyedObjectPoolConfig, Executor)})
+     * are served by the objects already being created, by returned objects,
+     * or by creations started as earlier ones complete. Use a negative value
+     * for no limit other than {@link #getMaxTotalPerKey()}.
+     *
+     * @param maxCreatingPerKey the limit on the number of objects created at
+     *                          the same time per key
+     *
+     * @see #getMaxCreatingPerKey
+     */
+    public void setMaxCreatingPerKey(int maxCreatingPerKey) {
+        this.maxCreatingPerKey = maxCreatingPerKey;
+    }
+
+    /**
+     * Returns the limit on the number of objects that may be in the process
+     * of being created at the same time across all keys. A negative value
+     * indicates no limit.
+     *
+     * @return the limit on the number of objects created at the same time
+     *
+     * @see #setMaxCreating
+     * @see #getMaxCreatingPerKey()
+     */
+    @Override
+    public int getMaxCreating() {
+        return maxCreating;
+    }
+
+    /**
+     * Sets the limit on the number of objects that may be in the process of
+     * being created at the same time across all keys. See
+     * {@link #setMaxCreatingPerKey(int)} for how borrowers wait while the
+     * limit is reached. Use a negative value for no limit.
+     *
+     * @param maxCreating the limit on the number of objects created at the
+     *                    same time
+     *
+     * @see #getMaxCreating
+     */
+    public void setMaxCreating(int maxCreating) {
+        this.maxCreating = maxCreating;
+    }
+
+    /**
+     * Returns the clock the pool reads the time from, for example to measure
+     * how long borrowers wait.
+     *
+     * @return the clock used by the pool
+     *
+     * @see #setClock
+     */
+    public PoolClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Sets the clock the pool reads the time from. The objects in the pool
+     * keep the clock they were created with; a factory creating
+     * {@link DefaultPooledObject}s can pass the same clock to
+     * {@link DefaultPooledObject#DefaultPooledObject(Object, PoolClock)}.
+     *
+     * @param clock the clock to use, or <code>null</code> for
+     *              {@link PoolClock#getDefault()}
+     *
+     * @see #getClock
+     */
+    public void setClock(PoolClock clock) {
+        this.clock = clock == null ? PoolClock.getDefault() : clock;
+    }
+
+    /**
+     * Returns the number of partitions the keys are split into for eviction.
+     * With more than one, each run of the evictor examines the partitions in
+     * parallel, see {@link #setEvictionParallelism(int)}.
+     *
+     * @return the number of eviction partitions
+     *
+     * @see #setEvictionParallelism
+     */
+    @Override
+    public int getEvictionParallelism() {
+        return evictionParallelism;
+    }
+
+    /**
+     * Sets the number of partitions the keys are split into for eviction.
+     * <p>
+     * With the default of 1, {@link #evict()} examines the keys one after
+     * the other on the evictor thread. With more, every key belongs to the
+     * partition chosen by its hash code, each partition keeps its own place
+     * in its keys from run to run, and the partitions are examined at the
+     * same time: one on the evictor thread and the others on the
+     * {@link #setEvictionExecutor(Executor) eviction executor}. The
+     * {@link #getNumTestsPerEvictionRun() numTestsPerEvictionRun} of a run
+     * are shared out evenly between the partitions, the ones left over going
+     * to different partitions in turn. This shortens a sweep over all keys
+     * when testing idle objects is slow, for example with
+     * {@link #getTestWhileIdle() testWhileIdle} against remote resources.
+     * <p>
+     * The eviction policy and the factory are then called from several
+     * threads at once, for objects of different keys. Changing the value
+     * starts the partitions from the first key again.
+     *
+     * @param evictionParallelism the number of eviction partitions, values
+     *                            below 1 are treated as 1
+     *
+     * @see #getEvictionParallelism
+     * @see #getMeanEvictionSweepTimeMillis()
+     */
+    public void setEvictionParallelism(int evictionParallelism) {
+        this.evictionParallelism = Math.max(1, evictionParallelism);
+    }
+
+    /**
+     * Returns the executor the partitions of a parallel eviction run are
+     * examined on.
+     *
+     * @return the eviction executor
+     *
+     * @see #setEvictionExecutor
+     * @see #setEvictionParallelism(int)
+     */
+    public Executor getEvictionExecutor() {
+        return evictionExecutor;
+    }
+
+    /**
+     * Sets the executor the partitions of a parallel eviction run are
+     * examined on, see {@link #setEvictionParallelism(int)}. The evictor
+     * thread waits for them, so the executor should be able to run
+     * {@link #getEvictionParallelism() evictionParallelism} - 1 tasks at
+     * once; a partition that the executor rejects is examined on the evictor
+     * thread. The default common pool runs no more tasks at once than there
+     * are processors, so when testing idle objects blocks, for example on
+     * the network, a dedicated executor gives more parallelism.
+     *
+     * @param evictionExecutor the executor to use, or <code>null</code> for
+     *                         {@link ForkJoinPool#commonPool()}
+     *
+     * @see #getEvictionExecutor
+     */
+    public void setEvictionExecutor(Executor evictionExecutor) {
+        this.evictionExecutor = evictionExecutor == null ?
+                ForkJoinPool.commonPool() : evictionExecutor;
+    }
+
+    /**
+     * Returns whether the evictor finds the objects to examine through an
+     * index of their idle expiry times rather than by sampling.
+     *
+     * @return <code>true</code> if the expiry index is used
+     *
+     * @see #setIdleExpiryIndex
+     */
+    @Override
+    public boolean getIdleExpiryIndex() {
+        return idleExpiryIndex;
+    }
+
+    /**
+     * Sets whether the evictor finds the objects to examine through an index
+     * of their idle expiry times rather than by sampling.
+     * <p>
+     * By default each run of the evictor examines
+     * {@link #getNumTestsPerEvictionRun() numTestsPerEvictionRun} idle
+     * objects in turn, whether they have been idle long or not, so an object
+     * may stay idle many runs past its time while objects that were just
+     * returned are tested. With the index, every idle object is due once it
+     * has been idle for the shorter of
+     * {@link #getMinEvictableIdleTimeMillis() minEvictableIdleTimeMillis} and
+     * {@link #getSoftMinEvictableIdleTimeMillis() softMinEvictableIdleTimeMillis}
+     * (ignoring values that are not positive), and each run examines all the
+     * objects that are due and no others. The {@link EvictionPolicy} still
+     * decides whether a due object is evicted; one that is kept, and tested
+     * if {@link #getTestWhileIdle() testWhileIdle} is set, is due again after
+     * the same time. numTestsPerEvictionRun and
+     * {@link #getEvictionParallelism() evictionParallelism} then do not apply.
+     * <p>
+     * The index of each key is a hierarchical timing wheel with ticks of
+     * {@link #getTimeBetweenEvictionRunsMillis() timeBetweenEvictionRunsMillis}
+     * (one second if the evictor is not running). Returning an object costs
+     * one O(1) update of the index of its key, borrowing nothing, and each
+     * idle object takes one index entry. The index is rebuilt from the idle
+     * objects by the next run of the evictor after it is enabled or the idle
+     * times change.
+     *
+     * @param idleExpiryIndex <code>true</code> to use the expiry index
+     *
+     * @see #getIdleExpiryIndex
+     */
+    public void setIdleExpiryIndex(boolean idleExpiryIndex) {
+        if (idleExpiryIndex && !this.idleExpiryIndex) {
+            synchronized (evictionLock) {
+                // Objects returned while it was off are not in the index
+                expiryIndexWindow = EXPIRY_NOT_INDEXED;
+            }
+        }
+        this.idleExpiryIndex = idleExpiryIndex;
+    }
+
+    /**
+     * Returns the executor objects are destroyed on.
+     *
+     * @return the destruction executor, or <code>null</code> if objects are
+     *         destroyed on the calling thread
+     *
+     * @see #setDestructionExecutor
+     */
+    public Executor getDestructionExecutor() {
+        return destructionExecutor;
+    }
+
+    /**
+     * Sets the executor objects are destroyed on.
+     * <p>
+     * By default an object is destroyed on the thread that finds it must go:
+     * a borrower whose object fails activation or validation, a thread
+     * returning an object beyond {@link #getMaxIdlePerKey() maxIdlePerKey},
+     * a thread making room with {@link #clearOldest()}, or the evictor, so
+     * a slow {@link KeyedPooledObjectFactory#destroyObject(Object, PooledObject)}
+     * adds to the time of the operation. With an executor, the object leaves
+     * the pool and its capacity is released straight away, and the factory
+     * destroys it later on the executor. At most
+     * {@link #getMaxPendingDestructions() maxPendingDestructions} objects
+     * wait to be destroyed; beyond that, or if the executor rejects the
+     * task, objects are destroyed on the calling thread as without an
+     * executor, which keeps the number of objects that exist but are not
+     * counted by the pool bounded. Exceptions thrown by the factory on the
+     * executor are passed to the
+     * {@link #setSwallowedExceptionListener swallowed exception listener}
+     * since there is no caller to throw them to.
+     * <p>
+     * Closing the pool does not wait for pending destructions.
+     *
+     * @param destructionExecutor the executor to use, or <code>null</code> to
+     *                            destroy objects on the calling thread
+     *
+     * @see #getDestructionExecutor
+     * @see #getNumPendingDestructions()
+     */
+    public void setDestructionExecutor(Executor destructionExecutor) {
+        this.destructionExecutor = destructionExecutor;
+    }
+
+    /**
+     * Returns the maximum number of objects waiting to be destroyed on the
+     * destruction executor.
+     *
+     * @return the limit, negative for no limit
+     *
+     * @see #setMaxPendingDestructions
+     */
+    @Override
+    public int getMaxPendingDestructions() {
+        return maxPendingDestructions;
+    }
+
+    /**
+     * Sets the maximum number of objects waiting to be destroyed on the
+     * {@link #setDestructionExecutor(Executor) destruction executor}. Objects
+     * found to be destroyed while this many are waiting are destroyed on the
+     * calling thread. Use a negative value for no limit.
+     *
+     * @param maxPendingDestructions the limit, negative for no limit
+     *
+     * @see #getMaxPendingDestructions
+     */
+    public void setMaxPendingDestructions(int maxPendingDestructions) {
+        this.maxPendingDestructions = maxPendingDestructions;
+    }
+
+    /**
+     * Returns the executor returned objects are passivated and validated on.
+     *
+     * @return the return executor, or <code>null</code> if returns are
+     *         completed on the calling thread
+     *
+     * @see #setReturnExecutor
+     */
+    public Executor getReturnExecutor() {
+        return returnExecutor;
+    }
+
+    /**
+     * Sets the executor returned objects are passivated and validated on.
+     * <p>
+     * By default {@link #returnObject(Object, Object)} validates the object
+     * if {@link #getTestOnReturn() testOnReturn} is set and passivates it on
+     * the calling thread before it becomes idle, so a slow
+     * {@link KeyedPooledObjectFactory#passivateObject(Object, PooledObject)},
+     * such as a rollback over the network, adds to the time of every
+     * return. With an executor, returnObject only checks that the object
+     * may be returned and marks it as returning; the executor then
+     * validates and passivates it and makes it idle, where it goes straight
+     * to a waiting borrower if there is one, or destroys it as returnObject
+     * would have.
+     * <p>
+     * An object being returned keeps its place in the pool until then: it
+     * counts towards {@link #getMaxTotal() maxTotal} and
+     * {@link #getMaxTotalPerKey() maxTotalPerKey} and is included in
+     * {@link #getNumActive() numActive}, so borrowers wait for it rather
+     * than creating another object. Returned objects are not put in the
+     * {@link #setThreadAffinity(boolean) thread affinity} cache of the
+     * executor thread. A return the executor rejects is completed on the
+     * calling thread, and exceptions on the executor are passed to the
+     * {@link #setSwallowedExceptionListener swallowed exception listener}.
+     *
+     * @param returnExecutor the executor to use, or <code>null</code> to
+     *                       complete returns on the calling thread
+     *
+     * @see #getReturnExecutor
+     * @see #getNumPendingReturns()
+     */
+    public void setReturnExecutor(Executor returnExecutor) {
+        this.returnExecutor = returnExecutor;
+    }
+
+    /**
+     * Returns how long a successful validation of an object is trusted for
+     * when it is borrowed.
+     *
+     * @return the time in milliseconds, not positive if every borrow
+     *         validates
+     *
+     * @see #setValidationCacheMillis
+     */
+    @Override
+    public long getValidationCacheMillis() {
+        return validationCacheMillis;
+    }
+
+    /**
+     * Sets how long a successful validation of an object is trusted for when
+     * it is borrowed. With {@link #getTestOnBorrow() testOnBorrow}, an object
+     * that passed validation less than this long ago, whether on a previous
+     * borrow, on return or by the evictor, is borrowed without validating it
+     * again. Validation on creation, on return and by the evictor is not
+     * affected, nor is {@link #getTestOnCreate() testOnCreate}.
+     * <p>
+     * The time of the last successful validation is kept by the object if it
+     * is a {@link DefaultPooledObject} of this package, and by the pool for
+     * any other {@link PooledObject} implementation. Times are only recorded while this is positive: after
+     * enabling it, every object is validated once more before the cache
+     * applies to it.
+     *
+     * @param validationCacheMillis the time in milliseconds, not positive to
+     *                              validate on every borrow
+     *
+     * @see #getValidationCacheMillis
+     * @see #setBorrowValidationIdleMillis(long)
+     */
+    public void setValidationCacheMillis(long validationCacheMillis) {
+        this.validationCacheMillis = validationCacheMillis;
+    }
+
+    /**
+     * Returns how long an object must have been idle to be validated when it
+     * is borrowed.
+     *
+     * @return the time in milliseconds, not positive if every borrow
+     *         validates
+     *
+     * @see #setBorrowValidationIdleMillis
+     */
+    @Override
+    public long getBorrowValidationIdleMillis() {
+        return borrowValidationIdleMillis;
+    }
+
+    /**
+     * Sets how long an object must have been idle to be validated when it is
+     * borrowed. With {@link #getTestOnBorrow() testOnBorrow}, an object that
+     * was returned less than this long ago, and so was in use until shortly
+     * before, is borrowed without validating it. An object idle for longer,
+     * which is more likely to have gone stale, is validated as usual unless
+     * {@link #getValidationCacheMillis() validationCacheMillis} lets it
+     * through.
+     *
+     * @param borrowValidationIdleMillis the time in milliseconds, not
+     *                                   positive to validate on every borrow
+     *
+     * @see #getBorrowValidationIdleMillis
+     */
+    public void setBorrowValidationIdleMillis(long borrowValidationIdleMillis) {
+        this.borrowValidationIdleMillis = borrowValidationIdleMillis;
+    }
+
+    /**
+     * Returns whether the pool records the statistics of each key, see
+     * {@link #getKeyStats(Object)}.
+     *
+     * @return <code>true</code> if the per key statistics are recorded
+     *
+     * @see #setKeyStatsEnabled
+     */
+    @Override
+    public boolean getKeyStatsEnabled() {
+        return keyStatsEnabled;
+    }
+
+    /**
+     * Sets whether the pool records the statistics of each key. While it is
+     * disabled, borrowing, returning, creating and destroying objects leave
+     * the counters and histograms of {@link #getKeyStats(Object)} as they
+     * are, which saves their cost on every borrow and return; the numbers of
+     * active, idle and waiting objects are still current. The pool wide
+     * statistics are always recorded.
+     *
+     * @param keyStatsEnabled <code>true</code> to record the per key
+     *                        statistics
+     *
+     * @see #getKeyStatsEnabled
+     */
+    public void setKeyStatsEnabled(boolean keyStatsEnabled) {
+        this.keyStatsEnabled = keyStatsEnabled;
+    }
+
     /**
      * Sets the configuration.
      *
@@ -220,6 +860,21 @@ public class GenericKeyedObjectPool<K,T> extends BaseGenericObjectPool<T>
         setTimeBetweenEvictionRunsMillis(
                 conf.getTimeBetweenEvictionRunsMillis());
         setEvictionPolicyClassName(conf.getEvictionPolicyClassName());
+        setIdleObjectStoreClassName(conf.getIdleObjectStoreClassName());
+        setThreadAffinity(conf.getThreadAffinity());
+        setClearOldestRatio(conf.getClearOldestRatio());
+        setMaxCreatingPerKey(conf.getMaxCreatingPerKey());
+        setMaxCreating(conf.getMaxCreating());
+        setClock(conf.getClock());
+        setEvictionExecutor(conf.getEvictionExecutor());
+        setEvictionParallelism(conf.getEvictionParallelism());
+        setIdleExpiryIndex(conf.getIdleExpiryIndex());
+        setDestructionExecutor(conf.getDestructionExecutor());
+        setMaxPendingDestructions(conf.getMaxPendingDestructions());
+        setReturnExecutor(conf.getReturnExecutor());
+        setValidationCacheMillis(conf.getValidationCacheMillis());
+        setBorrowValidationIdleMillis(conf.getBorrowValidationIdleMillis());
+        setKeyStatsEnabled(conf.getKeyStatsEnabled());
     }
 
     /**
@@ -279,7 +934,8 @@ public class GenericKeyedObjectPool<K,T> extends BaseGenericObjectPool<T>
      * <p>
      * When <code>maxTotal</code> is set to a positive value and this method is
      * invoked when at the limit with no idle instances available under the requested
-     * key, an attempt is made to create room by clearing the oldest 15% of the
+     * key, an attempt is made to create room by clearing the oldest
+     * {@link #getClearOldestRatio() clearOldestRatio} (15% by default) of the
      * elements from the keyed sub-pools.
      * <p>
      * When the pool is exhausted, multiple calling threads may be
@@ -300,35 +956,197 @@ public class GenericKeyedObjectPool<K,T> extends BaseGenericObjectPool<T>
      *                   error
      */
     public T borrowObject(K key, long borrowMaxWaitMillis) throws Exception {
-        assertOpen();
-
-        PooledObject<T> p = null;
-
-        // Get local copy of current config so it is consistent for entire
-        // method execution
-        boolean blockWhenExhausted = getBlockWhenExhausted();
+        return borrow(key, borrowMaxWaitMillis).getObject();
+    }
 
-        boolean create;
-        long waitTime = System.currentTimeMillis();
-        ObjectDeque<T> objectDeque = register(key);
+    /**
+     * Borrows an object from the sub-pool associated with the given key, as
+     * {@link #borrowObject(Object)} does, and returns a {@link Lease} for it.
+     * Closing the lease returns the object and
+     * {@link Lease#invalidate() invalidating} it invalidates the object, in
+     * both cases without looking up the key and the object again.
+     * <p>
+     * Leasing does not allocate: a lease stands for its object, so leasing an
+     * object that has been leased before hands out the same lease again. The
+     * lease is stamped with the object's borrow count, so once the object
+     * has been borrowed again by {@link #borrowObject(Object)}, or returned
+     * and borrowed by any other path, a lease kept from an earlier borrow
+     * neither returns nor invalidates it.
+     *
+     * @param key pool key
+     *
+     * @return a lease for an object instance from the keyed pool
+     *
+     * @throws NoSuchElementException if a keyed object instance cannot be
+     *                                returned because the pool is exhausted.
+     *
+     * @throws Exception if a keyed object instance cannot be returned due to an
+     *                   error
+     *
+     * @see #lease(Object, long)
+     */
+    public Lease<T> lease(K key) throws Exception {
+        return lease(key, getMaxWaitMillis());
+    }
 
-        try {
-            while (p == null) {
-                create = false;
-                if (blockWhenExhausted) {
-                    p = objectDeque.getIdleObjects().pollFirst();
+    /**
+     * Borrows an object from the sub-pool associated with the given key using
+     * the specified waiting time, as {@link #borrowObject(Object, long)} does,
+     * and returns a {@link Lease} for it.
+     *
+     * @param key pool key
+     * @param borrowMaxWaitMillis The time to wait in milliseconds for an object
+     *                            to become available
+     *
+     * @return a lease for an object instance from the keyed pool
+     *
+     * @throws NoSuchElementException if a keyed object instance cannot be
+     *                                returned because the pool is exhausted.
+     *
+     * @throws Exception if a keyed object instance cannot be returned due to an
+     *                   error
+     *
+     * @see #lease(Object)
+     */
+    public Lease<T> lease(K key, long borrowMaxWaitMillis) throws Exception {
+        PooledObject<T> p = borrow(key, borrowMaxWaitMillis);
+        // The sub-pool is kept while it has objects, so this stays valid
+        // until the object is destroyed
+        return newLease(key, poolMap.get(key), p);
+    }
+
+    /**
+     * Returns a {@link KeyHandle} for the given key. Objects borrowed and
+     * returned through the handle go straight to the sub-pool of the key:
+     * the key is not hashed, looked up or registered on each call. Use it
+     * for keys that are known in advance and borrowed from frequently.
+     * <p>
+     * The sub-pool of the key is pinned: it is not removed from the pool,
+     * even when it has no objects, until every handle for the key has been
+     * {@link KeyHandle#close() closed}.
+     *
+     * @param key pool key
+     *
+     * @return a handle for the key
+     *
+     * @throws IllegalStateException if the pool is closed
+     */
+    public KeyHandle<K,T> handle(K key) {
+        assertOpen();
+        return new PooledKeyHandle(key, register(key));
+    }
+
+    /**
+     * Start a lease for a borrowed object. A {@link DefaultPooledObject}
+     * keeps its lease, which is stamped with the current borrow and handed out
+     * again; any other {@link PooledObject} gets a new lease.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param p The borrowed object
+     *
+     * @return The lease
+     */
+    @SuppressWarnings("unchecked") // Only this pool sets the leases of its objects
+    private Lease<T> newLease(K key, ObjectDeque<T> objectDeque, PooledObject<T> p) {
+        if (p instanceof DefaultPooledObject) {
+            DefaultPooledObject<T> dpo = (DefaultPooledObject<T>) p;
+            PooledLease lease = (PooledLease) dpo.getLease();
+            if (lease == null) {
+                lease = new PooledLease(key, objectDeque, p);
+                dpo.setLease(lease);
+            } else {
+                lease.renew();
+            }
+            return lease;
+        }
+        return new PooledLease(key, objectDeque, p);
+    }
+
+    /**
+     * Borrows an object, see {@link #borrowObject(Object, long)}.
+     *
+     * @param key pool key
+     * @param borrowMaxWaitMillis The time to wait in milliseconds for an object
+     *                            to become available
+     *
+     * @return the borrowed object
+     *
+     * @throws Exception as for {@link #borrowObject(Object, long)}
+     */
+    private PooledObject<T> borrow(K key, long borrowMaxWaitMillis) throws Exception {
+        return borrow(key, null, borrowMaxWaitMillis);
+    }
+
+    /**
+     * Borrows an object, see {@link #borrowObject(Object, long)}.
+     *
+     * @param key pool key
+     * @param pinned The objects associated with the key if they are held by a
+     *               {@link KeyHandle}, in which case the key is neither looked
+     *               up nor registered, otherwise <code>null</code>
+     * @param borrowMaxWaitMillis The time to wait in milliseconds for an object
+     *                            to become available
+     *
+     * @return the borrowed object
+     *
+     * @throws Exception as for {@link #borrowObject(Object, long)}
+     */
+    private PooledObject<T> borrow(K key, ObjectDeque<T> pinned,
+            long borrowMaxWaitMillis) throws Exception {
+        assertOpen();
+
+        PooledObject<T> p = null;
+
+        // Get local copy of current config so it is consistent for entire
+        // method execution
+        boolean blockWhenExhausted = getBlockWhenExhausted();
+
+        boolean create;
+        long waitTime = clock.currentTimeMillis();
+
+        if (getThreadAffinity()) {
+            p = borrowFromAffinityCache(key, waitTime);
+            if (p != null) {
+                return p;
+            }
+        }
+
+        ObjectDeque<T> objectDeque = pinned != null ? pinned : register(key);
+
+        try {
+            while (p == null) {
+                create = false;
+                if (blockWhenExhausted) {
+                    p = objectDeque.getIdleObjects().pollFirst();
                     if (p == null) {
-                        p = create(key);
+                        p = create(key, objectDeque);
                         if (p != null) {
                             create = true;
                         }
                     }
+                    if (p == null && isCreateThrottled()) {
+                        // Wait for a returned object or a free creation slot,
+                        // whichever comes first, and try again
+                        if (!awaitIdleOrCreatingSlot(key, objectDeque,
+                                waitTime, borrowMaxWaitMillis)) {
+                            throw new NoSuchElementException(
+                                    "Timeout waiting for idle object");
+                        }
+                        assertOpen();
+                        continue;
+                    }
                     if (p == null) {
-                        if (borrowMaxWaitMillis < 0) {
-                            p = objectDeque.getIdleObjects().takeFirst();
-                        } else {
-                            p = objectDeque.getIdleObjects().pollFirst(
-                                    borrowMaxWaitMillis, TimeUnit.MILLISECONDS);
+                        updateBorrowWaiters(key, objectDeque, 1);
+                        try {
+                            if (borrowMaxWaitMillis < 0) {
+                                p = objectDeque.getIdleObjects().takeFirst();
+                            } else {
+                                p = objectDeque.getIdleObjects().pollFirst(
+                                        borrowMaxWaitMillis, TimeUnit.MILLISECONDS);
+                            }
+                        } finally {
+                            updateBorrowWaiters(key, objectDeque, -1);
                         }
                     }
                     if (p == null) {
@@ -341,7 +1159,7 @@ public class GenericKeyedObjectPool<K,T> extends BaseGenericObjectPool<T>
                 } else {
                     p = objectDeque.getIdleObjects().pollFirst();
                     if (p == null) {
-                        p = create(key);
+                        p = create(key, objectDeque);
                         if (p != null) {
                             create = true;
                         }
@@ -354,1113 +1172,4679 @@ public class GenericKeyedObjectPool<K,T> extends BaseGenericObjectPool<T>
                     }
                 }
 
-                if (p != null) {
-                    try {
-                        factory.activateObject(key, p);
-                    } catch (Exception e) {
-                        try {
-                            destroy(key, p, true);
-                        } catch (Exception e1) {
-                            // Ignore - activation failure is more important
-                        }
-                        p = null;
-                        if (create) {
-                            NoSuchElementException nsee = new NoSuchElementException(
-                                    "Unable to activate object");
-                            nsee.initCause(e);
-                            throw nsee;
-                        }
-                    }
-                    if (p != null && (getTestOnBorrow() || create && getTestOnCreate())) {
-                        boolean validate = false;
-                        Throwable validationThrowable = null;
-                        try {
-                            validate = factory.validateObject(key, p);
-                        } catch (Throwable t) {
-                            PoolUtils.checkRethrow(t);
-                            validationThrowable = t;
-                        }
-                        if (!validate) {
-                            try {
-                                destroy(key, p, true);
-                                destroyedByBorrowValidationCount.incrementAndGet();
-                            } catch (Exception e) {
-                                // Ignore - validation failure is more important
-                            }
-                            p = null;
-                            if (create) {
-                                NoSuchElementException nsee = new NoSuchElementException(
-                                        "Unable to validate object");
-                                nsee.initCause(validationThrowable);
-                                throw nsee;
-                            }
-                        }
-                    }
+                if (p != null && !activateAndValidate(key, p, create)) {
+                    p = null;
                 }
             }
         } finally {
-            deregister(key);
+            if (pinned == null) {
+                deregister(key);
+            }
         }
 
-        updateStatsBorrow(p, System.currentTimeMillis() - waitTime);
+        updateStatsBorrow(objectDeque, p, clock.currentTimeMillis() - waitTime);
 
-        return p.getObject();
+        return p;
     }
 
 
     /**
-     * Returns an object to a keyed sub-pool.
+     * Borrows a number of objects from the sub-pool associated with the given
+     * key in one call, all or none of them, see
+     * {@link #borrowObjects(Object, int, long, boolean)}.
+     *
+     * @param key pool key
+     * @param n The number of objects to borrow
+     * @param borrowMaxWaitMillis The time to wait in milliseconds for all the
+     *                            objects to become available
+     *
+     * @return the <code>n</code> object instances
+     *
+     * @throws NoSuchElementException if fewer than <code>n</code> objects can
+     *                                be borrowed because the pool is exhausted
+     *
+     * @throws Exception if the objects cannot be borrowed due to an error
+     */
+    public List<T> borrowObjects(K key, int n, long borrowMaxWaitMillis)
+            throws Exception {
+        return borrowObjects(key, n, borrowMaxWaitMillis, true);
+    }
+
+    /**
+     * Borrows a number of objects from the sub-pool associated with the given
+     * key in one call.
      * <p>
-     * If {@link #getMaxIdlePerKey() maxIdle} is set to a positive value and the
-     * number of idle instances under the given key has reached this value, the
-     * returning instance is destroyed.
+     * The idle objects of the key are taken at once, in one operation on its
+     * idle object store, which for the default store takes its lock once.
+     * Objects still missing are then created if there is capacity for them,
+     * concurrently: one on the calling thread and the others on the executor
+     * the pool was created with for its asynchronous factory, or on
+     * {@link ForkJoinPool#commonPool()}, as blocking tasks so that a fork join
+     * executor adds threads for them. Every object is activated and
+     * validated as by {@link #borrowObject(Object, long)}. If that is not yet
+     * enough and {@link #getBlockWhenExhausted()} is true, this method waits
+     * for objects to be returned or created until all <code>n</code> have
+     * been borrowed or <code>borrowMaxWaitMillis</code> since the call have
+     * elapsed, a negative value waiting indefinitely.
      * <p>
-     * If {@link #getTestOnReturn() testOnReturn} == true, the returning
-     * instance is validated before being returned to the idle instance sub-pool
-     * under the given key. In this case, if validation fails, the instance is
-     * destroyed.
+     * If the objects cannot all be borrowed, with <code>allOrNothing</code>
+     * the objects already borrowed are returned to the pool and the exception
+     * is thrown; otherwise the objects already borrowed are returned to the
+     * caller, and the exception is only thrown if there are none.
      * <p>
-     * Exceptions encountered destroying objects for any reason are swallowed
-     * but notified via a {@link SwallowedExceptionListener}.
+     * The statistics of the pool are updated once for all the objects, which
+     * are counted as borrowed after the same wait.
      *
      * @param key pool key
-     * @param obj instance to return to the keyed pool
+     * @param n The number of objects to borrow
+     * @param borrowMaxWaitMillis The time to wait in milliseconds for all the
+     *                            objects to become available
+     * @param allOrNothing <code>true</code> to borrow either all the objects
+     *                     or none, <code>false</code> to borrow as many as
+     *                     possible
      *
-     * @throws IllegalStateException if an object is returned to the pool that
-     *                               was not borrowed from it or if an object is
-     *                               returned to the pool multiple times
+     * @return the borrowed object instances, <code>n</code> of them with
+     *         <code>allOrNothing</code>, otherwise at least one unless
+     *         <code>n</code> is 0
+     *
+     * @throws NoSuchElementException if the objects cannot be borrowed
+     *                                because the pool is exhausted
+     *
+     * @throws Exception if the objects cannot be borrowed due to an error
+     *
+     * @throws IllegalArgumentException if <code>n</code> is negative
      */
-    @Override
-    public void returnObject(K key, T obj) {
+    public List<T> borrowObjects(K key, int n, long borrowMaxWaitMillis,
+            boolean allOrNothing) throws Exception {
+        if (n < 0) {
+            throw new IllegalArgumentException("n may not be negative");
+        }
+        assertOpen();
+        if (n == 0) {
+            return new ArrayList<T>(0);
+        }
 
-        ObjectDeque<T> objectDeque = poolMap.get(key);
+        boolean blockWhenExhausted = getBlockWhenExhausted();
+        long waitTime = clock.currentTimeMillis();
+        List<PooledObject<T>> borrowed = new ArrayList<PooledObject<T>>(n);
+        ObjectDeque<T> objectDeque = register(key);
+        boolean keep = false;
+
+        try {
+            Exception failure = null;
+            while (borrowed.size() < n) {
+                int before = borrowed.size();
+                allocateIdle(key, objectDeque, n - before, borrowed);
+                if (borrowed.size() < n) {
+                    failure = createObjects(key, objectDeque,
+                            n - borrowed.size(), borrowed);
+                    if (failure != null) {
+                        break;
+                    }
+                }
+                if (borrowed.size() == before && (!blockWhenExhausted ||
+                        !awaitObject(key, objectDeque, waitTime,
+                                borrowMaxWaitMillis, borrowed))) {
+                    break;
+                }
+            }
+            if (borrowed.size() < n) {
+                if (allOrNothing || borrowed.isEmpty()) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    throw new NoSuchElementException(blockWhenExhausted ?
+                            "Timeout waiting for idle objects" : "Pool exhausted");
+                }
+                if (failure != null) {
+                    swallowException(failure);
+                }
+            }
+            keep = true;
+        } finally {
+            if (!keep) {
+                returnObjects(key, objectDeque, borrowed, false);
+            }
+            deregister(key);
+        }
 
-        PooledObject<T> p = objectDeque.getAllObjects().get(new IdentityWrapper<T>(obj));
+        updateStatsBorrow(objectDeque, borrowed,
+                clock.currentTimeMillis() - waitTime);
 
-        if (p == null) {
-            throw new IllegalStateException(
-                    "Returned object not currently part of this pool");
+        List<T> objects = new ArrayList<T>(borrowed.size());
+        for (PooledObject<T> p : borrowed) {
+            objects.add(p.getObject());
         }
+        return objects;
+    }
 
-        synchronized(p) {
-            final PooledObjectState state = p.getState();
-            if (state != PooledObjectState.ALLOCATED) {
-                throw new IllegalStateException(
-                        "Object has already been returned to this pool or is invalid");
-            } else {
-                p.markReturning(); // Keep from being marked abandoned (once GKOP does this)
+    /**
+     * Takes up to the given number of idle objects of a key at once, and
+     * allocates, activates and validates them for a bulk borrow.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param max The maximum number of objects to take
+     * @param borrowed Receives the objects that can be handed to the borrower
+     */
+    private void allocateIdle(K key, ObjectDeque<T> objectDeque, int max,
+            List<PooledObject<T>> borrowed) {
+        List<PooledObject<T>> taken = new ArrayList<PooledObject<T>>(
+                Math.min(max, objectDeque.getIdleObjects().size()));
+        objectDeque.getIdleObjects().drainFirst(taken, max);
+        for (PooledObject<T> p : taken) {
+            if (p.allocate() && activateAndValidate(key, p, false)) {
+                borrowed.add(p);
             }
         }
+    }
 
-        long activeTime = p.getActiveTimeMillis();
-
-        if (getTestOnReturn()) {
-            if (!factory.validateObject(key, p)) {
-                try {
-                    destroy(key, p, true);
-                } catch (Exception e) {
-                    swallowException(e);
-                }
-                if (objectDeque.idleObjects.hasTakeWaiters()) {
+    /**
+     * Creates, allocates, activates and validates up to the given number of
+     * objects for a bulk borrow, concurrently, as far as there is capacity.
+     * <p>
+     * Only as many attempts are made as the limits leave room for, see
+     * {@link #creatableCount}, so that a borrower of a full key does not
+     * submit tasks that can only fail. The calling thread always makes one,
+     * which may make room under {@link #getMaxTotal() maxTotal} by clearing
+     * the oldest idle objects of other keys.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param count The number of objects wanted
+     * @param borrowed Receives the objects that can be handed to the borrower
+     *
+     * @return the first exception thrown creating an object, or
+     *         <code>null</code>. The objects created by the other attempts
+     *         are still added to <code>borrowed</code>.
+     */
+    private Exception createObjects(final K key, final ObjectDeque<T> objectDeque,
+            int count, final List<PooledObject<T>> borrowed) {
+        count = Math.max(creatableCount(objectDeque, count), 1);
+        final Exception[] failures = new Exception[count];
+        final CountDownLatch done = new CountDownLatch(count - 1);
+        // Objects are created with the class loader of the borrower
+        final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        Executor executor = createExecutor != null ?
+                createExecutor : ForkJoinPool.commonPool();
+
+        for (int i = 1; i < count; i++) {
+            final int attempt = i;
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    Thread thread = Thread.currentThread();
+                    ClassLoader savedClassLoader = thread.getContextClassLoader();
+                    thread.setContextClassLoader(cl);
                     try {
-                        addObject(key);
-                    } catch (Exception e) {
-                        swallowException(e);
+                        // Creating usually blocks on I/O, so let a fork join
+                        // executor such as the common pool compensate
+                        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                            private boolean created;
+
+                            @Override
+                            public boolean block() {
+                                try {
+                                    createObject(key, objectDeque, borrowed);
+                                } catch (Exception e) {
+                                    failures[attempt] = e;
+                                }
+                                created = true;
+                                return true;
+                            }
+
+                            @Override
+                            public boolean isReleasable() {
+                                return created;
+                            }
+                        });
+                    } catch (InterruptedException e) {
+                        failures[attempt] = e;
+                    } finally {
+                        thread.setContextClassLoader(savedClassLoader);
+                        done.countDown();
                     }
                 }
-                updateStatsReturn(activeTime);
-                return;
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
             }
         }
 
         try {
-            factory.passivateObject(key, p);
-        } catch (Exception e1) {
-            swallowException(e1);
+            createObject(key, objectDeque, borrowed);
+        } catch (Exception e) {
+            failures[0] = e;
+        }
+
+        // The objects created by the other attempts belong to the borrower,
+        // so wait for them even if interrupted
+        boolean interrupted = false;
+        while (true) {
             try {
-                destroy(key, p, true);
-            } catch (Exception e) {
-                swallowException(e);
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
-            if (objectDeque.idleObjects.hasTakeWaiters()) {
-                try {
-                    addObject(key);
-                } catch (Exception e) {
-                    swallowException(e);
-                }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Exception e : failures) {
+            if (e != null) {
+                return e;
             }
-            updateStatsReturn(activeTime);
-            return;
         }
+        return null;
+    }
 
-        if (!p.deallocate()) {
-            throw new IllegalStateException(
-                    "Object has already been returned to this pool");
+    /**
+     * The number of objects that can be created for the given key right now,
+     * at most the given count: what {@link #getMaxTotalPerKey()
+     * maxTotalPerKey}, {@link #getMaxTotal() maxTotal},
+     * {@link #getMaxCreatingPerKey() maxCreatingPerKey} and
+     * {@link #getMaxCreating() maxCreating} leave room for. Other threads
+     * may take the room before it is used, so this is only an estimate.
+     *
+     * @param objectDeque The objects associated with the key
+     * @param count The number of objects wanted
+     *
+     * @return the number of objects, possibly 0 or negative
+     */
+    private int creatableCount(ObjectDeque<T> objectDeque, int count) {
+        long room = count;
+        int maxTotalPerKeySave = getMaxTotalPerKey();
+        if (maxTotalPerKeySave > -1) {
+            room = Math.min(room,
+                    maxTotalPerKeySave - objectDeque.getCreateCount().get());
+        }
+        int maxTotalSave = getMaxTotal();
+        if (maxTotalSave > -1) {
+            room = Math.min(room, maxTotalSave - numTotal.get());
+        }
+        int maxCreatingPerKeySave = getMaxCreatingPerKey();
+        if (maxCreatingPerKeySave > -1) {
+            room = Math.min(room,
+                    maxCreatingPerKeySave - objectDeque.getCreatingCount().get());
+        }
+        int maxCreatingSave = getMaxCreating();
+        if (maxCreatingSave > -1) {
+            room = Math.min(room, maxCreatingSave - numCreating.get());
         }
+        return (int) room;
+    }
 
-        int maxIdle = getMaxIdlePerKey();
-        LinkedBlockingDeque<PooledObject<T>> idleObjects =
-            objectDeque.getIdleObjects();
+    /**
+     * Creates, allocates, activates and validates one object for a bulk
+     * borrow, if there is capacity for it.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param borrowed Receives the object, synchronized on
+     *
+     * @throws Exception if the object cannot be created, activated or
+     *                   validated
+     */
+    private void createObject(K key, ObjectDeque<T> objectDeque,
+            List<PooledObject<T>> borrowed) throws Exception {
+        PooledObject<T> p = create(key, objectDeque);
+        if (p != null && p.allocate() && activateAndValidate(key, p, true)) {
+            synchronized (borrowed) {
+                borrowed.add(p);
+            }
+        }
+    }
 
-        if (isClosed() || maxIdle > -1 && maxIdle <= idleObjects.size()) {
-            try {
-                destroy(key, p, true);
-            } catch (Exception e) {
-                swallowException(e);
+    /**
+     * Waits for an object of a key, or for a free creation slot if creation
+     * is throttled, during a bulk borrow that can make no progress.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param waitTime The time the borrow started
+     * @param borrowMaxWaitMillis The time to wait in milliseconds from
+     *                            <code>waitTime</code>, negative to wait
+     *                            indefinitely
+     * @param borrowed Receives the object waited for, if it can be handed to
+     *                 the borrower
+     *
+     * @return <code>false</code> if the time to wait has elapsed
+     *
+     * @throws Exception if interrupted or if the pool has been closed
+     */
+    private boolean awaitObject(K key, ObjectDeque<T> objectDeque,
+            long waitTime, long borrowMaxWaitMillis,
+            List<PooledObject<T>> borrowed) throws Exception {
+        if (isCreateThrottled()) {
+            if (!awaitIdleOrCreatingSlot(key, objectDeque, waitTime,
+                    borrowMaxWaitMillis)) {
+                return false;
             }
-        } else {
-            if (getLifo()) {
-                idleObjects.addFirst(p);
+            assertOpen();
+            return true;
+        }
+
+        PooledObject<T> p;
+        updateBorrowWaiters(key, objectDeque, 1);
+        try {
+            if (borrowMaxWaitMillis < 0) {
+                p = objectDeque.getIdleObjects().takeFirst();
             } else {
-                idleObjects.addLast(p);
-            }
-            if (isClosed()) {
-                // Pool closed while object was being added to idle objects.
-                // Make sure the returned object is destroyed rather than left
-                // in the idle object pool (which would effectively be a leak)
-                clear(key);
+                long remaining = borrowMaxWaitMillis -
+                        (clock.currentTimeMillis() - waitTime);
+                if (remaining <= 0) {
+                    return false;
+                }
+                p = objectDeque.getIdleObjects().pollFirst(
+                        remaining, TimeUnit.MILLISECONDS);
             }
+        } finally {
+            updateBorrowWaiters(key, objectDeque, -1);
         }
-
-        if (hasBorrowWaiters()) {
-            reuseCapacity();
+        if (p == null) {
+            return false;
         }
-
-        updateStatsReturn(activeTime);
+        if (p.allocate() && activateAndValidate(key, p, false)) {
+            borrowed.add(p);
+        }
+        return true;
     }
 
 
     /**
-     * {@inheritDoc}
+     * Obtains an instance from the pool for the specified key without blocking
+     * the calling thread.
      * <p>
-     * Activation of this method decrements the active count associated with
-     * the given keyed pool and attempts to destroy <code>obj.</code>
+     * An idle instance is taken, or a new one created, exactly as by
+     * {@link #borrowObject(Object, long)} and the returned future is then
+     * already complete. If the sub-pool is exhausted and
+     * {@link #getBlockWhenExhausted()} is true the borrower is queued instead
+     * of parking the calling thread. A queued borrower is completed directly
+     * by the thread that makes an instance available for the key, i.e. by
+     * {@link #returnObject(Object, Object)}, {@link #addObject(Object)} or
+     * when a new instance can be created, and that thread also activates and
+     * (if configured) validates the instance for it. Queued borrowers of a key
+     * are served in arrival order, ahead of threads blocked in
+     * {@link #borrowObject(Object, long)}.
+     * <p>
+     * The timeouts of all queued borrowers are run by a single, shared
+     * scheduler thread. When the timeout elapses the future completes
+     * exceptionally with a <code>NoSuchElementException</code>; when the pool
+     * is closed it completes exceptionally with an
+     * <code>IllegalStateException</code>. Cancelling the future abandons the
+     * borrow.
      *
      * @param key pool key
-     * @param obj instance to invalidate
+     * @param timeout The time to wait for an object to become available,
+     *                <code>null</code> or negative to wait indefinitely
      *
-     * @throws Exception             if an exception occurs destroying the
-     *                               object
-     * @throws IllegalStateException if obj does not belong to the pool
-     *                               under the given key
+     * @return a future completed with an object instance from the keyed pool
      */
     @Override
-    public void invalidateObject(K key, T obj) throws Exception {
+    public CompletableFuture<T> borrowObjectAsync(K key, Duration timeout) {
+        final long waitTime = clock.currentTimeMillis();
+        final CompletableFuture<T> future = new CompletableFuture<T>();
 
-        ObjectDeque<T> objectDeque = poolMap.get(key);
+        ObjectDeque<T> objectDeque;
+        try {
+            assertOpen();
+            objectDeque = register(key);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            return future;
+        }
 
-        PooledObject<T> p = objectDeque.getAllObjects().get(new IdentityWrapper<T>(obj));
-        if (p == null) {
-            throw new IllegalStateException(
-                    "Object not currently part of this pool");
+        if (asyncFactory != null) {
+            return borrowObjectAsync(key, objectDeque, timeout, waitTime);
         }
-        synchronized (p) {
-            if (p.getState() != PooledObjectState.INVALID) {
-                destroy(key, p, true);
+
+        AsyncBorrow waiter = null;
+        try {
+            while (true) {
+                boolean create = false;
+                PooledObject<T> p = objectDeque.getIdleObjects().pollFirst();
+                if (p == null) {
+                    p = create(key);
+                    if (p != null) {
+                        create = true;
+                    }
+                }
+                if (p == null) {
+                    break;
+                }
+                if (p.allocate() && activateAndValidate(key, p, create)) {
+                    updateStatsBorrow(objectDeque, p, clock.currentTimeMillis() - waitTime);
+                    future.complete(p.getObject());
+                    return future;
+                }
+            }
+            if (!getBlockWhenExhausted()) {
+                throw new NoSuchElementException("Pool exhausted");
+            }
+            // Queue the borrower, which now owns the registration of the key
+            waiter = new AsyncBorrow(key, objectDeque, waitTime);
+            updateBorrowWaiters(key, objectDeque, 1);
+            objectDeque.getAsyncWaiters().addLast(waiter);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            return future;
+        } finally {
+            if (waiter == null) {
+                deregister(key);
             }
         }
-        if (objectDeque.idleObjects.hasTakeWaiters()) {
-            addObject(key);
+
+        scheduleTimeout(waiter, timeout);
+        // An object may have been made idle after the poll above but before
+        // the borrower was queued, by a thread that saw no waiter
+        serveAsyncWaiters(key, objectDeque);
+        if (isClosed()) {
+            failAsyncWaiters(objectDeque);
         }
+        return waiter;
     }
 
-
     /**
-     * Clears any objects sitting idle in the pool by removing them from the
-     * idle instance sub-pools and then invoking the configured
-     * PoolableObjectFactory's
-     * {@link KeyedPooledObjectFactory#destroyObject(Object, PooledObject)}
-     * method on each idle instance.
-     * <p>
-     * Implementation notes:
-     * <ul>
-     * <li>This method does not destroy or effect in any way instances that are
-     * checked out when it is invoked.</li>
-     * <li>Invoking this method does not prevent objects being returned to the
-     * idle instance pool, even during its execution. Additional instances may
-     * be returned while removed items are being destroyed.</li>
-     * <li>Exceptions encountered destroying idle instances are swallowed
-     * but notified via a {@link SwallowedExceptionListener}.</li>
-     * </ul>
+     * {@link #borrowObjectAsync(Object, Duration)} for a pool with an
+     * asynchronous factory. The borrower is always queued and is then served
+     * by an idle object or by a creation started for it, so that the factory
+     * is never called on the borrowing thread.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key, registered by
+     *                    the caller
+     * @param timeout The time to wait for an object
+     * @param waitTime The time the borrow started
+     *
+     * @return a future completed with an object instance from the keyed pool
      */
-    @Override
-    public void clear() {
-        Iterator<K> iter = poolMap.keySet().iterator();
-
-        while (iter.hasNext()) {
-            clear(iter.next());
+    private CompletableFuture<T> borrowObjectAsync(K key,
+            ObjectDeque<T> objectDeque, Duration timeout, long waitTime) {
+        // The borrower owns the registration of the key from here on
+        AsyncBorrow waiter = new AsyncBorrow(key, objectDeque, waitTime);
+        updateBorrowWaiters(key, objectDeque, 1);
+        objectDeque.getAsyncWaiters().addLast(waiter);
+        scheduleTimeout(waiter, timeout);
+
+        serveAsyncWaiters(key, objectDeque);
+        if (!waiter.isDone() && !waiter.claimed.get() &&
+                !startAsyncCreate(key) && !getBlockWhenExhausted() &&
+                waiter.claim()) {
+            objectDeque.getAsyncWaiters().remove(waiter);
+            waiter.finish();
+            waiter.completeExceptionally(new NoSuchElementException("Pool exhausted"));
+        }
+        if (isClosed()) {
+            failAsyncWaiters(objectDeque);
         }
+        return waiter;
     }
 
-
     /**
-     * Clears the specified sub-pool, removing all pooled instances
-     * corresponding to the given <code>key</code>. Exceptions encountered
-     * destroying idle instances are swallowed but notified via a
-     * {@link SwallowedExceptionListener}.
+     * Schedule the timeout of a queued asynchronous borrower.
      *
-     * @param key the key to clear
+     * @param waiter The queued borrower
+     * @param timeout The time to wait, <code>null</code> or negative to wait
+     *                indefinitely
      */
-    @Override
-    public void clear(K key) {
-
-        ObjectDeque<T> objectDeque = register(key);
-
-        try {
-            LinkedBlockingDeque<PooledObject<T>> idleObjects =
-                    objectDeque.getIdleObjects();
-
-            PooledObject<T> p = idleObjects.poll();
-
-            while (p != null) {
-                try {
-                    destroy(key, p, true);
-                } catch (Exception e) {
-                    swallowException(e);
+    private void scheduleTimeout(final AsyncBorrow waiter, Duration timeout) {
+        if (timeout != null && !timeout.isNegative()) {
+            waiter.timeoutTask = BorrowTimeoutScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    waiter.expire();
                 }
-                p = idleObjects.poll();
+            }, timeout.toNanos(), TimeUnit.NANOSECONDS);
+            if (waiter.isDone()) {
+                waiter.timeoutTask.cancel(false);
             }
-        } finally {
-            deregister(key);
         }
     }
 
 
-    @Override
-    public int getNumActive() {
-        return numTotal.get() - getNumIdle();
-    }
-
-
-    @Override
-    public int getNumIdle() {
-        Iterator<ObjectDeque<T>> iter = poolMap.values().iterator();
-        int result = 0;
-
-        while (iter.hasNext()) {
-            result += iter.next().getIdleObjects().size();
+    /**
+     * Hand idle objects of the given key to queued asynchronous borrowers
+     * until either runs out. Must be called after every addition of an idle
+     * object; it is cheap when no borrower is queued.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     */
+    private void serveAsyncWaiters(K key, ObjectDeque<T> objectDeque) {
+        final ConcurrentLinkedDeque<AsyncBorrow> waiters =
+                objectDeque.getAsyncWaiters();
+        while (!waiters.isEmpty()) {
+            PooledObject<T> p = objectDeque.getIdleObjects().pollFirst();
+            if (p == null) {
+                return;
+            }
+            if (!p.allocate()) {
+                // Under test by the evictor, which will put it back
+                continue;
+            }
+            AsyncBorrow waiter = pollAsyncWaiter(objectDeque);
+            if (waiter == null) {
+                // The borrowers have gone in the meantime, put it back
+                p.deallocate();
+                addIdle(objectDeque, p, true);
+                continue;
+            }
+            handOff(waiter, p, false);
         }
-
-        return result;
     }
 
-
-    @Override
-    public int getNumActive(K key) {
-        final ObjectDeque<T> objectDeque = poolMap.get(key);
-        if (objectDeque != null) {
-            return objectDeque.getAllObjects().size() -
-                    objectDeque.getIdleObjects().size();
-        } else {
-            return 0;
+    /**
+     * Complete a claimed asynchronous borrower with the given allocated
+     * object. If the object fails activation or validation it is replaced by
+     * a new one; if none can be created the borrower is queued again, at the
+     * head, and served from the idle objects if there are any by then.
+     *
+     * @param waiter The claimed borrower
+     * @param p The allocated object
+     * @param create <code>true</code> if the object was created for this
+     *               borrower
+     */
+    private void handOff(AsyncBorrow waiter, PooledObject<T> p, boolean create) {
+        if (asyncFactory != null) {
+            handOffAsync(waiter, p, create);
+            return;
         }
+        final K key = waiter.key;
+        try {
+            while (!activateAndValidate(key, p, create)) {
+                p = create(key);
+                if (p == null) {
+                    waiter.objectDeque.getAsyncWaiters().addFirst(waiter);
+                    waiter.release();
+                    // An object may have been made idle after the failed
+                    // create but before the borrower was queued again, by a
+                    // thread that saw no waiter
+                    serveAsyncWaiters(key, waiter.objectDeque);
+                    return;
+                }
+                p.allocate();
+                create = true;
+            }
+        } catch (Exception e) {
+            waiter.finish();
+            waiter.completeExceptionally(e);
+            return;
+        }
+        updateStatsBorrow(waiter.objectDeque, p,
+                clock.currentTimeMillis() - waiter.waitTime);
+        waiter.finish();
+        waiter.complete(p.getObject());
     }
 
-
-    @Override
-    public int getNumIdle(K key) {
-        final ObjectDeque<T> objectDeque = poolMap.get(key);
-        return objectDeque != null ? objectDeque.getIdleObjects().size() : 0;
-    }
-
-
     /**
-     * Closes the keyed object pool. Once the pool is closed,
-     * {@link #borrowObject(Object)} will fail with IllegalStateException, but
-     * {@link #returnObject(Object, Object)} and
-     * {@link #invalidateObject(Object, Object)} will continue to work, with
-     * returned objects destroyed on return.
-     * <p>
-     * Destroys idle instances in the pool by invoking {@link #clear()}.
+     * {@link #handOff} using the asynchronous factory. An object that fails
+     * activation or validation is destroyed and the borrower is queued again,
+     * at the head, for the next idle or created object.
+     *
+     * @param waiter The claimed borrower
+     * @param p The allocated object
+     * @param create <code>true</code> if the object was created for this
+     *               borrower
      */
-    @Override
-    public void close() {
-        if (isClosed()) {
-            return;
+    private void handOffAsync(final AsyncBorrow waiter, final PooledObject<T> p,
+            final boolean create) {
+        final K key = waiter.key;
+        final boolean validate = needsBorrowValidation(key, p, create);
+        CompletionStage<Boolean> stage;
+        try {
+            stage = asyncFactory.activateObject(key, p).thenCompose(
+                    new Function<Void, CompletionStage<Boolean>>() {
+                @Override
+                public CompletionStage<Boolean> apply(Void v) {
+                    if (validate) {
+                        return asyncFactory.validateObject(key, p);
+                    }
+                    return CompletableFuture.completedFuture(Boolean.TRUE);
+                }
+            });
+        } catch (RuntimeException e) {
+            CompletableFuture<Boolean> failed = new CompletableFuture<Boolean>();
+            failed.completeExceptionally(e);
+            stage = failed;
         }
-
-        synchronized (closeLock) {
-            if (isClosed()) {
-                return;
+        stage.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean valid, Throwable t) {
+                if (t == null && Boolean.TRUE.equals(valid)) {
+                    if (validate) {
+                        markValidated(key, p);
+                    }
+                    updateStatsBorrow(waiter.objectDeque, p,
+                            clock.currentTimeMillis() - waiter.waitTime);
+                    waiter.finish();
+                    waiter.complete(p.getObject());
+                    return;
+                }
+                try {
+                    destroy(key, p, true);
+                    if (t == null) {
+                        updateStatsDestroyedByBorrowValidation(waiter.objectDeque);
+                    }
+                } catch (Exception e) {
+                    // Ignore - activation / validation failure is more important
+                }
+                if (create) {
+                    NoSuchElementException nsee = new NoSuchElementException(
+                            t == null ? "Unable to validate object" :
+                                    "Unable to activate object");
+                    if (t != null) {
+                        nsee.initCause(unwrap(t));
+                    }
+                    waiter.finish();
+                    waiter.completeExceptionally(nsee);
+                    return;
+                }
+                ObjectDeque<T> objectDeque = waiter.objectDeque;
+                objectDeque.getAsyncWaiters().addFirst(waiter);
+                waiter.release();
+                serveAsyncWaiters(key, objectDeque);
+                if (!waiter.isDone() && !waiter.claimed.get()) {
+                    startAsyncCreate(key);
+                }
             }
+        });
+    }
 
-            // Stop the evictor before the pool is closed since evict() calls
-            // assertOpen()
-            startEvictor(-1L);
-
-            closed = true;
-            // This clear removes any idle objects
-            clear();
-
-            jmxUnregister();
-
-            // Release any threads that were waiting for an object
-            Iterator<ObjectDeque<T>> iter = poolMap.values().iterator();
-            while (iter.hasNext()) {
-                iter.next().getIdleObjects().interuptTakeWaiters();
+    /**
+     * Fail all queued asynchronous borrowers of the given key because the
+     * pool has been closed.
+     *
+     * @param objectDeque The objects associated with the key
+     */
+    private void failAsyncWaiters(ObjectDeque<T> objectDeque) {
+        AsyncBorrow waiter;
+        while ((waiter = objectDeque.getAsyncWaiters().pollFirst()) != null) {
+            if (waiter.claim()) {
+                waiter.finish();
+                waiter.completeExceptionally(
+                        new IllegalStateException("Pool not open"));
             }
-            // This clear cleans up the keys now any waiting threads have been
-            // interrupted
-            clear();
         }
     }
 
 
     /**
-     * Clears oldest 15% of objects in pool.  The method sorts the objects into
-     * a TreeMap and then iterates the first 15% for removal.
+     * Activate and, if configured, validate an object that has just been
+     * allocated to a borrower. An object that fails is destroyed.
+     *
+     * @param key pool key
+     * @param p The allocated object
+     * @param create <code>true</code> if the object was created for this
+     *               borrower
+     *
+     * @return <code>true</code> if the object can be handed to the borrower,
+     *         <code>false</code> if it has been destroyed and the borrower
+     *         should try again
+     *
+     * @throws NoSuchElementException if an object that was created for this
+     *                                borrower fails activation or validation
      */
-    public void clearOldest() {
-
-        // build sorted map of idle objects
-        final Map<PooledObject<T>, K> map = new TreeMap<PooledObject<T>, K>();
-
-        for (K k : poolMap.keySet()) {
-            ObjectDeque<T> queue = poolMap.get(k);
-            // Protect against possible NPE if key has been removed in another
-            // thread. Not worth locking the keys while this loop completes.
-            if (queue != null) {
-                final LinkedBlockingDeque<PooledObject<T>> idleObjects =
-                    queue.getIdleObjects();
-                for (PooledObject<T> p : idleObjects) {
-                    // each item into the map using the PooledObject object as the
-                    // key. It then gets sorted based on the idle time
-                    map.put(p, k);
-                }
-            }
-        }
-
-        // Now iterate created map and kill the first 15% plus one to account
-        // for zero
-        int itemsToRemove = ((int) (map.size() * 0.15)) + 1;
-        Iterator<Entry<PooledObject<T>, K>> iter =
-            map.entrySet().iterator();
-
-        while (iter.hasNext() && itemsToRemove > 0) {
-            Entry<PooledObject<T>, K> entry = iter.next();
-            // kind of backwards on naming.  In the map, each key is the
-            // PooledObject because it has the ordering with the timestamp
-            // value.  Each value that the key references is the key of the
-            // list it belongs to.
-            K key = entry.getValue();
-            PooledObject<T> p = entry.getKey();
-            // Assume the destruction succeeds
-            boolean destroyed = true;
+    private boolean activateAndValidate(K key, PooledObject<T> p,
+            boolean create) {
+        try {
+            factory.activateObject(key, p);
+        } catch (Exception e) {
             try {
-                destroyed = destroy(key, p, false);
-            } catch (Exception e) {
-                swallowException(e);
+                destroy(key, p, true);
+            } catch (Exception e1) {
+                // Ignore - activation failure is more important
+            }
+            if (create) {
+                NoSuchElementException nsee = new NoSuchElementException(
+                        "Unable to activate object");
+                nsee.initCause(e);
+                throw nsee;
+            }
+            return false;
+        }
+        if (needsBorrowValidation(key, p, create)) {
+            boolean validate = false;
+            Throwable validationThrowable = null;
+            try {
+                validate = validate(key, p);
+            } catch (Throwable t) {
+                PoolUtils.checkRethrow(t);
+                validationThrowable = t;
             }
-            if (destroyed) {
-                itemsToRemove--;
+            if (!validate) {
+                try {
+                    destroy(key, p, true);
+                    updateStatsDestroyedByBorrowValidation(poolMap.get(key));
+                } catch (Exception e) {
+                    // Ignore - validation failure is more important
+                }
+                if (create) {
+                    NoSuchElementException nsee = new NoSuchElementException(
+                            "Unable to validate object");
+                    nsee.initCause(validationThrowable);
+                    throw nsee;
+                }
+                return false;
             }
         }
+        return true;
     }
 
+
     /**
-     * Attempt to create one new instance to serve from the most heavily
-     * loaded pool that can add a new instance.
+     * Returns whether an object being borrowed must be validated, taking
+     * {@link #getValidationCacheMillis() validationCacheMillis} and
+     * {@link #getBorrowValidationIdleMillis() borrowValidationIdleMillis}
+     * into account.
      *
-     * This method exists to ensure liveness in the pool when threads are
-     * parked waiting and capacity to create instances under the requested keys
-     * subsequently becomes available.
+     * @param key pool key
+     * @param p The allocated object
+     * @param create <code>true</code> if the object was created for this
+     *               borrow
      *
-     * This method is not guaranteed to create an instance and its selection
-     * of the most loaded pool that can create an instance may not always be
-     * correct, since it does not lock the pool and instances may be created,
-     * borrowed, returned or destroyed by other threads while it is executing.
+     * @return <code>true</code> if the object must be validated
      */
-    private void reuseCapacity() {
-        final int maxTotalPerKeySave = getMaxTotalPerKey();
-
-        // Find the most loaded pool that could take a new instance
-        int maxQueueLength = 0;
-        LinkedBlockingDeque<PooledObject<T>> mostLoaded = null;
-        K loadedKey = null;
-        for (K k : poolMap.keySet()) {
-            final ObjectDeque<T> deque = poolMap.get(k);
-            if (deque != null) {
-                final LinkedBlockingDeque<PooledObject<T>> pool = deque.getIdleObjects();
-                final int queueLength = pool.getTakeQueueLength();
-                if (getNumActive(k) < maxTotalPerKeySave && queueLength > maxQueueLength) {
-                    maxQueueLength = queueLength;
-                    mostLoaded = pool;
-                    loadedKey = k;
-                }
-            }
+    private boolean needsBorrowValidation(K key, PooledObject<T> p, boolean create) {
+        if (create && getTestOnCreate()) {
+            return true;
         }
-
-        // Attempt to add an instance to the most loaded pool
-        if (mostLoaded != null) {
-            register(loadedKey);
-            try {
-                PooledObject<T> p = create(loadedKey);
-                if (p != null) {
-                    addIdleObject(loadedKey, p);
-                }
-            } catch (Exception e) {
-                swallowException(e);
-            } finally {
-                deregister(loadedKey);
-            }
+        if (!getTestOnBorrow()) {
+            return false;
         }
+        long idleMillis = getBorrowValidationIdleMillis();
+        if (idleMillis > 0 && p.getIdleTimeMillis() < idleMillis) {
+            return false;
+        }
+        long cacheMillis = getValidationCacheMillis();
+        if (cacheMillis <= 0) {
+            return true;
+        }
+        long validatedTime;
+        if (p instanceof DefaultPooledObject) {
+            validatedTime = ((DefaultPooledObject<T>) p).getLastValidatedTime();
+        } else {
+            ObjectDeque<T> objectDeque = poolMap.get(key);
+            ConcurrentIdentityHashMap<PooledObject<T>, Long> validatedTimes =
+                    objectDeque == null ? null : objectDeque.validatedTimes;
+            Long time = validatedTimes == null ? null : validatedTimes.get(p);
+            validatedTime = time == null ?
+                    DefaultPooledObject.NOT_VALIDATED : time.longValue();
+        }
+        return validatedTime == DefaultPooledObject.NOT_VALIDATED ||
+                clock.currentTimeMillis() - validatedTime >= cacheMillis;
     }
 
     /**
-     * Checks to see if there are any threads currently waiting to borrow
-     * objects but are blocked waiting for more objects to become available.
+     * Validate an object with the factory, recording the time if it is
+     * valid.
      *
-     * @return {@code true} if there is at least one thread waiting otherwise
-     *         {@code false}
+     * @param key The key of the object
+     * @param p The object to validate
+     *
+     * @return the result of the factory
      */
-    private boolean hasBorrowWaiters() {
-        for (K k : poolMap.keySet()) {
-            final ObjectDeque<T> deque = poolMap.get(k);
-            if (deque != null) {
-                final LinkedBlockingDeque<PooledObject<T>> pool =
-                    deque.getIdleObjects();
-                if(pool.hasTakeWaiters()) {
-                    return true;
-                }
-            }
+    private boolean validate(K key, PooledObject<T> p) {
+        boolean valid = factory.validateObject(key, p);
+        if (valid) {
+            markValidated(key, p);
         }
-        return false;
+        return valid;
     }
 
-
     /**
-     * {@inheritDoc}
-     * <p>
-     * Successive activations of this method examine objects in keyed sub-pools
-     * in sequence, cycling through the keys and examining objects in
-     * oldest-to-youngest order within the keyed sub-pools.
+     * Record that an object has just been validated successfully, if
+     * {@link #getValidationCacheMillis() validationCacheMillis} is on. A
+     * {@link DefaultPooledObject} keeps the time itself; for any other
+     * {@link PooledObject} it is kept by the sub-pool of the key.
+     *
+     * @param key pool key
+     * @param p The validated object
      */
-    @Override
-    public void evict() throws Exception {
+    private void markValidated(K key, PooledObject<T> p) {
+        if (getValidationCacheMillis() <= 0) {
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        if (p instanceof DefaultPooledObject) {
+            ((DefaultPooledObject<T>) p).setLastValidatedTime(now);
+            return;
+        }
+        // The sub-pool is kept while it has objects
+        ObjectDeque<T> objectDeque = poolMap.get(key);
+        if (objectDeque != null) {
+            ConcurrentIdentityHashMap<PooledObject<T>, Long> validatedTimes =
+                    objectDeque.getValidatedTimes();
+            validatedTimes.put(p, Long.valueOf(now));
+            // Destroyed meanwhile: destroy may have removed the entry already
+            if (p.getState() == PooledObjectState.INVALID) {
+                validatedTimes.remove(p);
+            }
+        }
+    }
+
+    /**
+     * Attempt to borrow the object the current thread most recently returned
+     * under the given key, without registering interest in the key.
+     * <p>
+     * Cached objects stay in the idle objects of their key, so another thread
+     * or the evictor may take the object first. The object is claimed with a
+     * single CAS on its state, {@link DefaultPooledObject#allocateInPlace()},
+     * and is not unlinked from the idle objects: whoever comes across the
+     * link next skips it, as the expiry index skips borrowed objects, unless
+     * the object has been returned by then and the link is idle again. If the
+     * object has been taken, or activation or validation fails,
+     * <code>null</code> is returned and the caller falls back to the normal
+     * borrow path.
+     *
+     * @param key pool key
+     * @param waitTime The time the borrow started, for the statistics
+     *
+     * @return the allocated, activated (and if required validated) object or
+     *         <code>null</code>
+     */
+    @SuppressWarnings("unchecked") // Only this pool fills its affinity cache
+    private PooledObject<T> borrowFromAffinityCache(K key, long waitTime) {
+        AffinityCache<T> cache = affinityCache.get();
+        int slot = cache.remove(key);
+        if (slot < 0) {
+            return null;
+        }
+        DefaultPooledObject<T> p = (DefaultPooledObject<T>) cache.object(slot);
+        ObjectDeque<T> objectDeque = (ObjectDeque<T>) cache.owner(slot);
+        if (p == null || objectDeque == null || !key.equals(objectDeque.getKey())) {
+            // Collected, or cached under another key with the same hash code
+            return null;
+        }
+        if (!p.allocateInPlace()) {
+            // Taken from the idle objects by another thread or the
+            // evictor, or destroyed
+            return null;
+        }
+        objectDeque.getIdleObjects().allocatedInPlace();
+
+        try {
+            factory.activateObject(key, p);
+        } catch (Exception e) {
+            try {
+                destroy(key, p, true);
+            } catch (Exception e1) {
+                // Ignore - activation failure is more important
+            }
+            return null;
+        }
+        if (needsBorrowValidation(key, p, false)) {
+            boolean validate = false;
+            try {
+                validate = validate(key, p);
+            } catch (Throwable t) {
+                PoolUtils.checkRethrow(t);
+            }
+            if (!validate) {
+                try {
+                    destroy(key, p, true);
+                    updateStatsDestroyedByBorrowValidation(objectDeque);
+                } catch (Exception e) {
+                    // Ignore - validation failure is more important
+                }
+                return null;
+            }
+        }
+        updateStatsBorrow(objectDeque, p, clock.currentTimeMillis() - waitTime);
+        return p;
+    }
+
+
+    /**
+     * Returns an object to a keyed sub-pool.
+     * <p>
+     * If {@link #getMaxIdlePerKey() maxIdle} is set to a positive value and the
+     * number of idle instances under the given key has reached this value, the
+     * returning instance is destroyed.
+     * <p>
+     * If {@link #getTestOnReturn() testOnReturn} == true, the returning
+     * instance is validated before being returned to the idle instance sub-pool
+     * under the given key. In this case, if validation fails, the instance is
+     * destroyed.
+     * <p>
+     * If there is a {@link #setReturnExecutor(Executor) return executor},
+     * validation and passivation take place there after this method has
+     * returned.
+     * <p>
+     * Exceptions encountered destroying objects for any reason are swallowed
+     * but notified via a {@link SwallowedExceptionListener}.
+     *
+     * @param key pool key
+     * @param obj instance to return to the keyed pool
+     *
+     * @throws IllegalStateException if an object is returned to the pool that
+     *                               was not borrowed from it or if an object is
+     *                               returned to the pool multiple times
+     */
+    @Override
+    public void returnObject(K key, T obj) {
+
+        ObjectDeque<T> objectDeque = poolMap.get(key);
+
+        PooledObject<T> p = objectDeque.getAllObjects().get(obj);
+
+        if (p == null) {
+            throw new IllegalStateException(
+                    "Returned object not currently part of this pool");
+        }
+
+        returnObject(key, objectDeque, p);
+    }
+
+    /**
+     * Returns an object to a keyed sub-pool once it has been found, see
+     * {@link #returnObject(Object, Object)}.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param p The object being returned
+     */
+    private void returnObject(K key, ObjectDeque<T> objectDeque, PooledObject<T> p) {
+        if (!markReturning(p)) { // Keep from being marked abandoned (once GKOP does this)
+            throw new IllegalStateException(
+                    "Object has already been returned to this pool or is invalid");
+        }
+        returnMarked(key, objectDeque, p);
+    }
+
+    /**
+     * Returns an object that has been marked as returning, on the return
+     * executor if there is one.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param p The object being returned
+     */
+    private void returnMarked(K key, ObjectDeque<T> objectDeque, PooledObject<T> p) {
+        long activeTime = p.getActiveTimeMillis();
+
+        if (!returnLater(key, objectDeque, p, activeTime)) {
+            completeReturn(key, objectDeque, p, activeTime, true);
+        }
+    }
+
+    /**
+     * Validates and passivates an object that has been marked as returning
+     * and makes it idle, or destroys it.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param p The object being returned
+     * @param activeTime The time in milliseconds the object was borrowed for
+     * @param cacheAffinity Whether the object may be put in the thread
+     *                      affinity cache of the current thread
+     */
+    private void completeReturn(K key, ObjectDeque<T> objectDeque,
+            PooledObject<T> p, long activeTime, boolean cacheAffinity) {
+        if (!passivateReturned(key, objectDeque, p)) {
+            updateStatsReturn(objectDeque, activeTime);
+            return;
+        }
+
+        int maxIdle = getMaxIdlePerKey();
+        IdleObjectStore<PooledObject<T>> idleObjects =
+            objectDeque.getIdleObjects();
+
+        // Destroyed while still returning, not deallocated first: an idle
+        // object may be allocated in place by a thread's affinity cache
+        if (isClosed() || maxIdle > -1 && maxIdle <= idleObjects.size()) {
+            try {
+                destroy(key, p, true);
+            } catch (Exception e) {
+                swallowException(e);
+            }
+        } else {
+            boolean idle = deallocateInPlace(objectDeque, p);
+            if (!idle) {
+                if (!p.deallocate()) {
+                    throw new IllegalStateException(
+                            "Object has already been returned to this pool");
+                }
+                // False if the evictor destroyed it before it was made idle
+                idle = addIdle(objectDeque, p, getLifo());
+            }
+            if (idle) {
+                if (cacheAffinity && getThreadAffinity() &&
+                        p instanceof DefaultPooledObject) {
+                    affinityCache.get().put(key, objectDeque, p);
+                }
+                serveAsyncWaiters(key, objectDeque);
+            }
+            if (isClosed()) {
+                // Pool closed while object was being added to idle objects.
+                // Make sure the returned object is destroyed rather than left
+                // in the idle object pool (which would effectively be a leak)
+                clear(key);
+            }
+        }
+
+        if (hasBorrowWaiters()) {
+            reuseCapacity();
+        }
+
+        updateStatsReturn(objectDeque, activeTime);
+    }
+
+    /**
+     * Validates, if {@link #getTestOnReturn() testOnReturn} is set, and
+     * passivates an object that has been marked as returning, or destroys it
+     * if either fails.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param p The object being returned
+     *
+     * @return <code>false</code> if the object has been destroyed
+     */
+    private boolean passivateReturned(K key, ObjectDeque<T> objectDeque,
+            PooledObject<T> p) {
+        boolean passivated = false;
+        if (!getTestOnReturn() || validate(key, p)) {
+            try {
+                factory.passivateObject(key, p);
+                passivated = true;
+            } catch (Exception e) {
+                swallowException(e);
+            }
+        }
+        if (passivated) {
+            return true;
+        }
+
+        try {
+            destroy(key, p, true);
+        } catch (Exception e) {
+            swallowException(e);
+        }
+        if (hasBorrowWaiters(objectDeque)) {
+            try {
+                addObjectForWaiters(key);
+            } catch (Exception e) {
+                swallowException(e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a number of objects to a keyed sub-pool in one call.
+     * <p>
+     * Each object is validated and passivated as by
+     * {@link #returnObject(Object, Object)}. The objects are then made idle
+     * together, in the order given, as far as {@link #getMaxIdlePerKey()
+     * maxIdle} allows, and the others destroyed. Waiting borrowers are
+     * served, and the statistics of the pool updated, once for all the
+     * objects. If there is a {@link #setReturnExecutor(Executor) return
+     * executor}, the objects are returned one by one on it instead.
+     * <p>
+     * Exceptions encountered destroying objects for any reason are swallowed
+     * but notified via a {@link SwallowedExceptionListener}.
+     *
+     * @param key pool key
+     * @param objs instances to return to the keyed pool
+     *
+     * @throws IllegalStateException if an object is returned to the pool that
+     *                               was not borrowed from it, in which case
+     *                               none of the objects is returned, or if an
+     *                               object is returned to the pool multiple
+     *                               times, in which case the other objects
+     *                               are still returned
+     */
+    public void returnObjects(K key, Collection<T> objs) {
+
+        ObjectDeque<T> objectDeque = poolMap.get(key);
+
+        List<PooledObject<T>> objects = new ArrayList<PooledObject<T>>(objs.size());
+        for (T obj : objs) {
+            PooledObject<T> p = objectDeque == null ? null :
+                    objectDeque.getAllObjects().get(obj);
+            if (p == null) {
+                throw new IllegalStateException(
+                        "Returned object not currently part of this pool");
+            }
+            objects.add(p);
+        }
+
+        returnObjects(key, objectDeque, objects, true);
+    }
+
+    /**
+     * Returns a number of objects to a keyed sub-pool once they have been
+     * found, see {@link #returnObjects(Object, Collection)}.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param objects The objects being returned
+     * @param borrowed <code>true</code> if the objects are returned by the
+     *                 borrower, <code>false</code> if a bulk borrow that did
+     *                 not hand them out gives them back, which is not
+     *                 counted and never uses the return executor
+     *
+     * @throws IllegalStateException if an object has already been returned,
+     *                               after the others have been returned
+     */
+    private void returnObjects(K key, ObjectDeque<T> objectDeque,
+            List<PooledObject<T>> objects, boolean borrowed) {
+        IllegalStateException failure = null;
+        long[] activeTimes = new long[objects.size()];
+        int returned = 0;
+        List<PooledObject<T>> passivated =
+                new ArrayList<PooledObject<T>>(objects.size());
+
+        for (PooledObject<T> p : objects) {
+            if (!markReturning(p)) {
+                if (failure == null) {
+                    failure = new IllegalStateException(
+                            "Object has already been returned to this pool or is invalid");
+                }
+                continue;
+            }
+            long activeTime = p.getActiveTimeMillis();
+            if (borrowed && returnLater(key, objectDeque, p, activeTime)) {
+                continue;
+            }
+            activeTimes[returned++] = activeTime;
+            if (!passivateReturned(key, objectDeque, p)) {
+                continue;
+            }
+            passivated.add(p);
+        }
+
+        int maxIdle = getMaxIdlePerKey();
+        boolean lifo = getLifo();
+        IdleObjectStore<PooledObject<T>> idleObjects =
+            objectDeque.getIdleObjects();
+        int room = maxIdle > -1 ?
+                Math.max(0, maxIdle - idleObjects.size()) : Integer.MAX_VALUE;
+        boolean added = false;
+
+        for (PooledObject<T> p : passivated) {
+            // Destroyed while still returning, see completeReturn
+            if (isClosed() || room <= 0) {
+                try {
+                    destroy(key, p, true);
+                } catch (Exception e) {
+                    swallowException(e);
+                }
+                continue;
+            }
+            if (deallocateInPlace(objectDeque, p)) {
+                room--;
+                added = true;
+                continue;
+            }
+            if (!p.deallocate()) {
+                if (failure == null) {
+                    failure = new IllegalStateException(
+                            "Object has already been returned to this pool");
+                }
+                continue;
+            }
+            room--;
+            added |= addIdle(objectDeque, p, lifo);
+        }
+
+        if (added) {
+            serveAsyncWaiters(key, objectDeque);
+            if (isClosed()) {
+                // Pool closed while the objects were being added to idle
+                // objects, see completeReturn
+                clear(key);
+            }
+        }
+
+        if (hasBorrowWaiters()) {
+            reuseCapacity();
+        }
+
+        if (borrowed && returned > 0) {
+            updateStatsReturn(objectDeque, activeTimes, returned);
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Activation of this method decrements the active count associated with
+     * the given keyed pool and attempts to destroy <code>obj.</code>
+     *
+     * @param key pool key
+     * @param obj instance to invalidate
+     *
+     * @throws Exception             if an exception occurs destroying the
+     *                               object
+     * @throws IllegalStateException if obj does not belong to the pool
+     *                               under the given key
+     */
+    @Override
+    public void invalidateObject(K key, T obj) throws Exception {
+
+        ObjectDeque<T> objectDeque = poolMap.get(key);
+
+        PooledObject<T> p = objectDeque.getAllObjects().get(obj);
+        if (p == null) {
+            throw new IllegalStateException(
+                    "Object not currently part of this pool");
+        }
+        invalidateObject(key, objectDeque, p);
+    }
+
+    /**
+     * Invalidates an object once it has been found, see
+     * {@link #invalidateObject(Object, Object)}.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param p The object to invalidate
+     *
+     * @throws Exception if an exception occurs destroying the object
+     */
+    private void invalidateObject(K key, ObjectDeque<T> objectDeque,
+            PooledObject<T> p) throws Exception {
+        destroy(key, p, true);
+        if (hasBorrowWaiters(objectDeque)) {
+            addObjectForWaiters(key);
+        }
+    }
+
+    /**
+     * Mark a borrowed object as returning. A {@link DefaultPooledObject} is
+     * changed with a single CAS; any other {@link PooledObject} is checked and
+     * changed while holding its monitor.
+     *
+     * @param p The object being returned
+     *
+     * @return <code>true</code> if the object was
+     *         {@link PooledObjectState#ALLOCATED ALLOCATED} and is now
+     *         {@link PooledObjectState#RETURNING RETURNING}
+     */
+    private static boolean markReturning(PooledObject<?> p) {
+        if (p instanceof DefaultPooledObject) {
+            return ((DefaultPooledObject<?>) p).compareAndSetState(
+                    PooledObjectState.ALLOCATED, PooledObjectState.RETURNING);
+        }
+        synchronized (p) {
+            if (p.getState() != PooledObjectState.ALLOCATED) {
+                return false;
+            }
+            p.markReturning();
+            return true;
+        }
+    }
+
+    /**
+     * Mark an object as invalid unless it already is, so that only one of
+     * several threads destroying the same object destroys it. A
+     * {@link DefaultPooledObject} is changed with a CAS; any other
+     * {@link PooledObject} is checked and changed while holding its monitor.
+     *
+     * @param p The object to invalidate
+     *
+     * @return <code>true</code> if this call changed the state to
+     *         {@link PooledObjectState#INVALID INVALID}
+     */
+    private static boolean markInvalid(PooledObject<?> p) {
+        if (p instanceof DefaultPooledObject) {
+            DefaultPooledObject<?> dpo = (DefaultPooledObject<?>) p;
+            for (;;) {
+                PooledObjectState state = dpo.getState();
+                if (state == PooledObjectState.INVALID) {
+                    return false;
+                }
+                if (dpo.compareAndSetState(state, PooledObjectState.INVALID)) {
+                    return true;
+                }
+            }
+        }
+        synchronized (p) {
+            if (p.getState() == PooledObjectState.INVALID) {
+                return false;
+            }
+            p.invalidate();
+            return true;
+        }
+    }
+
+    /**
+     * Create an object for the borrowers waiting for the given key after an
+     * object of the key has been destroyed. With an asynchronous factory the
+     * creation is only started.
+     *
+     * @param key pool key
+     *
+     * @throws Exception If the associated factory throws an exception
+     */
+    private void addObjectForWaiters(K key) throws Exception {
+        if (asyncFactory != null) {
+            startAsyncCreate(key);
+        } else {
+            addObject(key);
+        }
+    }
+
+
+    /**
+     * Clears any objects sitting idle in the pool by removing them from the
+     * idle instance sub-pools and then invoking the configured
+     * PoolableObjectFactory's
+     * {@link KeyedPooledObjectFactory#destroyObject(Object, PooledObject)}
+     * method on each idle instance.
+     * <p>
+     * Implementation notes:
+     * <ul>
+     * <li>This method does not destroy or effect in any way instances that are
+     * checked out when it is invoked.</li>
+     * <li>Invoking this method does not prevent objects being returned to the
+     * idle instance pool, even during its execution. Additional instances may
+     * be returned while removed items are being destroyed.</li>
+     * <li>Exceptions encountered destroying idle instances are swallowed
+     * but notified via a {@link SwallowedExceptionListener}.</li>
+     * </ul>
+     */
+    @Override
+    public void clear() {
+        Iterator<K> iter = poolMap.keySet().iterator();
+
+        while (iter.hasNext()) {
+            clear(iter.next());
+        }
+    }
+
+
+    /**
+     * Clears the specified sub-pool, removing all pooled instances
+     * corresponding to the given <code>key</code>. Exceptions encountered
+     * destroying idle instances are swallowed but notified via a
+     * {@link SwallowedExceptionListener}.
+     *
+     * @param key the key to clear
+     */
+    @Override
+    public void clear(K key) {
+
+        ObjectDeque<T> objectDeque = register(key);
+
+        try {
+            IdleObjectStore<PooledObject<T>> idleObjects =
+                    objectDeque.getIdleObjects();
+
+            PooledObject<T> p = idleObjects.poll();
+
+            while (p != null) {
+                try {
+                    destroy(key, p, true);
+                } catch (Exception e) {
+                    swallowException(e);
+                }
+                p = idleObjects.poll();
+            }
+        } finally {
+            deregister(key);
+        }
+    }
+
+
+    @Override
+    public int getNumActive() {
+        return numTotal.get() - getNumIdle();
+    }
+
+
+    @Override
+    public int getNumIdle() {
+        // May briefly be lower while an object allocated in place is being
+        // made idle again, see CountingIdleObjectStore
+        return (int) Math.max(0, numIdle.sum());
+    }
+
+
+    @Override
+    public int getNumActive(K key) {
+        final ObjectDeque<T> objectDeque = poolMap.get(key);
+        if (objectDeque != null) {
+            return objectDeque.getAllObjects().size() -
+                    objectDeque.getIdleObjects().size();
+        } else {
+            return 0;
+        }
+    }
+
+
+    @Override
+    public int getNumIdle(K key) {
+        final ObjectDeque<T> objectDeque = poolMap.get(key);
+        return objectDeque != null ? objectDeque.getIdleObjects().size() : 0;
+    }
+
+
+    /**
+     * Closes the keyed object pool. Once the pool is closed,
+     * {@link #borrowObject(Object)} will fail with IllegalStateException, but
+     * {@link #returnObject(Object, Object)} and
+     * {@link #invalidateObject(Object, Object)} will continue to work, with
+     * returned objects destroyed on return.
+     * <p>
+     * Destroys idle instances in the pool by invoking {@link #clear()}.
+     */
+    @Override
+    public void close() {
+        if (isClosed()) {
+            return;
+        }
+
+        synchronized (closeLock) {
+            if (isClosed()) {
+                return;
+            }
+
+            // Stop the evictor before the pool is closed since evict() calls
+            // assertOpen()
+            startEvictor(-1L);
+
+            closed = true;
+            // This clear removes any idle objects
+            clear();
+            // The caches of other threads only reference the objects weakly
+            affinityCache.remove();
+
+            jmxUnregister();
+
+            // Release any threads that were waiting for an object
+            Iterator<ObjectDeque<T>> iter = poolMap.values().iterator();
+            while (iter.hasNext()) {
+                ObjectDeque<T> objectDeque = iter.next();
+                objectDeque.getIdleObjects().interuptTakeWaiters();
+                objectDeque.interruptCreateWaiters();
+                failAsyncWaiters(objectDeque);
+            }
+            // This clear cleans up the keys now any waiting threads have been
+            // interrupted
+            clear();
+        }
+    }
+
+
+    /**
+     * Clears the oldest {@link #getClearOldestRatio() clearOldestRatio}
+     * (15% by default) of the idle objects in the pool, plus one.
+     * <p>
+     * The candidates are collected in a heap bounded to the number of objects
+     * to clear rather than by sorting every idle object, and the keys are
+     * visited through {@link #oldestIdle}, oldest first, so the visit stops
+     * at the first key whose objects are all younger than every candidate
+     * found so far rather than going through every key. Idle objects are
+     * kept in the order they were returned, so each key is visited from its
+     * oldest object and the visit of a key stops in the same way. An object
+     * returned to the head of its key out of order (after an eviction test)
+     * may therefore be skipped.
+     */
+    public void clearOldest() {
+
+        final int numToClear = (int) Math.min(
+                (long) (getNumIdle() * getClearOldestRatio()) + 1,
+                Integer.MAX_VALUE);
+
+        // Heap of the oldest idle objects found so far, youngest at the head
+        final PriorityQueue<Entry<PooledObject<T>, K>> oldest =
+            new PriorityQueue<Entry<PooledObject<T>, K>>(
+                    Math.min(numToClear, 1024),
+                    new Comparator<Entry<PooledObject<T>, K>>() {
+                        @Override
+                        public int compare(Entry<PooledObject<T>, K> e1,
+                                Entry<PooledObject<T>, K> e2) {
+                            return e2.getKey().compareTo(e1.getKey());
+                        }
+                    });
+
+        // A key may be seen twice while another thread moves its entry
+        final Set<ObjectDeque<T>> visited = new LinkedHashSet<ObjectDeque<T>>();
+        for (OldestIdle entry : oldestIdle) {
+            if (oldest.size() >= numToClear &&
+                    entry.time >= oldest.peek().getKey().getLastReturnTime()) {
+                // This key and the keys after it are younger still
+                break;
+            }
+            final ObjectDeque<T> queue = entry.objectDeque;
+            if (!visited.add(queue)) {
+                continue;
+            }
+            final K k = queue.getKey();
+            final IdleObjectStore<PooledObject<T>> idleObjects =
+                queue.getIdleObjects();
+            // The oldest object is at the tail for LIFO and at the head
+            // for FIFO
+            Iterator<PooledObject<T>> iter = getLifo() ?
+                    idleObjects.descendingIterator() : idleObjects.iterator();
+            while (iter.hasNext()) {
+                PooledObject<T> p = iter.next();
+                if (oldest.size() < numToClear) {
+                    oldest.add(new AbstractMap.SimpleImmutableEntry<PooledObject<T>, K>(p, k));
+                } else if (p.compareTo(oldest.peek().getKey()) < 0) {
+                    oldest.poll();
+                    oldest.add(new AbstractMap.SimpleImmutableEntry<PooledObject<T>, K>(p, k));
+                } else {
+                    // The rest of this key is younger still
+                    break;
+                }
+            }
+        }
+
+        for (Entry<PooledObject<T>, K> entry : oldest) {
+            try {
+                destroy(entry.getValue(), entry.getKey(), false);
+            } catch (Exception e) {
+                swallowException(e);
+            }
+        }
+
+        // Move the visited keys to the return time of their oldest object
+        for (ObjectDeque<T> queue : visited) {
+            long time = clock.currentTimeMillis();
+            IdleObjectStore<PooledObject<T>> idleObjects = queue.getIdleObjects();
+            PooledObject<T> p = getLifo() ?
+                    idleObjects.peekLast() : idleObjects.peekFirst();
+            if (p != null) {
+                time = Math.min(time, p.getLastReturnTime());
+            }
+            updateOldestIdle(queue, time);
+        }
+    }
+
+    /**
+     * Move the entry of a key in {@link #oldestIdle}, or add it if there is
+     * none yet. The entry is not added for a key that has been removed from
+     * {@link #poolMap}, see {@link #removeOldestIdle(ObjectDeque)}.
+     * <p>
+     * The new entry is added before the old one is removed, as in
+     * {@link #updateBorrowWaiters(Object, ObjectDeque, int)}, so that a
+     * concurrent {@link #clearOldest()} never misses the key.
+     *
+     * @param objectDeque The objects associated with the key
+     * @param time No later than the return time of the oldest idle object
+     *             of the key, or of any object made idle from now on
+     */
+    private void updateOldestIdle(ObjectDeque<T> objectDeque, long time) {
+        synchronized (objectDeque) {
+            if (poolMap.get(objectDeque.getKey()) != objectDeque) {
+                return;
+            }
+            OldestIdle current = objectDeque.oldestIdle;
+            if (current != null && current.time == time) {
+                return;
+            }
+            OldestIdle next = new OldestIdle(objectDeque, time);
+            oldestIdle.add(next);
+            if (current != null) {
+                oldestIdle.remove(current);
+            }
+            objectDeque.oldestIdle = next;
+        }
+    }
+
+    /**
+     * Remove the entry of a key from {@link #oldestIdle} once the key has
+     * been removed from {@link #poolMap}.
+     *
+     * @param objectDeque The objects associated with the key
+     */
+    private void removeOldestIdle(ObjectDeque<T> objectDeque) {
+        synchronized (objectDeque) {
+            if (objectDeque.oldestIdle != null) {
+                oldestIdle.remove(objectDeque.oldestIdle);
+                objectDeque.oldestIdle = null;
+            }
+        }
+    }
+
+    /**
+     * Attempt to create one new instance to serve from the most heavily
+     * loaded pool that can add a new instance.
+     *
+     * This method exists to ensure liveness in the pool when threads are
+     * parked waiting and capacity to create instances under the requested keys
+     * subsequently becomes available.
+     *
+     * This method is not guaranteed to create an instance and its selection
+     * of the most loaded pool that can create an instance may not always be
+     * correct, since it does not lock the pool and instances may be created,
+     * borrowed, returned or destroyed by other threads while it is executing.
+     * <p>
+     * Only keys with waiting threads are visited, most loaded first, so the
+     * cost does not depend on the total number of keys.
+     */
+    private void reuseCapacity() {
+        final int maxTotalPerKeySave = getMaxTotalPerKey();
+
+        // Find the most loaded pool that could take a new instance
+        K loadedKey = null;
+        for (BorrowWaiters waiters : borrowWaiters) {
+            if (getNumActive(waiters.key) < maxTotalPerKeySave) {
+                loadedKey = waiters.key;
+                break;
+            }
+        }
+
+        // Attempt to add an instance to the most loaded pool
+        if (loadedKey != null) {
+            if (asyncFactory != null) {
+                startAsyncCreate(loadedKey);
+                return;
+            }
+            register(loadedKey);
+            try {
+                PooledObject<T> p = create(loadedKey);
+                if (p != null) {
+                    addIdleObject(loadedKey, p);
+                }
+            } catch (Exception e) {
+                swallowException(e);
+            } finally {
+                deregister(loadedKey);
+            }
+        }
+    }
+
+    /**
+     * Checks to see if there are any threads currently waiting to borrow
+     * objects but are blocked waiting for more objects to become available.
+     *
+     * @return {@code true} if there is at least one thread waiting otherwise
+     *         {@code false}
+     */
+    private boolean hasBorrowWaiters() {
+        return !borrowWaiters.isEmpty();
+    }
+
+    /**
+     * Checks to see if there are any threads or asynchronous borrowers
+     * waiting for an object of the given key.
+     *
+     * @param objectDeque The objects associated with the key
+     *
+     * @return {@code true} if there is at least one borrower waiting
+     */
+    private boolean hasBorrowWaiters(ObjectDeque<T> objectDeque) {
+        return objectDeque.getIdleObjects().hasTakeWaiters() ||
+                objectDeque.hasCreateWaiters() ||
+                !objectDeque.getAsyncWaiters().isEmpty();
+    }
+
+    /**
+     * Record that a thread starts or stops waiting to borrow an object for
+     * the given key, keeping {@link #borrowWaiters} ordered by the number of
+     * waiting threads per key.
+     * <p>
+     * The entry with the new count is added before the old one is removed so
+     * that a key with waiters never disappears from the set, even briefly.
+     *
+     * @param key The key the thread is waiting for
+     * @param objectDeque The objects associated with the key
+     * @param delta 1 when a thread starts waiting, -1 when it stops
+     */
+    private void updateBorrowWaiters(K key, ObjectDeque<T> objectDeque,
+            int delta) {
+        synchronized (objectDeque) {
+            BorrowWaiters current = objectDeque.borrowWaiters;
+            int numWaiters = (current == null ? 0 : current.numWaiters) + delta;
+            BorrowWaiters next = null;
+            if (numWaiters > 0) {
+                next = new BorrowWaiters(key, objectDeque.id, numWaiters);
+                borrowWaiters.add(next);
+            }
+            if (current != null) {
+                borrowWaiters.remove(current);
+            }
+            objectDeque.borrowWaiters = next;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Successive activations of this method examine objects in keyed sub-pools
+     * in sequence, cycling through the keys and examining objects in
+     * oldest-to-youngest order within the keyed sub-pools. If
+     * {@link #getEvictionParallelism() evictionParallelism} is more than 1,
+     * the keys are split into that many partitions which are examined in
+     * parallel, each cycling through its own keys.
+     */
+    @Override
+    public void evict() throws Exception {
+        assertOpen();
+
+        if (getNumIdle() == 0) {
+            return;
+        }
+
+        EvictionPolicy<T> evictionPolicy = getEvictionPolicy();
+
+        synchronized (evictionLock) {
+            EvictionConfig evictionConfig = new EvictionConfig(
+                    getMinEvictableIdleTimeMillis(),
+                    getSoftMinEvictableIdleTimeMillis(),
+                    getMinIdlePerKey());
+
+            boolean testWhileIdle = getTestWhileIdle();
+
+            if (getIdleExpiryIndex()) {
+                evictExpired(evictionPolicy, evictionConfig, testWhileIdle);
+                return;
+            }
+            if (expiryIndexWindow != EXPIRY_NOT_INDEXED) {
+                // The index has been switched off, free it
+                for (ObjectDeque<T> objectDeque : poolMap.values()) {
+                    objectDeque.expiryWheel = null;
+                }
+                expiryIndexWindow = EXPIRY_NOT_INDEXED;
+            }
+
+            int parallelism = getEvictionParallelism();
+            if (evictionCursors == null || evictionCursors.size() != parallelism) {
+                List<EvictionCursor> cursors =
+                        new ArrayList<EvictionCursor>(parallelism);
+                for (int p = 0; p < parallelism; p++) {
+                    cursors.add(new EvictionCursor(p));
+                }
+                evictionCursors = cursors;
+                evictionRemainderStart = 0;
+                evictionSweepStart = System.nanoTime();
+            }
+
+            try {
+                if (parallelism == 1) {
+                    evictPartition(evictionCursors.get(0), getNumTests(),
+                            evictionPolicy, evictionConfig, testWhileIdle);
+                } else {
+                    evictPartitions(getNumTests(), evictionPolicy,
+                            evictionConfig, testWhileIdle);
+                }
+            } finally {
+                updateEvictionSweep();
+            }
+        }
+    }
+
+    /**
+     * Examine the partitions of the keys in parallel, the first one on the
+     * calling thread and the others on the eviction executor, and wait for
+     * all of them. The tests are shared out evenly, the ones left over going
+     * to the next partitions in turn from one run to the next.
+     *
+     * @param numTests The number of objects to examine in all partitions
+     * @param evictionPolicy The eviction policy
+     * @param evictionConfig The eviction configuration
+     * @param testWhileIdle Whether idle objects are validated
+     *
+     * @throws Exception as for {@link #evict()}, from the first partition
+     *                   that failed
+     */
+    private void evictPartitions(int numTests,
+            final EvictionPolicy<T> evictionPolicy,
+            final EvictionConfig evictionConfig, final boolean testWhileIdle)
+            throws Exception {
+        final int n = evictionCursors.size();
+        int share = numTests / n;
+        int remainder = numTests % n;
+        final Throwable[] failures = new Throwable[n];
+        final CountDownLatch done = new CountDownLatch(n - 1);
+        // The evictor thread runs with the class loader of the factory
+        final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        Executor executor = evictionExecutor;
+
+        for (int p = 1; p < n; p++) {
+            final EvictionCursor cursor = evictionCursors.get(p);
+            final int tests = share +
+                    ((p - evictionRemainderStart + n) % n < remainder ? 1 : 0);
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    Thread thread = Thread.currentThread();
+                    ClassLoader savedClassLoader = thread.getContextClassLoader();
+                    thread.setContextClassLoader(cl);
+                    try {
+                        evictPartition(cursor, tests, evictionPolicy,
+                                evictionConfig, testWhileIdle);
+                    } catch (Throwable t) {
+                        failures[cursor.partition] = t;
+                    } finally {
+                        thread.setContextClassLoader(savedClassLoader);
+                        done.countDown();
+                    }
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+
+        try {
+            evictPartition(evictionCursors.get(0),
+                    share + ((n - evictionRemainderStart) % n < remainder ? 1 : 0),
+                    evictionPolicy, evictionConfig, testWhileIdle);
+        } catch (Throwable t) {
+            failures[0] = t;
+        }
+
+        // The other partitions must be finished before the next run may
+        // start, so wait for them even if interrupted
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        evictionRemainderStart = (evictionRemainderStart + remainder) % n;
+
+        for (Throwable t : failures) {
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            if (t != null) {
+                throw (Exception) t;
+            }
+        }
+    }
+
+    /**
+     * Examine up to the given number of idle objects of one partition of the
+     * keys, continuing from where the previous run of the partition stopped.
+     *
+     * @param cursor The place of the partition in its keys
+     * @param numTests The number of objects to examine
+     * @param evictionPolicy The eviction policy
+     * @param evictionConfig The eviction configuration
+     * @param testWhileIdle Whether idle objects are validated
+     *
+     * @throws Exception as for {@link #evict()}
+     */
+    private void evictPartition(EvictionCursor cursor, int numTests,
+            EvictionPolicy<T> evictionPolicy, EvictionConfig evictionConfig,
+            boolean testWhileIdle) throws Exception {
+        ValidationBatch batch = null;
+        try {
+            for (int i = 0; i < numTests; i++) {
+                PooledObject<T> underTest = cursor.next();
+                if (underTest == null) {
+                    // Pools exhausted
+                    return;
+                }
+                K evictionKey = cursor.key;
+                final Deque<PooledObject<T>> idleObjects =
+                        cursor.iterator.getIdleObjects();
+
+                if (!underTest.startEvictionTest()) {
+                    // Object was borrowed in another thread
+                    // Don't count this as an eviction test so reduce i;
+                    i--;
+                    continue;
+                }
+
+                batch = validationBatch(batch, evictionKey, idleObjects,
+                        testWhileIdle);
+                evictionTest(evictionKey, underTest, idleObjects, evictionPolicy,
+                        evictionConfig, testWhileIdle, batch);
+            }
+        } finally {
+            validateBatch(batch);
+        }
+    }
+
+    /**
+     * Returns the batch the objects of a key are to be validated in, see
+     * {@link BatchValidatingKeyedPooledObjectFactory}, validating the
+     * current batch first if it is for another key.
+     *
+     * @param batch The current batch, or <code>null</code>
+     * @param evictionKey The key of the next object
+     * @param idleObjects The idle objects of the key
+     * @param testWhileIdle Whether idle objects are validated
+     *
+     * @return the batch for the key, or <code>null</code> if objects are
+     *         validated one at a time
+     *
+     * @throws Exception as for {@link #evict()}
+     */
+    private ValidationBatch validationBatch(ValidationBatch batch,
+            K evictionKey, Deque<PooledObject<T>> idleObjects,
+            boolean testWhileIdle) throws Exception {
+        if (!testWhileIdle ||
+                !(factory instanceof BatchValidatingKeyedPooledObjectFactory)) {
+            validateBatch(batch);
+            return null;
+        }
+        if (batch != null && batch.key.equals(evictionKey) &&
+                batch.idleObjects == idleObjects) {
+            return batch;
+        }
+        validateBatch(batch);
+        return new ValidationBatch(evictionKey, idleObjects);
+    }
+
+    /**
+     * Validate the objects gathered in a batch: destroy those the factory
+     * reports as invalid, passivate the others and end their eviction test.
+     *
+     * @param batch The batch, or <code>null</code>
+     *
+     * @throws Exception as for {@link #evict()}
+     */
+    private void validateBatch(ValidationBatch batch) throws Exception {
+        if (batch == null || batch.objects.isEmpty()) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        BatchValidatingKeyedPooledObjectFactory<K,T> batchFactory =
+                (BatchValidatingKeyedPooledObjectFactory<K,T>) factory;
+        List<PooledObject<T>> objects =
+                new ArrayList<PooledObject<T>>(batch.objects);
+        batch.objects.clear();
+
+        Set<PooledObject<T>> invalid = Collections.newSetFromMap(
+                new IdentityHashMap<PooledObject<T>, Boolean>());
+        try {
+            Collection<PooledObject<T>> result =
+                    batchFactory.validateObjects(batch.key, objects);
+            if (result != null) {
+                invalid.addAll(result);
+            }
+        } catch (Throwable t) {
+            PoolUtils.checkRethrow(t);
+            swallowException(t instanceof Exception ? (Exception) t :
+                    new Exception(t));
+            invalid.addAll(objects);
+        }
+
+        // Every object gets its eviction test ended, even if destroying or
+        // passivating another one fails; the first failure is thrown after
+        ObjectDeque<T> evictionDeque = poolMap.get(batch.key);
+        Exception failure = null;
+        for (PooledObject<T> underTest : objects) {
+            try {
+                if (invalid.contains(underTest)) {
+                    destroy(batch.key, underTest, true);
+                    updateStatsDestroyedByEvictor(evictionDeque);
+                } else {
+                    markValidated(batch.key, underTest);
+                    passivateTested(batch.key, underTest, evictionDeque);
+                }
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            } finally {
+                endEvictionTest(batch.key, underTest, batch.idleObjects);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Examine an idle object that has been marked as under eviction test:
+     * evict it if the eviction policy says so, otherwise validate it if
+     * testWhileIdle is set and end the test.
+     *
+     * @param evictionKey The key of the object
+     * @param underTest The object
+     * @param idleObjects The idle objects of the key
+     * @param evictionPolicy The eviction policy
+     * @param evictionConfig The eviction configuration
+     * @param testWhileIdle Whether idle objects are validated
+     * @param batch The batch the object is validated in once activated, or
+     *              <code>null</code> to validate it now
+     *
+     * @return <code>true</code> if the object was kept or added to the
+     *         batch, <code>false</code> if it was destroyed
+     *
+     * @throws Exception as for {@link #evict()}
+     */
+    private boolean evictionTest(K evictionKey, PooledObject<T> underTest,
+            Deque<PooledObject<T>> idleObjects, EvictionPolicy<T> evictionPolicy,
+            EvictionConfig evictionConfig, boolean testWhileIdle,
+            ValidationBatch batch) throws Exception {
+        // User provided eviction policy could throw all sorts of
+        // crazy exceptions. Protect against such an exception
+        // killing the eviction thread.
+        ObjectDeque<T> evictionDeque = poolMap.get(evictionKey);
+        boolean evict;
+        try {
+            evict = evictionPolicy.evict(evictionConfig, underTest,
+                    evictionDeque.getIdleObjects().size());
+        } catch (Throwable t) {
+            // Slightly convoluted as SwallowedExceptionListener
+            // uses Exception rather than Throwable
+            PoolUtils.checkRethrow(t);
+            swallowException(new Exception(t));
+            // Don't evict on error conditions
+            evict = false;
+        }
+
+        if (evict) {
+            destroy(evictionKey, underTest, true);
+            updateStatsDestroyedByEvictor(evictionDeque);
+        } else {
+            if (testWhileIdle) {
+                boolean active = false;
+                try {
+                    factory.activateObject(evictionKey, underTest);
+                    active = true;
+                } catch (Exception e) {
+                    destroy(evictionKey, underTest, true);
+                    updateStatsDestroyedByEvictor(evictionDeque);
+                }
+                if (active) {
+                    if (batch != null) {
+                        // Validated with the other objects of the key
+                        batch.objects.add(underTest);
+                        return true;
+                    }
+                    boolean valid;
+                    try {
+                        valid = validate(evictionKey, underTest);
+                    } catch (RuntimeException e) {
+                        // Destroy rather than leave it under test, where a
+                        // borrower would drop it, then report the failure
+                        destroy(evictionKey, underTest, true);
+                        updateStatsDestroyedByEvictor(evictionDeque);
+                        throw e;
+                    }
+                    if (!valid) {
+                        destroy(evictionKey, underTest, true);
+                        updateStatsDestroyedByEvictor(evictionDeque);
+                    } else {
+                        passivateTested(evictionKey, underTest, evictionDeque);
+                    }
+                }
+            }
+            endEvictionTest(evictionKey, underTest, idleObjects);
+        }
+        return underTest.getState() != PooledObjectState.INVALID;
+    }
+
+    /**
+     * Passivate an object that passed validation by the evictor, destroying
+     * it if that fails.
+     *
+     * @param evictionKey The key of the object
+     * @param underTest The object
+     * @param evictionDeque The objects associated with the key
+     *
+     * @throws Exception as for {@link #evict()}
+     */
+    private void passivateTested(K evictionKey, PooledObject<T> underTest,
+            ObjectDeque<T> evictionDeque) throws Exception {
+        try {
+            factory.passivateObject(evictionKey, underTest);
+        } catch (Exception e) {
+            destroy(evictionKey, underTest, true);
+            updateStatsDestroyedByEvictor(evictionDeque);
+        }
+    }
+
+    /**
+     * End the eviction test of an object that has not been evicted and
+     * serve the borrowers that queued meanwhile.
+     *
+     * @param evictionKey The key of the object
+     * @param underTest The object
+     * @param idleObjects The idle objects of the key
+     */
+    private void endEvictionTest(K evictionKey, PooledObject<T> underTest,
+            Deque<PooledObject<T>> idleObjects) {
+        // If a borrower tried to allocate the object while it was tested,
+        // the object is now put back at the head of the idle objects, where
+        // serveAsyncWaiters() relies on it being served from
+        underTest.endEvictionTest(idleObjects);
+        // A borrower may have queued while the object was tested
+        ObjectDeque<T> objectDeque = poolMap.get(evictionKey);
+        if (objectDeque != null) {
+            serveAsyncWaiters(evictionKey, objectDeque);
+        }
+    }
+
+    /**
+     * Examine the idle objects that are due in the expiry index of every
+     * key, see {@link #setIdleExpiryIndex(boolean)}. The index is first
+     * rebuilt from the idle objects if it has not been built yet or the idle
+     * expiry time has changed.
+     *
+     * @param evictionPolicy The eviction policy
+     * @param evictionConfig The eviction configuration
+     * @param testWhileIdle Whether idle objects are validated
+     *
+     * @throws Exception as for {@link #evict()}
+     */
+    private void evictExpired(EvictionPolicy<T> evictionPolicy,
+            EvictionConfig evictionConfig, boolean testWhileIdle)
+            throws Exception {
+        long window = getIdleExpiryWindow();
+        if (window != expiryIndexWindow) {
+            expiryIndexWindow = window;
+            for (ObjectDeque<T> objectDeque : poolMap.values()) {
+                objectDeque.expiryWheel = null;
+                if (window > 0) {
+                    for (PooledObject<T> p : objectDeque.getIdleObjects()) {
+                        scheduleExpiry(objectDeque, p, window -
+                                p.getIdleTimeMillis());
+                    }
+                }
+            }
+        }
+        if (window <= 0) {
+            return;
+        }
+
+        for (Entry<K,ObjectDeque<T>> entry : poolMap.entrySet()) {
+            K evictionKey = entry.getKey();
+            ObjectDeque<T> objectDeque = entry.getValue();
+            ExpiryWheel<PooledObject<T>> wheel = objectDeque.expiryWheel;
+            if (wheel == null) {
+                continue;
+            }
+            ValidationBatch batch = validationBatch(null, evictionKey,
+                    objectDeque.getIdleObjects(), testWhileIdle);
+            try {
+                for (PooledObject<T> underTest : wheel.expire(clock.currentTimeMillis())) {
+                    if (underTest.getState() != PooledObjectState.IDLE) {
+                        // Borrowed, and indexed again when it is returned
+                        continue;
+                    }
+                    long remaining = window - underTest.getIdleTimeMillis();
+                    if (remaining > 0) {
+                        // Put back in the idle objects since it was indexed
+                        scheduleExpiry(objectDeque, underTest, remaining);
+                        continue;
+                    }
+                    if (!underTest.startEvictionTest()) {
+                        // Object was borrowed in another thread
+                        continue;
+                    }
+                    if (evictionTest(evictionKey, underTest,
+                            objectDeque.getIdleObjects(), evictionPolicy,
+                            evictionConfig, testWhileIdle, batch)) {
+                        // Removed again if the batch finds it invalid
+                        scheduleExpiry(objectDeque, underTest, window);
+                    }
+                }
+            } finally {
+                validateBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * Index an idle object to be due after the given time, if the expiry
+     * index is used.
+     *
+     * @param objectDeque The objects associated with the key of the object
+     * @param p The idle object
+     * @param delay The time in milliseconds after which the object is due
+     */
+    private void scheduleExpiry(ObjectDeque<T> objectDeque, PooledObject<T> p,
+            long delay) {
+        if (!idleExpiryIndex) {
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        ExpiryWheel<PooledObject<T>> wheel = objectDeque.expiryWheel;
+        if (wheel == null) {
+            synchronized (objectDeque) {
+                wheel = objectDeque.expiryWheel;
+                if (wheel == null) {
+                    long period = getTimeBetweenEvictionRunsMillis();
+                    wheel = new ExpiryWheel<PooledObject<T>>(
+                            period > 0 ? period : EXPIRY_TICK_MILLIS, now);
+                    objectDeque.expiryWheel = wheel;
+                }
+            }
+        }
+        wheel.schedule(p, now + Math.max(0, delay));
+    }
+
+    /**
+     * Index an object that has just become idle, if the expiry index is used.
+     *
+     * @param objectDeque The objects associated with the key of the object
+     * @param p The idle object
+     */
+    private void scheduleExpiry(ObjectDeque<T> objectDeque, PooledObject<T> p) {
+        if (idleExpiryIndex) {
+            long window = getIdleExpiryWindow();
+            if (window > 0) {
+                scheduleExpiry(objectDeque, p, window);
+            }
+        }
+    }
+
+    /**
+     * Returns the time after which an idle object is due in the expiry
+     * index: the shorter of minEvictableIdleTimeMillis and
+     * softMinEvictableIdleTimeMillis, ignoring values that are not positive.
+     *
+     * @return the time in milliseconds, not positive if objects are never due
+     */
+    private long getIdleExpiryWindow() {
+        long min = getMinEvictableIdleTimeMillis();
+        long soft = getSoftMinEvictableIdleTimeMillis();
+        if (min <= 0) {
+            return soft;
+        }
+        if (soft <= 0) {
+            return min;
+        }
+        return Math.min(min, soft);
+    }
+
+    /**
+     * Record the time of a sweep once every partition has been through all
+     * its keys since the sweep started.
+     */
+    private void updateEvictionSweep() {
+        for (EvictionCursor cursor : evictionCursors) {
+            if (cursor.isAtEnd()) {
+                // Start again at the first key without counting it twice
+                cursor.swept = true;
+                cursor.keyIterator = null;
+            }
+            if (!cursor.swept) {
+                return;
+            }
+        }
+        long now = System.nanoTime();
+        long sweepTime = TimeUnit.NANOSECONDS.toMillis(now - evictionSweepStart);
+        evictionSweepTimes.add(sweepTime);
+        lastEvictionSweepTimeMillis = sweepTime;
+        evictionSweepCount++;
+        evictionSweepStart = now;
+        for (EvictionCursor cursor : evictionCursors) {
+            cursor.swept = false;
+        }
+    }
+
+    /**
+     * Create a new pooled object.
+     *
+     * @param key Key associated with new pooled object
+     *
+     * @return The new, wrapped pooled object
+     *
+     * @throws Exception If the objection creation fails
+     */
+    private PooledObject<T> create(K key) throws Exception {
+        return create(key, poolMap.get(key));
+    }
+
+    /**
+     * Create a new pooled object.
+     *
+     * @param key Key associated with new pooled object
+     * @param objectDeque The objects associated with the key
+     *
+     * @return The new, wrapped pooled object
+     *
+     * @throws Exception If the objection creation fails
+     */
+    private PooledObject<T> create(K key, ObjectDeque<T> objectDeque)
+            throws Exception {
+        if (!acquireCreatingSlot(objectDeque)) {
+            return null;
+        }
+        try {
+            if (!reserveCapacity(objectDeque)) {
+                return null;
+            }
+
+            PooledObject<T> p = null;
+            try {
+                p = factory.makeObject(key);
+            } catch (Exception e) {
+                releaseCapacity(objectDeque);
+                throw e;
+            }
+
+            created(objectDeque, p);
+            return p;
+        } finally {
+            releaseCreatingSlot(objectDeque);
+        }
+    }
+
+    /**
+     * Take a slot for an object about to be created under the given key,
+     * unless {@link #getMaxCreatingPerKey() maxCreatingPerKey} objects are
+     * already being created for the key or {@link #getMaxCreating()
+     * maxCreating} objects in the whole pool.
+     *
+     * @param objectDeque The objects associated with the key
+     *
+     * @return <code>true</code> if a slot was taken; it must be given back
+     *         by {@link #releaseCreatingSlot} once the creation is over
+     */
+    private boolean acquireCreatingSlot(ObjectDeque<T> objectDeque) {
+        int maxCreatingPerKeySave = getMaxCreatingPerKey(); // Per key
+        int maxCreatingSave = getMaxCreating();             // All keys
+
+        AtomicInteger creatingCount = objectDeque.getCreatingCount();
+        int creating;
+        do {
+            creating = creatingCount.get();
+            if (maxCreatingPerKeySave > -1 && creating >= maxCreatingPerKeySave) {
+                return false;
+            }
+        } while (!creatingCount.compareAndSet(creating, creating + 1));
+
+        do {
+            creating = numCreating.get();
+            if (maxCreatingSave > -1 && creating >= maxCreatingSave) {
+                creatingCount.decrementAndGet();
+                return false;
+            }
+        } while (!numCreating.compareAndSet(creating, creating + 1));
+        return true;
+    }
+
+    /**
+     * Give back a slot taken by {@link #acquireCreatingSlot} and let a
+     * borrower waiting in {@link #awaitIdleOrCreatingSlot} try to create an
+     * object, see {@link #signalCreateWaiter}.
+     *
+     * @param objectDeque The objects associated with the key
+     */
+    private void releaseCreatingSlot(ObjectDeque<T> objectDeque) {
+        objectDeque.getCreatingCount().decrementAndGet();
+        numCreating.decrementAndGet();
+        signalCreateWaiter(objectDeque);
+    }
+
+    /**
+     * Let a borrower waiting in {@link #awaitIdleOrCreatingSlot} try again
+     * after a creating slot or room for an object has been given back: one
+     * of the same key if there is one, otherwise one of the key with the
+     * most waiting borrowers.
+     *
+     * @param objectDeque The objects associated with the key of the slot or
+     *                    the room
+     */
+    private void signalCreateWaiter(ObjectDeque<T> objectDeque) {
+        if (objectDeque.signalCreateWaiter() || numCreateWaiters.get() == 0) {
+            return;
+        }
+        for (BorrowWaiters waiters : borrowWaiters) {
+            ObjectDeque<T> waiting = poolMap.get(waiters.key);
+            if (waiting != null && waiting.signalCreateWaiter()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Whether borrowers blocked for an object wait in
+     * {@link #awaitIdleOrCreatingSlot} rather than on the idle objects,
+     * because the number of objects being created at the same time is
+     * limited.
+     *
+     * @return <code>true</code> if {@link #getMaxCreatingPerKey()} or
+     *         {@link #getMaxCreating()} is set
+     */
+    private boolean isCreateThrottled() {
+        return getMaxCreatingPerKey() > -1 || getMaxCreating() > -1;
+    }
+
+    /**
+     * Wait until an object is added to the idle objects of the given key, or
+     * a creating slot or room for an object is given back, whichever comes
+     * first.
+     * <p>
+     * The caller has found no idle object and could not create one. It only
+     * waits if that is still true once it is counted as a waiter, so that no
+     * return, completed creation or destroyed object is missed. It does not
+     * return before a creation could succeed, so a borrower of a key that has
+     * reached {@link #getMaxTotalPerKey() maxTotalPerKey} waits rather than
+     * taking a free creating slot over and over.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param waitTime The time the borrow started, in milliseconds
+     * @param borrowMaxWaitMillis The time to wait in milliseconds for an
+     *                            object to become available; a negative
+     *                            value waits indefinitely
+     *
+     * @return <code>false</code> if the wait timed out
+     *
+     * @throws InterruptedException if the thread was interrupted
+     */
+    private boolean awaitIdleOrCreatingSlot(K key, ObjectDeque<T> objectDeque,
+            long waitTime, long borrowMaxWaitMillis)
+            throws InterruptedException {
+        long nanos = -1;
+        if (borrowMaxWaitMillis >= 0) {
+            nanos = TimeUnit.MILLISECONDS.toNanos(borrowMaxWaitMillis -
+                    (clock.currentTimeMillis() - waitTime));
+            if (nanos <= 0) {
+                return false;
+            }
+        }
+
+        updateBorrowWaiters(key, objectDeque, 1);
+        numCreateWaiters.incrementAndGet();
+        objectDeque.getCreateWaiters().incrementAndGet();
+        try {
+            long signals = objectDeque.getCreateSignals();
+            if (!objectDeque.getIdleObjects().isEmpty() ||
+                    canAcquireCreatingSlot(objectDeque) &&
+                    hasCapacity(objectDeque)) {
+                return true;
+            }
+            return objectDeque.awaitCreateSignal(signals, nanos);
+        } finally {
+            objectDeque.getCreateWaiters().decrementAndGet();
+            numCreateWaiters.decrementAndGet();
+            updateBorrowWaiters(key, objectDeque, -1);
+        }
+    }
+
+    /**
+     * Checks whether {@link #acquireCreatingSlot} would currently succeed.
+     *
+     * @param objectDeque The objects associated with the key
+     *
+     * @return <code>true</code> if neither creation limit has been reached
+     */
+    private boolean canAcquireCreatingSlot(ObjectDeque<T> objectDeque) {
+        int maxCreatingPerKeySave = getMaxCreatingPerKey();
+        int maxCreatingSave = getMaxCreating();
+        return (maxCreatingPerKeySave < 0 ||
+                objectDeque.getCreatingCount().get() < maxCreatingPerKeySave) &&
+                (maxCreatingSave < 0 || numCreating.get() < maxCreatingSave);
+    }
+
+    /**
+     * Checks whether {@link #reserveCapacity} would currently succeed.
+     *
+     * @param objectDeque The objects associated with the key
+     *
+     * @return <code>true</code> if the key is below
+     *         {@link #getMaxTotalPerKey() maxTotalPerKey} and the pool below
+     *         {@link #getMaxTotal() maxTotal}, or has idle objects to clear
+     */
+    private boolean hasCapacity(ObjectDeque<T> objectDeque) {
+        int maxTotalPerKeySave = getMaxTotalPerKey();
+        int maxTotal = getMaxTotal();
+        return (maxTotalPerKeySave < 0 ||
+                objectDeque.getCreateCount().get() < maxTotalPerKeySave) &&
+                (maxTotal < 0 || numTotal.get() < maxTotal || getNumIdle() > 0);
+    }
+
+    /**
+     * Reserve room for a new object under the given key, clearing the oldest
+     * idle objects if {@link #getMaxTotal() maxTotal} has been reached.
+     *
+     * @param objectDeque The objects associated with the key
+     *
+     * @return <code>true</code> if room was reserved; it must then either be
+     *         taken by {@link #created} or given back by
+     *         {@link #releaseCapacity}
+     */
+    private boolean reserveCapacity(ObjectDeque<T> objectDeque) {
+        int maxTotalPerKeySave = getMaxTotalPerKey(); // Per key
+        int maxTotal = getMaxTotal();   // All keys
+
+        // Check against the overall limit
+        boolean loop = true;
+
+        while (loop) {
+            int newNumTotal = numTotal.incrementAndGet();
+            if (maxTotal > -1 && newNumTotal > maxTotal) {
+                numTotal.decrementAndGet();
+                if (getNumIdle() == 0) {
+                    return false;
+                } else {
+                    clearOldest();
+                }
+            } else {
+                loop = false;
+            }
+        }
+
+        long newCreateCount = objectDeque.getCreateCount().incrementAndGet();
+
+        // Check against the per key limit
+        if (maxTotalPerKeySave > -1 && newCreateCount > maxTotalPerKeySave ||
+                newCreateCount > Integer.MAX_VALUE) {
+            numTotal.decrementAndGet();
+            objectDeque.getCreateCount().decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give back room reserved by {@link #reserveCapacity} when the object
+     * could not be created or has been destroyed, and let a borrower waiting
+     * in {@link #awaitIdleOrCreatingSlot} use it.
+     *
+     * @param objectDeque The objects associated with the key
+     */
+    private void releaseCapacity(ObjectDeque<T> objectDeque) {
+        numTotal.decrementAndGet();
+        objectDeque.getCreateCount().decrementAndGet();
+        signalCreateWaiter(objectDeque);
+    }
+
+    /**
+     * Add a newly created object to the reserved room.
+     *
+     * @param objectDeque The objects associated with the key
+     * @param p The new object
+     */
+    private void created(ObjectDeque<T> objectDeque, PooledObject<T> p) {
+        createdCount.incrementAndGet();
+        if (keyStatsEnabled) {
+            objectDeque.createdCount.increment();
+        }
+        objectDeque.getAllObjects().put(p.getObject(), p);
+    }
+
+    /**
+     * Start creating an object with the asynchronous factory for the queued
+     * asynchronous borrowers of the given key, unless
+     * {@link #getMaxCreatingPerKey() maxCreatingPerKey} or
+     * {@link #getMaxCreating() maxCreating} creations are already in progress
+     * or there is no room for another object. The object is
+     * handed to the first borrower still queued when it is ready.
+     *
+     * @param key pool key
+     *
+     * @return <code>true</code> if a creation was started
+     */
+    private boolean startAsyncCreate(final K key) {
+        // Keep the key while the object is created
+        final ObjectDeque<T> objectDeque = register(key);
+        if (!acquireCreatingSlot(objectDeque)) {
+            deregister(key);
+            return false;
+        }
+
+        if (!reserveCapacity(objectDeque)) {
+            releaseCreatingSlot(objectDeque);
+            deregister(key);
+            return false;
+        }
+
+        CompletableFuture<CompletionStage<PooledObject<T>>> making;
+        try {
+            making = CompletableFuture.supplyAsync(
+                    new Supplier<CompletionStage<PooledObject<T>>>() {
+                @Override
+                public CompletionStage<PooledObject<T>> get() {
+                    return asyncFactory.makeObject(key);
+                }
+            }, createExecutor);
+        } catch (RuntimeException e) {
+            // Rejected by the executor
+            asyncCreated(key, objectDeque, null, e);
+            return true;
+        }
+        making.thenCompose(
+                new Function<CompletionStage<PooledObject<T>>, CompletionStage<PooledObject<T>>>() {
+            @Override
+            public CompletionStage<PooledObject<T>> apply(CompletionStage<PooledObject<T>> stage) {
+                return stage;
+            }
+        }).whenComplete(new BiConsumer<PooledObject<T>, Throwable>() {
+            @Override
+            public void accept(PooledObject<T> p, Throwable t) {
+                asyncCreated(key, objectDeque, p, t);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Called when a creation started by {@link #startAsyncCreate} completes.
+     * The new object goes to the first queued borrower, or if there is none,
+     * to the idle objects; a failure is passed to the first queued borrower.
+     * Creation continues while more borrowers are queued than objects are
+     * being created.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param p The new object, if created
+     * @param t The failure, if not
+     */
+    private void asyncCreated(K key, ObjectDeque<T> objectDeque,
+            PooledObject<T> p, Throwable t) {
+        releaseCreatingSlot(objectDeque);
+        try {
+            if (t != null || p == null) {
+                releaseCapacity(objectDeque);
+                Throwable cause = t == null ?
+                        new NullPointerException("makeObject completed with null") :
+                        unwrap(t);
+                AsyncBorrow waiter = pollAsyncWaiter(objectDeque);
+                if (waiter != null) {
+                    waiter.finish();
+                    waiter.completeExceptionally(cause);
+                } else if (cause instanceof Exception) {
+                    swallowException((Exception) cause);
+                } else {
+                    swallowException(new Exception(cause));
+                }
+            } else {
+                created(objectDeque, p);
+                AsyncBorrow waiter = pollAsyncWaiter(objectDeque);
+                if (waiter != null) {
+                    p.allocate();
+                    handOff(waiter, p, true);
+                } else {
+                    addIdleObject(key, p);
+                }
+            }
+            if (hasMoreAsyncWaitersThan(objectDeque,
+                    objectDeque.getCreatingCount().get())) {
+                startAsyncCreate(key);
+            }
+        } catch (Exception e) {
+            swallowException(e);
+        } finally {
+            deregister(key);
+        }
+    }
+
+    /**
+     * Remove and claim the first queued asynchronous borrower of a key that
+     * is still waiting.
+     *
+     * @param objectDeque The objects associated with the key
+     *
+     * @return The claimed borrower or <code>null</code> if there is none
+     */
+    private AsyncBorrow pollAsyncWaiter(ObjectDeque<T> objectDeque) {
+        AsyncBorrow waiter;
+        do {
+            waiter = objectDeque.getAsyncWaiters().pollFirst();
+        } while (waiter != null && !waiter.claim());
+        return waiter;
+    }
+
+    /**
+     * Checks whether more than <code>n</code> asynchronous borrowers are
+     * queued for a key, visiting at most <code>n + 1</code> of them.
+     *
+     * @param objectDeque The objects associated with the key
+     * @param n The number to compare with
+     *
+     * @return {@code true} if more than <code>n</code> borrowers are queued
+     */
+    private boolean hasMoreAsyncWaitersThan(ObjectDeque<T> objectDeque, int n) {
+        Iterator<AsyncBorrow> iter = objectDeque.getAsyncWaiters().iterator();
+        int count = 0;
+        while (iter.hasNext()) {
+            iter.next();
+            if (++count > n) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Strip the wrapper added to an exception by a
+     * {@link CompletableFuture}.
+     *
+     * @param t The exception a stage completed with
+     *
+     * @return The exception thrown by the factory
+     */
+    private static Throwable unwrap(Throwable t) {
+        if ((t instanceof CompletionException || t instanceof ExecutionException) &&
+                t.getCause() != null) {
+            return t.getCause();
+        }
+        return t;
+    }
+
+    /**
+     * Destroy the wrapped, pooled object.
+     *
+     * @param key The key associated with the object to destroy.
+     * @param toDestroy The wrapped object to be destroyed
+     * @param always Should the object be destroyed even if it is not currently
+     *               in the set of idle objects for the given key
+     * @return {@code true} if the object was destroyed, otherwise {@code false}
+     *         (also if another thread is destroying it)
+     * @throws Exception If the object destruction failed
+     */
+    private boolean destroy(K key, PooledObject<T> toDestroy, boolean always)
+            throws Exception {
+
+        // The evictor, clear and invalidateObject may all get hold of the same
+        // object; only the thread that marks it invalid destroys it
+        if (always && !markInvalid(toDestroy)) {
+            return false;
+        }
+
+        ObjectDeque<T> objectDeque = register(key);
+
+        try {
+            // Marked invalid before the removal, so that a thread adding the
+            // object back to the idle objects concurrently sees it, see addIdle
+            boolean isIdle = objectDeque.getIdleObjects().remove(toDestroy);
+
+            if (isIdle && !always && !markInvalid(toDestroy)) {
+                return false;
+            }
+            if (isIdle || always) {
+                objectDeque.getAllObjects().remove(toDestroy.getObject());
+                ConcurrentIdentityHashMap<PooledObject<T>, Long> validatedTimes =
+                        objectDeque.validatedTimes;
+                if (validatedTimes != null) {
+                    validatedTimes.remove(toDestroy);
+                }
+                ExpiryWheel<PooledObject<T>> wheel = objectDeque.expiryWheel;
+                if (wheel != null) {
+                    wheel.remove(toDestroy);
+                }
+
+                if (destroyLater(key, toDestroy)) {
+                    destroyed(objectDeque);
+                    return true;
+                }
+                try {
+                    destroyObject(key, toDestroy);
+                } finally {
+                    destroyed(objectDeque);
+                }
+                return true;
+            } else {
+                return false;
+            }
+        } finally {
+            deregister(key);
+        }
+    }
+
+
+    /**
+     * Give back the room of an object that has been removed from the pool to
+     * be destroyed.
+     *
+     * @param objectDeque The objects associated with the key of the object
+     */
+    private void destroyed(ObjectDeque<T> objectDeque) {
+        destroyedCount.incrementAndGet();
+        if (keyStatsEnabled) {
+            objectDeque.destroyedCount.increment();
+        }
+        releaseCapacity(objectDeque);
+    }
+
+    /**
+     * Destroy an object with the factory, recording the time it takes.
+     *
+     * @param key The key of the object
+     * @param toDestroy The object, already removed from the pool
+     *
+     * @throws Exception as thrown by the factory
+     */
+    private void destroyObject(K key, PooledObject<T> toDestroy)
+            throws Exception {
+        long start = clock.currentTimeMillis();
+        try {
+            factory.destroyObject(key, toDestroy);
+        } finally {
+            destroyTimes.add(clock.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Hand an object to the destruction executor, if there is one and fewer
+     * than {@link #getMaxPendingDestructions() maxPendingDestructions}
+     * objects are waiting.
+     *
+     * @param key The key of the object
+     * @param toDestroy The object, already removed from the pool
+     *
+     * @return <code>true</code> if the executor will destroy the object,
+     *         <code>false</code> if the caller must
+     */
+    private boolean destroyLater(K key, PooledObject<T> toDestroy) {
+        Executor executor = destructionExecutor;
+        if (executor == null) {
+            return false;
+        }
+        int max = getMaxPendingDestructions();
+        int pending;
+        do {
+            pending = pendingDestructions.get();
+            if (max >= 0 && pending >= max) {
+                destructionOverflowCount.incrementAndGet();
+                return false;
+            }
+        } while (!pendingDestructions.compareAndSet(pending, pending + 1));
+        try {
+            executor.execute(new Destruction(key, toDestroy));
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingDestructions.decrementAndGet();
+            destructionOverflowCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Hand a returning object to the return executor, if there is one.
+     *
+     * @param key pool key
+     * @param objectDeque The objects associated with the key
+     * @param p The object being returned
+     * @param activeTime The time in milliseconds the object was borrowed for
+     *
+     * @return <code>true</code> if the executor will complete the return,
+     *         <code>false</code> if the caller must
+     */
+    private boolean returnLater(K key, ObjectDeque<T> objectDeque,
+            PooledObject<T> p, long activeTime) {
+        Executor executor = returnExecutor;
+        if (executor == null) {
+            return false;
+        }
+        pendingReturns.incrementAndGet();
+        try {
+            executor.execute(new Return(key, objectDeque, p, activeTime));
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingReturns.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Register the use of a key by an object.
+     * <p>
+     * register() and deregister() must always be used as a pair.
+     *
+     * @param k The key to register
+     *
+     * @return The objects currently associated with the given key. If this
+     *         method returns without throwing an exception then it will never
+     *         return null.
+     */
+    private ObjectDeque<T> register(K k) {
+        while (true) {
+            ObjectDeque<T> objectDeque = poolMap.get(k);
+            if (objectDeque == null) {
+                ObjectDeque<T> newDeque = new ObjectDeque<T>(k, fairness);
+                // Count this thread before the sub-pool becomes visible so it
+                // can not be removed again before we have used it.
+                newDeque.getNumInterested().incrementAndGet();
+                objectDeque = poolMap.putIfAbsent(k, newDeque);
+                if (objectDeque == null) {
+                    // Every object of the key is made idle from now on
+                    updateOldestIdle(newDeque, clock.currentTimeMillis());
+                    return newDeque;
+                }
+            }
+            AtomicLong numInterested = objectDeque.getNumInterested();
+            long n;
+            while ((n = numInterested.get()) != KEY_REMOVED) {
+                if (numInterested.compareAndSet(n, n + 1)) {
+                    return objectDeque;
+                }
+            }
+            // The sub-pool is being removed by deregister(). Wait until it has
+            // gone from poolMap (or the removal has been abandoned) and retry.
+            Thread.yield();
+        }
+    }
+
+    /**
+     * De-register the use of a key by an object.
+     * <p>
+     * register() and deregister() must always be used as a pair.
+     *
+     * @param k The key to de-register
+     */
+    private void deregister(K k) {
+        ObjectDeque<T> objectDeque;
+
+        objectDeque = poolMap.get(k);
+        AtomicLong numInterested = objectDeque.getNumInterested();
+        if (numInterested.decrementAndGet() == 0 &&
+                objectDeque.getCreateCount().get() == 0) {
+            // Potential to remove key. Objects are only ever created and
+            // destroyed by registered threads so once no thread is registered
+            // (and none can register) createCount can no longer change.
+            if (numInterested.compareAndSet(0, KEY_REMOVED)) {
+                if (objectDeque.getCreateCount().get() == 0) {
+                    if (poolMap.remove(k, objectDeque)) {
+                        removeOldestIdle(objectDeque);
+                    }
+                } else {
+                    // Another thread created an object in between, keep it
+                    numInterested.set(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the idle object store for a new keyed sub-pool using the
+     * configured {@link IdleObjectStore} implementation.
+     *
+     * @param fairness The fairness policy for the new store
+     *
+     * @return The new, empty store
+     */
+    @SuppressWarnings("unchecked")
+    private <E> IdleObjectStore<E> createIdleObjectStore(boolean fairness) {
+        try {
+            return (IdleObjectStore<E>) idleObjectStoreConstructor.newInstance(
+                    Boolean.valueOf(fairness));
+        } catch (Exception e) {
+            throw new IllegalStateException(
+                    "Unable to create IdleObjectStore instance of type " +
+                    idleObjectStoreConstructor.getDeclaringClass().getName(), e);
+        }
+    }
+
+    @Override
+    void ensureMinIdle() throws Exception {
+        int minIdlePerKeySave = getMinIdlePerKey();
+        if (minIdlePerKeySave < 1) {
+            return;
+        }
+
+        for (K k : poolMap.keySet()) {
+            ensureMinIdle(k);
+        }
+    }
+
+    /**
+     * Ensure that the configured number of minimum idle objects is available in
+     * the pool for the given key.
+     *
+     * @param key The key to check for idle objects
+     *
+     * @throws Exception If a new object is required and cannot be created
+     */
+    private void ensureMinIdle(K key) throws Exception {
+        // Calculate current pool objects
+        ObjectDeque<T> objectDeque = poolMap.get(key);
+
+        // objectDeque == null is OK here. It is handled correctly by both
+        // methods called below.
+
+        // this method isn't synchronized so the
+        // calculateDeficit is done at the beginning
+        // as a loop limit and a second time inside the loop
+        // to stop when another thread already returned the
+        // needed objects
+        int deficit = calculateDeficit(objectDeque);
+
+        for (int i = 0; i < deficit && calculateDeficit(objectDeque) > 0; i++) {
+            addObject(key);
+        }
+    }
+
+    /**
+     * Create an object using the {@link KeyedPooledObjectFactory#makeObject
+     * factory}, passivate it, and then place it in the idle object pool.
+     * <code>addObject</code> is useful for "pre-loading" a pool with idle
+     * objects.
+     *
+     * @param key the key a new instance should be added to
+     *
+     * @throws Exception when {@link KeyedPooledObjectFactory#makeObject}
+     *                   fails.
+     */
+    @Override
+    public void addObject(K key) throws Exception {
         assertOpen();
+        register(key);
+        try {
+            PooledObject<T> p = create(key);
+            addIdleObject(key, p);
+        } finally {
+            deregister(key);
+        }
+    }
+
+    /**
+     * Add an object to the set of idle objects for a given key.
+     *
+     * @param key The key to associate with the idle object
+     * @param p The wrapped object to add.
+     *
+     * @throws Exception If the associated factory fails to passivate the object
+     */
+    private void addIdleObject(K key, PooledObject<T> p) throws Exception {
+
+        if (p != null) {
+            factory.passivateObject(key, p);
+            ObjectDeque<T> objectDeque = poolMap.get(key);
+            addIdle(objectDeque, p, getLifo());
+            serveAsyncWaiters(key, objectDeque);
+        }
+    }
+
+    /**
+     * Make a returned object idle again if it was allocated in place by the
+     * affinity cache and its link is still among the idle objects of its
+     * key, see {@link #borrowFromAffinityCache(Object, long)}. The link then
+     * counts as an idle object again and the object is indexed for expiry as
+     * if it had been added.
+     *
+     * @param objectDeque The objects associated with the key of the object
+     * @param p The object being returned
+     *
+     * @return <code>true</code> if the object is idle, <code>false</code> if
+     *         it has no such link and is to be deallocated and added as usual
+     */
+    private boolean deallocateInPlace(ObjectDeque<T> objectDeque, PooledObject<T> p) {
+        if (!(p instanceof DefaultPooledObject) ||
+                !((DefaultPooledObject<T>) p).deallocateInPlace()) {
+            return false;
+        }
+        objectDeque.getIdleObjects().deallocatedInPlace();
+        scheduleExpiry(objectDeque, p);
+        return true;
+    }
+
+    /**
+     * Add an object that has just become idle to the idle objects of its key
+     * and schedule its expiry.
+     * <p>
+     * The evictor iterates the idle objects weakly consistently, so it may
+     * still test, and destroy, an object that has been borrowed and
+     * deallocated since but not yet added back here. Such an object is taken
+     * out again once added. {@link #destroy(Object, PooledObject, boolean)}
+     * invalidates an object before removing it, so either that removal or the
+     * check here sees the object linked.
+     *
+     * @param objectDeque The objects associated with the key of the object
+     * @param p The object, deallocated or newly created
+     * @param first Add the object at the head rather than the tail
+     * @return {@code true} if the object was left idle, {@code false} if it
+     *         had been destroyed in the meantime
+     */
+    private boolean addIdle(ObjectDeque<T> objectDeque, PooledObject<T> p,
+            boolean first) {
+        IdleObjectStore<PooledObject<T>> idleObjects =
+                objectDeque.getIdleObjects();
+        if (first) {
+            idleObjects.addFirst(p);
+        } else {
+            idleObjects.addLast(p);
+        }
+        scheduleExpiry(objectDeque, p);
+        if (p.getState() == PooledObjectState.INVALID) {
+            idleObjects.remove(p);
+            ExpiryWheel<PooledObject<T>> wheel = objectDeque.expiryWheel;
+            if (wheel != null) {
+                wheel.remove(p);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Registers a key for pool control and ensures that
+     * {@link #getMinIdlePerKey()} idle instances are created.
+     *
+     * @param key - The key to register for pool control.
+     *
+     * @throws Exception If the associated factory throws an exception
+     */
+    public void preparePool(K key) throws Exception {
+        int minIdlePerKeySave = getMinIdlePerKey();
+        if (minIdlePerKeySave < 1) {
+            return;
+        }
+        ensureMinIdle(key);
+    }
+
+    /**
+     * Calculate the number of objects to test in a run of the idle object
+     * evictor.
+     *
+     * @return The number of objects to test for validity
+     */
+    private int getNumTests() {
+        int totalIdle = getNumIdle();
+        int numTests = getNumTestsPerEvictionRun();
+        if (numTests >= 0) {
+            return Math.min(numTests, totalIdle);
+        }
+        return(int)(Math.ceil(totalIdle/Math.abs((double)numTests)));
+    }
+
+    /**
+     * Calculate the number of objects that need to be created to attempt to
+     * maintain the minimum number of idle objects while not exceeded the limits
+     * on the maximum number of objects either per key or totally.
+     *
+     * @param objectDeque   The set of objects to check
+     *
+     * @return The number of new objects to create
+     */
+    private int calculateDeficit(ObjectDeque<T> objectDeque) {
+
+        if (objectDeque == null) {
+            return getMinIdlePerKey();
+        }
+
+        // Used more than once so keep a local copy so the value is consistent
+        int maxTotal = getMaxTotal();
+        int maxTotalPerKeySave = getMaxTotalPerKey();
+
+        int objectDefecit = 0;
+
+        // Calculate no of objects needed to be created, in order to have
+        // the number of pooled objects < maxTotalPerKey();
+        objectDefecit = getMinIdlePerKey() - objectDeque.getIdleObjects().size();
+        if (maxTotalPerKeySave > 0) {
+            int growLimit = Math.max(0,
+                    maxTotalPerKeySave - objectDeque.getIdleObjects().size());
+            objectDefecit = Math.min(objectDefecit, growLimit);
+        }
+
+        // Take the maxTotal limit into account
+        if (maxTotal > 0) {
+            int growLimit = Math.max(0, maxTotal - getNumActive() - getNumIdle());
+            objectDefecit = Math.min(objectDefecit, growLimit);
+        }
+
+        return objectDefecit;
+    }
+
+
+    /**
+     * Update the pool-wide and the per-key statistics after an object is
+     * borrowed.
+     *
+     * @param objectDeque The objects associated with the key of the object
+     * @param p object borrowed from the pool
+     * @param waitTime time (in milliseconds) that the borrowing thread had to wait
+     */
+    private void updateStatsBorrow(ObjectDeque<T> objectDeque, PooledObject<T> p,
+            long waitTime) {
+        updateStatsBorrow(p, waitTime);
+        if (!keyStatsEnabled) {
+            return;
+        }
+        objectDeque.borrowedCount.increment();
+        objectDeque.idleTimes.add(p.getIdleTimeMillis());
+        objectDeque.waitTimes.add(waitTime);
+    }
+
+    /**
+     * Update the pool-wide and the per-key statistics after objects are
+     * borrowed in one call.
+     *
+     * @param objectDeque The objects associated with the key of the objects
+     * @param objects objects borrowed from the pool
+     * @param waitTime time (in milliseconds) that the borrowing thread had to
+     *                 wait for all of them
+     */
+    private void updateStatsBorrow(ObjectDeque<T> objectDeque,
+            List<PooledObject<T>> objects, long waitTime) {
+        updateStatsBorrow(objects, waitTime);
+        if (!keyStatsEnabled) {
+            return;
+        }
+        objectDeque.borrowedCount.add(objects.size());
+        for (PooledObject<T> p : objects) {
+            objectDeque.idleTimes.add(p.getIdleTimeMillis());
+        }
+        objectDeque.waitTimes.add(waitTime, objects.size());
+    }
+
+    /**
+     * Update the pool-wide and the per-key statistics after an object is
+     * returned.
+     *
+     * @param objectDeque The objects associated with the key of the object
+     * @param activeTime the amount of time (in milliseconds) that the returning
+     * object was checked out
+     */
+    private void updateStatsReturn(ObjectDeque<T> objectDeque, long activeTime) {
+        updateStatsReturn(activeTime);
+        if (!keyStatsEnabled) {
+            return;
+        }
+        objectDeque.returnedCount.increment();
+        objectDeque.activeTimes.add(activeTime);
+    }
+
+    /**
+     * Update the pool-wide and the per-key statistics after objects are
+     * returned in one call.
+     *
+     * @param objectDeque The objects associated with the key of the objects
+     * @param activeTimes the amount of time (in milliseconds) that each
+     *                    returned object was checked out
+     * @param count the number of objects returned, the number of valid
+     *              elements of activeTimes
+     */
+    private void updateStatsReturn(ObjectDeque<T> objectDeque,
+            long[] activeTimes, int count) {
+        updateStatsReturn(activeTimes, count);
+        if (!keyStatsEnabled) {
+            return;
+        }
+        objectDeque.returnedCount.add(count);
+        for (int i = 0; i < count; i++) {
+            objectDeque.activeTimes.add(activeTimes[i]);
+        }
+    }
+
+    /**
+     * Count an object destroyed by the evictor.
+     *
+     * @param objectDeque The objects associated with the key of the object,
+     *                    <code>null</code> if the key has been removed
+     */
+    private void updateStatsDestroyedByEvictor(ObjectDeque<T> objectDeque) {
+        destroyedByEvictorCount.incrementAndGet();
+        if (objectDeque != null && keyStatsEnabled) {
+            objectDeque.destroyedByEvictorCount.increment();
+        }
+    }
+
+    /**
+     * Count an object destroyed because it failed validation on borrow.
+     *
+     * @param objectDeque The objects associated with the key of the object,
+     *                    <code>null</code> if the key has been removed
+     */
+    private void updateStatsDestroyedByBorrowValidation(ObjectDeque<T> objectDeque) {
+        destroyedByBorrowValidationCount.incrementAndGet();
+        if (objectDeque != null && keyStatsEnabled) {
+            objectDeque.destroyedByBorrowValidationCount.increment();
+        }
+    }
+
+
+    //--- JMX support ----------------------------------------------------------
+
+    @Override
+    public Map<String,Integer> getNumActivePerKey() {
+        HashMap<String,Integer> result = new HashMap<String,Integer>();
+
+        Iterator<Entry<K,ObjectDeque<T>>> iter = poolMap.entrySet().iterator();
+        while (iter.hasNext()) {
+            Entry<K,ObjectDeque<T>> entry = iter.next();
+            if (entry != null) {
+                K key = entry.getKey();
+                ObjectDeque<T> objectDequeue = entry.getValue();
+                if (key != null && objectDequeue != null) {
+                    result.put(key.toString(), Integer.valueOf(
+                            objectDequeue.getAllObjects().size() -
+                            objectDequeue.getIdleObjects().size()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of sweeps the evictor has completed. A sweep ends
+     * when every eviction partition has been through all its keys once, see
+     * {@link #setEvictionParallelism(int)}.
+     *
+     * @return the number of completed sweeps
+     */
+    @Override
+    public long getEvictionSweepCount() {
+        return evictionSweepCount;
+    }
+
+    /**
+     * Returns the time the last completed sweep took, from the run of the
+     * evictor that started it to the run that completed it.
+     *
+     * @return the time in milliseconds, or 0 if no sweep has completed
+     */
+    @Override
+    public long getLastEvictionSweepTimeMillis() {
+        return lastEvictionSweepTimeMillis;
+    }
+
+    /**
+     * Returns the mean time the completed sweeps took.
+     *
+     * @return the mean time in milliseconds
+     */
+    @Override
+    public long getMeanEvictionSweepTimeMillis() {
+        return evictionSweepTimes.getMean();
+    }
+
+    /**
+     * Returns the longest time a completed sweep took.
+     *
+     * @return the maximum time in milliseconds
+     */
+    @Override
+    public long getMaxEvictionSweepTimeMillis() {
+        return evictionSweepTimes.getMax();
+    }
+
+    /**
+     * Returns the number of objects that have left the pool and are waiting
+     * for, or undergoing, destruction on the
+     * {@link #setDestructionExecutor(Executor) destruction executor}.
+     *
+     * @return the number of pending destructions
+     */
+    @Override
+    public int getNumPendingDestructions() {
+        return pendingDestructions.get();
+    }
+
+    /**
+     * Returns the number of objects that were destroyed on the calling
+     * thread although there is a destruction executor, because
+     * {@link #getMaxPendingDestructions() maxPendingDestructions} objects
+     * were already waiting or the executor rejected the task.
+     *
+     * @return the number of destructions that overflowed the executor
+     */
+    @Override
+    public long getDestructionOverflowCount() {
+        return destructionOverflowCount.get();
+    }
+
+    /**
+     * Returns the mean time
+     * {@link KeyedPooledObjectFactory#destroyObject(Object, PooledObject)}
+     * took, on any thread.
+     *
+     * @return the mean time in milliseconds
+     */
+    @Override
+    public long getMeanDestroyTimeMillis() {
+        return destroyTimes.getMean();
+    }
+
+    /**
+     * Returns the 99th percentile of the time
+     * {@link KeyedPooledObjectFactory#destroyObject(Object, PooledObject)}
+     * took, on any thread.
+     *
+     * @return the 99th percentile in milliseconds
+     */
+    @Override
+    public long getDestroyTimeMillisP99() {
+        return destroyTimes.getValueAtQuantile(0.99);
+    }
+
+    /**
+     * Returns the longest time
+     * {@link KeyedPooledObjectFactory#destroyObject(Object, PooledObject)}
+     * took, on any thread.
+     *
+     * @return the maximum time in milliseconds
+     */
+    @Override
+    public long getMaxDestroyTimeMillis() {
+        return destroyTimes.getMax();
+    }
+
+    /**
+     * Returns the mean time objects waited for the destruction executor,
+     * from leaving the pool to the start of their destruction.
+     *
+     * @return the mean time in milliseconds
+     */
+    @Override
+    public long getMeanDestructionDelayMillis() {
+        return destructionDelays.getMean();
+    }
+
+    /**
+     * Returns the longest time an object waited for the destruction
+     * executor, from leaving the pool to the start of its destruction.
+     *
+     * @return the maximum time in milliseconds
+     */
+    @Override
+    public long getMaxDestructionDelayMillis() {
+        return destructionDelays.getMax();
+    }
+
+    /**
+     * Returns the number of objects that have been returned and are waiting
+     * for, or undergoing, validation and passivation on the
+     * {@link #setReturnExecutor(Executor) return executor}. They are
+     * included in {@link #getNumActive()}.
+     *
+     * @return the number of pending returns
+     */
+    @Override
+    public int getNumPendingReturns() {
+        return pendingReturns.get();
+    }
+
+    /**
+     * Returns the mean time returned objects waited for the return executor.
+     *
+     * @return the mean time in milliseconds
+     */
+    @Override
+    public long getMeanReturnDelayMillis() {
+        return returnDelays.getMean();
+    }
+
+    /**
+     * Returns the longest time a returned object waited for the return
+     * executor.
+     *
+     * @return the maximum time in milliseconds
+     */
+    @Override
+    public long getMaxReturnDelayMillis() {
+        return returnDelays.getMax();
+    }
+
+    /**
+     * Return an estimate of the number of threads currently blocked waiting for
+     * an object from the pool. This is intended for monitoring only, not for
+     * synchronization control.
+     *
+     * @return The estimate of the number of threads currently blocked waiting
+     *         for an object from the pool
+     */
+    @Override
+    public int getNumWaiters() {
+        int result = 0;
+
+        if (getBlockWhenExhausted()) {
+            Iterator<ObjectDeque<T>> iter = poolMap.values().iterator();
+
+            while (iter.hasNext()) {
+                // Assume no overflow
+                result += iter.next().getIdleObjects().getTakeQueueLength();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return an estimate of the number of threads currently blocked waiting for
+     * an object from the pool for each key. This is intended for
+     * monitoring only, not for synchronization control.
+     *
+     * @return The estimate of the number of threads currently blocked waiting
+     *         for an object from the pool for each key
+     */
+    @Override
+    public Map<String,Integer> getNumWaitersByKey() {
+        Map<String,Integer> result = new HashMap<String,Integer>();
+
+        for (K key : poolMap.keySet()) {
+            ObjectDeque<T> queue = poolMap.get(key);
+            if (queue != null) {
+                if (getBlockWhenExhausted()) {
+                    result.put(key.toString(), Integer.valueOf(
+                            queue.getIdleObjects().getTakeQueueLength()));
+                } else {
+                    result.put(key.toString(), Integer.valueOf(0));
+                }
+            }
+        }
+        return result;
+    }
 
-        if (getNumIdle() == 0) {
-            return;
+    /**
+     * Returns the statistics of a key: how many objects have been borrowed,
+     * returned, created and destroyed under it, how many are active, idle and
+     * awaited now, and percentiles of the idle, active and borrow wait times.
+     * <p>
+     * Statistics are kept in the sub-pool of the key, so they are lost when
+     * the sub-pool is dropped. Keeping them costs every key six
+     * {@link LongAdder}s and three histograms. A histogram takes about 4.7KB
+     * for each of at most two stripes, allocated when first used, so a busy
+     * key takes up to about 30KB; a key that is only borrowed from by one
+     * thread takes about half that. Updating them adds two increments and
+     * two histogram updates to every borrow and return, which
+     * {@link #setKeyStatsEnabled(boolean) keyStatsEnabled} can turn off.
+     * <code>KeyStatsBenchmark</code> in the benchmarks module measures the
+     * borrow and return path with and without them.
+     *
+     * @param key The key
+     *
+     * @return the statistics of the key, or <code>null</code> if the pool
+     *         has no sub-pool for the key
+     */
+    public KeyStats getKeyStats(K key) {
+        ObjectDeque<T> objectDeque = poolMap.get(key);
+        if (objectDeque == null) {
+            return null;
         }
+        return newKeyStats(objectDeque);
+    }
 
-        PooledObject<T> underTest = null;
-        EvictionPolicy<T> evictionPolicy = getEvictionPolicy();
+    /**
+     * Returns the statistics of every key, see {@link #getKeyStats(Object)}.
+     * JMX presents them as a table with one row per key.
+     * <p>
+     * Distinct keys with the same string form are not merged: the first one
+     * found is under the string itself and the others under the string
+     * followed by <code>#2</code>, <code>#3</code> and so on, in no
+     * particular order. Use {@link #getKeyStats(Object)} to tell them apart.
+     *
+     * @return the statistics, keyed by the string form of the key
+     */
+    @Override
+    public Map<String,KeyStats> getAllKeyStats() {
+        Map<String,KeyStats> result = new HashMap<String,KeyStats>();
 
-        synchronized (evictionLock) {
-            EvictionConfig evictionConfig = new EvictionConfig(
-                    getMinEvictableIdleTimeMillis(),
-                    getSoftMinEvictableIdleTimeMillis(),
-                    getMinIdlePerKey());
+        for (K key : poolMap.keySet()) {
+            ObjectDeque<T> queue = poolMap.get(key);
+            if (queue != null) {
+                String name = key.toString();
+                if (result.containsKey(name)) {
+                    int n = 2;
+                    while (result.containsKey(name + "#" + n)) {
+                        n++;
+                    }
+                    name = name + "#" + n;
+                }
+                result.put(name, newKeyStats(queue));
+            }
+        }
+        return result;
+    }
 
-            boolean testWhileIdle = getTestWhileIdle();
+    /**
+     * Take a snapshot of the statistics of a sub-pool.
+     *
+     * @param objectDeque The objects associated with the key
+     *
+     * @return the snapshot
+     */
+    private KeyStats newKeyStats(ObjectDeque<T> objectDeque) {
+        long[] counts = new long[] {
+                objectDeque.borrowedCount.sum(),
+                objectDeque.returnedCount.sum(),
+                objectDeque.createdCount.sum(),
+                objectDeque.destroyedCount.sum(),
+                objectDeque.destroyedByEvictorCount.sum(),
+                objectDeque.destroyedByBorrowValidationCount.sum() };
+        int numIdle = objectDeque.getIdleObjects().size();
+        int numActive = Math.max(0, objectDeque.getAllObjects().size() - numIdle);
+        int numWaiters = getBlockWhenExhausted() ?
+                objectDeque.getIdleObjects().getTakeQueueLength() : 0;
+        return new KeyStats(counts, numActive, numIdle, numWaiters,
+                objectDeque.activeTimes, objectDeque.idleTimes,
+                objectDeque.waitTimes);
+    }
 
-            for (int i = 0, m = getNumTests(); i < m; i++) {
-                if(evictionIterator == null || !evictionIterator.hasNext()) {
-                    if (evictionKeyIterator == null ||
-                            !evictionKeyIterator.hasNext()) {
-                        List<K> keyCopy = new ArrayList<K>();
-                        Lock readLock = keyLock.readLock();
-                        readLock.lock();
-                        try {
-                            keyCopy.addAll(poolKeyList);
-                        } finally {
-                            readLock.unlock();
-                        }
-                        evictionKeyIterator = keyCopy.iterator();
-                    }
-                    while (evictionKeyIterator.hasNext()) {
-                        evictionKey = evictionKeyIterator.next();
-                        ObjectDeque<T> objectDeque = poolMap.get(evictionKey);
-                        if (objectDeque == null) {
-                            continue;
-                        }
+    /**
+     * Provides information on all the objects in the pool, both idle (waiting
+     * to be borrowed) and active (currently borrowed).
+     * <p>
+     * Note: This is named listAllObjects so it is presented as an operation via
+     * JMX. That means it won't be invoked unless the explicitly requested
+     * whereas all attributes will be automatically requested when viewing the
+     * attributes for an object in a tool like JConsole.
+     *
+     * @return Information grouped by key on all the objects in the pool
+     */
+    @Override
+    public Map<String,List<DefaultPooledObjectInfo>> listAllObjects() {
+        Map<String,List<DefaultPooledObjectInfo>> result =
+                new HashMap<String,List<DefaultPooledObjectInfo>>();
 
-                        final Deque<PooledObject<T>> idleObjects = objectDeque.getIdleObjects();
-                        evictionIterator = new EvictionIterator(idleObjects);
-                        if (evictionIterator.hasNext()) {
-                            break;
-                        }
-                        evictionIterator = null;
-                    }
-                }
-                if (evictionIterator == null) {
-                    // Pools exhausted
-                    return;
-                }
-                final Deque<PooledObject<T>> idleObjects;
-                try {
-                    underTest = evictionIterator.next();
-                    idleObjects = evictionIterator.getIdleObjects();
-                } catch (NoSuchElementException nsee) {
-                    // Object was borrowed in another thread
-                    // Don't count this as an eviction test so reduce i;
-                    i--;
-                    evictionIterator = null;
-                    continue;
+        for (K key : poolMap.keySet()) {
+            ObjectDeque<T> queue = poolMap.get(key);
+            if (queue != null) {
+                List<DefaultPooledObjectInfo> list =
+                        new ArrayList<DefaultPooledObjectInfo>();
+                result.put(key.toString(), list);
+                for (PooledObject<T> p : queue.getAllObjects().values()) {
+                    list.add(new DefaultPooledObjectInfo(p));
                 }
+            }
+        }
+        return result;
+    }
 
-                if (!underTest.startEvictionTest()) {
-                    // Object was borrowed in another thread
-                    // Don't count this as an eviction test so reduce i;
-                    i--;
-                    continue;
-                }
 
-                // User provided eviction policy could throw all sorts of
-                // crazy exceptions. Protect against such an exception
-                // killing the eviction thread.
-                boolean evict;
-                try {
-                    evict = evictionPolicy.evict(evictionConfig, underTest,
-                            poolMap.get(evictionKey).getIdleObjects().size());
-                } catch (Throwable t) {
-                    // Slightly convoluted as SwallowedExceptionListener
-                    // uses Exception rather than Throwable
-                    PoolUtils.checkRethrow(t);
-                    swallowException(new Exception(t));
-                    // Don't evict on error conditions
-                    evict = false;
-                }
-
-                if (evict) {
-                    destroy(evictionKey, underTest, true);
-                    destroyedByEvictorCount.incrementAndGet();
-                } else {
-                    if (testWhileIdle) {
-                        boolean active = false;
-                        try {
-                            factory.activateObject(evictionKey, underTest);
-                            active = true;
-                        } catch (Exception e) {
-                            destroy(evictionKey, underTest, true);
-                            destroyedByEvictorCount.incrementAndGet();
+    //--- inner classes ----------------------------------------------
+
+    /**
+     * Maintains information on the per key queue for a given key.
+     */
+    private class ObjectDeque<S> {
+
+        private final K key;
+
+        private final CountingIdleObjectStore<PooledObject<S>> idleObjects;
+
+        /*
+         * Number of instances created - number destroyed.
+         * Invariant: createCount <= maxTotalPerKey
+         */
+        private final AtomicInteger createCount = new AtomicInteger(0);
+
+        /*
+         * Number of objects being created for this key, by the factory or by
+         * the asynchronous factory. These are included in createCount.
+         * Invariant: creatingCount <= maxCreatingPerKey
+         */
+        private final AtomicInteger creatingCount = new AtomicInteger(0);
+
+        /*
+         * Number of borrowers waiting in awaitIdleOrCreatingSlot for an idle
+         * object or a free creating slot. Incremented before the borrower
+         * checks again, so a thread that adds an idle object or gives back a
+         * slot afterwards always sees it.
+         */
+        private final AtomicInteger createWaiters = new AtomicInteger(0);
+
+        /*
+         * Wakes the borrowers counted in createWaiters. createSignals counts
+         * the signals so that a signal sent between the check of a borrower
+         * and its wait is not lost.
+         */
+        private final ReentrantLock createLock;
+        private final Condition createSignal;
+        private long createSignals = 0; // @GuardedBy("createLock")
+
+        /*
+         * The map is keyed on pooled instances, compared by identity so that
+         * they work properly as keys without being wrapped.
+         */
+        private final ConcurrentIdentityHashMap<S, PooledObject<S>> allObjects =
+                new ConcurrentIdentityHashMap<S, PooledObject<S>>();
+
+        /*
+         * Time of the last successful validation of each object that is not
+         * a DefaultPooledObject, while validationCacheMillis is on. Created
+         * when first needed; the entry goes when the object is destroyed.
+         */
+        private volatile ConcurrentIdentityHashMap<PooledObject<S>, Long> validatedTimes = null;
+
+        /*
+         * Number of threads with registered interest in this key.
+         * register(K) increments this counter and deRegister(K) decrements it.
+         * Invariant: empty keyed pool will not be dropped unless numInterested
+         *            is 0. Set to KEY_REMOVED while the keyed pool is dropped,
+         *            after which it is never registered again.
+         */
+        private final AtomicLong numInterested = new AtomicLong(0);
+
+        /*
+         * Unique id, used to order keys with the same number of waiters in
+         * borrowWaiters.
+         */
+        private final long id = objectDequeIds.incrementAndGet();
+
+        /*
+         * The entry for this key in borrowWaiters, null if no thread is
+         * waiting to borrow an object for this key.
+         */
+        private BorrowWaiters borrowWaiters = null; // @GuardedBy("this")
+
+        /*
+         * The entry for this key in oldestIdle, null once the key has been
+         * removed from poolMap.
+         */
+        private OldestIdle oldestIdle = null; // @GuardedBy("this")
+
+        /*
+         * Asynchronous borrowers waiting for an object of this key, in
+         * arrival order.
+         */
+        private final ConcurrentLinkedDeque<AsyncBorrow> asyncWaiters =
+                new ConcurrentLinkedDeque<AsyncBorrow>();
+
+        /*
+         * Statistics of this key, see getKeyStats(K). The counters are
+         * LongAdders so that threads borrowing and returning under the same
+         * key do not contend on one value, and the histograms are limited to
+         * KEY_STATS_STRIPES stripes to bound the memory taken by every key.
+         */
+        private final LongAdder borrowedCount = new LongAdder();
+        private final LongAdder returnedCount = new LongAdder();
+        private final LongAdder createdCount = new LongAdder();
+        private final LongAdder destroyedCount = new LongAdder();
+        private final LongAdder destroyedByEvictorCount = new LongAdder();
+        private final LongAdder destroyedByBorrowValidationCount = new LongAdder();
+        private final LatencyHistogram activeTimes =
+                new LatencyHistogram(KEY_STATS_STRIPES);
+        private final LatencyHistogram idleTimes =
+                new LatencyHistogram(KEY_STATS_STRIPES);
+        private final LatencyHistogram waitTimes =
+                new LatencyHistogram(KEY_STATS_STRIPES);
+
+        /*
+         * Expiry index of the idle objects of this key, created when first
+         * needed if idleExpiryIndex is set, see scheduleExpiry.
+         */
+        private volatile ExpiryWheel<PooledObject<S>> expiryWheel = null;
+
+        /**
+         * Create a new ObjecDeque with the given fairness policy.
+         * @param key The key of the objects
+         * @param fairness true means client threads waiting to borrow / return instances
+         * will be served as if waiting in a FIFO queue.
+         */
+        public ObjectDeque(K key, boolean fairness) {
+            this.key = key;
+            IdleObjectStore<PooledObject<S>> store = createIdleObjectStore(fairness);
+            idleObjects = new CountingIdleObjectStore<PooledObject<S>>(store, numIdle,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            signalCreateWaiter();
                         }
-                        if (active) {
-                            if (!factory.validateObject(evictionKey, underTest)) {
-                                destroy(evictionKey, underTest, true);
-                                destroyedByEvictorCount.incrementAndGet();
-                            } else {
-                                try {
-                                    factory.passivateObject(evictionKey, underTest);
-                                } catch (Exception e) {
-                                    destroy(evictionKey, underTest, true);
-                                    destroyedByEvictorCount.incrementAndGet();
-                                }
+                    },
+                    new CountingIdleObjectStore.Links<PooledObject<S>>() {
+                        @Override
+                        public void linking(PooledObject<S> p) {
+                            if (p instanceof DefaultPooledObject) {
+                                ((DefaultPooledObject<S>) p).linking();
                             }
                         }
+
+                        @Override
+                        public boolean unlinked(PooledObject<S> p) {
+                            // Left linked by the affinity cache, see
+                            // borrowFromAffinityCache
+                            return p instanceof DefaultPooledObject &&
+                                    ((DefaultPooledObject<S>) p).unlinked();
+                        }
+                    });
+            createLock = new ReentrantLock(fairness);
+            createSignal = createLock.newCondition();
+        }
+
+        /**
+         * Obtain the idle objects for the current key.
+         *
+         * @return The idle objects
+         */
+        public CountingIdleObjectStore<PooledObject<S>> getIdleObjects() {
+            return idleObjects;
+        }
+
+        /**
+         * Obtain the key of the objects.
+         *
+         * @return The key
+         */
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * Obtain the count of the number of objects created for the current
+         * key.
+         *
+         * @return The number of objects created for this key
+         */
+        public AtomicInteger getCreateCount() {
+            return createCount;
+        }
+
+        /**
+         * Obtain the count of the number of objects being created for the
+         * current key.
+         *
+         * @return The number of objects being created for this key
+         */
+        public AtomicInteger getCreatingCount() {
+            return creatingCount;
+        }
+
+        /**
+         * Obtain the count of the borrowers waiting for an idle object or a
+         * free creating slot for the current key.
+         *
+         * @return The number of borrowers waiting for this key
+         */
+        public AtomicInteger getCreateWaiters() {
+            return createWaiters;
+        }
+
+        /**
+         * Checks whether any borrower waits for an idle object or a free
+         * creating slot for the current key.
+         *
+         * @return <code>true</code> if there is at least one such borrower
+         */
+        public boolean hasCreateWaiters() {
+            return createWaiters.get() > 0;
+        }
+
+        /**
+         * Obtain the number of signals sent to the waiting borrowers so far.
+         *
+         * @return The number of signals
+         */
+        public long getCreateSignals() {
+            createLock.lock();
+            try {
+                return createSignals;
+            } finally {
+                createLock.unlock();
+            }
+        }
+
+        /**
+         * Wake one borrower waiting for an idle object or a free creating
+         * slot, if there is one.
+         *
+         * @return <code>true</code> if a borrower was waiting
+         */
+        public boolean signalCreateWaiter() {
+            if (createWaiters.get() == 0) {
+                return false;
+            }
+            createLock.lock();
+            try {
+                createSignals++;
+                createSignal.signal();
+            } finally {
+                createLock.unlock();
+            }
+            return true;
+        }
+
+        /**
+         * Wait for a signal, unless one has been sent since
+         * {@link #getCreateSignals()} returned <code>signals</code>.
+         *
+         * @param signals The number of signals seen by the caller
+         * @param nanos The maximum time to wait, negative to wait indefinitely
+         *
+         * @return <code>false</code> if the wait timed out
+         *
+         * @throws InterruptedException if the thread was interrupted
+         */
+        public boolean awaitCreateSignal(long signals, long nanos)
+                throws InterruptedException {
+            createLock.lockInterruptibly();
+            try {
+                while (createSignals == signals) {
+                    if (nanos < 0) {
+                        createSignal.await();
+                    } else if (nanos == 0) {
+                        return false;
+                    } else {
+                        nanos = Math.max(createSignal.awaitNanos(nanos), 0);
                     }
-                    if (!underTest.endEvictionTest(idleObjects)) {
-                        // TODO - May need to add code here once additional
-                        // states are used
+                }
+                return true;
+            } finally {
+                createLock.unlock();
+            }
+        }
+
+        /**
+         * Wake all borrowers waiting for an idle object or a free creating
+         * slot; used when the pool is closed.
+         */
+        public void interruptCreateWaiters() {
+            createLock.lock();
+            try {
+                createSignals++;
+                createSignal.signalAll();
+            } finally {
+                createLock.unlock();
+            }
+        }
+
+        /**
+         * Obtain the number of threads with an interest registered in this key.
+         *
+         * @return The number of threads with a registered interest in this key
+         */
+        public AtomicLong getNumInterested() {
+            return numInterested;
+        }
+
+        /**
+         * Obtain the asynchronous borrowers waiting for the current key.
+         *
+         * @return The queued borrowers
+         */
+        public ConcurrentLinkedDeque<AsyncBorrow> getAsyncWaiters() {
+            return asyncWaiters;
+        }
+
+        /**
+         * Obtain all the objects for the current key.
+         *
+         * @return All the objects
+         */
+        public ConcurrentIdentityHashMap<S, PooledObject<S>> getAllObjects() {
+            return allObjects;
+        }
+
+        /**
+         * Obtain the validation times of the objects for the current key
+         * that are not {@link DefaultPooledObject}s.
+         *
+         * @return The validation times
+         */
+        public ConcurrentIdentityHashMap<PooledObject<S>, Long> getValidatedTimes() {
+            ConcurrentIdentityHashMap<PooledObject<S>, Long> times = validatedTimes;
+            if (times == null) {
+                synchronized (this) {
+                    times = validatedTimes;
+                    if (times == null) {
+                        times = new ConcurrentIdentityHashMap<PooledObject<S>, Long>();
+                        validatedTimes = times;
                     }
                 }
             }
+            return times;
         }
+
     }
 
     /**
-     * Create a new pooled object.
-     *
-     * @param key Key associated with new pooled object
-     *
-     * @return The new, wrapped pooled object
-     *
-     * @throws Exception If the objection creation fails
+     * The number of threads waiting to borrow an object for a key. Instances
+     * are immutable so that they can be kept in a sorted set; when the number
+     * changes the entry is replaced.
      */
-    private PooledObject<T> create(K key) throws Exception {
-        int maxTotalPerKeySave = getMaxTotalPerKey(); // Per key
-        int maxTotal = getMaxTotal();   // All keys
-
-        // Check against the overall limit
-        boolean loop = true;
-
-        while (loop) {
-            int newNumTotal = numTotal.incrementAndGet();
-            if (maxTotal > -1 && newNumTotal > maxTotal) {
-                numTotal.decrementAndGet();
-                if (getNumIdle() == 0) {
-                    return null;
-                } else {
-                    clearOldest();
-                }
-            } else {
-                loop = false;
-            }
-        }
+    private class BorrowWaiters implements Comparable<BorrowWaiters> {
 
-        ObjectDeque<T> objectDeque = poolMap.get(key);
-        long newCreateCount = objectDeque.getCreateCount().incrementAndGet();
+        private final K key;
+        private final long id;
+        private final int numWaiters;
 
-        // Check against the per key limit
-        if (maxTotalPerKeySave > -1 && newCreateCount > maxTotalPerKeySave ||
-                newCreateCount > Integer.MAX_VALUE) {
-            numTotal.decrementAndGet();
-            objectDeque.getCreateCount().decrementAndGet();
-            return null;
+        BorrowWaiters(K key, long id, int numWaiters) {
+            this.key = key;
+            this.id = id;
+            this.numWaiters = numWaiters;
         }
 
-
-        PooledObject<T> p = null;
-        try {
-            p = factory.makeObject(key);
-        } catch (Exception e) {
-            numTotal.decrementAndGet();
-            objectDeque.getCreateCount().decrementAndGet();
-            throw e;
+        /**
+         * Most waiters first, then in the order the keys were created.
+         */
+        @Override
+        public int compareTo(BorrowWaiters other) {
+            if (numWaiters != other.numWaiters) {
+                return numWaiters > other.numWaiters ? -1 : 1;
+            }
+            return id < other.id ? -1 : (id == other.id ? 0 : 1);
         }
-
-        createdCount.incrementAndGet();
-        objectDeque.getAllObjects().put(new IdentityWrapper<T>(p.getObject()), p);
-        return p;
     }
 
     /**
-     * Destroy the wrapped, pooled object.
-     *
-     * @param key The key associated with the object to destroy.
-     * @param toDestroy The wrapped object to be destroyed
-     * @param always Should the object be destroyed even if it is not currently
-     *               in the set of idle objects for the given key
-     * @return {@code true} if the object was destroyed, otherwise {@code false}
-     * @throws Exception If the object destruction failed
+     * An entry of {@link GenericKeyedObjectPool#oldestIdle}: a key and a time
+     * no later than the return time of its oldest idle object. The time is
+     * only moved forward by {@link GenericKeyedObjectPool#clearOldest()}, so
+     * returning and borrowing objects does not touch the entry.
      */
-    private boolean destroy(K key, PooledObject<T> toDestroy, boolean always)
-            throws Exception {
+    private class OldestIdle implements Comparable<OldestIdle> {
 
-        ObjectDeque<T> objectDeque = register(key);
-
-        try {
-            boolean isIdle = objectDeque.getIdleObjects().remove(toDestroy);
+        private final ObjectDeque<T> objectDeque;
+        private final long time;
 
-            if (isIdle || always) {
-                objectDeque.getAllObjects().remove(new IdentityWrapper<T>(toDestroy.getObject()));
-                toDestroy.invalidate();
+        OldestIdle(ObjectDeque<T> objectDeque, long time) {
+            this.objectDeque = objectDeque;
+            this.time = time;
+        }
 
-                try {
-                    factory.destroyObject(key, toDestroy);
-                } finally {
-                    objectDeque.getCreateCount().decrementAndGet();
-                    destroyedCount.incrementAndGet();
-                    numTotal.decrementAndGet();
-                }
-                return true;
-            } else {
-                return false;
+        /**
+         * Oldest first, then in the order the keys were created.
+         */
+        @Override
+        public int compareTo(OldestIdle other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
             }
-        } finally {
-            deregister(key);
+            long id = objectDeque.id;
+            long otherId = other.objectDeque.id;
+            return id < otherId ? -1 : (id == otherId ? 0 : 1);
         }
     }
 
-
     /**
-     * Register the use of a key by an object.
-     * <p>
-     * register() and deregister() must always be used as a pair.
-     *
-     * @param k The key to register
-     *
-     * @return The objects currently associated with the given key. If this
-     *         method returns without throwing an exception then it will never
-     *         return null.
+     * The activated objects of one key that the evictor validates together,
+     * see {@link BatchValidatingKeyedPooledObjectFactory}. They stay under
+     * eviction test until the batch is validated. Only used while holding
+     * evictionLock.
      */
-    private ObjectDeque<T> register(K k) {
-        Lock lock = keyLock.readLock();
-        ObjectDeque<T> objectDeque = null;
-        try {
-            lock.lock();
-            objectDeque = poolMap.get(k);
-            if (objectDeque == null) {
-                // Upgrade to write lock
-                lock.unlock();
-                lock = keyLock.writeLock();
-                lock.lock();
-                objectDeque = poolMap.get(k);
-                if (objectDeque == null) {
-                    objectDeque = new ObjectDeque<T>(fairness);
-                    objectDeque.getNumInterested().incrementAndGet();
-                    // NOTE: Keys must always be added to both poolMap and
-                    //       poolKeyList at the same time while protected by
-                    //       keyLock.writeLock()
-                    poolMap.put(k, objectDeque);
-                    poolKeyList.add(k);
-                } else {
-                    objectDeque.getNumInterested().incrementAndGet();
-                }
-            } else {
-                objectDeque.getNumInterested().incrementAndGet();
-            }
-        } finally {
-            lock.unlock();
+    private class ValidationBatch {
+
+        private final K key;
+        private final Deque<PooledObject<T>> idleObjects;
+        private final List<PooledObject<T>> objects =
+                new ArrayList<PooledObject<T>>();
+
+        ValidationBatch(K key, Deque<PooledObject<T>> idleObjects) {
+            this.key = key;
+            this.idleObjects = idleObjects;
         }
-        return objectDeque;
     }
 
     /**
-     * De-register the use of a key by an object.
-     * <p>
-     * register() and deregister() must always be used as a pair.
-     *
-     * @param k The key to de-register
+     * The completion of a return on the return executor, see
+     * {@link #setReturnExecutor(Executor)}. The object has been marked as
+     * returning and still takes its room in the pool.
      */
-    private void deregister(K k) {
-        ObjectDeque<T> objectDeque;
+    private class Return implements Runnable {
+
+        private final K key;
+        private final ObjectDeque<T> objectDeque;
+        private final PooledObject<T> p;
+        private final long activeTime;
+        private final long queueTime = clock.currentTimeMillis();
+
+        Return(K key, ObjectDeque<T> objectDeque, PooledObject<T> p,
+                long activeTime) {
+            this.key = key;
+            this.objectDeque = objectDeque;
+            this.p = p;
+            this.activeTime = activeTime;
+        }
 
-        objectDeque = poolMap.get(k);
-        long numInterested = objectDeque.getNumInterested().decrementAndGet();
-        if (numInterested == 0 && objectDeque.getCreateCount().get() == 0) {
-            // Potential to remove key
-            Lock writeLock = keyLock.writeLock();
-            writeLock.lock();
+        @Override
+        public void run() {
+            returnDelays.add(clock.currentTimeMillis() - queueTime);
             try {
-                if (objectDeque.getCreateCount().get() == 0 &&
-                        objectDeque.getNumInterested().get() == 0) {
-                    // NOTE: Keys must always be removed from both poolMap and
-                    //       poolKeyList at the same time while protected by
-                    //       keyLock.writeLock()
-                    poolMap.remove(k);
-                    poolKeyList.remove(k);
-                }
+                completeReturn(key, objectDeque, p, activeTime, false);
+            } catch (Exception e) {
+                swallowException(e);
             } finally {
-                writeLock.unlock();
+                pendingReturns.decrementAndGet();
             }
         }
     }
 
-    @Override
-    void ensureMinIdle() throws Exception {
-        int minIdlePerKeySave = getMinIdlePerKey();
-        if (minIdlePerKeySave < 1) {
-            return;
+    /**
+     * The destruction of an object on the destruction executor, see
+     * {@link #setDestructionExecutor(Executor)}. The object has already left
+     * the pool and released its capacity.
+     */
+    private class Destruction implements Runnable {
+
+        private final K key;
+        private final PooledObject<T> toDestroy;
+        private final long queueTime = clock.currentTimeMillis();
+
+        Destruction(K key, PooledObject<T> toDestroy) {
+            this.key = key;
+            this.toDestroy = toDestroy;
         }
 
-        for (K k : poolMap.keySet()) {
-            ensureMinIdle(k);
+        @Override
+        public void run() {
+            destructionDelays.add(clock.currentTimeMillis() - queueTime);
+            try {
+                destroyObject(key, toDestroy);
+            } catch (Exception e) {
+                swallowException(e);
+            } finally {
+                pendingDestructions.decrementAndGet();
+            }
         }
     }
 
     /**
-     * Ensure that the configured number of minimum idle objects is available in
-     * the pool for the given key.
-     *
-     * @param key The key to check for idle objects
-     *
-     * @throws Exception If a new object is required and cannot be created
+     * The place of an eviction partition in its keys, see {@link #evict()}:
+     * the keys of the partition as they were at the start of the current
+     * pass, the key being examined and the iterator over its idle objects.
+     * Only used while holding evictionLock.
      */
-    private void ensureMinIdle(K key) throws Exception {
-        // Calculate current pool objects
-        ObjectDeque<T> objectDeque = poolMap.get(key);
+    private class EvictionCursor {
 
-        // objectDeque == null is OK here. It is handled correctly by both
-        // methods called below.
+        private final int partition;
+        private Iterator<K> keyIterator = null;
+        private K key = null;
+        private EvictionIterator iterator = null;
 
-        // this method isn't synchronized so the
-        // calculateDeficit is done at the beginning
-        // as a loop limit and a second time inside the loop
-        // to stop when another thread already returned the
-        // needed objects
-        int deficit = calculateDeficit(objectDeque);
+        /*
+         * Whether the partition has been through all its keys since the
+         * current sweep started.
+         */
+        private boolean swept = false;
 
-        for (int i = 0; i < deficit && calculateDeficit(objectDeque) > 0; i++) {
-            addObject(key);
+        EvictionCursor(int partition) {
+            this.partition = partition;
         }
-    }
 
-    /**
-     * Create an object using the {@link KeyedPooledObjectFactory#makeObject
-     * factory}, passivate it, and then place it in the idle object pool.
-     * <code>addObject</code> is useful for "pre-loading" a pool with idle
-     * objects.
-     *
-     * @param key the key a new instance should be added to
-     *
-     * @throws Exception when {@link KeyedPooledObjectFactory#makeObject}
-     *                   fails.
-     */
-    @Override
-    public void addObject(K key) throws Exception {
-        assertOpen();
-        register(key);
-        try {
-            PooledObject<T> p = create(key);
-            addIdleObject(key, p);
-        } finally {
-            deregister(key);
+        /**
+         * Returns the next idle object of the partition, moving on to the
+         * next key with idle objects when the current one has none left and
+         * to the first key again after the last one.
+         *
+         * @return the next idle object, or <code>null</code> if the rest of
+         *         the keys have no idle objects
+         */
+        PooledObject<T> next() {
+            while (true) {
+                if (iterator == null || !iterator.hasNext()) {
+                    if (keyIterator == null || !keyIterator.hasNext()) {
+                        if (keyIterator != null) {
+                            swept = true;
+                        }
+                        keyIterator = keys().iterator();
+                    }
+                    iterator = null;
+                    while (keyIterator.hasNext()) {
+                        key = keyIterator.next();
+                        ObjectDeque<T> objectDeque = poolMap.get(key);
+                        if (objectDeque == null) {
+                            continue;
+                        }
+
+                        iterator = new EvictionIterator(objectDeque.getIdleObjects());
+                        if (iterator.hasNext()) {
+                            break;
+                        }
+                        iterator = null;
+                    }
+                }
+                if (iterator == null) {
+                    return null;
+                }
+                try {
+                    return iterator.next();
+                } catch (NoSuchElementException nsee) {
+                    // Object was borrowed in another thread
+                    iterator = null;
+                }
+            }
         }
-    }
 
-    /**
-     * Add an object to the set of idle objects for a given key.
-     *
-     * @param key The key to associate with the idle object
-     * @param p The wrapped object to add.
-     *
-     * @throws Exception If the associated factory fails to passivate the object
-     */
-    private void addIdleObject(K key, PooledObject<T> p) throws Exception {
+        /**
+         * Whether the partition has examined the last idle object of its
+         * last key.
+         *
+         * @return <code>true</code> if the next object would be the first
+         *         of a new pass
+         */
+        boolean isAtEnd() {
+            return keyIterator != null && !keyIterator.hasNext() &&
+                    (iterator == null || !iterator.hasNext());
+        }
 
-        if (p != null) {
-            factory.passivateObject(key, p);
-            LinkedBlockingDeque<PooledObject<T>> idleObjects =
-                    poolMap.get(key).getIdleObjects();
-            if (getLifo()) {
-                idleObjects.addFirst(p);
-            } else {
-                idleObjects.addLast(p);
+        /**
+         * Returns the current keys of this partition.
+         *
+         * @return the keys
+         */
+        private List<K> keys() {
+            int n = evictionCursors.size();
+            if (n == 1) {
+                return new ArrayList<K>(poolMap.keySet());
+            }
+            List<K> keys = new ArrayList<K>();
+            for (K k : poolMap.keySet()) {
+                int h = k.hashCode();
+                if (Math.floorMod(h ^ (h >>> 16), n) == partition) {
+                    keys.add(k);
+                }
             }
+            return keys;
         }
     }
 
     /**
-     * Registers a key for pool control and ensures that
-     * {@link #getMinIdlePerKey()} idle instances are created.
-     *
-     * @param key - The key to register for pool control.
-     *
-     * @throws Exception If the associated factory throws an exception
+     * A queued asynchronous borrow, see {@link #borrowObjectAsync}. The
+     * borrower holds the registration of its key until it is completed.
+     * <p>
+     * Whoever wants to complete or dequeue the borrower (a thread handing it
+     * an object, the timeout, cancellation or closing the pool) must first
+     * {@link #claim()} it. A thread handing over an object that turns out to
+     * be unusable and that can not create a new one queues the borrower again
+     * and gives up its claim with {@link #release()}; a timeout that elapsed
+     * in the meantime is then run by that thread.
      */
-    public void preparePool(K key) throws Exception {
-        int minIdlePerKeySave = getMinIdlePerKey();
-        if (minIdlePerKeySave < 1) {
-            return;
+    private class AsyncBorrow extends CompletableFuture<T> {
+
+        private final K key;
+        private final ObjectDeque<T> objectDeque;
+        private final long waitTime;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private volatile boolean expired = false;
+        private volatile ScheduledFuture<?> timeoutTask = null;
+
+        AsyncBorrow(K key, ObjectDeque<T> objectDeque, long waitTime) {
+            this.key = key;
+            this.objectDeque = objectDeque;
+            this.waitTime = waitTime;
         }
-        ensureMinIdle(key);
-    }
 
-    /**
-     * Calculate the number of objects to test in a run of the idle object
-     * evictor.
-     *
-     * @return The number of objects to test for validity
-     */
-    private int getNumTests() {
-        int totalIdle = getNumIdle();
-        int numTests = getNumTestsPerEvictionRun();
-        if (numTests >= 0) {
-            return Math.min(numTests, totalIdle);
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        void release() {
+            claimed.set(false);
+            if (expired) {
+                expire();
+            }
+        }
+
+        /**
+         * Called when the timeout elapses.
+         */
+        void expire() {
+            expired = true;
+            if (claim()) {
+                objectDeque.getAsyncWaiters().remove(this);
+                finish();
+                completeExceptionally(new NoSuchElementException(
+                        "Timeout waiting for idle object"));
+            }
+        }
+
+        /**
+         * Stop waiting. Must be called exactly once, by the thread holding
+         * the claim, before it completes this future.
+         */
+        void finish() {
+            ScheduledFuture<?> task = timeoutTask;
+            if (task != null) {
+                task.cancel(false);
+            }
+            updateBorrowWaiters(key, objectDeque, -1);
+            deregister(key);
+        }
+
+        /**
+         * Abandons the borrow if no object is being handed to it.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (claim()) {
+                objectDeque.getAsyncWaiters().remove(this);
+                finish();
+                return super.cancel(mayInterruptIfRunning);
+            }
+            return isCancelled();
         }
-        return(int)(Math.ceil(totalIdle/Math.abs((double)numTests)));
     }
 
     /**
-     * Calculate the number of objects that need to be created to attempt to
-     * maintain the minimum number of idle objects while not exceeded the limits
-     * on the maximum number of objects either per key or totally.
-     *
-     * @param objectDeque   The set of objects to check
-     *
-     * @return The number of new objects to create
+     * The {@link KeyHandle} handed out by {@link #handle(Object)}. It holds
+     * one registration of the key for as long as it is open, so the sub-pool
+     * it refers to is never removed from {@link #poolMap} under it.
      */
-    private int calculateDeficit(ObjectDeque<T> objectDeque) {
+    private class PooledKeyHandle implements KeyHandle<K,T> {
 
-        if (objectDeque == null) {
-            return getMinIdlePerKey();
-        }
+        private final K key;
 
-        // Used more than once so keep a local copy so the value is consistent
-        int maxTotal = getMaxTotal();
-        int maxTotalPerKeySave = getMaxTotalPerKey();
+        private final ObjectDeque<T> objectDeque;
 
-        int objectDefecit = 0;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
 
-        // Calculate no of objects needed to be created, in order to have
-        // the number of pooled objects < maxTotalPerKey();
-        objectDefecit = getMinIdlePerKey() - objectDeque.getIdleObjects().size();
-        if (maxTotalPerKeySave > 0) {
-            int growLimit = Math.max(0,
-                    maxTotalPerKeySave - objectDeque.getIdleObjects().size());
-            objectDefecit = Math.min(objectDefecit, growLimit);
+        PooledKeyHandle(K key, ObjectDeque<T> objectDeque) {
+            this.key = key;
+            this.objectDeque = objectDeque;
         }
 
-        // Take the maxTotal limit into account
-        if (maxTotal > 0) {
-            int growLimit = Math.max(0, maxTotal - getNumActive() - getNumIdle());
-            objectDefecit = Math.min(objectDefecit, growLimit);
+        @Override
+        public K getKey() {
+            return key;
         }
 
-        return objectDefecit;
-    }
+        @Override
+        public T borrowObject() throws Exception {
+            return borrowObject(getMaxWaitMillis());
+        }
 
+        @Override
+        public T borrowObject(long borrowMaxWaitMillis) throws Exception {
+            assertHandleOpen();
+            return borrow(key, objectDeque, borrowMaxWaitMillis).getObject();
+        }
 
-    //--- JMX support ----------------------------------------------------------
+        @Override
+        public Lease<T> lease() throws Exception {
+            return lease(getMaxWaitMillis());
+        }
 
-    @Override
-    public Map<String,Integer> getNumActivePerKey() {
-        HashMap<String,Integer> result = new HashMap<String,Integer>();
+        @Override
+        public Lease<T> lease(long borrowMaxWaitMillis) throws Exception {
+            assertHandleOpen();
+            return newLease(key, objectDeque,
+                    borrow(key, objectDeque, borrowMaxWaitMillis));
+        }
 
-        Iterator<Entry<K,ObjectDeque<T>>> iter = poolMap.entrySet().iterator();
-        while (iter.hasNext()) {
-            Entry<K,ObjectDeque<T>> entry = iter.next();
-            if (entry != null) {
-                K key = entry.getKey();
-                ObjectDeque<T> objectDequeue = entry.getValue();
-                if (key != null && objectDequeue != null) {
-                    result.put(key.toString(), Integer.valueOf(
-                            objectDequeue.getAllObjects().size() -
-                            objectDequeue.getIdleObjects().size()));
-                }
+        @Override
+        public void returnObject(T obj) {
+            PooledObject<T> p = objectDeque.getAllObjects().get(obj);
+            if (p == null) {
+                throw new IllegalStateException(
+                        "Returned object not currently part of this pool");
             }
+            GenericKeyedObjectPool.this.returnObject(key, objectDeque, p);
         }
-        return result;
-    }
-
-    /**
-     * Return an estimate of the number of threads currently blocked waiting for
-     * an object from the pool. This is intended for monitoring only, not for
-     * synchronization control.
-     *
-     * @return The estimate of the number of threads currently blocked waiting
-     *         for an object from the pool
-     */
-    @Override
-    public int getNumWaiters() {
-        int result = 0;
-
-        if (getBlockWhenExhausted()) {
-            Iterator<ObjectDeque<T>> iter = poolMap.values().iterator();
 
-            while (iter.hasNext()) {
-                // Assume no overflow
-                result += iter.next().getIdleObjects().getTakeQueueLength();
+        @Override
+        public void invalidateObject(T obj) throws Exception {
+            PooledObject<T> p = objectDeque.getAllObjects().get(obj);
+            if (p == null) {
+                throw new IllegalStateException(
+                        "Object not currently part of this pool");
             }
+            GenericKeyedObjectPool.this.invalidateObject(key, objectDeque, p);
         }
 
-        return result;
-    }
-
-    /**
-     * Return an estimate of the number of threads currently blocked waiting for
-     * an object from the pool for each key. This is intended for
-     * monitoring only, not for synchronization control.
-     *
-     * @return The estimate of the number of threads currently blocked waiting
-     *         for an object from the pool for each key
-     */
-    @Override
-    public Map<String,Integer> getNumWaitersByKey() {
-        Map<String,Integer> result = new HashMap<String,Integer>();
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                deregister(key);
+            }
+        }
 
-        for (K key : poolMap.keySet()) {
-            ObjectDeque<T> queue = poolMap.get(key);
-            if (queue != null) {
-                if (getBlockWhenExhausted()) {
-                    result.put(key.toString(), Integer.valueOf(
-                            queue.getIdleObjects().getTakeQueueLength()));
-                } else {
-                    result.put(key.toString(), Integer.valueOf(0));
-                }
+        /**
+         * Throws an <code>IllegalStateException</code> if the handle has
+         * been closed.
+         *
+         * @throws IllegalStateException if the handle has been closed
+         */
+        private void assertHandleOpen() throws IllegalStateException {
+            if (closed.get()) {
+                throw new IllegalStateException("KeyHandle has been closed");
             }
         }
-        return result;
+
+        @Override
+        public String toString() {
+            return "KeyHandle[" + key + (closed.get() ? ", closed]" : "]");
+        }
     }
 
     /**
-     * Provides information on all the objects in the pool, both idle (waiting
-     * to be borrowed) and active (currently borrowed).
+     * The {@link Lease} handed out by {@link #lease(Object, long)}. Closing or
+     * invalidating it goes straight to the object and its sub-pool.
      * <p>
-     * Note: This is named listAllObjects so it is presented as an operation via
-     * JMX. That means it won't be invoked unless the explicitly requested
-     * whereas all attributes will be automatically requested when viewing the
-     * attributes for an object in a tool like JConsole.
-     *
-     * @return Information grouped by key on all the objects in the pool
+     * The lease of a {@link DefaultPooledObject} is reused for every borrow of
+     * the object and stamped with the borrow count the object had when it was
+     * leased. Closing or invalidating it first changes the object from
+     * {@link PooledObjectState#ALLOCATED ALLOCATED} to
+     * {@link PooledObjectState#RETURNING RETURNING} with a single CAS that
+     * also checks the borrow count, so a lease kept from an earlier borrow
+     * cannot act on a later one.
      */
-    @Override
-    public Map<String,List<DefaultPooledObjectInfo>> listAllObjects() {
-        Map<String,List<DefaultPooledObjectInfo>> result =
-                new HashMap<String,List<DefaultPooledObjectInfo>>();
-
-        for (K key : poolMap.keySet()) {
-            ObjectDeque<T> queue = poolMap.get(key);
-            if (queue != null) {
-                List<DefaultPooledObjectInfo> list =
-                        new ArrayList<DefaultPooledObjectInfo>();
-                result.put(key.toString(), list);
-                for (PooledObject<T> p : queue.getAllObjects().values()) {
-                    list.add(new DefaultPooledObjectInfo(p));
-                }
-            }
-        }
-        return result;
-    }
+    private class PooledLease implements Lease<T> {
 
+        /* The generation of a closed or invalidated lease */
+        private static final long CLOSED = -1;
 
-    //--- inner classes ----------------------------------------------
+        private final K key;
 
-    /**
-     * Maintains information on the per key queue for a given key.
-     */
-    private class ObjectDeque<S> {
+        private final ObjectDeque<T> objectDeque;
 
-        private final LinkedBlockingDeque<PooledObject<S>> idleObjects;
+        private final PooledObject<T> p;
 
         /*
-         * Number of instances created - number destroyed.
-         * Invariant: createCount <= maxTotalPerKey
+         * The borrow count of a DefaultPooledObject when it was leased, 0 for
+         * any other PooledObject, or CLOSED
          */
-        private final AtomicInteger createCount = new AtomicInteger(0);
+        private volatile long generation;
 
-        /*
-         * The map is keyed on pooled instances, wrapped to ensure that
-         * they work properly as keys.  
+        /**
+         * Start a lease for a borrowed object.
+         *
+         * @param key pool key
+         * @param objectDeque The objects associated with the key
+         * @param p The borrowed object
          */
-        private final Map<IdentityWrapper<S>, PooledObject<S>> allObjects =
-                new ConcurrentHashMap<IdentityWrapper<S>, PooledObject<S>>();
+        PooledLease(K key, ObjectDeque<T> objectDeque, PooledObject<T> p) {
+            this.key = key;
+            this.objectDeque = objectDeque;
+            this.p = p;
+            renew();
+        }
 
-        /*
-         * Number of threads with registered interest in this key.
-         * register(K) increments this counter and deRegister(K) decrements it.
-         * Invariant: empty keyed pool will not be dropped unless numInterested
-         *            is 0.
+        /**
+         * Stamp the lease with the current borrow of the object.
          */
-        private final AtomicLong numInterested = new AtomicLong(0);
+        void renew() {
+            generation = p instanceof DefaultPooledObject ?
+                    ((DefaultPooledObject<T>) p).getBorrowedCount() : 0;
+        }
+
+        @Override
+        public T get() {
+            long leased = generation;
+            if (leased == CLOSED || p instanceof DefaultPooledObject &&
+                    ((DefaultPooledObject<T>) p).getBorrowedCount() != leased) {
+                throw new IllegalStateException("Lease has been closed");
+            }
+            return p.getObject();
+        }
+
+        @Override
+        public void invalidate() throws Exception {
+            if (end()) {
+                invalidateObject(key, objectDeque, p);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (end()) {
+                returnMarked(key, objectDeque, p);
+            }
+        }
 
         /**
-         * Create a new ObjecDeque with the given fairness policy.
-         * @param fairness true means client threads waiting to borrow / return instances
-         * will be served as if waiting in a FIFO queue.
+         * Close the lease and mark the object as returning, unless the lease
+         * has been closed already or the object is no longer borrowed under
+         * this lease.
+         *
+         * @return <code>true</code> if the object is now marked as returning
+         *         and the caller is to return or invalidate it
          */
-        public ObjectDeque(boolean fairness) {
-            idleObjects = new LinkedBlockingDeque<PooledObject<S>>(fairness);
+        private boolean end() {
+            long leased = generation;
+            if (leased == CLOSED) {
+                return false;
+            }
+            generation = CLOSED;
+            if (p instanceof DefaultPooledObject) {
+                return ((DefaultPooledObject<T>) p).compareAndSetState(
+                        PooledObjectState.ALLOCATED, PooledObjectState.RETURNING,
+                        leased);
+            }
+            return markReturning(p);
+        }
+
+        @Override
+        public String toString() {
+            return "Lease[" + (generation == CLOSED ? "closed" : p.toString()) + "]";
         }
+    }
+
+    /**
+     * The objects most recently returned by a thread, at most one per key.
+     * Keys are mapped to a small, fixed number of slots by their hash code so
+     * the cache never grows; a return under a key sharing a slot simply
+     * replaces the previous entry.
+     * <p>
+     * The cache outlives neither the objects nor the pool: objects are only
+     * weakly referenced, so one that has been destroyed, by any thread or by
+     * closing the pool, can be collected even though the thread lives on, and
+     * keys are not kept at all, only their hash codes. The sub-pool of each
+     * object is weakly referenced too, and the class is static, so that the
+     * thread's map entry does not keep the pool reachable either. Because a
+     * hash code may be shared, the pool checks that the sub-pool of an object
+     * it takes from the cache is that of the key.
+     * <p>
+     * Only ever accessed by its owning thread.
+     *
+     * @param <T> the type of objects held in the pool
+     */
+    private static class AffinityCache<T> {
+
+        private static final int SIZE = 16; // Must be a power of 2
+
+        /** 每个槽最近返回的对象的弱引用，槽为空时的引用可以在下一次返回时重用 */
+        private final List<WeakReference<PooledObject<T>>> objects =
+                new ArrayList<WeakReference<PooledObject<T>>>(
+                        Collections.<WeakReference<PooledObject<T>>>nCopies(SIZE, null));
+
+        /** 每个槽的对象所属的子池的弱引用 */
+        private final List<WeakReference<Object>> owners =
+                new ArrayList<WeakReference<Object>>(
+                        Collections.<WeakReference<Object>>nCopies(SIZE, null));
+
+        /** 每个槽的键的哈希码 */
+        private final int[] hashes = new int[SIZE];
+
+        /** 槽中是否有对象 */
+        private final boolean[] cached = new boolean[SIZE];
 
         /**
-         * Obtain the idle objects for the current key.
+         * Remember an object returned under the given key.
          *
-         * @return The idle objects
+         * @param key The key the object was returned under
+         * @param owner The sub-pool of the key
+         * @param p The returned object
          */
-        public LinkedBlockingDeque<PooledObject<S>> getIdleObjects() {
-            return idleObjects;
+        void put(Object key, Object owner, PooledObject<T> p) {
+            int hash = key.hashCode();
+            int slot = hash & (SIZE - 1);
+            WeakReference<PooledObject<T>> ref = objects.get(slot);
+            if (ref == null || ref.get() != p) {
+                // Threads mostly return the object they borrowed from the
+                // cache, so the references can usually be kept
+                objects.set(slot, new WeakReference<PooledObject<T>>(p));
+            }
+            WeakReference<Object> ownerRef = owners.get(slot);
+            if (ownerRef == null || ownerRef.get() != owner) {
+                owners.set(slot, new WeakReference<Object>(owner));
+            }
+            hashes[slot] = hash;
+            cached[slot] = true;
         }
 
         /**
-         * Obtain the count of the number of objects created for the current
-         * key.
+         * Remove the object remembered for the given key, or for another key
+         * with the same hash code, from its slot.
          *
-         * @return The number of objects created for this key
+         * @param key The key to borrow under
+         *
+         * @return The slot of the object, see {@link #object(int)} and
+         *         {@link #owner(int)}, or -1 if there is none
          */
-        public AtomicInteger getCreateCount() {
-            return createCount;
+        int remove(Object key) {
+            int hash = key.hashCode();
+            int slot = hash & (SIZE - 1);
+            if (!cached[slot] || hashes[slot] != hash) {
+                return -1;
+            }
+            cached[slot] = false;
+            return slot;
         }
 
         /**
-         * Obtain the number of threads with an interest registered in this key.
+         * Returns the object last removed from a slot.
          *
-         * @return The number of threads with a registered interest in this key
+         * @param slot The slot returned by {@link #remove(Object)}
+         *
+         * @return The object, or <code>null</code> if it has been collected
          */
-        public AtomicLong getNumInterested() {
-            return numInterested;
+        PooledObject<T> object(int slot) {
+            return objects.get(slot).get();
         }
 
         /**
-         * Obtain all the objects for the current key.
+         * Returns the sub-pool of the object last removed from a slot.
          *
-         * @return All the objects
+         * @param slot The slot returned by {@link #remove(Object)}
+         *
+         * @return The sub-pool, or <code>null</code> if it has been collected
          */
-        public Map<IdentityWrapper<S>, PooledObject<S>> getAllObjects() {
-            return allObjects;
+        Object owner(int slot) {
+            return owners.get(slot).get();
+        }
+    }
+
+    /**
+     * Presents an {@link AsyncKeyedPooledObjectFactory} as a
+     * {@link KeyedPooledObjectFactory} for the synchronous parts of the pool,
+     * waiting for each stage to complete on the calling thread.
+     */
+    private static class AsyncFactoryAdapter<K,T>
+            implements KeyedPooledObjectFactory<K,T> {
+
+        private final AsyncKeyedPooledObjectFactory<K,T> factory;
+
+        AsyncFactoryAdapter(AsyncKeyedPooledObjectFactory<K,T> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public PooledObject<T> makeObject(K key) throws Exception {
+            return join(factory.makeObject(key));
+        }
+
+        @Override
+        public void destroyObject(K key, PooledObject<T> p) throws Exception {
+            factory.destroyObject(key, p);
         }
 
+        @Override
+        public boolean validateObject(K key, PooledObject<T> p) {
+            try {
+                return Boolean.TRUE.equals(join(factory.validateObject(key, p)));
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void activateObject(K key, PooledObject<T> p) throws Exception {
+            join(factory.activateObject(key, p));
+        }
+
+        @Override
+        public void passivateObject(K key, PooledObject<T> p) throws Exception {
+            factory.passivateObject(key, p);
+        }
+
+        private static <V> V join(CompletionStage<V> stage) throws Exception {
+            try {
+                return stage.toCompletableFuture().get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                PoolUtils.checkRethrow(cause);
+                throw e;
+            }
+        }
     }
 
     //--- configuration attributes ---------------------------------------------
@@ -1470,27 +5854,47 @@ public class GenericKeyedObjectPool<K,T> extends BaseGenericObjectPool<T>
         GenericKeyedObjectPoolConfig.DEFAULT_MIN_IDLE_PER_KEY;
     private volatile int maxTotalPerKey =
         GenericKeyedObjectPoolConfig.DEFAULT_MAX_TOTAL_PER_KEY;
+    private volatile Constructor<?> idleObjectStoreConstructor;
+    private volatile boolean threadAffinity =
+        GenericKeyedObjectPoolConfig.DEFAULT_THREAD_AFFINITY;
+    private volatile double clearOldestRatio =
+        GenericKeyedObjectPoolConfig.DEFAULT_CLEAR_OLDEST_RATIO;
+    private volatile int maxCreatingPerKey =
+        GenericKeyedObjectPoolConfig.DEFAULT_MAX_CREATING_PER_KEY;
+    private volatile int maxCreating =
+        GenericKeyedObjectPoolConfig.DEFAULT_MAX_CREATING;
+    private volatile PoolClock clock = PoolClock.getDefault();
+    private volatile Executor evictionExecutor = ForkJoinPool.commonPool();
+    private volatile int evictionParallelism =
+        GenericKeyedObjectPoolConfig.DEFAULT_EVICTION_PARALLELISM;
+    private volatile boolean idleExpiryIndex =
+        GenericKeyedObjectPoolConfig.DEFAULT_IDLE_EXPIRY_INDEX;
+    private volatile Executor destructionExecutor = null;
+    private volatile Executor returnExecutor = null;
+    private volatile int maxPendingDestructions =
+        GenericKeyedObjectPoolConfig.DEFAULT_MAX_PENDING_DESTRUCTIONS;
+    private volatile long validationCacheMillis =
+        GenericKeyedObjectPoolConfig.DEFAULT_VALIDATION_CACHE_MILLIS;
+    private volatile long borrowValidationIdleMillis =
+        GenericKeyedObjectPoolConfig.DEFAULT_BORROW_VALIDATION_IDLE_MILLIS;
+    private volatile boolean keyStatsEnabled =
+        GenericKeyedObjectPoolConfig.DEFAULT_KEY_STATS_ENABLED;
     private final KeyedPooledObjectFactory<K,T> factory;
+    private final AsyncKeyedPooledObjectFactory<K,T> asyncFactory; // null unless created with one
+    private final Executor createExecutor;
     private final boolean fairness;
 
 
     //--- internal attributes --------------------------------------------------
 
     /*
-     * My hash of sub-pools (ObjectQueue). The list of keys <b>must</b> be kept
-     * in step with {@link #poolKeyList} using {@link #keyLock} to ensure any
-     * changes to the list of current keys is made in a thread-safe manner.
-     */
-    private final Map<K,ObjectDeque<T>> poolMap =
-            new ConcurrentHashMap<K,ObjectDeque<T>>(); // @GuardedBy("keyLock") for write access (and some read access)
-    /*
-     * List of pool keys - used to control eviction order. The list of keys
-     * <b>must</b> be kept in step with {@link #poolMap} using {@link #keyLock}
-     * to ensure any changes to the list of current keys is made in a
-     * thread-safe manner.
+     * My hash of sub-pools (ObjectQueue). Sub-pools are added and removed
+     * without locking by {@link #register(Object)} and
+     * {@link #deregister(Object)}; the key set is also used to control
+     * eviction order.
      */
-    private final List<K> poolKeyList = new ArrayList<K>(); // @GuardedBy("keyLock")
-    private final ReadWriteLock keyLock = new ReentrantReadWriteLock(true);
+    private final ConcurrentMap<K,ObjectDeque<T>> poolMap =
+            new ConcurrentHashMap<K,ObjectDeque<T>>();
     /*
      * The combined count of the currently active objects for all keys and those
      * in the process of being created. Under load, it may exceed
@@ -1498,8 +5902,99 @@ public class GenericKeyedObjectPool<K,T> extends BaseGenericObjectPool<T>
      * created at any one time.
      */
     private final AtomicInteger numTotal = new AtomicInteger(0);
-    private Iterator<K> evictionKeyIterator = null; // @GuardedBy("evictionLock")
-    private K evictionKey = null; // @GuardedBy("evictionLock")
+    /*
+     * The combined count of the objects being created for all keys.
+     * Invariant: numCreating <= maxCreating
+     */
+    private final AtomicInteger numCreating = new AtomicInteger(0);
+    /*
+     * The combined count of the borrowers waiting for an idle object or a
+     * free creating slot for any key.
+     */
+    private final AtomicInteger numCreateWaiters = new AtomicInteger(0);
+    /*
+     * The combined count of the idle objects for all keys. Maintained by the
+     * CountingIdleObjectStore wrapping the idle objects of each key so that
+     * getNumIdle() and getNumActive() do not have to visit every key.
+     */
+    private final LongAdder numIdle = new LongAdder();
+    /*
+     * The keys with threads waiting to borrow an object, the key with the most
+     * waiting threads first. Lets returnObject() find out whether and where
+     * freed capacity is needed without visiting every key.
+     */
+    private final ConcurrentSkipListSet<BorrowWaiters> borrowWaiters =
+            new ConcurrentSkipListSet<BorrowWaiters>();
+    /*
+     * The keys, the key whose oldest idle object may be oldest first. Lets
+     * clearOldest() stop once the remaining keys only hold younger objects
+     * instead of visiting every key.
+     */
+    private final ConcurrentSkipListSet<OldestIdle> oldestIdle =
+            new ConcurrentSkipListSet<OldestIdle>();
+    private final AtomicLong objectDequeIds = new AtomicLong(0);
+    /*
+     * Objects most recently returned by each thread. Only used when
+     * threadAffinity is enabled.
+     */
+    private final ThreadLocal<AffinityCache<T>> affinityCache =
+            new ThreadLocal<AffinityCache<T>>() {
+                @Override
+                protected AffinityCache<T> initialValue() {
+                    return new AffinityCache<T>();
+                }
+            };
+    /*
+     * Places of the eviction partitions in their keys, replaced when
+     * evictionParallelism changes. evictionRemainderStart is the partition
+     * that gets the first of the tests left over after an even split.
+     */
+    private List<EvictionCursor> evictionCursors = null; // @GuardedBy("evictionLock")
+    private int evictionRemainderStart = 0; // @GuardedBy("evictionLock")
+    /*
+     * Statistics of sweeps, the time it takes every partition to go through
+     * all its keys once. The start of the current sweep is in nanoseconds.
+     */
+    private long evictionSweepStart = 0; // @GuardedBy("evictionLock")
+    private volatile long evictionSweepCount = 0; // @GuardedBy("evictionLock") for writes
+    private volatile long lastEvictionSweepTimeMillis = 0;
+    private final LatencyHistogram evictionSweepTimes = new LatencyHistogram(1);
+    /*
+     * Idle expiry time the expiry index was built for, EXPIRY_NOT_INDEXED if
+     * it is not built.
+     */
+    private long expiryIndexWindow = EXPIRY_NOT_INDEXED; // @GuardedBy("evictionLock")
+    /*
+     * Statistics of destruction. destroyTimes includes objects destroyed on
+     * the calling thread, destructionDelays only those destroyed on the
+     * destruction executor.
+     */
+    private final AtomicInteger pendingDestructions = new AtomicInteger(0);
+    private final AtomicLong destructionOverflowCount = new AtomicLong(0);
+    private final LatencyHistogram destroyTimes = new LatencyHistogram();
+    private final LatencyHistogram destructionDelays = new LatencyHistogram();
+    /*
+     * Statistics of returns completed on the return executor.
+     */
+    private final AtomicInteger pendingReturns = new AtomicInteger(0);
+    private final LatencyHistogram returnDelays = new LatencyHistogram();
+    /*
+     * Value of ObjectDeque.numInterested for a sub-pool that is being removed
+     * from poolMap and must not be registered any more.
+     */
+    private static final long KEY_REMOVED = -1;
+
+    /*
+     * Maximum number of stripes of the latency histograms of every key.
+     */
+    private static final int KEY_STATS_STRIPES = 2;
+
+    /*
+     * Value of expiryIndexWindow while the expiry index is not built, and
+     * the tick of the expiry index if the evictor is not running.
+     */
+    private static final long EXPIRY_NOT_INDEXED = Long.MIN_VALUE;
+    private static final long EXPIRY_TICK_MILLIS = 1000;
 
     // JMX specific attributes
     private static final String ONAME_BASE =
@@ -0,0 +1,691 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zx.impl;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 键池配置类，{@link GenericKeyedObjectPool}的配置属性
+ * <p>
+ * A simple "struct" encapsulating the configuration for a
+ * {@link GenericKeyedObjectPool}.
+ *
+ * <p>
+ * This class is not thread-safe; it is only intended to be used to provide
+ * attributes used when creating a pool.
+ *
+ * @version $Revision: $
+ *
+ * @since 2.0
+ */
+public class GenericKeyedObjectPoolConfig extends BaseObjectPoolConfig {
+
+    /**
+     * The default value for the {@code maxTotalPerKey} configuration attribute.
+     * @see GenericKeyedObjectPool#getMaxTotalPerKey()
+     */
+    public static final int DEFAULT_MAX_TOTAL_PER_KEY = 8;
+
+    /**
+     * The default value for the {@code maxTotal} configuration attribute.
+     * @see GenericKeyedObjectPool#getMaxTotal()
+     */
+    public static final int DEFAULT_MAX_TOTAL = -1;
+
+    /**
+     * The default value for the {@code minIdlePerKey} configuration attribute.
+     * @see GenericKeyedObjectPool#getMinIdlePerKey()
+     */
+    public static final int DEFAULT_MIN_IDLE_PER_KEY = 0;
+
+    /**
+     * The default value for the {@code maxIdlePerKey} configuration attribute.
+     * @see GenericKeyedObjectPool#getMaxIdlePerKey()
+     */
+    public static final int DEFAULT_MAX_IDLE_PER_KEY = 8;
+
+    /**
+     * The default value for the {@code idleObjectStoreClassName} configuration
+     * attribute.
+     * @see GenericKeyedObjectPool#getIdleObjectStoreClassName()
+     */
+    public static final String DEFAULT_IDLE_OBJECT_STORE_CLASS_NAME =
+            "com.zx.impl.LinkedBlockingIdleObjectStore";
+
+    /**
+     * The default value for the {@code threadAffinity} configuration attribute.
+     * @see GenericKeyedObjectPool#getThreadAffinity()
+     */
+    public static final boolean DEFAULT_THREAD_AFFINITY = false;
+
+    /**
+     * The default value for the {@code clearOldestRatio} configuration attribute.
+     * @see GenericKeyedObjectPool#getClearOldestRatio()
+     */
+    public static final double DEFAULT_CLEAR_OLDEST_RATIO = 0.15;
+
+    /**
+     * The default value for the {@code maxCreatingPerKey} configuration attribute.
+     * @see GenericKeyedObjectPool#getMaxCreatingPerKey()
+     */
+    public static final int DEFAULT_MAX_CREATING_PER_KEY = -1;
+
+    /**
+     * The default value for the {@code maxCreating} configuration attribute.
+     * @see GenericKeyedObjectPool#getMaxCreating()
+     */
+    public static final int DEFAULT_MAX_CREATING = -1;
+
+    /**
+     * The default value for the {@code evictionParallelism} configuration attribute.
+     * @see GenericKeyedObjectPool#getEvictionParallelism()
+     */
+    public static final int DEFAULT_EVICTION_PARALLELISM = 1;
+
+    /**
+     * The default value for the {@code idleExpiryIndex} configuration attribute.
+     * @see GenericKeyedObjectPool#getIdleExpiryIndex()
+     */
+    public static final boolean DEFAULT_IDLE_EXPIRY_INDEX = false;
+
+    /**
+     * The default value for the {@code maxPendingDestructions} configuration attribute.
+     * @see GenericKeyedObjectPool#getMaxPendingDestructions()
+     */
+    public static final int DEFAULT_MAX_PENDING_DESTRUCTIONS = 1000;
+
+    /**
+     * The default value for the {@code validationCacheMillis} configuration attribute.
+     * @see GenericKeyedObjectPool#getValidationCacheMillis()
+     */
+    public static final long DEFAULT_VALIDATION_CACHE_MILLIS = -1L;
+
+    /**
+     * The default value for the {@code borrowValidationIdleMillis} configuration attribute.
+     * @see GenericKeyedObjectPool#getBorrowValidationIdleMillis()
+     */
+    public static final long DEFAULT_BORROW_VALIDATION_IDLE_MILLIS = -1L;
+
+    /**
+     * The default value for the {@code keyStatsEnabled} configuration attribute.
+     * @see GenericKeyedObjectPool#getKeyStatsEnabled()
+     */
+    public static final boolean DEFAULT_KEY_STATS_ENABLED = true;
+
+
+    private int minIdlePerKey = DEFAULT_MIN_IDLE_PER_KEY;
+
+    private int maxIdlePerKey = DEFAULT_MAX_IDLE_PER_KEY;
+
+    private int maxTotalPerKey = DEFAULT_MAX_TOTAL_PER_KEY;
+
+    private int maxTotal = DEFAULT_MAX_TOTAL;
+
+    private String idleObjectStoreClassName = DEFAULT_IDLE_OBJECT_STORE_CLASS_NAME;
+
+    private boolean threadAffinity = DEFAULT_THREAD_AFFINITY;
+
+    private double clearOldestRatio = DEFAULT_CLEAR_OLDEST_RATIO;
+
+    private int maxCreatingPerKey = DEFAULT_MAX_CREATING_PER_KEY;
+
+    private int maxCreating = DEFAULT_MAX_CREATING;
+
+    private PoolClock clock = null;
+
+    private Executor evictionExecutor = null;
+
+    private int evictionParallelism = DEFAULT_EVICTION_PARALLELISM;
+
+    private boolean idleExpiryIndex = DEFAULT_IDLE_EXPIRY_INDEX;
+
+    private Executor destructionExecutor = null;
+
+    private Executor returnExecutor = null;
+
+    private int maxPendingDestructions = DEFAULT_MAX_PENDING_DESTRUCTIONS;
+
+    private long validationCacheMillis = DEFAULT_VALIDATION_CACHE_MILLIS;
+
+    private long borrowValidationIdleMillis = DEFAULT_BORROW_VALIDATION_IDLE_MILLIS;
+
+    private boolean keyStatsEnabled = DEFAULT_KEY_STATS_ENABLED;
+
+    /**
+     * Create a new configuration with default settings.
+     */
+    public GenericKeyedObjectPoolConfig() {
+    }
+
+    /**
+     * Get the value for the {@code maxTotal} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code maxTotal} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getMaxTotal()
+     */
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * Set the value for the {@code maxTotal} configuration attribute for
+     * pools created with this configuration instance.
+     *
+     * @param maxTotal The new setting of {@code maxTotal}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setMaxTotal(int)
+     */
+    public void setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+    }
+
+    /**
+     * Get the value for the {@code maxTotalPerKey} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code maxTotalPerKey} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getMaxTotalPerKey()
+     */
+    public int getMaxTotalPerKey() {
+        return maxTotalPerKey;
+    }
+
+    /**
+     * Set the value for the {@code maxTotalPerKey} configuration attribute for
+     * pools created with this configuration instance.
+     *
+     * @param maxTotalPerKey The new setting of {@code maxTotalPerKey}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setMaxTotalPerKey(int)
+     */
+    public void setMaxTotalPerKey(int maxTotalPerKey) {
+        this.maxTotalPerKey = maxTotalPerKey;
+    }
+
+    /**
+     * Get the value for the {@code minIdlePerKey} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code minIdlePerKey} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getMinIdlePerKey()
+     */
+    public int getMinIdlePerKey() {
+        return minIdlePerKey;
+    }
+
+    /**
+     * Set the value for the {@code minIdlePerKey} configuration attribute for
+     * pools created with this configuration instance.
+     *
+     * @param minIdlePerKey The new setting of {@code minIdlePerKey}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setMinIdlePerKey(int)
+     */
+    public void setMinIdlePerKey(int minIdlePerKey) {
+        this.minIdlePerKey = minIdlePerKey;
+    }
+
+    /**
+     * Get the value for the {@code maxIdlePerKey} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code maxIdlePerKey} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getMaxIdlePerKey()
+     */
+    public int getMaxIdlePerKey() {
+        return maxIdlePerKey;
+    }
+
+    /**
+     * Set the value for the {@code maxIdlePerKey} configuration attribute for
+     * pools created with this configuration instance.
+     *
+     * @param maxIdlePerKey The new setting of {@code maxIdlePerKey}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setMaxIdlePerKey(int)
+     */
+    public void setMaxIdlePerKey(int maxIdlePerKey) {
+        this.maxIdlePerKey = maxIdlePerKey;
+    }
+
+    /**
+     * Get the value for the {@code idleObjectStoreClassName} configuration
+     * attribute for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code idleObjectStoreClassName} for
+     *          this configuration instance
+     *
+     * @see GenericKeyedObjectPool#getIdleObjectStoreClassName()
+     */
+    public String getIdleObjectStoreClassName() {
+        return idleObjectStoreClassName;
+    }
+
+    /**
+     * Set the value for the {@code idleObjectStoreClassName} configuration
+     * attribute for pools created with this configuration instance.
+     *
+     * @param idleObjectStoreClassName The new setting of
+     *        {@code idleObjectStoreClassName} for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setIdleObjectStoreClassName(String)
+     */
+    public void setIdleObjectStoreClassName(String idleObjectStoreClassName) {
+        this.idleObjectStoreClassName = idleObjectStoreClassName;
+    }
+
+    /**
+     * Get the value for the {@code threadAffinity} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code threadAffinity} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getThreadAffinity()
+     */
+    public boolean getThreadAffinity() {
+        return threadAffinity;
+    }
+
+    /**
+     * Set the value for the {@code threadAffinity} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param threadAffinity The new setting of {@code threadAffinity}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setThreadAffinity(boolean)
+     */
+    public void setThreadAffinity(boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    /**
+     * Get the value for the {@code clearOldestRatio} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code clearOldestRatio} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getClearOldestRatio()
+     */
+    public double getClearOldestRatio() {
+        return clearOldestRatio;
+    }
+
+    /**
+     * Set the value for the {@code clearOldestRatio} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param clearOldestRatio The new setting of {@code clearOldestRatio}
+     *        for this configuration instance
+     *
+     * @throws IllegalArgumentException if <code>clearOldestRatio</code> is
+     *         negative or NaN
+     *
+     * @see GenericKeyedObjectPool#setClearOldestRatio(double)
+     */
+    public void setClearOldestRatio(double clearOldestRatio) {
+        if (!(clearOldestRatio >= 0)) {
+            throw new IllegalArgumentException(
+                    "clearOldestRatio may not be negative or NaN");
+        }
+        this.clearOldestRatio = clearOldestRatio;
+    }
+
+    /**
+     * Get the value for the {@code maxCreatingPerKey} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code maxCreatingPerKey} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getMaxCreatingPerKey()
+     */
+    public int getMaxCreatingPerKey() {
+        return maxCreatingPerKey;
+    }
+
+    /**
+     * Set the value for the {@code maxCreatingPerKey} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param maxCreatingPerKey The new setting of {@code maxCreatingPerKey}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setMaxCreatingPerKey(int)
+     */
+    public void setMaxCreatingPerKey(int maxCreatingPerKey) {
+        this.maxCreatingPerKey = maxCreatingPerKey;
+    }
+
+    /**
+     * Get the value for the {@code maxCreating} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code maxCreating} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getMaxCreating()
+     */
+    public int getMaxCreating() {
+        return maxCreating;
+    }
+
+    /**
+     * Set the value for the {@code maxCreating} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param maxCreating The new setting of {@code maxCreating}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setMaxCreating(int)
+     */
+    public void setMaxCreating(int maxCreating) {
+        this.maxCreating = maxCreating;
+    }
+
+    /**
+     * Get the value for the {@code clock} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code clock} for this
+     *          configuration instance, <code>null</code> for
+     *          {@link PoolClock#getDefault()}
+     *
+     * @see GenericKeyedObjectPool#getClock()
+     */
+    public PoolClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Set the value for the {@code clock} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param clock The new setting of {@code clock}
+     *        for this configuration instance, <code>null</code> for
+     *        {@link PoolClock#getDefault()}
+     *
+     * @see GenericKeyedObjectPool#setClock(PoolClock)
+     */
+    public void setClock(PoolClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Get the value for the {@code evictionExecutor} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code evictionExecutor} for this
+     *          configuration instance, <code>null</code> for
+     *          {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     *
+     * @see GenericKeyedObjectPool#getEvictionExecutor()
+     */
+    public Executor getEvictionExecutor() {
+        return evictionExecutor;
+    }
+
+    /**
+     * Set the value for the {@code evictionExecutor} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param evictionExecutor The new setting of {@code evictionExecutor}
+     *        for this configuration instance, <code>null</code> for
+     *        {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     *
+     * @see GenericKeyedObjectPool#setEvictionExecutor(Executor)
+     */
+    public void setEvictionExecutor(Executor evictionExecutor) {
+        this.evictionExecutor = evictionExecutor;
+    }
+
+    /**
+     * Get the value for the {@code evictionParallelism} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code evictionParallelism} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getEvictionParallelism()
+     */
+    public int getEvictionParallelism() {
+        return evictionParallelism;
+    }
+
+    /**
+     * Set the value for the {@code evictionParallelism} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param evictionParallelism The new setting of {@code evictionParallelism}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setEvictionParallelism(int)
+     */
+    public void setEvictionParallelism(int evictionParallelism) {
+        this.evictionParallelism = evictionParallelism;
+    }
+
+    /**
+     * Get the value for the {@code idleExpiryIndex} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code idleExpiryIndex} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getIdleExpiryIndex()
+     */
+    public boolean getIdleExpiryIndex() {
+        return idleExpiryIndex;
+    }
+
+    /**
+     * Set the value for the {@code idleExpiryIndex} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param idleExpiryIndex The new setting of {@code idleExpiryIndex}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setIdleExpiryIndex(boolean)
+     */
+    public void setIdleExpiryIndex(boolean idleExpiryIndex) {
+        this.idleExpiryIndex = idleExpiryIndex;
+    }
+
+    /**
+     * Get the value for the {@code destructionExecutor} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code destructionExecutor} for this
+     *          configuration instance, <code>null</code> to destroy objects
+     *          on the calling thread
+     *
+     * @see GenericKeyedObjectPool#getDestructionExecutor()
+     */
+    public Executor getDestructionExecutor() {
+        return destructionExecutor;
+    }
+
+    /**
+     * Set the value for the {@code destructionExecutor} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param destructionExecutor The new setting of {@code destructionExecutor}
+     *        for this configuration instance, <code>null</code> to destroy
+     *        objects on the calling thread
+     *
+     * @see GenericKeyedObjectPool#setDestructionExecutor(Executor)
+     */
+    public void setDestructionExecutor(Executor destructionExecutor) {
+        this.destructionExecutor = destructionExecutor;
+    }
+
+    /**
+     * Get the value for the {@code maxPendingDestructions} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code maxPendingDestructions} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getMaxPendingDestructions()
+     */
+    public int getMaxPendingDestructions() {
+        return maxPendingDestructions;
+    }
+
+    /**
+     * Set the value for the {@code maxPendingDestructions} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param maxPendingDestructions The new setting of {@code maxPendingDestructions}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setMaxPendingDestructions(int)
+     */
+    public void setMaxPendingDestructions(int maxPendingDestructions) {
+        this.maxPendingDestructions = maxPendingDestructions;
+    }
+
+    /**
+     * Get the value for the {@code returnExecutor} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code returnExecutor} for this
+     *          configuration instance, <code>null</code> to complete returns
+     *          on the calling thread
+     *
+     * @see GenericKeyedObjectPool#getReturnExecutor()
+     */
+    public Executor getReturnExecutor() {
+        return returnExecutor;
+    }
+
+    /**
+     * Set the value for the {@code returnExecutor} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param returnExecutor The new setting of {@code returnExecutor}
+     *        for this configuration instance, <code>null</code> to complete
+     *        returns on the calling thread
+     *
+     * @see GenericKeyedObjectPool#setReturnExecutor(Executor)
+     */
+    public void setReturnExecutor(Executor returnExecutor) {
+        this.returnExecutor = returnExecutor;
+    }
+
+    /**
+     * Get the value for the {@code validationCacheMillis} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code validationCacheMillis} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getValidationCacheMillis()
+     */
+    public long getValidationCacheMillis() {
+        return validationCacheMillis;
+    }
+
+    /**
+     * Set the value for the {@code validationCacheMillis} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param validationCacheMillis The new setting of {@code validationCacheMillis}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setValidationCacheMillis(long)
+     */
+    public void setValidationCacheMillis(long validationCacheMillis) {
+        this.validationCacheMillis = validationCacheMillis;
+    }
+
+    /**
+     * Get the value for the {@code borrowValidationIdleMillis} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code borrowValidationIdleMillis} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getBorrowValidationIdleMillis()
+     */
+    public long getBorrowValidationIdleMillis() {
+        return borrowValidationIdleMillis;
+    }
+
+    /**
+     * Set the value for the {@code borrowValidationIdleMillis} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param borrowValidationIdleMillis The new setting of {@code borrowValidationIdleMillis}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setBorrowValidationIdleMillis(long)
+     */
+    public void setBorrowValidationIdleMillis(long borrowValidationIdleMillis) {
+        this.borrowValidationIdleMillis = borrowValidationIdleMillis;
+    }
+
+    /**
+     * Get the value for the {@code keyStatsEnabled} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @return  The current setting of {@code keyStatsEnabled} for this
+     *          configuration instance
+     *
+     * @see GenericKeyedObjectPool#getKeyStatsEnabled()
+     */
+    public boolean getKeyStatsEnabled() {
+        return keyStatsEnabled;
+    }
+
+    /**
+     * Set the value for the {@code keyStatsEnabled} configuration attribute
+     * for pools created with this configuration instance.
+     *
+     * @param keyStatsEnabled The new setting of {@code keyStatsEnabled}
+     *        for this configuration instance
+     *
+     * @see GenericKeyedObjectPool#setKeyStatsEnabled(boolean)
+     */
+    public void setKeyStatsEnabled(boolean keyStatsEnabled) {
+        this.keyStatsEnabled = keyStatsEnabled;
+    }
+
+    @Override
+    public GenericKeyedObjectPoolConfig clone() {
+        try {
+            return (GenericKeyedObjectPoolConfig) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(); // Can't happen
+        }
+    }
+}
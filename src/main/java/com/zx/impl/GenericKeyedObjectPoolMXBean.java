@@ -74,6 +74,61 @@ public interface GenericKeyedObjectPoolMXBean<K> {
      * @return See {@link GenericKeyedObjectPool#getMinIdlePerKey()}
      */
     int getMinIdlePerKey();
+    /**
+     * See {@link GenericKeyedObjectPool#getIdleObjectStoreClassName()}
+     * @return See {@link GenericKeyedObjectPool#getIdleObjectStoreClassName()}
+     */
+    String getIdleObjectStoreClassName();
+    /**
+     * See {@link GenericKeyedObjectPool#getThreadAffinity()}
+     * @return See {@link GenericKeyedObjectPool#getThreadAffinity()}
+     */
+    boolean getThreadAffinity();
+    /**
+     * See {@link GenericKeyedObjectPool#getClearOldestRatio()}
+     * @return See {@link GenericKeyedObjectPool#getClearOldestRatio()}
+     */
+    double getClearOldestRatio();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxCreatingPerKey()}
+     * @return See {@link GenericKeyedObjectPool#getMaxCreatingPerKey()}
+     */
+    int getMaxCreatingPerKey();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxCreating()}
+     * @return See {@link GenericKeyedObjectPool#getMaxCreating()}
+     */
+    int getMaxCreating();
+    /**
+     * See {@link GenericKeyedObjectPool#getEvictionParallelism()}
+     * @return See {@link GenericKeyedObjectPool#getEvictionParallelism()}
+     */
+    int getEvictionParallelism();
+    /**
+     * See {@link GenericKeyedObjectPool#getIdleExpiryIndex()}
+     * @return See {@link GenericKeyedObjectPool#getIdleExpiryIndex()}
+     */
+    boolean getIdleExpiryIndex();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxPendingDestructions()}
+     * @return See {@link GenericKeyedObjectPool#getMaxPendingDestructions()}
+     */
+    int getMaxPendingDestructions();
+    /**
+     * See {@link GenericKeyedObjectPool#getValidationCacheMillis()}
+     * @return See {@link GenericKeyedObjectPool#getValidationCacheMillis()}
+     */
+    long getValidationCacheMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getBorrowValidationIdleMillis()}
+     * @return See {@link GenericKeyedObjectPool#getBorrowValidationIdleMillis()}
+     */
+    long getBorrowValidationIdleMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getKeyStatsEnabled()}
+     * @return See {@link GenericKeyedObjectPool#getKeyStatsEnabled()}
+     */
+    boolean getKeyStatsEnabled();
     /**
      * See {@link GenericKeyedObjectPool#getNumActive()}
      * @return See {@link GenericKeyedObjectPool#getNumActive()}
@@ -161,21 +216,196 @@ public interface GenericKeyedObjectPoolMXBean<K> {
      * @return See {@link GenericKeyedObjectPool#getMeanActiveTimeMillis()}
      */
     long getMeanActiveTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getActiveTimeMillisP50()}
+     * @return See {@link GenericKeyedObjectPool#getActiveTimeMillisP50()}
+     */
+    long getActiveTimeMillisP50();
+    /**
+     * See {@link GenericKeyedObjectPool#getActiveTimeMillisP90()}
+     * @return See {@link GenericKeyedObjectPool#getActiveTimeMillisP90()}
+     */
+    long getActiveTimeMillisP90();
+    /**
+     * See {@link GenericKeyedObjectPool#getActiveTimeMillisP99()}
+     * @return See {@link GenericKeyedObjectPool#getActiveTimeMillisP99()}
+     */
+    long getActiveTimeMillisP99();
+    /**
+     * See {@link GenericKeyedObjectPool#getActiveTimeMillisP999()}
+     * @return See {@link GenericKeyedObjectPool#getActiveTimeMillisP999()}
+     */
+    long getActiveTimeMillisP999();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxActiveTimeMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMaxActiveTimeMillis()}
+     */
+    long getMaxActiveTimeMillis();
     /**
      * See {@link GenericKeyedObjectPool#getMeanIdleTimeMillis()}
      * @return See {@link GenericKeyedObjectPool#getMeanIdleTimeMillis()}
      */
     long getMeanIdleTimeMillis();
     /**
-     * See {@link GenericKeyedObjectPool#getMaxBorrowWaitTimeMillis()}
-     * @return See {@link GenericKeyedObjectPool#getMaxBorrowWaitTimeMillis()}
+     * See {@link GenericKeyedObjectPool#getIdleTimeMillisP50()}
+     * @return See {@link GenericKeyedObjectPool#getIdleTimeMillisP50()}
+     */
+    long getIdleTimeMillisP50();
+    /**
+     * See {@link GenericKeyedObjectPool#getIdleTimeMillisP90()}
+     * @return See {@link GenericKeyedObjectPool#getIdleTimeMillisP90()}
+     */
+    long getIdleTimeMillisP90();
+    /**
+     * See {@link GenericKeyedObjectPool#getIdleTimeMillisP99()}
+     * @return See {@link GenericKeyedObjectPool#getIdleTimeMillisP99()}
+     */
+    long getIdleTimeMillisP99();
+    /**
+     * See {@link GenericKeyedObjectPool#getIdleTimeMillisP999()}
+     * @return See {@link GenericKeyedObjectPool#getIdleTimeMillisP999()}
+     */
+    long getIdleTimeMillisP999();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxIdleTimeMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMaxIdleTimeMillis()}
+     */
+    long getMaxIdleTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getMeanBorrowWaitTimeMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMeanBorrowWaitTimeMillis()}
      */
     long getMeanBorrowWaitTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getBorrowWaitTimeMillisP50()}
+     * @return See {@link GenericKeyedObjectPool#getBorrowWaitTimeMillisP50()}
+     */
+    long getBorrowWaitTimeMillisP50();
+    /**
+     * See {@link GenericKeyedObjectPool#getBorrowWaitTimeMillisP90()}
+     * @return See {@link GenericKeyedObjectPool#getBorrowWaitTimeMillisP90()}
+     */
+    long getBorrowWaitTimeMillisP90();
+    /**
+     * See {@link GenericKeyedObjectPool#getBorrowWaitTimeMillisP99()}
+     * @return See {@link GenericKeyedObjectPool#getBorrowWaitTimeMillisP99()}
+     */
+    long getBorrowWaitTimeMillisP99();
+    /**
+     * See {@link GenericKeyedObjectPool#getBorrowWaitTimeMillisP999()}
+     * @return See {@link GenericKeyedObjectPool#getBorrowWaitTimeMillisP999()}
+     */
+    long getBorrowWaitTimeMillisP999();
     /**
      * See {@link GenericKeyedObjectPool#getMaxBorrowWaitTimeMillis()}
      * @return See {@link GenericKeyedObjectPool#getMaxBorrowWaitTimeMillis()}
      */
     long getMaxBorrowWaitTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getEvictionRunCount()}
+     * @return See {@link GenericKeyedObjectPool#getEvictionRunCount()}
+     */
+    long getEvictionRunCount();
+    /**
+     * See {@link GenericKeyedObjectPool#getEvictionSkippedCount()}
+     * @return See {@link GenericKeyedObjectPool#getEvictionSkippedCount()}
+     */
+    long getEvictionSkippedCount();
+    /**
+     * See {@link GenericKeyedObjectPool#getMeanEvictionRunTimeMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMeanEvictionRunTimeMillis()}
+     */
+    long getMeanEvictionRunTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getEvictionRunTimeMillisP99()}
+     * @return See {@link GenericKeyedObjectPool#getEvictionRunTimeMillisP99()}
+     */
+    long getEvictionRunTimeMillisP99();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxEvictionRunTimeMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMaxEvictionRunTimeMillis()}
+     */
+    long getMaxEvictionRunTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getMeanEvictionLagMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMeanEvictionLagMillis()}
+     */
+    long getMeanEvictionLagMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxEvictionLagMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMaxEvictionLagMillis()}
+     */
+    long getMaxEvictionLagMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getEvictionSweepCount()}
+     * @return See {@link GenericKeyedObjectPool#getEvictionSweepCount()}
+     */
+    long getEvictionSweepCount();
+    /**
+     * See {@link GenericKeyedObjectPool#getLastEvictionSweepTimeMillis()}
+     * @return See {@link GenericKeyedObjectPool#getLastEvictionSweepTimeMillis()}
+     */
+    long getLastEvictionSweepTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getMeanEvictionSweepTimeMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMeanEvictionSweepTimeMillis()}
+     */
+    long getMeanEvictionSweepTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxEvictionSweepTimeMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMaxEvictionSweepTimeMillis()}
+     */
+    long getMaxEvictionSweepTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getNumPendingDestructions()}
+     * @return See {@link GenericKeyedObjectPool#getNumPendingDestructions()}
+     */
+    int getNumPendingDestructions();
+    /**
+     * See {@link GenericKeyedObjectPool#getDestructionOverflowCount()}
+     * @return See {@link GenericKeyedObjectPool#getDestructionOverflowCount()}
+     */
+    long getDestructionOverflowCount();
+    /**
+     * See {@link GenericKeyedObjectPool#getMeanDestroyTimeMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMeanDestroyTimeMillis()}
+     */
+    long getMeanDestroyTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getDestroyTimeMillisP99()}
+     * @return See {@link GenericKeyedObjectPool#getDestroyTimeMillisP99()}
+     */
+    long getDestroyTimeMillisP99();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxDestroyTimeMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMaxDestroyTimeMillis()}
+     */
+    long getMaxDestroyTimeMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getMeanDestructionDelayMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMeanDestructionDelayMillis()}
+     */
+    long getMeanDestructionDelayMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxDestructionDelayMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMaxDestructionDelayMillis()}
+     */
+    long getMaxDestructionDelayMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getNumPendingReturns()}
+     * @return See {@link GenericKeyedObjectPool#getNumPendingReturns()}
+     */
+    int getNumPendingReturns();
+    /**
+     * See {@link GenericKeyedObjectPool#getMeanReturnDelayMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMeanReturnDelayMillis()}
+     */
+    long getMeanReturnDelayMillis();
+    /**
+     * See {@link GenericKeyedObjectPool#getMaxReturnDelayMillis()}
+     * @return See {@link GenericKeyedObjectPool#getMaxReturnDelayMillis()}
+     */
+    long getMaxReturnDelayMillis();
     /**
      * See {@link GenericKeyedObjectPool#getCreationStackTrace()}
      * @return See {@link GenericKeyedObjectPool#getCreationStackTrace()}
@@ -191,6 +421,11 @@ public interface GenericKeyedObjectPoolMXBean<K> {
      * @return See {@link GenericKeyedObjectPool#getNumWaitersByKey()}
      */
     Map<String,Integer> getNumWaitersByKey();
+    /**
+     * See {@link GenericKeyedObjectPool#getAllKeyStats()}
+     * @return See {@link GenericKeyedObjectPool#getAllKeyStats()}
+     */
+    Map<String,KeyStats> getAllKeyStats();
     /**
      * See {@link GenericKeyedObjectPool#listAllObjects()}
      * @return See {@link GenericKeyedObjectPool#listAllObjects()}
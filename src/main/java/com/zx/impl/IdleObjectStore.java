@@ -0,0 +1,94 @@
+package com.zx.impl;
+
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 空闲对象存储：{@link GenericKeyedObjectPool}中每个key的空闲对象都保存在该接口的一个实现中
+ * <p>
+ * Besides the usual {@link Deque} operations (used for LIFO / FIFO insertion,
+ * removal of destroyed objects and eviction iteration) the pool needs to block
+ * borrowing threads when no idle object is available and to find out whether
+ * threads are currently blocked.
+ * <p>
+ * Implementations must be thread-safe and must provide a public constructor
+ * taking a single <code>boolean</code> fairness argument, see
+ * {@link GenericKeyedObjectPool#setIdleObjectStoreClassName(String)}.
+ *
+ * @param <E> 空闲对象的类型
+ *
+ * @see LinkedBlockingIdleObjectStore
+ * @see ConcurrentIdleObjectStore
+ */
+public interface IdleObjectStore<E> extends Deque<E> {
+
+    /**
+     * Unlinks the first element in the store, waiting until there is an
+     * element to unlink if the store is empty.
+     *
+     * @return the unlinked element
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    E takeFirst() throws InterruptedException;
+
+    /**
+     * Unlinks the first element in the store, waiting up to the specified
+     * wait time if necessary for an element to become available.
+     *
+     * @param timeout length of time to wait
+     * @param unit units that timeout is expressed in
+     *
+     * @return the unlinked element or <code>null</code> if the specified
+     *         waiting time elapsed before an element became available
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    E pollFirst(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Unlinks up to the given number of elements from the front of the store
+     * and adds them, in order, to the given collection, without waiting.
+     * Stores that take a lock for every operation should override this
+     * method to unlink them all under one acquisition of the lock.
+     *
+     * @param c the collection to add the elements to
+     * @param maxElements the maximum number of elements to unlink
+     *
+     * @return the number of elements unlinked
+     */
+    default int drainFirst(Collection<? super E> c, int maxElements) {
+        int n = 0;
+        E e;
+        while (n < maxElements && (e = pollFirst()) != null) {
+            c.add(e);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns true if there are threads waiting to take instances from this
+     * store.
+     *
+     * @return true if there is at least one thread waiting on this store's
+     *         notEmpty condition.
+     */
+    boolean hasTakeWaiters();
+
+    /**
+     * Returns the length of the queue of threads waiting to take instances
+     * from this store. See disclaimer on accuracy in
+     * {@link java.util.concurrent.locks.ReentrantLock#getWaitQueueLength(java.util.concurrent.locks.Condition)}.
+     *
+     * @return number of threads waiting on this store's notEmpty condition.
+     */
+    int getTakeQueueLength();
+
+    /**
+     * Interrupts the threads currently waiting to take an object from the
+     * store.
+     */
+    void interuptTakeWaiters();
+}
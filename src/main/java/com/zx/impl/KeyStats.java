@@ -0,0 +1,348 @@
+package com.zx.impl;
+
+/**
+ * 键池中一个key的统计数据快照
+ * <p>
+ * Returned by {@link GenericKeyedObjectPool#getKeyStats(Object)} and, for all
+ * keys, by {@link GenericKeyedObjectPool#getAllKeyStats()}, where JMX presents
+ * it as a table with one row per key. The counters and times have the same
+ * meaning as the pool-wide attributes of the same name in
+ * {@link GenericKeyedObjectPoolMXBean}, restricted to the objects of one key.
+ * <p>
+ * Statistics are kept for as long as the pool keeps the sub-pool of the key:
+ * a key whose sub-pool is dropped because it has no objects and no interested
+ * threads starts from zero when it is used again.
+ * <p>
+ * The values are read one after the other while the pool is in use, so they
+ * are not necessarily consistent with each other.
+ * <p>
+ * 这个类是不可变的，因此是线程安全的。
+ *
+ * @see GenericKeyedObjectPool#getKeyStats(Object)
+ */
+public class KeyStats {
+
+    private final long borrowedCount;
+    private final long returnedCount;
+    private final long createdCount;
+    private final long destroyedCount;
+    private final long destroyedByEvictorCount;
+    private final long destroyedByBorrowValidationCount;
+    private final int numActive;
+    private final int numIdle;
+    private final int numWaiters;
+
+    private final long meanActiveTimeMillis;
+    private final long activeTimeMillisP50;
+    private final long activeTimeMillisP90;
+    private final long activeTimeMillisP99;
+    private final long activeTimeMillisP999;
+    private final long maxActiveTimeMillis;
+
+    private final long meanIdleTimeMillis;
+    private final long idleTimeMillisP50;
+    private final long idleTimeMillisP90;
+    private final long idleTimeMillisP99;
+    private final long idleTimeMillisP999;
+    private final long maxIdleTimeMillis;
+
+    private final long meanBorrowWaitTimeMillis;
+    private final long borrowWaitTimeMillisP50;
+    private final long borrowWaitTimeMillisP90;
+    private final long borrowWaitTimeMillisP99;
+    private final long borrowWaitTimeMillisP999;
+    private final long maxBorrowWaitTimeMillis;
+
+    /**
+     * 读取一个key的计数器和直方图，创建快照
+     *
+     * @param counts      The borrowed, returned, created, destroyed,
+     *                    destroyed by evictor and destroyed by borrow
+     *                    validation counts, in that order
+     * @param numActive   The number of objects currently borrowed
+     * @param numIdle     The number of idle objects
+     * @param numWaiters  The number of threads waiting to borrow
+     * @param activeTimes The active times of returned objects
+     * @param idleTimes   The idle times of borrowed objects
+     * @param waitTimes   The times borrowers have waited
+     */
+    KeyStats(long[] counts, int numActive, int numIdle, int numWaiters,
+            LatencyHistogram activeTimes, LatencyHistogram idleTimes,
+            LatencyHistogram waitTimes) {
+        this.borrowedCount = counts[0];
+        this.returnedCount = counts[1];
+        this.createdCount = counts[2];
+        this.destroyedCount = counts[3];
+        this.destroyedByEvictorCount = counts[4];
+        this.destroyedByBorrowValidationCount = counts[5];
+        this.numActive = numActive;
+        this.numIdle = numIdle;
+        this.numWaiters = numWaiters;
+
+        // One pass over the counts of each histogram for all its values
+        LatencyHistogram.Snapshot active = activeTimes.snapshot();
+        this.meanActiveTimeMillis = active.getMean();
+        this.activeTimeMillisP50 = active.getValueAtQuantile(0.5);
+        this.activeTimeMillisP90 = active.getValueAtQuantile(0.9);
+        this.activeTimeMillisP99 = active.getValueAtQuantile(0.99);
+        this.activeTimeMillisP999 = active.getValueAtQuantile(0.999);
+        this.maxActiveTimeMillis = active.getMax();
+
+        LatencyHistogram.Snapshot idle = idleTimes.snapshot();
+        this.meanIdleTimeMillis = idle.getMean();
+        this.idleTimeMillisP50 = idle.getValueAtQuantile(0.5);
+        this.idleTimeMillisP90 = idle.getValueAtQuantile(0.9);
+        this.idleTimeMillisP99 = idle.getValueAtQuantile(0.99);
+        this.idleTimeMillisP999 = idle.getValueAtQuantile(0.999);
+        this.maxIdleTimeMillis = idle.getMax();
+
+        LatencyHistogram.Snapshot wait = waitTimes.snapshot();
+        this.meanBorrowWaitTimeMillis = wait.getMean();
+        this.borrowWaitTimeMillisP50 = wait.getValueAtQuantile(0.5);
+        this.borrowWaitTimeMillisP90 = wait.getValueAtQuantile(0.9);
+        this.borrowWaitTimeMillisP99 = wait.getValueAtQuantile(0.99);
+        this.borrowWaitTimeMillisP999 = wait.getValueAtQuantile(0.999);
+        this.maxBorrowWaitTimeMillis = wait.getMax();
+    }
+
+    /**
+     * 这个key借用的对象总数
+     * @return the borrowed object count
+     */
+    public long getBorrowedCount() {
+        return borrowedCount;
+    }
+
+    /**
+     * 这个key归还的对象总数
+     * @return the returned object count
+     */
+    public long getReturnedCount() {
+        return returnedCount;
+    }
+
+    /**
+     * 这个key创建的对象总数
+     * @return the created object count
+     */
+    public long getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * 这个key销毁的对象总数
+     * @return the destroyed object count
+     */
+    public long getDestroyedCount() {
+        return destroyedCount;
+    }
+
+    /**
+     * 这个key被驱逐者销毁的对象总数
+     * @return the count of objects destroyed by the evictor
+     */
+    public long getDestroyedByEvictorCount() {
+        return destroyedByEvictorCount;
+    }
+
+    /**
+     * 这个key因为借用时验证失败而被销毁的对象总数
+     * @return the count of destroyed objects that failed validation on borrow
+     */
+    public long getDestroyedByBorrowValidationCount() {
+        return destroyedByBorrowValidationCount;
+    }
+
+    /**
+     * 这个key当前借出的对象数量
+     * @return the number of active objects
+     */
+    public int getNumActive() {
+        return numActive;
+    }
+
+    /**
+     * 这个key当前空闲的对象数量
+     * @return the number of idle objects
+     */
+    public int getNumIdle() {
+        return numIdle;
+    }
+
+    /**
+     * 当前阻塞等待借用这个key的对象的线程数量的估计
+     * @return the estimated number of waiting threads
+     */
+    public int getNumWaiters() {
+        return numWaiters;
+    }
+
+    /**
+     * 这个key归还的对象的平均活动时间
+     * @return mean time in milliseconds
+     */
+    public long getMeanActiveTimeMillis() {
+        return meanActiveTimeMillis;
+    }
+
+    /**
+     * 这个key归还的对象的活动时间的第50百分位数
+     * @return 50th percentile in milliseconds
+     */
+    public long getActiveTimeMillisP50() {
+        return activeTimeMillisP50;
+    }
+
+    /**
+     * 这个key归还的对象的活动时间的第90百分位数
+     * @return 90th percentile in milliseconds
+     */
+    public long getActiveTimeMillisP90() {
+        return activeTimeMillisP90;
+    }
+
+    /**
+     * 这个key归还的对象的活动时间的第99百分位数
+     * @return 99th percentile in milliseconds
+     */
+    public long getActiveTimeMillisP99() {
+        return activeTimeMillisP99;
+    }
+
+    /**
+     * 这个key归还的对象的活动时间的第99.9百分位数
+     * @return 99.9th percentile in milliseconds
+     */
+    public long getActiveTimeMillisP999() {
+        return activeTimeMillisP999;
+    }
+
+    /**
+     * 这个key归还的对象的最大活动时间
+     * @return maximum time in milliseconds
+     */
+    public long getMaxActiveTimeMillis() {
+        return maxActiveTimeMillis;
+    }
+
+    /**
+     * 这个key借用的对象的平均空闲时间
+     * @return mean time in milliseconds
+     */
+    public long getMeanIdleTimeMillis() {
+        return meanIdleTimeMillis;
+    }
+
+    /**
+     * 这个key借用的对象的空闲时间的第50百分位数
+     * @return 50th percentile in milliseconds
+     */
+    public long getIdleTimeMillisP50() {
+        return idleTimeMillisP50;
+    }
+
+    /**
+     * 这个key借用的对象的空闲时间的第90百分位数
+     * @return 90th percentile in milliseconds
+     */
+    public long getIdleTimeMillisP90() {
+        return idleTimeMillisP90;
+    }
+
+    /**
+     * 这个key借用的对象的空闲时间的第99百分位数
+     * @return 99th percentile in milliseconds
+     */
+    public long getIdleTimeMillisP99() {
+        return idleTimeMillisP99;
+    }
+
+    /**
+     * 这个key借用的对象的空闲时间的第99.9百分位数
+     * @return 99.9th percentile in milliseconds
+     */
+    public long getIdleTimeMillisP999() {
+        return idleTimeMillisP999;
+    }
+
+    /**
+     * 这个key借用的对象的最大空闲时间
+     * @return maximum time in milliseconds
+     */
+    public long getMaxIdleTimeMillis() {
+        return maxIdleTimeMillis;
+    }
+
+    /**
+     * 借用这个key的对象的平均等待时间
+     * @return mean time in milliseconds
+     */
+    public long getMeanBorrowWaitTimeMillis() {
+        return meanBorrowWaitTimeMillis;
+    }
+
+    /**
+     * 借用这个key的对象的等待时间的第50百分位数
+     * @return 50th percentile in milliseconds
+     */
+    public long getBorrowWaitTimeMillisP50() {
+        return borrowWaitTimeMillisP50;
+    }
+
+    /**
+     * 借用这个key的对象的等待时间的第90百分位数
+     * @return 90th percentile in milliseconds
+     */
+    public long getBorrowWaitTimeMillisP90() {
+        return borrowWaitTimeMillisP90;
+    }
+
+    /**
+     * 借用这个key的对象的等待时间的第99百分位数
+     * @return 99th percentile in milliseconds
+     */
+    public long getBorrowWaitTimeMillisP99() {
+        return borrowWaitTimeMillisP99;
+    }
+
+    /**
+     * 借用这个key的对象的等待时间的第99.9百分位数
+     * @return 99.9th percentile in milliseconds
+     */
+    public long getBorrowWaitTimeMillisP999() {
+        return borrowWaitTimeMillisP999;
+    }
+
+    /**
+     * 借用这个key的对象的最大等待时间
+     * @return maximum time in milliseconds
+     */
+    public long getMaxBorrowWaitTimeMillis() {
+        return maxBorrowWaitTimeMillis;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("KeyStats [borrowedCount=");
+        builder.append(borrowedCount);
+        builder.append(", returnedCount=");
+        builder.append(returnedCount);
+        builder.append(", createdCount=");
+        builder.append(createdCount);
+        builder.append(", destroyedCount=");
+        builder.append(destroyedCount);
+        builder.append(", numActive=");
+        builder.append(numActive);
+        builder.append(", numIdle=");
+        builder.append(numIdle);
+        builder.append(", numWaiters=");
+        builder.append(numWaiters);
+        builder.append(", borrowWaitTimeMillisP99=");
+        builder.append(borrowWaitTimeMillisP99);
+        builder.append(", maxBorrowWaitTimeMillis=");
+        builder.append(maxBorrowWaitTimeMillis);
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,308 @@
+package com.zx.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 无锁的延迟直方图：记录毫秒值，并报告平均值、百分位数和最大值
+ * <p>
+ * Values are counted in log-linear buckets, in the way of HdrHistogram:
+ * values below {@value #LINEAR_LIMIT} have a bucket each, and every
+ * power-of-two range above that is split into {@value #SUB_BUCKETS} equal
+ * buckets, so a reported percentile is never more than about 6% above the
+ * true value. Values of {@value #MAX_TRACKABLE} milliseconds (about 35 years)
+ * or more share the last bucket. The maximum is tracked exactly.
+ * <p>
+ * Recording a value is an increment of one element of an
+ * {@link AtomicLongArray}. To keep threads from contending on the same
+ * elements, the counts are striped: every thread counts in the stripe chosen
+ * by its id, and a query adds the stripes up. Stripes are allocated when a
+ * thread first records into them.
+ * <p>
+ * Counts are kept for the lifetime of the histogram. A query is not atomic
+ * with respect to concurrent recording; it may or may not include values
+ * recorded while it runs.
+ * <p>
+ * 这个类有一个包范围，可以防止它包含在池公共API中。
+ * <p>
+ * 这个类是线程安全的。
+ */
+class LatencyHistogram {
+
+    /** 每个二次幂区间中桶的数量的位数 */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /** 每个二次幂区间中桶的数量 */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** 小于这个值的每个值都有自己的桶 */
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+    /** 线性部分之后最高位的最小位置 */
+    private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+
+    /** 大于等于这个值的值都计入最后一个桶 */
+    private static final long MAX_TRACKABLE = 1L << 40;
+
+    /** 桶的数量 */
+    private static final int BUCKETS = bucketOf(MAX_TRACKABLE - 1) + 1;
+
+    /** 每个分段中保存总和的位置，在所有桶之后 */
+    private static final int SUM = BUCKETS;
+
+    /** 默认的分段数量，2的幂 */
+    private static final int STRIPES;
+
+    static {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cpus && stripes < 8) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    /** 分段计数，每个分段为BUCKETS个桶加上总和 */
+    private final AtomicReferenceArray<AtomicLongArray> stripes;
+
+    /** 选择分段时使用的掩码，分段数量减一 */
+    private final int stripeMask;
+
+    /** 记录过的最大值 */
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Create a histogram with one stripe per processor, up to 8.
+     */
+    LatencyHistogram() {
+        this(STRIPES);
+    }
+
+    /**
+     * Create a histogram with at most the given number of stripes. Every
+     * stripe in use takes about 600 longs (4.7KB), so histograms kept
+     * in large numbers, such as per key, use fewer stripes.
+     *
+     * @param maxStripes The maximum number of stripes, at least 1
+     */
+    LatencyHistogram(int maxStripes) {
+        int n = 1;
+        while (n < STRIPES && n < maxStripes) {
+            n <<= 1;
+        }
+        stripes = new AtomicReferenceArray<AtomicLongArray>(n);
+        stripeMask = n - 1;
+    }
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     *
+     * @param value The value in milliseconds
+     */
+    void add(long value) {
+        add(value, 1);
+    }
+
+    /**
+     * Record a value a number of times. Negative values are recorded as 0.
+     *
+     * @param value The value in milliseconds
+     * @param count The number of times to record it
+     */
+    void add(long value, long count) {
+        if (count <= 0) {
+            return;
+        }
+        if (value < 0) {
+            value = 0;
+        }
+        AtomicLongArray counts = stripe();
+        counts.addAndGet(bucketOf(Math.min(value, MAX_TRACKABLE - 1)), count);
+        counts.addAndGet(SUM, value * count);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return the mean, truncated to long, or 0 if nothing has been recorded
+     */
+    long getMean() {
+        long count = 0;
+        long sum = 0;
+        for (int s = 0; s <= stripeMask; s++) {
+            AtomicLongArray counts = stripes.get(s);
+            if (counts != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    count += counts.get(i);
+                }
+                sum += counts.get(SUM);
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     *
+     * @return the maximum, or 0 if nothing has been recorded
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below or at which the given fraction of the recorded
+     * values fall: the upper bound of the bucket containing that value, but
+     * no more than the maximum.
+     *
+     * @param quantile The fraction, between 0 and 1
+     *
+     * @return the value, or 0 if nothing has been recorded
+     */
+    long getValueAtQuantile(double quantile) {
+        return snapshot().getValueAtQuantile(quantile);
+    }
+
+    /**
+     * Adds the stripes up once, so that several values can be read without
+     * going over the counts again for each of them.
+     *
+     * @return the counts recorded so far
+     */
+    Snapshot snapshot() {
+        long[] totals = new long[BUCKETS];
+        long count = 0;
+        long sum = 0;
+        for (int s = 0; s <= stripeMask; s++) {
+            AtomicLongArray counts = stripes.get(s);
+            if (counts != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    long c = counts.get(i);
+                    totals[i] += c;
+                    count += c;
+                }
+                sum += counts.get(SUM);
+            }
+        }
+        return new Snapshot(totals, count, sum, max.get());
+    }
+
+    /**
+     * 直方图在某一时刻的计数，不再随记录而改变
+     */
+    static final class Snapshot {
+
+        private final long[] totals;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] totals, long count, long sum, long max) {
+            this.totals = totals;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Returns the mean of the recorded values.
+         *
+         * @return the mean, truncated to long, or 0 if nothing had been
+         *         recorded
+         */
+        long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * Returns the largest value recorded.
+         *
+         * @return the maximum, or 0 if nothing had been recorded
+         */
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * See {@link LatencyHistogram#getValueAtQuantile(double)}.
+         *
+         * @param quantile The fraction, between 0 and 1
+         *
+         * @return the value, or 0 if nothing had been recorded
+         */
+        long getValueAtQuantile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += totals[i];
+                if (seen >= target) {
+                    if (i == BUCKETS - 1) {
+                        // The last bucket has no upper bound
+                        return max;
+                    }
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Returns the stripe of the current thread, allocating it if needed.
+     *
+     * @return The counts of the stripe
+     */
+    private AtomicLongArray stripe() {
+        int s = (int) Thread.currentThread().getId() & stripeMask;
+        AtomicLongArray counts = stripes.get(s);
+        if (counts == null) {
+            stripes.compareAndSet(s, null, new AtomicLongArray(BUCKETS + 1));
+            counts = stripes.get(s);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the bucket of a value.
+     *
+     * @param value A value between 0 and {@link #MAX_TRACKABLE} exclusive
+     *
+     * @return The index of the bucket
+     */
+    private static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        // Position of the highest bit, at least LINEAR_BITS
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exp - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (exp - LINEAR_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value counted in a bucket.
+     *
+     * @param index The index of the bucket
+     *
+     * @return The largest value of the bucket
+     */
+    private static long highestValueOf(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exp = (index - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+        int sub = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exp - SUB_BUCKET_BITS;
+        return ((long) (sub + 1) << shift) - 1;
+    }
+}
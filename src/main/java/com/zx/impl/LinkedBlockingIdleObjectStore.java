@@ -0,0 +1,38 @@
+package com.zx.impl;
+
+import java.util.Collection;
+
+/**
+ * 默认的空闲对象存储，就是原来的{@link LinkedBlockingDeque}
+ * <p>
+ * All operations, including the non-blocking ones, are guarded by the single
+ * lock of the deque. This gives strict fairness between waiting threads when
+ * configured but serializes every borrow and return of a key.
+ *
+ * @param <E> 空闲对象的类型
+ *
+ * @see ConcurrentIdleObjectStore
+ */
+public class LinkedBlockingIdleObjectStore<E> extends LinkedBlockingDeque<E>
+        implements IdleObjectStore<E> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a store with the given (fixed) fairness policy.
+     *
+     * @param fairness true means threads waiting to take instances will be
+     *                 served as if waiting in a FIFO queue
+     */
+    public LinkedBlockingIdleObjectStore(boolean fairness) {
+        super(fairness);
+    }
+
+    /**
+     * Unlinks the elements under one acquisition of the lock of the deque.
+     */
+    @Override
+    public int drainFirst(Collection<? super E> c, int maxElements) {
+        return drainTo(c, maxElements);
+    }
+}
@@ -0,0 +1,42 @@
+package com.zx.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单调时钟：基于{@link System#nanoTime()}，不受系统时间调整的影响
+ * <p>
+ * The epoch time is read once, when the clock is created; from then on the
+ * clock advances with {@link System#nanoTime()}. It therefore never goes
+ * backwards, and differences between two readings are exact even if the
+ * system time is changed in between. The values drift from
+ * {@link System#currentTimeMillis()} by however much the system time is
+ * adjusted while the clock is in use.
+ * <p>
+ * 这个类是线程安全的。
+ */
+public class MonotonicPoolClock extends PoolClock {
+
+    /** 创建时的系统时间，单位毫秒 */
+    private final long baseMillis;
+
+    /** 创建时的{@link System#nanoTime()} */
+    private final long baseNanos;
+
+    /**
+     * Create a clock starting at the current system time.
+     */
+    public MonotonicPoolClock() {
+        baseMillis = System.currentTimeMillis();
+        baseNanos = System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return baseMillis + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - baseNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "MonotonicPoolClock [baseMillis=" + baseMillis + "]";
+    }
+}
@@ -0,0 +1,69 @@
+package com.zx.impl;
+
+/**
+ * 池使用的时钟：池和池对象通过它读取当前时间，而不是直接调用{@link System#currentTimeMillis()}
+ * <p>
+ * The values are milliseconds since the epoch, as for
+ * {@link System#currentTimeMillis()}, so that times such as
+ * {@link org.apache.commons.pool2.PooledObject#getCreateTime()} can still be
+ * shown as dates. Implementations may however differ in resolution and in
+ * how they react to the system time being changed:
+ * <ul>
+ * <li>{@link MonotonicPoolClock} (the default) follows
+ *     {@link System#nanoTime()} from the time it was created, so it never
+ *     goes backwards and idle and active times are not affected when the
+ *     system time is adjusted, for example by NTP.</li>
+ * <li>{@link CachedPoolClock} returns a value that a background thread
+ *     updates at a fixed interval, so reading the time costs no more than
+ *     reading a volatile field, at the cost of a coarser resolution.</li>
+ * </ul>
+ * <p>
+ * {@link DefaultPooledObject} instances created without a clock use
+ * {@link #getDefault()}, and so does {@link GenericKeyedObjectPool} unless
+ * another clock is configured with
+ * {@link GenericKeyedObjectPool#setClock(PoolClock)}.
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @see MonotonicPoolClock
+ * @see CachedPoolClock
+ */
+public abstract class PoolClock {
+
+    /** 默认时钟 */
+    private static volatile PoolClock defaultClock = new MonotonicPoolClock();
+
+    /**
+     * Returns the current time in milliseconds since the epoch.
+     *
+     * @return the current time
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * Returns the clock used by pooled objects and pools for which no clock
+     * has been given, initially a {@link MonotonicPoolClock}.
+     *
+     * @return the default clock
+     */
+    public static PoolClock getDefault() {
+        return defaultClock;
+    }
+
+    /**
+     * Sets the clock used by pooled objects and pools created from now on
+     * for which no clock is given. Objects and pools that already exist keep
+     * their clock.
+     *
+     * @param clock the new default clock
+     *
+     * @throws IllegalArgumentException if <code>clock</code> is
+     *                                  <code>null</code>
+     */
+    public static void setDefault(PoolClock clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("clock may not be null");
+        }
+        defaultClock = clock;
+    }
+}
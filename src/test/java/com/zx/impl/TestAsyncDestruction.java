@@ -0,0 +1,145 @@
+package com.zx.impl;
+
+import org.apache.commons.pool2.SwallowedExceptionListener;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在销毁线程池中异步销毁对象
+ */
+public class TestAsyncDestruction {
+
+    private static final int MAX_TOTAL_PER_KEY = 4;
+
+    /*
+     * Destroying an object blocks until release is counted down, unless it
+     * is done by the thread that invalidates the objects
+     */
+    private final TestObjectFactory factory = new TestObjectFactory();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    private void createPool(int maxPendingDestructions) {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setMaxTotalPerKey(MAX_TOTAL_PER_KEY);
+        config.setMaxIdlePerKey(1);
+        config.setDestructionExecutor(executor);
+        config.setMaxPendingDestructions(maxPendingDestructions);
+        factory.blockDestroy = true;
+        pool = new GenericKeyedObjectPool<Integer, Object>(factory, config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        factory.release.countDown();
+        if (pool != null) {
+            pool.close();
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Invalidating releases the capacity of the objects at once, before
+     * they have been destroyed.
+     */
+    @Test(timeout = 10000)
+    public void testCapacityReleasedBeforeDestruction() throws Exception {
+        createPool(1000);
+        invalidateAll();
+        assertEquals(MAX_TOTAL_PER_KEY, pool.getNumPendingDestructions());
+        assertEquals(MAX_TOTAL_PER_KEY, pool.getDestroyedCount());
+        assertEquals(0, pool.getNumActive());
+        assertEquals(0, factory.destroyed.get());
+
+        // The key is not exhausted although nothing has been destroyed yet
+        Object[] borrowed = new Object[MAX_TOTAL_PER_KEY];
+        for (int i = 0; i < borrowed.length; i++) {
+            borrowed[i] = pool.borrowObject(1, 50);
+        }
+        // Returns beyond maxIdlePerKey are destroyed asynchronously too
+        for (Object obj : borrowed) {
+            pool.returnObject(1, obj);
+        }
+        assertEquals(1, pool.getNumIdle());
+        assertEquals(2 * MAX_TOTAL_PER_KEY - 1, pool.getNumPendingDestructions());
+
+        factory.release.countDown();
+        awaitDestructions();
+        assertEquals(2 * MAX_TOTAL_PER_KEY - 1, factory.destroyed.get());
+        assertEquals(0, pool.getDestructionOverflowCount());
+    }
+
+    /**
+     * Destructions beyond maxPendingDestructions are done by the caller.
+     */
+    @Test(timeout = 10000)
+    public void testOverflowDestroysInline() throws Exception {
+        createPool(2);
+        invalidateAll();
+        assertEquals(2, pool.getNumPendingDestructions());
+        assertEquals(MAX_TOTAL_PER_KEY - 2, pool.getDestructionOverflowCount());
+        assertEquals(MAX_TOTAL_PER_KEY - 2, factory.destroyed.get());
+
+        factory.release.countDown();
+        awaitDestructions();
+        assertEquals(MAX_TOTAL_PER_KEY, factory.destroyed.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testFailureSwallowed() throws Exception {
+        createPool(1000);
+        final AtomicInteger swallowed = new AtomicInteger();
+        pool.setSwallowedExceptionListener(new SwallowedExceptionListener() {
+            @Override
+            public void onSwallowException(Exception e) {
+                swallowed.incrementAndGet();
+            }
+        });
+        factory.failDestroy = true;
+        factory.release.countDown();
+        invalidateAll();
+        awaitDestructions();
+        assertEquals(MAX_TOTAL_PER_KEY, swallowed.get());
+    }
+
+    /**
+     * Destructions the executor rejects are done by the caller.
+     */
+    @Test(timeout = 10000)
+    public void testRejectedDestroysInline() throws Exception {
+        createPool(1000);
+        executor.shutdown();
+        invalidateAll();
+        assertEquals(0, pool.getNumPendingDestructions());
+        assertEquals(MAX_TOTAL_PER_KEY, factory.destroyed.get());
+    }
+
+    private void invalidateAll() throws Exception {
+        factory.unblocked = Thread.currentThread();
+        Object[] borrowed = new Object[MAX_TOTAL_PER_KEY];
+        for (int i = 0; i < borrowed.length; i++) {
+            borrowed[i] = pool.borrowObject(1);
+        }
+        for (Object obj : borrowed) {
+            pool.invalidateObject(1, obj);
+        }
+    }
+
+    private void awaitDestructions() throws InterruptedException {
+        while (pool.getNumPendingDestructions() > 0) {
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.zx.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 在归还线程池中异步钝化和校验归还的对象
+ */
+public class TestAsyncReturn {
+
+    /* Passivating an object blocks until release is counted down */
+    private final TestObjectFactory factory = new TestObjectFactory();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    @Before
+    public void setUp() {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setMaxTotalPerKey(2);
+        config.setTestOnReturn(true);
+        config.setReturnExecutor(executor);
+        factory.blockPassivate = true;
+        pool = new GenericKeyedObjectPool<Integer, Object>(factory, config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        factory.release.countDown();
+        pool.close();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * The caller does not wait for passivation, and the object keeps its
+     * place in the pool until the executor has made it idle.
+     */
+    @Test(timeout = 10000)
+    public void testReturnDoesNotWaitForPassivation() throws Exception {
+        Object obj = pool.borrowObject(1);
+        pool.returnObject(1, obj);
+        assertEquals(1, pool.getNumPendingReturns());
+        assertEquals(1, pool.getNumActive());
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(0, factory.passivated.get());
+
+        factory.release.countDown();
+        awaitReturns();
+        assertEquals(1, factory.passivated.get());
+        assertEquals(0, pool.getNumActive());
+        assertEquals(1, pool.getNumIdle());
+        assertTrue(pool.getMaxReturnDelayMillis() >= 0);
+    }
+
+    /**
+     * With the key full, a borrower waits for an object being returned
+     * rather than creating another one.
+     */
+    @Test(timeout = 10000)
+    public void testBorrowerWaitsForReturningObject() throws Exception {
+        Object first = pool.borrowObject(1);
+        pool.borrowObject(1);
+        pool.returnObject(1, first);
+
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // Release at once
+                }
+                factory.release.countDown();
+            }
+        };
+        releaser.start();
+        assertSame(first, pool.borrowObject(1, 5000));
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(1, factory.passivated.get());
+        releaser.join();
+    }
+
+    @Test(timeout = 10000)
+    public void testAsyncWaiterServed() throws Exception {
+        factory.release.countDown();
+        Object first = pool.borrowObject(1);
+        pool.borrowObject(1);
+        CompletableFuture<Object> future =
+                pool.borrowObjectAsync(1, Duration.ofSeconds(5));
+        pool.returnObject(1, first);
+        assertSame(first, future.get(5, TimeUnit.SECONDS));
+        assertEquals(2, pool.getCreatedCount());
+    }
+
+    /**
+     * Returning an object twice is detected on the calling thread, although
+     * the first return has not completed yet.
+     */
+    @Test(timeout = 10000)
+    public void testDoubleReturnDetectedByCaller() throws Exception {
+        Object obj = pool.borrowObject(1);
+        pool.returnObject(1, obj);
+        try {
+            pool.returnObject(1, obj);
+            fail("returned twice");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        factory.release.countDown();
+        awaitReturns();
+        assertEquals(1, pool.getNumIdle());
+    }
+
+    @Test(timeout = 10000)
+    public void testValidationFailureDestroys() throws Exception {
+        factory.release.countDown();
+        factory.invalid = true;
+        Object obj = pool.borrowObject(1);
+        pool.returnObject(1, obj);
+        awaitReturns();
+        assertEquals(1, pool.getDestroyedCount());
+        assertEquals(0, pool.getNumActive());
+        assertEquals(0, pool.getNumIdle());
+    }
+
+    /**
+     * A return the executor rejects is completed by the caller.
+     */
+    @Test(timeout = 10000)
+    public void testRejectedReturnCompletedByCaller() throws Exception {
+        factory.release.countDown();
+        executor.shutdown();
+        Object obj = pool.borrowObject(1);
+        pool.returnObject(1, obj);
+        assertEquals(0, pool.getNumPendingReturns());
+        assertEquals(1, factory.passivated.get());
+        assertEquals(1, pool.getNumIdle());
+    }
+
+    private void awaitReturns() throws InterruptedException {
+        while (pool.getNumPendingReturns() > 0) {
+            Thread.sleep(5);
+        }
+    }
+}
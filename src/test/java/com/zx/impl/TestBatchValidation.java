@@ -0,0 +1,171 @@
+package com.zx.impl;
+
+import com.zx.BatchValidatingKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectState;
+import org.apache.commons.pool2.SwallowedExceptionListener;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 驱逐时按键批量验证空闲对象
+ */
+public class TestBatchValidation {
+
+    /**
+     * Reports every fifth object created, from the first on, as not valid,
+     * one batch per call.
+     */
+    private static class BatchFactory extends TestObjectFactory
+            implements BatchValidatingKeyedPooledObjectFactory<Integer, Object> {
+
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger batched = new AtomicInteger();
+        volatile boolean failValidation = false;
+
+        @Override
+        public Collection<PooledObject<Object>> validateObjects(Integer key,
+                List<PooledObject<Object>> objects) {
+            batches.incrementAndGet();
+            batched.addAndGet(objects.size());
+            for (PooledObject<Object> p : objects) {
+                assertEquals(PooledObjectState.EVICTION, p.getState());
+            }
+            if (failValidation) {
+                throw new IllegalStateException("backend down");
+            }
+            List<PooledObject<Object>> invalid = new ArrayList<PooledObject<Object>>();
+            for (PooledObject<Object> p : objects) {
+                if (isInvalid(p)) {
+                    invalid.add(p);
+                }
+            }
+            return invalid;
+        }
+
+        boolean isInvalid(PooledObject<Object> p) {
+            return wrapped.indexOf(p) % 5 == 0;
+        }
+    }
+
+    private final BatchFactory factory = new BatchFactory();
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    private void createPool() {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setMaxTotalPerKey(20);
+        config.setMaxIdlePerKey(20);
+        config.setTestWhileIdle(true);
+        config.setNumTestsPerEvictionRun(-1);
+        config.setMinEvictableIdleTimeMillis(-1);
+        pool = new GenericKeyedObjectPool<Integer, Object>(factory, config);
+    }
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testOneBatchPerKey() throws Exception {
+        createPool();
+        for (int key = 0; key < 5; key++) {
+            for (int i = 0; i < 10; i++) {
+                pool.addObject(key);
+            }
+        }
+        pool.evict();
+
+        assertEquals(5, factory.batches.get());
+        assertEquals(50, factory.batched.get());
+        assertEquals(0, factory.validated.get());
+        assertEquals(10, pool.getDestroyedByEvictorCount());
+        assertEquals(40, pool.getNumIdle());
+        assertTested();
+    }
+
+    @Test
+    public void testValidationFailure() throws Exception {
+        createPool();
+        final AtomicInteger swallowed = new AtomicInteger();
+        pool.setSwallowedExceptionListener(new SwallowedExceptionListener() {
+            @Override
+            public void onSwallowException(Exception e) {
+                swallowed.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            pool.addObject(0);
+        }
+        factory.failValidation = true;
+        pool.evict();
+
+        assertEquals(1, swallowed.get());
+        assertEquals(10, pool.getDestroyedByEvictorCount());
+        assertEquals(0, pool.getNumIdle());
+        assertTested();
+    }
+
+    /**
+     * Destroying the invalid objects fails for each of them: every object
+     * must still get its eviction test ended and the first failure is
+     * thrown.
+     */
+    @Test
+    public void testDestroyFailure() throws Exception {
+        createPool();
+        for (int i = 0; i < 20; i++) {
+            pool.addObject(0);
+        }
+        factory.failDestroy = true;
+        try {
+            pool.evict();
+            fail("the failure to destroy must be thrown");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("destroy "));
+        }
+
+        assertEquals(16, pool.getNumIdle());
+        assertEquals(16, pool.getCreatedCount() - pool.getDestroyedCount());
+        assertTested();
+
+        // Nothing is left under test: every idle object can be borrowed
+        factory.failDestroy = false;
+        List<Object> borrowed = new ArrayList<Object>();
+        for (int i = 0; i < 16; i++) {
+            borrowed.add(pool.borrowObject(0));
+        }
+        assertEquals(20, pool.getCreatedCount());
+        for (Object obj : borrowed) {
+            pool.returnObject(0, obj);
+        }
+    }
+
+    /**
+     * Check that every object created has either been destroyed or is idle
+     * again, and that only the objects reported invalid have been destroyed.
+     */
+    private void assertTested() {
+        for (PooledObject<Object> p : factory.wrapped) {
+            PooledObjectState expected = factory.failValidation ||
+                    factory.isInvalid(p) ?
+                    PooledObjectState.INVALID : PooledObjectState.IDLE;
+            assertSame("object " + factory.wrapped.indexOf(p), expected,
+                    p.getState());
+        }
+    }
+}
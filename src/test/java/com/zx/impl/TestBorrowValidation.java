@@ -0,0 +1,144 @@
+package com.zx.impl;
+
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 借用时跳过最近校验过或最近使用过的对象的校验
+ */
+public class TestBorrowValidation {
+
+    private final AtomicLong now = new AtomicLong(1000000);
+
+    private final PoolClock clock = new PoolClock() {
+        @Override
+        public long currentTimeMillis() {
+            return now.get();
+        }
+    };
+
+    private final AtomicInteger validations = new AtomicInteger();
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    /**
+     * @param commonsWrapper wrap the objects in the commons-pool2
+     *                       DefaultPooledObject instead of this package's one
+     */
+    private void createPool(long cacheMillis, long idleMillis,
+            final boolean commonsWrapper) {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setClock(clock);
+        config.setTestOnBorrow(true);
+        config.setValidationCacheMillis(cacheMillis);
+        config.setBorrowValidationIdleMillis(idleMillis);
+        pool = new GenericKeyedObjectPool<Integer, Object>(
+                new BaseKeyedPooledObjectFactory<Integer, Object>() {
+                    @Override
+                    public Object create(Integer key) {
+                        return new Object();
+                    }
+
+                    @Override
+                    public PooledObject<Object> wrap(Object value) {
+                        if (commonsWrapper) {
+                            return new org.apache.commons.pool2.impl.DefaultPooledObject<Object>(value);
+                        }
+                        return new DefaultPooledObject<Object>(value, clock);
+                    }
+
+                    @Override
+                    public boolean validateObject(Integer key, PooledObject<Object> p) {
+                        validations.incrementAndGet();
+                        return true;
+                    }
+                }, config);
+    }
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testValidatesEveryBorrowByDefault() throws Exception {
+        createPool(-1, -1, false);
+        assertEquals(100, cycle(100, 2));
+    }
+
+    @Test
+    public void testValidationCache() throws Exception {
+        createPool(5000, -1, false);
+        assertEquals(1, cycle(100, 2));
+        pool.clear();
+        // Every other borrow is more than 5s after the last validation
+        assertEquals(5, cycle(10, 3000));
+    }
+
+    /**
+     * The pool keeps the validation times of objects that are not wrapped in
+     * this package's DefaultPooledObject, so the cache works for them too.
+     */
+    @Test
+    public void testValidationCacheWithOtherWrapper() throws Exception {
+        createPool(5000, -1, true);
+        assertEquals(1, cycle(100, 2));
+    }
+
+    @Test
+    public void testEvictorValidationCached() throws Exception {
+        createPool(5000, -1, true);
+        pool.setTestWhileIdle(true);
+        pool.addObject(1);
+        pool.evict();
+        validations.set(0);
+        pool.returnObject(1, pool.borrowObject(1));
+        assertEquals(0, validations.get());
+    }
+
+    @Test
+    public void testDestroyedObjectForgotten() throws Exception {
+        createPool(5000, -1, false);
+        pool.returnObject(1, pool.borrowObject(1));
+        pool.clear();
+        validations.set(0);
+        pool.returnObject(1, pool.borrowObject(1));
+        assertEquals(1, validations.get());
+    }
+
+    @Test
+    public void testBorrowValidationIdle() throws Exception {
+        createPool(-1, 1000, false);
+        assertEquals(0, cycle(100, 2));
+        // The first borrow is of a new object, idle for no time at all
+        assertEquals(9, cycle(10, 2000));
+    }
+
+    /**
+     * Borrow and return an object of key 1 the given number of times.
+     *
+     * @param gap the time between a return and the next borrow
+     *
+     * @return the number of validations
+     */
+    private int cycle(int times, long gap) throws Exception {
+        validations.set(0);
+        for (int i = 0; i < times; i++) {
+            Object obj = pool.borrowObject(1);
+            now.addAndGet(1);
+            pool.returnObject(1, obj);
+            now.addAndGet(gap);
+        }
+        return validations.get();
+    }
+}
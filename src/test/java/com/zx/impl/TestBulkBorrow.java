@@ -0,0 +1,192 @@
+package com.zx.impl;
+
+import com.zx.AsyncKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 一次借用和归还多个对象
+ */
+public class TestBulkBorrow {
+
+    /**
+     * Creating an object takes {@link #CREATE_MILLIS}.
+     */
+    private static class SlowFactory
+            implements AsyncKeyedPooledObjectFactory<Integer, Object> {
+
+        static final long CREATE_MILLIS = 50;
+
+        final TestObjectFactory objects = new TestObjectFactory();
+
+        SlowFactory() {
+            objects.createMillis = CREATE_MILLIS;
+        }
+
+        @Override
+        public CompletionStage<PooledObject<Object>> makeObject(Integer key) {
+            return CompletableFuture.completedFuture(
+                    objects.wrap(objects.create(key)));
+        }
+
+        @Override
+        public void destroyObject(Integer key, PooledObject<Object> p)
+                throws Exception {
+            objects.destroyObject(key, p);
+        }
+
+        @Override
+        public CompletionStage<Boolean> validateObject(Integer key,
+                PooledObject<Object> p) {
+            return CompletableFuture.completedFuture(
+                    Boolean.valueOf(objects.validateObject(key, p)));
+        }
+
+        @Override
+        public CompletionStage<Void> activateObject(Integer key,
+                PooledObject<Object> p) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void passivateObject(Integer key, PooledObject<Object> p)
+                throws Exception {
+            objects.passivateObject(key, p);
+        }
+    }
+
+    private final SlowFactory factory = new SlowFactory();
+
+    private final ExecutorService threads = Executors.newFixedThreadPool(8);
+
+    /* Counts the creation tasks submitted to the pool's executor */
+    private final AtomicInteger tasks = new AtomicInteger();
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    private void createPool(int maxTotalPerKey, int maxCreatingPerKey) {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setMaxTotalPerKey(maxTotalPerKey);
+        config.setMaxIdlePerKey(maxTotalPerKey);
+        config.setMaxCreatingPerKey(maxCreatingPerKey);
+        pool = new GenericKeyedObjectPool<Integer, Object>(factory, config,
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        tasks.incrementAndGet();
+                        threads.execute(command);
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+        threads.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void testCreatesConcurrently() throws Exception {
+        createPool(10, -1);
+        long start = System.currentTimeMillis();
+        List<Object> objects = pool.borrowObjects(1, 8, 1000);
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(8, new HashSet<Object>(objects).size());
+        assertEquals(7, tasks.get());
+        assertTrue("took " + elapsed, elapsed < 4 * SlowFactory.CREATE_MILLIS);
+        assertEquals(8, pool.getNumActive(1));
+        assertEquals(8, pool.getBorrowedCount());
+
+        pool.returnObjects(1, objects);
+        assertEquals(8, pool.getNumIdle(1));
+        assertEquals(0, pool.getNumActive(1));
+        assertEquals(8, pool.getReturnedCount());
+
+        // The idle objects are taken without creating any
+        tasks.set(0);
+        assertEquals(8, pool.borrowObjects(1, 8, 1000).size());
+        assertEquals(0, tasks.get());
+        assertEquals(8, factory.objects.created.get());
+    }
+
+    /**
+     * No more creation tasks are submitted than the key has room for.
+     */
+    @Test(timeout = 10000)
+    public void testTasksLimitedByRoom() throws Exception {
+        createPool(4, -1);
+        pool.borrowObjects(1, 3, 1000);
+        tasks.set(0);
+        pool.setBlockWhenExhausted(false);
+        List<Object> objects = pool.borrowObjects(1, 8, 0, false);
+        assertEquals(1, objects.size());
+        assertEquals(0, tasks.get());
+        assertEquals(4, factory.objects.created.get());
+    }
+
+    /**
+     * With maxCreatingPerKey 2 every round creates two objects: one on the
+     * calling thread and one task.
+     */
+    @Test(timeout = 10000)
+    public void testTasksLimitedByMaxCreatingPerKey() throws Exception {
+        createPool(10, 2);
+        assertEquals(8, pool.borrowObjects(1, 8, 1000).size());
+        assertEquals(4, tasks.get());
+        assertEquals(8, factory.objects.created.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testAllOrNothing() throws Exception {
+        createPool(10, -1);
+        pool.borrowObjects(1, 8, 1000);
+        try {
+            pool.borrowObjects(1, 5, 100);
+            fail("borrowed more than maxTotalPerKey");
+        } catch (NoSuchElementException e) {
+            // Expected
+        }
+        // The two objects borrowed are given back
+        assertEquals(8, pool.getNumActive(1));
+        assertEquals(2, pool.getNumIdle(1));
+        assertEquals(2, pool.borrowObjects(1, 5, 100, false).size());
+    }
+
+    @Test(timeout = 10000)
+    public void testReturnObjectsChecksWholeBatch() throws Exception {
+        createPool(10, -1);
+        List<Object> objects = pool.borrowObjects(1, 3, 1000);
+        try {
+            pool.returnObjects(1, Arrays.asList(objects.get(0), new Object()));
+            fail("returned an object not of the pool");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(0, pool.getNumIdle(1));
+
+        pool.setMaxIdlePerKey(2);
+        pool.returnObjects(1, objects);
+        assertEquals(2, pool.getNumIdle(1));
+        assertEquals(0, pool.getNumActive(1));
+        assertEquals(1, pool.getDestroyedCount());
+    }
+}
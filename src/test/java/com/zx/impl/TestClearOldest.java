@@ -0,0 +1,191 @@
+package com.zx.impl;
+
+import org.apache.commons.pool2.PooledObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 清除所有key中最老的空闲对象
+ */
+public class TestClearOldest {
+
+    private final AtomicLong now = new AtomicLong(1000000);
+
+    private final PoolClock clock = new PoolClock() {
+        @Override
+        public long currentTimeMillis() {
+            return now.get();
+        }
+    };
+
+    private final List<Object> cleared = new ArrayList<Object>();
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    @Before
+    public void setUp() {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setClock(clock);
+        pool = new GenericKeyedObjectPool<Integer, Object>(
+                new TestObjectFactory(clock) {
+                    @Override
+                    public void destroyObject(Integer key, PooledObject<Object> p)
+                            throws Exception {
+                        super.destroyObject(key, p);
+                        cleared.add(p.getObject());
+                    }
+                }, config);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    /**
+     * Objects returned in turn to three keys: the oldest are cleared
+     * whichever key they belong to.
+     */
+    @Test
+    public void testOldestAcrossKeys() throws Exception {
+        List<Object> returned = returnInTurn(3, 9);
+        pool.setClearOldestRatio(0.25);
+        pool.clearOldest();
+        // 9 * 0.25 + 1
+        assertEquals(returned.subList(0, 3), sorted(cleared, returned));
+        assertEquals(6, pool.getNumIdle());
+    }
+
+    /**
+     * A key that was passed over keeps its place, and a key cleared before
+     * moves back to the return time of its oldest remaining object.
+     */
+    @Test
+    public void testKeysReordered() throws Exception {
+        pool.setClearOldestRatio(0);
+        // Keys 0, 1, 0, 1
+        List<Object> returned = returnInTurn(2, 4);
+
+        pool.clearOldest();
+        pool.clearOldest();
+        pool.clearOldest();
+        assertEquals(returned.subList(0, 3), cleared);
+        assertEquals(1, pool.getNumIdle(1));
+
+        // Key 0 has no idle objects left, the next is of key 1
+        Object fifth = returnObject(0);
+        pool.clearOldest();
+        assertEquals(returned.get(3), cleared.get(3));
+        assertEquals(1, pool.getNumIdle(0));
+        pool.clearOldest();
+        assertEquals(fifth, cleared.get(4));
+    }
+
+    /**
+     * Making room for a new object under maxTotal clears the oldest.
+     */
+    @Test
+    public void testClearedForRoom() throws Exception {
+        pool.setMaxTotal(2);
+        Object first = returnObject(1);
+        Object second = returnObject(2);
+        pool.borrowObject(3);
+        assertEquals(1, cleared.size());
+        assertEquals(first, cleared.get(0));
+        assertEquals(1, pool.getNumIdle(2));
+        assertFalse(cleared.contains(second));
+    }
+
+    @Test
+    public void testRatio() throws Exception {
+        pool.setClearOldestRatio(0);
+        assertEquals(0, pool.getClearOldestRatio(), 0);
+        checkRatioRejected(-0.1);
+        checkRatioRejected(Double.NaN);
+        assertEquals(0, pool.getClearOldestRatio(), 0);
+
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setClearOldestRatio(2);
+        for (double ratio : new double[] {-1, Double.NaN}) {
+            try {
+                config.setClearOldestRatio(ratio);
+                fail("accepted " + ratio);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        assertEquals(2, config.getClearOldestRatio(), 0);
+
+        // A ratio of more than 1 clears everything
+        returnInTurn(2, 4);
+        pool.setClearOldestRatio(2);
+        pool.clearOldest();
+        assertEquals(4, cleared.size());
+        assertEquals(0, pool.getNumIdle());
+    }
+
+    private void checkRatioRejected(double ratio) {
+        try {
+            pool.setClearOldestRatio(ratio);
+            fail("accepted " + ratio);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("clearOldestRatio"));
+        }
+    }
+
+    /**
+     * Borrow the given number of new objects from the keys in turn, then
+     * return them one a millisecond.
+     *
+     * @return the objects, oldest first
+     */
+    private List<Object> returnInTurn(int keys, int n) throws Exception {
+        List<Object> returned = new ArrayList<Object>();
+        for (int i = 0; i < n; i++) {
+            returned.add(pool.borrowObject(i % keys));
+        }
+        for (int i = 0; i < n; i++) {
+            now.incrementAndGet();
+            pool.returnObject(i % keys, returned.get(i));
+        }
+        now.incrementAndGet();
+        return returned;
+    }
+
+    /**
+     * Borrow a new object from a key without idle objects and return it a
+     * millisecond later.
+     */
+    private Object returnObject(int key) throws Exception {
+        assertEquals(0, pool.getNumIdle(key));
+        Object obj = pool.borrowObject(key);
+        now.incrementAndGet();
+        pool.returnObject(key, obj);
+        now.incrementAndGet();
+        return obj;
+    }
+
+    /**
+     * The given objects in the order they appear in another list.
+     */
+    private static List<Object> sorted(List<Object> objects, List<Object> order) {
+        List<Object> result = new ArrayList<Object>();
+        for (Object obj : order) {
+            if (objects.contains(obj)) {
+                result.add(obj);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,169 @@
+package com.zx.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 并发的标识哈希表：查找与插入、删除和扩容同时进行
+ */
+public class TestConcurrentIdentityHashMap {
+
+    private static final int STABLE_KEYS = 64;
+    private static final int WRITERS = 2;
+    private static final int READERS = 4;
+    private static final int ITERATIONS = 200000;
+
+    /**
+     * A value that knows the key it was put under.
+     */
+    private static class Value {
+
+        final Object key;
+
+        Value(Object key) {
+            this.key = key;
+        }
+    }
+
+    @Test
+    public void testIdentitySemantics() {
+        ConcurrentIdentityHashMap<String, Value> map =
+                new ConcurrentIdentityHashMap<String, Value>();
+        String key = new String("key");
+        String equalKey = new String("key");
+        Value value = new Value(key);
+        assertNull(map.put(key, value));
+        assertSame(value, map.get(key));
+        assertNull(map.get(equalKey));
+        assertNull(map.remove(equalKey));
+        assertSame(value, map.remove(key));
+        assertEquals(0, map.size());
+
+        // Grow past the minimum capacity and shrink again
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            String k = new String("key");
+            keys.add(k);
+            assertNull(map.put(k, new Value(k)));
+        }
+        assertEquals(1000, map.size());
+        assertEquals(1000, map.values().size());
+        for (String k : keys) {
+            assertSame(k, map.get(k).key);
+            assertSame(k, map.remove(k).key);
+        }
+        assertEquals(0, map.size());
+        assertNull(map.get(keys.get(0)));
+    }
+
+    /**
+     * Writers keep putting and removing keys of their own, which fills the
+     * array with removed slots and so rehashes it over and over, while
+     * readers look up keys that are always present and the writers' keys.
+     * A stable key must always be found with its value, and a writer's key
+     * either not at all or with a value put under it.
+     */
+    @Test(timeout = 120000)
+    public void testGetRacingRehashAndRemove() throws Exception {
+        final ConcurrentIdentityHashMap<Object, Value> map =
+                new ConcurrentIdentityHashMap<Object, Value>();
+        final Object[] stable = new Object[STABLE_KEYS];
+        for (int i = 0; i < stable.length; i++) {
+            stable[i] = new Object();
+            map.put(stable[i], new Value(stable[i]));
+        }
+        final Object[][] churn = new Object[WRITERS][STABLE_KEYS];
+        for (Object[] keys : churn) {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = new Object();
+            }
+        }
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicLong churnFound = new AtomicLong(0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        try {
+            List<Future<Void>> writers = new ArrayList<Future<Void>>();
+            for (int t = 0; t < WRITERS; t++) {
+                final Object[] keys = churn[t];
+                writers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            Object key = keys[i % keys.length];
+                            if (i / keys.length % 2 == 0) {
+                                assertNull(map.put(key, new Value(key)));
+                            } else {
+                                assertSame(key, map.remove(key).key);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            List<Future<Void>> readers = new ArrayList<Future<Void>>();
+            for (int t = 0; t < READERS; t++) {
+                readers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        int i = 0;
+                        while (!done.get()) {
+                            Object key = stable[i % stable.length];
+                            Value value = map.get(key);
+                            assertTrue("stable key lost", value != null);
+                            assertSame(key, value.key);
+
+                            key = churn[i % WRITERS][i % STABLE_KEYS];
+                            value = map.get(key);
+                            if (value != null) {
+                                assertSame(key, value.key);
+                                churnFound.incrementAndGet();
+                            }
+                            i++;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> writer : writers) {
+                writer.get();
+            }
+            done.set(true);
+            for (Future<Void> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        }
+
+        assertTrue(churnFound.get() > 0);
+        // Each writer ends half way through putting its keys again
+        int remaining = ITERATIONS % (2 * STABLE_KEYS);
+        int expected = STABLE_KEYS + WRITERS * Math.min(remaining, STABLE_KEYS);
+        assertEquals(expected, map.size());
+        Set<Object> keys = new HashSet<Object>();
+        for (Value value : map.values()) {
+            assertSame(value, map.get(value.key));
+            keys.add(value.key);
+        }
+        assertEquals(expected, keys.size());
+    }
+}
@@ -0,0 +1,118 @@
+package com.zx.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 无锁的空闲对象存储：添加对象的线程与等待的线程之间的唤醒
+ */
+public class TestConcurrentIdleObjectStore {
+
+    private static final int PRODUCERS = 4;
+    private static final int CONSUMERS = 4;
+    private static final int ITEMS = 50000;
+
+    @Test
+    public void testDequeOperations() throws Exception {
+        ConcurrentIdleObjectStore<Integer> store = new ConcurrentIdleObjectStore<Integer>(false);
+        Integer one = Integer.valueOf(1);
+        Integer two = Integer.valueOf(2);
+        store.addFirst(one);
+        store.addFirst(two);
+        assertEquals(2, store.size());
+        assertSame(two, store.peekFirst());
+        assertSame(one, store.pollLast());
+        assertTrue(store.removeFirstOccurrence(two));
+        assertEquals(0, store.size());
+        assertTrue(store.isEmpty());
+        assertNull(store.pollFirst(10, TimeUnit.MILLISECONDS));
+        assertEquals(0, store.getTakeQueueLength());
+    }
+
+    /**
+     * Producers add items, the first and last half of them at either end,
+     * while consumers take them: half of the consumers with
+     * {@link ConcurrentIdleObjectStore#takeFirst()}, the other half with
+     * polls whose timeout is short enough to expire while they are being
+     * signalled. No signal may be lost, so every consumer gets its share
+     * and the test does not time out. Every item must be taken exactly once
+     * and no waiter may be left registered.
+     */
+    @Test(timeout = 120000)
+    public void testConcurrentHandOff() throws Exception {
+        final ConcurrentIdleObjectStore<Integer> store =
+                new ConcurrentIdleObjectStore<Integer>(true);
+        final AtomicIntegerArray taken = new AtomicIntegerArray(PRODUCERS * ITEMS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(PRODUCERS + CONSUMERS);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < CONSUMERS; t++) {
+                final boolean timed = t % 2 == 1;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        int n = 0;
+                        while (n < PRODUCERS * ITEMS / CONSUMERS) {
+                            Integer item = timed ?
+                                    store.pollFirst(1, TimeUnit.MICROSECONDS) :
+                                    store.takeFirst();
+                            if (item != null) {
+                                assertEquals("taken twice", 0,
+                                        taken.getAndIncrement(item.intValue()));
+                                n++;
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int t = 0; t < PRODUCERS; t++) {
+                final int first = t * ITEMS;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = first; i < first + ITEMS; i++) {
+                            if (i % 2 == 0) {
+                                store.addFirst(Integer.valueOf(i));
+                            } else {
+                                store.addLast(Integer.valueOf(i));
+                            }
+                            if (i % 64 == 0) {
+                                // Let the consumers run dry and wait
+                                Thread.yield();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        }
+
+        for (int i = 0; i < taken.length(); i++) {
+            assertEquals("item " + i, 1, taken.get(i));
+        }
+        assertEquals(0, store.size());
+        assertTrue(store.isEmpty());
+        assertEquals(0, store.getTakeQueueLength());
+    }
+}
@@ -0,0 +1,128 @@
+package com.zx.impl;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectState;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 并发的状态转换：借用、归还和驱逐测试同时作用于同一个对象
+ */
+public class TestDefaultPooledObject {
+
+    private static final int BORROWERS = 4;
+    private static final int ITERATIONS = 200000;
+
+    @Test
+    public void testStateTransitions() {
+        DefaultPooledObject<Object> p = new DefaultPooledObject<Object>(new Object());
+        assertEquals(PooledObjectState.IDLE, p.getState());
+        assertTrue(p.allocate());
+        assertFalse(p.allocate());
+        assertEquals(1, p.getBorrowedCount());
+        assertTrue(p.deallocate());
+        assertFalse(p.deallocate());
+
+        Deque<PooledObject<Object>> idle = new LinkedBlockingDeque<PooledObject<Object>>();
+        assertTrue(p.startEvictionTest());
+        assertFalse(p.allocate());
+        assertEquals(PooledObjectState.EVICTION_RETURN_TO_HEAD, p.getState());
+        assertFalse(p.endEvictionTest(idle));
+        assertSame(p, idle.peekFirst());
+        assertEquals(PooledObjectState.IDLE, p.getState());
+        assertEquals(1, p.getBorrowedCount());
+
+        p.invalidate();
+        assertFalse(p.allocate());
+        assertFalse(p.startEvictionTest());
+        assertEquals(1, p.getBorrowedCount());
+    }
+
+    /**
+     * Borrowers take the object from a deque, allocate and deallocate it
+     * while an evictor starts and ends eviction tests on it, as the pool
+     * does. The object must never be allocated twice at once, must end up
+     * idle and in the deque exactly once, and the packed borrow count must
+     * equal the number of successful allocations.
+     */
+    @Test(timeout = 120000)
+    public void testConcurrentTransitions() throws Exception {
+        final DefaultPooledObject<Object> p = new DefaultPooledObject<Object>(new Object());
+        final Deque<PooledObject<Object>> idle = new LinkedBlockingDeque<PooledObject<Object>>();
+        idle.addFirst(p);
+
+        final AtomicBoolean held = new AtomicBoolean(false);
+        final AtomicLong allocations = new AtomicLong(0);
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        ExecutorService executor = Executors.newFixedThreadPool(BORROWERS + 1);
+        try {
+            List<Future<Void>> borrowers = new ArrayList<Future<Void>>();
+            for (int t = 0; t < BORROWERS; t++) {
+                borrowers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            PooledObject<Object> taken = idle.pollFirst();
+                            if (taken == null || !taken.allocate()) {
+                                // Not idle, or under test: the evictor puts
+                                // it back
+                                continue;
+                            }
+                            assertTrue("allocated twice", held.compareAndSet(false, true));
+                            allocations.incrementAndGet();
+                            assertEquals(PooledObjectState.ALLOCATED, taken.getState());
+                            held.set(false);
+                            assertTrue(taken.deallocate());
+                            idle.addFirst(taken);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            Future<Void> evictor = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (!done.get()) {
+                        PooledObject<Object> underTest = idle.peekFirst();
+                        if (underTest != null && underTest.startEvictionTest()) {
+                            assertFalse("allocated under test", held.get());
+                            underTest.endEvictionTest(idle);
+                        }
+                    }
+                    return null;
+                }
+            });
+            for (Future<Void> borrower : borrowers) {
+                borrower.get();
+            }
+            done.set(true);
+            evictor.get();
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        }
+
+        assertEquals(PooledObjectState.IDLE, p.getState());
+        assertEquals(1, idle.size());
+        assertSame(p, idle.peekFirst());
+        assertEquals(allocations.get(), p.getBorrowedCount());
+        assertTrue(allocations.get() > 0);
+    }
+}
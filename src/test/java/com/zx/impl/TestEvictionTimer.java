@@ -0,0 +1,129 @@
+package com.zx.impl;
+
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 共享的驱逐调度器
+ */
+public class TestEvictionTimer {
+
+    /**
+     * Counts its runs, and throws the given exception or error from each.
+     */
+    private static class CountingTask extends EvictionTimer.Task {
+
+        final CountDownLatch threeRuns = new CountDownLatch(3);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final RuntimeException exception;
+        final Error error;
+
+        CountingTask(RuntimeException exception, Error error) {
+            this.exception = exception;
+            this.error = error;
+        }
+
+        @Override
+        void execute(long lagMillis) {
+            threeRuns.countDown();
+            if (exception != null) {
+                throw exception;
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        @Override
+        void skipped(long runs) {
+        }
+
+        @Override
+        void failed(Exception e) {
+            failure.set(e);
+        }
+    }
+
+    /**
+     * The evictor of the keyed pool runs on the shared executor and records
+     * its run times and lag.
+     */
+    @Test(timeout = 10000)
+    public void testKeyedPoolEvictorOnSharedExecutor() throws Exception {
+        final AtomicReference<String> evictorThread = new AtomicReference<String>();
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setTestWhileIdle(true);
+        config.setTimeBetweenEvictionRunsMillis(10);
+        GenericKeyedObjectPool<Integer, Object> pool = new GenericKeyedObjectPool<Integer, Object>(
+                new BaseKeyedPooledObjectFactory<Integer, Object>() {
+                    @Override
+                    public Object create(Integer key) {
+                        return new Object();
+                    }
+
+                    @Override
+                    public PooledObject<Object> wrap(Object value) {
+                        return new DefaultPooledObject<Object>(value);
+                    }
+
+                    @Override
+                    public boolean validateObject(Integer key, PooledObject<Object> p) {
+                        evictorThread.set(Thread.currentThread().getName());
+                        return true;
+                    }
+                }, config);
+        try {
+            pool.addObject(1);
+            while (pool.getEvictionRunCount() < 3 || evictorThread.get() == null) {
+                Thread.sleep(5);
+            }
+            assertTrue(evictorThread.get(),
+                    evictorThread.get().startsWith("commons-pool-evictor-"));
+            assertTrue(pool.getMaxEvictionRunTimeMillis() >= 0);
+            assertTrue(pool.getMaxEvictionLagMillis() >= pool.getMeanEvictionLagMillis());
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * An exception is passed to {@link EvictionTimer.Task#failed}, and the
+     * task stays scheduled.
+     */
+    @Test(timeout = 10000)
+    public void testExceptionPassedToTask() throws Exception {
+        IllegalStateException exception = new IllegalStateException("run");
+        CountingTask task = new CountingTask(exception, null);
+        EvictionTimer.schedule(task, 1, 1);
+        try {
+            assertTrue(task.threeRuns.await(5, TimeUnit.SECONDS));
+        } finally {
+            EvictionTimer.cancel(task);
+        }
+        assertEquals(exception, task.failure.get());
+    }
+
+    /**
+     * An error is not swallowed, but does not stop the task either.
+     */
+    @Test(timeout = 10000)
+    public void testErrorNotSwallowed() throws Exception {
+        CountingTask task = new CountingTask(null, new AssertionError("run"));
+        EvictionTimer.schedule(task, 1, 1);
+        try {
+            assertTrue(task.threeRuns.await(5, TimeUnit.SECONDS));
+        } finally {
+            EvictionTimer.cancel(task);
+        }
+        assertEquals(null, task.failure.get());
+    }
+}
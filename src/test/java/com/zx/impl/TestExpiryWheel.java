@@ -0,0 +1,104 @@
+package com.zx.impl;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分层时间轮的调度、移除和过期
+ */
+public class TestExpiryWheel {
+
+    @Test
+    public void testExpireAtDeadline() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<String>(10, 1000);
+        wheel.schedule("a", 1050);
+        wheel.schedule("b", 1055);
+        assertEquals(2, wheel.size());
+
+        assertTrue(wheel.expire(1049).isEmpty());
+        List<String> due = wheel.expire(1050);
+        assertEquals(1, due.size());
+        assertEquals("a", due.get(0));
+        // Never before the deadline, at most one tick after it
+        assertTrue(wheel.expire(1059).isEmpty());
+        assertEquals("b", wheel.expire(1060).get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRescheduleAndRemove() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<String>(1, 0);
+        wheel.schedule("a", 10);
+        wheel.schedule("a", 100000);
+        assertEquals(1, wheel.size());
+        assertTrue(wheel.expire(50).isEmpty());
+        assertTrue(wheel.remove("a"));
+        assertFalse(wheel.remove("a"));
+        assertTrue(wheel.expire(200000).isEmpty());
+    }
+
+    @Test
+    public void testScheduleInThePast() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<String>(5, 1000);
+        wheel.expire(2000);
+        wheel.schedule("late", 500);
+        assertEquals("late", wheel.expire(2000).get(0));
+    }
+
+    /**
+     * Schedule, remove and expire at random, with deadlines from a few ticks
+     * to beyond the last level and jumps of up to hours, and compare with a
+     * map of the deadlines.
+     */
+    @Test
+    public void testAgainstReference() {
+        Random random = new Random(42);
+        Integer[] elements = new Integer[500];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = Integer.valueOf(i + 1000);
+        }
+        for (long tick : new long[] {1, 7, 1000}) {
+            long now = random.nextInt(100000);
+            ExpiryWheel<Integer> wheel = new ExpiryWheel<Integer>(tick, now);
+            Map<Integer, Long> deadlines = new HashMap<Integer, Long>();
+            for (int step = 0; step < 20000; step++) {
+                int op = random.nextInt(10);
+                Integer element = elements[random.nextInt(elements.length)];
+                if (op < 5) {
+                    long span = random.nextInt(4) == 0 ?
+                            (long) random.nextInt(1 << 20) * tick :
+                            random.nextInt(200) * tick;
+                    long deadline = now + span - tick;
+                    wheel.schedule(element, deadline);
+                    deadlines.put(element, Long.valueOf(deadline));
+                } else if (op < 6) {
+                    assertEquals(deadlines.remove(element) != null,
+                            wheel.remove(element));
+                } else {
+                    now += random.nextInt(20) == 0 ?
+                            random.nextInt(1 << 22) :
+                            random.nextInt((int) (3 * tick) + 1);
+                    for (Integer due : wheel.expire(now)) {
+                        Long deadline = deadlines.remove(due);
+                        assertNotNull("expired twice " + due, deadline);
+                        assertTrue("early", deadline.longValue() <= now);
+                    }
+                    for (Map.Entry<Integer, Long> entry : deadlines.entrySet()) {
+                        assertTrue("late " + entry + " at " + now,
+                                entry.getValue().longValue() > now - tick);
+                    }
+                }
+                assertEquals(deadlines.size(), wheel.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.zx.impl;
+
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 按到期时间索引空闲对象的驱逐
+ */
+public class TestIdleExpiryIndex {
+
+    private final AtomicLong now = new AtomicLong(1000000);
+
+    private final PoolClock clock = new PoolClock() {
+        @Override
+        public long currentTimeMillis() {
+            return now.get();
+        }
+    };
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    @Before
+    public void setUp() {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setClock(clock);
+        config.setIdleExpiryIndex(true);
+        config.setMinEvictableIdleTimeMillis(60000);
+        config.setTimeBetweenEvictionRunsMillis(-1);
+        config.setNumTestsPerEvictionRun(3);
+        config.setMaxTotalPerKey(-1);
+        pool = new GenericKeyedObjectPool<Integer, Object>(
+                new BaseKeyedPooledObjectFactory<Integer, Object>() {
+                    @Override
+                    public Object create(Integer key) {
+                        return new Object();
+                    }
+
+                    @Override
+                    public PooledObject<Object> wrap(Object value) {
+                        return new DefaultPooledObject<Object>(value, clock);
+                    }
+                }, config);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    /**
+     * All objects that are due are evicted in one run, regardless of
+     * numTestsPerEvictionRun, and none before they are due.
+     */
+    @Test
+    public void testEvictsAllDueInOneRun() throws Exception {
+        for (int key = 0; key < 50; key++) {
+            for (int i = 0; i < 20; i++) {
+                pool.addObject(key);
+            }
+        }
+        now.addAndGet(30000);
+        pool.evict();
+        assertEquals(1000, pool.getNumIdle());
+
+        Object obj = pool.borrowObject(7);
+        now.addAndGet(31000);
+        pool.evict();
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(999, pool.getDestroyedByEvictorCount());
+
+        // A returned object is due from its return
+        pool.returnObject(7, obj);
+        now.addAndGet(59000);
+        pool.evict();
+        assertEquals(1, pool.getNumIdle());
+        now.addAndGet(2000);
+        pool.evict();
+        assertEquals(0, pool.getNumIdle());
+    }
+
+    @Test
+    public void testIndexRebuiltWhenIdleTimeChanges() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            pool.addObject(1);
+        }
+        now.addAndGet(5000);
+        pool.setMinEvictableIdleTimeMillis(4000);
+        pool.evict();
+        assertEquals(0, pool.getNumIdle());
+    }
+
+    @Test
+    public void testSwitchedOff() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            pool.addObject(1);
+        }
+        pool.setIdleExpiryIndex(false);
+        now.addAndGet(61000);
+        // Sampling again: numTestsPerEvictionRun objects per run
+        pool.evict();
+        assertEquals(7, pool.getNumIdle());
+
+        pool.setIdleExpiryIndex(true);
+        pool.evict();
+        assertEquals(0, pool.getNumIdle());
+    }
+}
@@ -0,0 +1,205 @@
+package com.zx.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 检查池维护的空闲对象总数与每个键的空闲对象数之和一致
+ */
+public class TestIdleObjectCount {
+
+    private static final int KEYS = 50;
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 20000;
+
+    @Test(timeout = 120000)
+    public void testLinkedBlockingIdleObjectStore() throws Exception {
+        checkConcurrentIdleCount(LinkedBlockingIdleObjectStore.class.getName(), false);
+    }
+
+    @Test(timeout = 120000)
+    public void testConcurrentIdleObjectStore() throws Exception {
+        checkConcurrentIdleCount(ConcurrentIdleObjectStore.class.getName(), false);
+    }
+
+    @Test(timeout = 120000)
+    public void testEvictionOfReturningObjects() throws Exception {
+        checkEvictionOfReturningObjects(LinkedBlockingIdleObjectStore.class.getName(), false);
+        checkEvictionOfReturningObjects(ConcurrentIdleObjectStore.class.getName(), false);
+    }
+
+    /**
+     * Objects taken from the affinity cache stay linked in the idle objects,
+     * which must neither be counted nor lose or duplicate an object.
+     */
+    @Test(timeout = 120000)
+    public void testThreadAffinity() throws Exception {
+        checkConcurrentIdleCount(LinkedBlockingIdleObjectStore.class.getName(), true);
+        checkConcurrentIdleCount(ConcurrentIdleObjectStore.class.getName(), true);
+    }
+
+    @Test(timeout = 120000)
+    public void testEvictionWithThreadAffinity() throws Exception {
+        checkEvictionOfReturningObjects(LinkedBlockingIdleObjectStore.class.getName(), true);
+        checkEvictionOfReturningObjects(ConcurrentIdleObjectStore.class.getName(), true);
+    }
+
+    /**
+     * Borrow and return a few keys from many threads while the evictor
+     * destroys every idle object it sees. The evictor may still see an
+     * object that has been borrowed and is just being returned, which must
+     * not end up both destroyed and idle.
+     */
+    private void checkEvictionOfReturningObjects(String idleObjectStoreClassName,
+            boolean threadAffinity) throws Exception {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setIdleObjectStoreClassName(idleObjectStoreClassName);
+        config.setThreadAffinity(threadAffinity);
+        config.setMaxTotalPerKey(4);
+        config.setMinEvictableIdleTimeMillis(1);
+        config.setNumTestsPerEvictionRun(-1);
+        config.setTestWhileIdle(true);
+        final GenericKeyedObjectPool<Integer, Object> pool =
+                new GenericKeyedObjectPool<Integer, Object>(new TestObjectFactory(), config);
+
+        final int keys = 3;
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS * 2 + 1);
+        try {
+            Future<Void> evictor = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (!done.get()) {
+                        pool.evict();
+                    }
+                    return null;
+                }
+            });
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < THREADS * 2; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < ITERATIONS * 2; i++) {
+                            int key = i % keys;
+                            pool.returnObject(key, pool.borrowObject(key, 10000));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            done.set(true);
+            evictor.get();
+        } finally {
+            done.set(true);
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        }
+
+        int sum = 0;
+        for (int key = 0; key < keys; key++) {
+            sum += pool.getNumIdle(key);
+        }
+        assertEquals(sum, pool.getNumIdle());
+        assertEquals(0, pool.getNumActive());
+        assertEquals(pool.getCreatedCount() - pool.getDestroyedCount(),
+                pool.getNumIdle());
+
+        // Every object is destroyed, none is lost
+        pool.clear();
+        assertEquals(pool.getCreatedCount(), pool.getDestroyedCount());
+        pool.close();
+    }
+
+    /**
+     * Borrow, return, invalidate, evict and clear from several threads at
+     * once, then compare the maintained count with the sizes of the keys.
+     */
+    private void checkConcurrentIdleCount(String idleObjectStoreClassName,
+            boolean threadAffinity) throws Exception {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setIdleObjectStoreClassName(idleObjectStoreClassName);
+        config.setThreadAffinity(threadAffinity);
+        config.setMaxTotalPerKey(3);
+        config.setMaxTotal(KEYS * 2);
+        config.setMinEvictableIdleTimeMillis(1);
+        config.setNumTestsPerEvictionRun(-1);
+        config.setTestWhileIdle(true);
+        final GenericKeyedObjectPool<Integer, Object> pool =
+                new GenericKeyedObjectPool<Integer, Object>(new TestObjectFactory(), config);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            int key = (i * 7 + thread) % KEYS;
+                            Object obj = pool.borrowObject(key, 10000);
+                            if (i % 5 == 0) {
+                                pool.invalidateObject(key, obj);
+                            } else {
+                                pool.returnObject(key, obj);
+                            }
+                            if (i % 1000 == 0) {
+                                pool.clear(key);
+                            }
+                            if (i % 5000 == 0) {
+                                pool.clearOldest();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < 200; i++) {
+                        pool.evict();
+                    }
+                    return null;
+                }
+            }));
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        }
+
+        int sum = 0;
+        for (int key = 0; key < KEYS; key++) {
+            sum += pool.getNumIdle(key);
+        }
+        assertEquals(sum, pool.getNumIdle());
+        assertEquals(0, pool.getNumActive());
+        assertEquals(pool.getCreatedCount() - pool.getDestroyedCount(),
+                pool.getNumIdle());
+
+        pool.clear();
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(pool.getCreatedCount(), pool.getDestroyedCount());
+        pool.close();
+    }
+}
@@ -0,0 +1,137 @@
+package com.zx.impl;
+
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 每个key的统计数据
+ */
+public class TestKeyStats {
+
+    /**
+     * A key whose string form does not tell it apart from other keys.
+     */
+    private static class Shard {
+
+        private final int id;
+
+        Shard(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Shard && ((Shard) obj).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return "shard";
+        }
+    }
+
+    private GenericKeyedObjectPool<Object, Object> pool;
+
+    private void createPool(boolean keyStatsEnabled) {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setKeyStatsEnabled(keyStatsEnabled);
+        pool = new GenericKeyedObjectPool<Object, Object>(
+                new BaseKeyedPooledObjectFactory<Object, Object>() {
+                    @Override
+                    public Object create(Object key) {
+                        return new Object();
+                    }
+
+                    @Override
+                    public PooledObject<Object> wrap(Object value) {
+                        return new DefaultPooledObject<Object>(value);
+                    }
+                }, config);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testRecorded() throws Exception {
+        createPool(true);
+        cycle("a", 3);
+        pool.borrowObject("a");
+        KeyStats stats = pool.getKeyStats("a");
+        assertEquals(4, stats.getBorrowedCount());
+        assertEquals(3, stats.getReturnedCount());
+        assertEquals(1, stats.getCreatedCount());
+        assertEquals(1, stats.getNumActive());
+        assertEquals(0, stats.getDestroyedCount());
+    }
+
+    /**
+     * With keyStatsEnabled off only the pool wide statistics and the current
+     * numbers of objects are kept up to date.
+     */
+    @Test
+    public void testDisabled() throws Exception {
+        createPool(false);
+        cycle("a", 3);
+        pool.borrowObject("a");
+        KeyStats stats = pool.getKeyStats("a");
+        assertEquals(0, stats.getBorrowedCount());
+        assertEquals(0, stats.getReturnedCount());
+        assertEquals(0, stats.getCreatedCount());
+        assertEquals(1, stats.getNumActive());
+        assertEquals(4, pool.getBorrowedCount());
+
+        pool.setKeyStatsEnabled(true);
+        cycle("a", 1);
+        assertEquals(1, pool.getKeyStats("a").getBorrowedCount());
+    }
+
+    /**
+     * Keys with the same string form each keep a row of their own.
+     */
+    @Test
+    public void testAllKeyStatsWithSameName() throws Exception {
+        createPool(true);
+        for (int i = 1; i <= 3; i++) {
+            cycle(new Shard(i), i);
+        }
+        cycle("shard#2", 10);
+
+        Map<String, KeyStats> all = pool.getAllKeyStats();
+        assertEquals(4, all.size());
+        Set<Long> counts = new HashSet<Long>();
+        for (KeyStats stats : all.values()) {
+            counts.add(Long.valueOf(stats.getBorrowedCount()));
+        }
+        assertEquals(new HashSet<Long>(Arrays.asList(
+                Long.valueOf(1), Long.valueOf(2), Long.valueOf(3),
+                Long.valueOf(10))), counts);
+    }
+
+    /**
+     * Borrow and return an object of the given key the given number of
+     * times.
+     */
+    private void cycle(Object key, int times) throws Exception {
+        for (int i = 0; i < times; i++) {
+            pool.returnObject(key, pool.borrowObject(key));
+        }
+    }
+}
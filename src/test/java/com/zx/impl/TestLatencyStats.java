@@ -0,0 +1,101 @@
+package com.zx.impl;
+
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 池的活跃时间、空闲时间和等待时间的百分位数
+ */
+public class TestLatencyStats {
+
+    private final AtomicLong now = new AtomicLong(1000000);
+
+    private final PoolClock clock = new PoolClock() {
+        @Override
+        public long currentTimeMillis() {
+            return now.get();
+        }
+    };
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    @Before
+    public void setUp() {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxNamePrefix("latencyStats");
+        config.setClock(clock);
+        pool = new GenericKeyedObjectPool<Integer, Object>(
+                new BaseKeyedPooledObjectFactory<Integer, Object>() {
+                    @Override
+                    public Object create(Integer key) {
+                        return new Object();
+                    }
+
+                    @Override
+                    public PooledObject<Object> wrap(Object value) {
+                        return new DefaultPooledObject<Object>(value, clock);
+                    }
+                }, config);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    /**
+     * Active times of 1 to 100 ms, each followed by as long idle.
+     */
+    @Test
+    public void testPercentiles() throws Exception {
+        for (int i = 1; i <= 100; i++) {
+            Object obj = pool.borrowObject(1);
+            now.addAndGet(i);
+            pool.returnObject(1, obj);
+            now.addAndGet(i);
+        }
+        assertEquals(50, pool.getMeanActiveTimeMillis());
+        assertWithin(50, pool.getActiveTimeMillisP50());
+        assertWithin(90, pool.getActiveTimeMillisP90());
+        assertWithin(99, pool.getActiveTimeMillisP99());
+        assertEquals(100, pool.getMaxActiveTimeMillis());
+        // The first borrow is of a new object
+        assertWithin(49, pool.getIdleTimeMillisP50());
+        assertEquals(99, pool.getMaxIdleTimeMillis());
+    }
+
+    /**
+     * The percentiles are attributes of the pool's MBean.
+     */
+    @Test
+    public void testPercentilesOverJmx() throws Exception {
+        Object obj = pool.borrowObject(1);
+        now.addAndGet(40);
+        pool.returnObject(1, obj);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertWithin(40, ((Long) server.getAttribute(pool.getJmxName(),
+                "ActiveTimeMillisP99")).longValue());
+        assertEquals(Long.valueOf(0), server.getAttribute(pool.getJmxName(),
+                "BorrowWaitTimeMillisP50"));
+    }
+
+    /**
+     * Assert that a percentile is the expected value, or above it by no more
+     * than the precision of the histogram.
+     */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 107 / 100 + 1);
+    }
+}
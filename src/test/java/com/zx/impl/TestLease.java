@@ -0,0 +1,104 @@
+package com.zx.impl;
+
+import com.zx.Lease;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * 通过租约借出和归还对象
+ */
+public class TestLease {
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    @Before
+    public void setUp() {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        pool = new GenericKeyedObjectPool<Integer, Object>(new TestObjectFactory(), config);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testCloseReturnsObject() throws Exception {
+        Object obj;
+        try (Lease<Object> lease = pool.lease(1)) {
+            obj = lease.get();
+            assertEquals(1, pool.getNumActive(1));
+        }
+        assertEquals(0, pool.getNumActive(1));
+        assertEquals(1, pool.getNumIdle(1));
+        assertSame(obj, pool.borrowObject(1));
+    }
+
+    @Test
+    public void testInvalidateDestroysObject() throws Exception {
+        Lease<Object> lease = pool.lease(1);
+        lease.invalidate();
+        assertEquals(0, pool.getNumActive(1));
+        assertEquals(0, pool.getNumIdle(1));
+        assertEquals(1, pool.getDestroyedCount());
+
+        // Further calls have no effect
+        lease.close();
+        lease.invalidate();
+        assertEquals(1, pool.getDestroyedCount());
+        assertEquals(0, pool.getNumIdle(1));
+    }
+
+    /**
+     * Leasing an object again hands out the same lease.
+     */
+    @Test
+    public void testLeaseReused() throws Exception {
+        Lease<Object> a = pool.lease(1);
+        Object obj = a.get();
+        a.close();
+        Lease<Object> b = pool.lease(1);
+        assertSame(a, b);
+        assertSame(obj, b.get());
+        b.close();
+        assertEquals(0, pool.getNumActive(1));
+        assertEquals(1, pool.getNumIdle(1));
+    }
+
+    /**
+     * A lease kept after it has been closed cannot act on its object once
+     * the object has been borrowed again.
+     */
+    @Test
+    public void testStaleLeaseCannotActOnRecycledObject() throws Exception {
+        Lease<Object> stale = pool.lease(1);
+        Object obj = stale.get();
+        stale.close();
+        assertSame(obj, pool.borrowObject(1));
+
+        stale.close();
+        stale.invalidate();
+        assertEquals(1, pool.getNumActive(1));
+        assertEquals(0, pool.getDestroyedCount());
+        try {
+            stale.get();
+            fail("a stale lease must not give an object");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // Nor on any later borrow
+        pool.returnObject(1, obj);
+        assertSame(obj, pool.borrowObject(1));
+        stale.close();
+        assertEquals(1, pool.getNumActive(1));
+        pool.returnObject(1, obj);
+        assertEquals(1, pool.getNumIdle(1));
+    }
+}
@@ -0,0 +1,112 @@
+package com.zx.impl;
+
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的对象工厂：创建普通的对象，用这个包的{@link DefaultPooledObject}包装，并记录每种操作的次数
+ * <p>
+ * Creation can be slowed down, validation can report the objects as not
+ * valid and destruction can fail. Passivation and destruction can also be
+ * made to block until {@link #release} is counted down, except on the
+ * thread set as {@link #unblocked}.
+ */
+class TestObjectFactory extends BaseKeyedPooledObjectFactory<Integer, Object> {
+
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicInteger validated = new AtomicInteger();
+    final AtomicInteger passivated = new AtomicInteger();
+    final AtomicInteger destroyed = new AtomicInteger();
+
+    /** The objects wrapped, in the order they were created */
+    final List<PooledObject<Object>> wrapped =
+            Collections.synchronizedList(new ArrayList<PooledObject<Object>>());
+
+    /** Counted down to let blocked passivations and destructions go on */
+    final CountDownLatch release = new CountDownLatch(1);
+
+    /** The time each creation takes in milliseconds */
+    volatile long createMillis = 0;
+    volatile boolean invalid = false;
+    volatile boolean failDestroy = false;
+    volatile boolean blockPassivate = false;
+    volatile boolean blockDestroy = false;
+
+    /** A thread that never blocks, may be <code>null</code> */
+    volatile Thread unblocked;
+
+    private final PoolClock clock;
+
+    TestObjectFactory() {
+        this(null);
+    }
+
+    /**
+     * @param clock the clock of the pooled objects, <code>null</code> for
+     *              the default
+     */
+    TestObjectFactory(PoolClock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public Object create(Integer key) {
+        if (createMillis > 0) {
+            try {
+                Thread.sleep(createMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        created.incrementAndGet();
+        return new Object();
+    }
+
+    @Override
+    public PooledObject<Object> wrap(Object value) {
+        PooledObject<Object> p = clock == null ?
+                new DefaultPooledObject<Object>(value) :
+                new DefaultPooledObject<Object>(value, clock);
+        wrapped.add(p);
+        return p;
+    }
+
+    @Override
+    public boolean validateObject(Integer key, PooledObject<Object> p) {
+        validated.incrementAndGet();
+        return !invalid;
+    }
+
+    @Override
+    public void passivateObject(Integer key, PooledObject<Object> p)
+            throws Exception {
+        if (blockPassivate) {
+            awaitRelease();
+        }
+        passivated.incrementAndGet();
+    }
+
+    @Override
+    public void destroyObject(Integer key, PooledObject<Object> p)
+            throws Exception {
+        if (blockDestroy) {
+            awaitRelease();
+        }
+        destroyed.incrementAndGet();
+        if (failDestroy) {
+            throw new IllegalStateException("destroy " + wrapped.indexOf(p));
+        }
+    }
+
+    private void awaitRelease() throws InterruptedException {
+        if (Thread.currentThread() != unblocked) {
+            release.await();
+        }
+    }
+}
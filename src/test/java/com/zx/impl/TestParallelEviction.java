@@ -0,0 +1,190 @@
+package com.zx.impl;
+
+import org.apache.commons.pool2.PooledObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 按key分区并行执行驱逐
+ */
+public class TestParallelEviction {
+
+    private static final int KEYS = 64;
+    private static final int OBJECTS_PER_KEY = 2;
+    private static final int TESTS_PER_RUN = 16;
+
+    /**
+     * Counts the validations of each object; validating the objects of
+     * {@link #failingKey} throws.
+     */
+    private static class CountingFactory extends TestObjectFactory {
+
+        final ConcurrentHashMap<Object, AtomicInteger> validations =
+                new ConcurrentHashMap<Object, AtomicInteger>();
+        volatile int failingKey = -1;
+
+        @Override
+        public PooledObject<Object> wrap(Object value) {
+            validations.put(value, new AtomicInteger());
+            return super.wrap(value);
+        }
+
+        @Override
+        public boolean validateObject(Integer key, PooledObject<Object> p) {
+            if (key.intValue() == failingKey) {
+                throw new IllegalStateException("validate " + key);
+            }
+            validations.get(p.getObject()).incrementAndGet();
+            return super.validateObject(key, p);
+        }
+
+        int total() {
+            int total = 0;
+            for (AtomicInteger count : validations.values()) {
+                total += count.get();
+            }
+            return total;
+        }
+
+        int min() {
+            int min = Integer.MAX_VALUE;
+            for (AtomicInteger count : validations.values()) {
+                min = Math.min(min, count.get());
+            }
+            return min;
+        }
+
+        int max() {
+            int max = 0;
+            for (AtomicInteger count : validations.values()) {
+                max = Math.max(max, count.get());
+            }
+            return max;
+        }
+    }
+
+    private final CountingFactory factory = new CountingFactory();
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    private ExecutorService executor;
+
+    private void createPool(int parallelism) throws Exception {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setTestWhileIdle(true);
+        config.setMinEvictableIdleTimeMillis(1000000);
+        config.setNumTestsPerEvictionRun(TESTS_PER_RUN);
+        config.setEvictionParallelism(parallelism);
+        if (executor != null) {
+            config.setEvictionExecutor(executor);
+        }
+        pool = new GenericKeyedObjectPool<Integer, Object>(factory, config);
+        for (int key = 0; key < KEYS; key++) {
+            for (int i = 0; i < OBJECTS_PER_KEY; i++) {
+                pool.addObject(key);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSerialSweep() throws Exception {
+        createPool(1);
+        int runs = sweepTwice();
+        assertEquals(KEYS * OBJECTS_PER_KEY / TESTS_PER_RUN * 2, runs);
+        assertEquals(2, factory.min());
+        assertEquals(2, factory.max());
+    }
+
+    @Test
+    public void testParallelSweep() throws Exception {
+        createPool(8);
+        sweepTwice();
+        assertTrue(factory.min() >= 1);
+    }
+
+    /**
+     * The budget does not split evenly over three partitions; the tests
+     * left over must still be run.
+     */
+    @Test
+    public void testUnevenSplit() throws Exception {
+        createPool(3);
+        sweepTwice();
+        assertTrue(factory.min() >= 1);
+    }
+
+    @Test
+    public void testEvictionExecutor() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        createPool(4);
+        sweepTwice();
+        assertTrue(factory.min() >= 1);
+    }
+
+    /**
+     * A failure in one partition is thrown by evict() once every partition
+     * has finished, and leaves the objects usable.
+     */
+    @Test
+    public void testFailurePropagates() throws Exception {
+        createPool(4);
+        factory.failingKey = 5;
+        int caught = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                pool.evict();
+            } catch (IllegalStateException e) {
+                caught++;
+            }
+        }
+        assertTrue(caught > 0);
+
+        factory.failingKey = -1;
+        for (int key = 0; key < KEYS; key++) {
+            Object obj = pool.borrowObject(key);
+            pool.returnObject(key, obj);
+        }
+        assertEquals(0, pool.getNumActive());
+    }
+
+    /**
+     * Run the evictor until every partition has been through all its keys
+     * twice, checking that each run spends exactly its budget.
+     *
+     * @return the number of runs
+     */
+    private int sweepTwice() throws Exception {
+        int runs = 0;
+        while (pool.getEvictionSweepCount() < 2) {
+            pool.evict();
+            runs++;
+            assertEquals(runs * TESTS_PER_RUN, factory.total());
+            if (runs > 1000) {
+                fail("no sweep after " + runs + " runs");
+            }
+        }
+        assertEquals(2, pool.getEvictionSweepCount());
+        assertTrue(pool.getMeanEvictionSweepTimeMillis() >= 0);
+        return runs;
+    }
+}
@@ -0,0 +1,134 @@
+package com.zx.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 线程亲和缓存：原地借出的对象留在空闲对象中，其他线程跳过它
+ */
+public class TestThreadAffinity {
+
+    private final ExecutorService other = Executors.newSingleThreadExecutor();
+
+    private GenericKeyedObjectPool<Integer, Object> pool;
+
+    @Before
+    public void setUp() {
+        GenericKeyedObjectPoolConfig config = new GenericKeyedObjectPoolConfig();
+        config.setJmxEnabled(false);
+        config.setThreadAffinity(true);
+        pool = new GenericKeyedObjectPool<Integer, Object>(new TestObjectFactory(), config);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        other.shutdown();
+    }
+
+    /**
+     * With FIFO the cached object, returned last, is not the one other
+     * threads are given first.
+     */
+    @Test
+    public void testReturnedObjectReused() throws Exception {
+        pool.setLifo(false);
+        Object first = pool.borrowObject(1);
+        Object second = pool.borrowObject(1);
+        pool.returnObject(1, first);
+        pool.returnObject(1, second);
+        assertSame(second, pool.borrowObject(1));
+        assertEquals(1, pool.getNumIdle(1));
+        assertSame(first, borrowOnOtherThread());
+        assertEquals(0, pool.getNumIdle(1));
+    }
+
+    /**
+     * An object taken from the cache is still linked in the idle objects,
+     * but neither counted nor handed to another thread.
+     */
+    @Test
+    public void testLinkSkipped() throws Exception {
+        Object obj = pool.borrowObject(1);
+        pool.returnObject(1, obj);
+        assertSame(obj, pool.borrowObject(1));
+        assertEquals(0, pool.getNumIdle(1));
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(1, pool.getNumActive(1));
+
+        Object created = borrowOnOtherThread();
+        assertNotSame(obj, created);
+        assertEquals(2, pool.getCreatedCount());
+
+        pool.returnObject(1, created);
+        pool.returnObject(1, obj);
+        assertEquals(2, pool.getNumIdle(1));
+        assertEquals(2, pool.getNumIdle());
+        pool.clear();
+        assertEquals(2, pool.getDestroyedCount());
+    }
+
+    /**
+     * Returned while its link is still there, the object is idle again
+     * without being linked twice.
+     */
+    @Test
+    public void testReturnedWhileLinked() throws Exception {
+        Object obj = pool.borrowObject(1);
+        pool.returnObject(1, obj);
+        assertSame(obj, pool.borrowObject(1));
+        pool.returnObject(1, obj);
+        assertEquals(1, pool.getNumIdle(1));
+        assertEquals(1, pool.getNumIdle());
+
+        assertSame(obj, borrowOnOtherThread());
+        assertEquals(0, pool.getNumIdle(1));
+        assertEquals(1, pool.getCreatedCount());
+        pool.returnObject(1, obj);
+        pool.clear();
+        assertEquals(1, pool.getDestroyedCount());
+        assertEquals(0, pool.getNumIdle());
+    }
+
+    @Test
+    public void testInvalidatedWhileLinked() throws Exception {
+        Object obj = pool.borrowObject(1);
+        pool.returnObject(1, obj);
+        assertSame(obj, pool.borrowObject(1));
+        pool.invalidateObject(1, obj);
+        assertEquals(0, pool.getNumIdle(1));
+        assertEquals(0, pool.getNumActive(1));
+        assertEquals(1, pool.getDestroyedCount());
+        assertNotSame(obj, borrowOnOtherThread());
+    }
+
+    @Test
+    public void testClearSkipsLink() throws Exception {
+        Object obj = pool.borrowObject(1);
+        pool.returnObject(1, obj);
+        assertSame(obj, pool.borrowObject(1));
+        pool.clear(1);
+        assertEquals(0, pool.getDestroyedCount());
+        pool.returnObject(1, obj);
+        assertEquals(1, pool.getNumIdle(1));
+        assertSame(obj, borrowOnOtherThread());
+    }
+
+    private Object borrowOnOtherThread() throws Exception {
+        return other.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return pool.borrowObject(1);
+            }
+        }).get();
+    }
+}